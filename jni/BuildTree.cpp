@@ -17,7 +17,8 @@
 #include "BuildTree.h"
 #include "TDEModel.h"
 
-void buildTree(const char* in_file, uint m, uint p, uint d) {
+void buildTree(const char* in_file, uint m, uint p, uint d, uint maxpoints,
+		uint compression, float *stats, uint channels) {
 	srand((unsigned)time(NULL));
 	TDEModel *tdeModel;
     Settings settings = { ULONG_MAX, 0, 0xff, 1, 1, 2, 2, NULL, NULL, NULL, 0 };
@@ -31,11 +32,20 @@ void buildTree(const char* in_file, uint m, uint p, uint d) {
     // test_outfile(settings.outfile);
 
     settings.delay = d;
-    settings.embdim = m;
+    settings.indim = channels;
+    settings.embdim = m * channels;
     settings.pcaembdim = p;
+    settings.maxpoints = maxpoints;
+    settings.compression = compression;
 
     tdeModel = new TDEModel(&settings);
     tdeModel->DumpTree(settings.outfile);
+    if (stats != NULL) {
+    	stats[0] = tdeModel->getOriginalLength();
+    	stats[1] = tdeModel->getLength();
+    	stats[2] = tdeModel->getCompressionMeanError();
+    	stats[3] = tdeModel->getCompressionMaxError();
+    }
 /*
     ANNpoint ap = tdeModel->getDataPoint(0);
     uint N = 1000;
@@ -61,5 +71,7 @@ void buildTree(const char* in_file, uint m, uint p, uint d) {
 
     if (settings.column != NULL) free(settings.column);
     if (settings.outfile != NULL) free(settings.outfile);
+    if (settings.channelmean != NULL) free(settings.channelmean);
+    if (settings.channelscale != NULL) free(settings.channelscale);
     return;
 }
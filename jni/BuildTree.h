@@ -10,6 +10,17 @@
 #ifndef MANIFOLDEXPERIMENT_H_
 #define MANIFOLDEXPERIMENT_H_
 
-void buildTree(const char* in_file, uint m, uint p, uint d);
+#include "Utils.h"
+
+// Builds a model from the data in in_file and saves it to in_file.dmp. If
+// maxpoints is non-zero, the model is reduced to at most maxpoints points
+// using the given COMPRESS_ method. If stats is not NULL, it receives the
+// number of embedded training points, the number of model points, and the
+// mean and maximum distance from a training point to its representative.
+// in_file may hold several columns, one per channel, in which case m is the
+// embedding dimension of each channel and the channels are normalised.
+void buildTree(const char* in_file, uint m, uint p, uint d, uint maxpoints=0,
+		uint compression=COMPRESS_FARTHEST_POINT, float *stats=NULL,
+		uint channels=1);
 
 #endif /* MANIFOLDEXPERIMENT_H_ */
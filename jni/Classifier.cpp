@@ -18,8 +18,11 @@ Classifier::Classifier(std::vector<NamedModel*> *models, uint numNeighbours, uin
 	TDEModel *model;
 	windowSize = 0;
 	algorithm = 1; // Default to first algorithm
+	eps = 0.0; // Default to exact search
+	maxPointsVisited = 0;
 	this->numNeighbours = numNeighbours;
 	this->matchSteps = matchSteps;
+	numChannels = 1;
 	if (models == NULL) {
 		this->models = NULL;
 		this->numModels = 0;
@@ -32,9 +35,15 @@ Classifier::Classifier(std::vector<NamedModel*> *models, uint numNeighbours, uin
 		proj_next = new CvMat*[numModels];
 		nn = new CvMat*[numModels];
 		nnn = new CvMat*[numModels];
+		embedding = new ANNcoord*[numModels];
+		projection = new ANNcoord*[numModels];
+		bufferRows = new uint[numModels];
+		if (numModels > 0) {
+			numChannels = (*models)[0]->model->getChannels();
+		}
 		for (i = 0; i < numModels; i++) {
 			model = (*models)[i]->model;
-			W = (model->getEmbDim() - 1) * model->getDelay() + matchSteps + 1;
+			W = (model->getEmbDim() / model->getChannels() - 1) * model->getDelay() + matchSteps + 1;
 			if (W > windowSize)
 				windowSize = W;
 			pcaembdim = model->getPCAEmbDim();
@@ -43,6 +52,9 @@ Classifier::Classifier(std::vector<NamedModel*> *models, uint numNeighbours, uin
 			proj_next[i] = cvCreateMat(1, pcaembdim, MAT_TYPE);
 			nn[i] = cvCreateMat(numNeighbours, pcaembdim, MAT_TYPE);
 			nnn[i] = cvCreateMat(numNeighbours, pcaembdim, MAT_TYPE);
+			embedding[i] = NULL;
+			projection[i] = NULL;
+			bufferRows[i] = 0;
 		}
 	}
 }
@@ -56,6 +68,8 @@ Classifier::~Classifier() {
 			cvReleaseMat(&navg_next[i]);
 			cvReleaseMat(&nn[i]);
 			cvReleaseMat(&nnn[i]);
+			delete [] embedding[i];
+			delete [] projection[i];
 			free((*models)[i]->name);
 			delete (*models)[i]->model;
 			free((*models)[i]);
@@ -65,6 +79,9 @@ Classifier::~Classifier() {
 		delete[] proj_next;
 		delete[] nn;
 		delete[] nnn;
+		delete[] embedding;
+		delete[] projection;
+		delete[] bufferRows;
 
 		models->clear();
 		delete models;
@@ -83,6 +100,10 @@ uint Classifier::getMatchSteps() {
 	return matchSteps;
 }
 
+uint Classifier::getNumChannels() {
+	return numChannels;
+}
+
 uint Classifier::getWindowSize() {
 	return windowSize;
 }
@@ -123,7 +144,7 @@ CvMat* Classifier::classify(ANNcoord** data, ulong length) {
 	int M = this->numModels;
 	uint extra_neighbours = 0;
 	if (algorithm == 2) {
-		extra_neighbours = 32;
+		extra_neighbours = MAX_EXTRA_NEIGHBOURS;
 	}
 	else if (algorithm == 3) {
 		extra_neighbours = 5;
@@ -136,12 +157,13 @@ CvMat* Classifier::classify(ANNcoord** data, ulong length) {
 	ANNdist dists[numNeighbours + extra_neighbours + 1];
 	ANNdist mdist;
 	CvMat p, np, *mdists;
-	uint i, j, k, l, a, pcaembdim;
+	uint i, j, k, l, a, pcaembdim, alg;
 	uint N;
 	ANNdist dist, dist_next, *dst, l1, l2;
 	ANNcoord *p1, *p2, *p3, *p4, *p5, interpcoeff;
 	mdists = cvCreateMat(length - matchSteps + 1, M, MAT_TYPE);
 	cvZero(mdists);
+	annMaxPtsVisit(maxPointsVisited);
 
 	for (i = 0; i < length - matchSteps + 1; i++) {
 		for (k = 0; k < M; k++) {
@@ -150,19 +172,22 @@ CvMat* Classifier::classify(ANNcoord** data, ulong length) {
 			N = model->getLength();
 			pcaembdim = model->getPCAEmbDim();
 			mdist = 0.0;
+			// Compressed models only keep one successor per point, so they
+			// can only be matched one step at a time.
+			alg = model->isCompressed() ? 1 : algorithm;
 			ap = annAllocPts(matchSteps+1,pcaembdim);
 			convert_to_ann_points(ap, data[k] + i * pcaembdim, matchSteps + 1, pcaembdim);
-			if (algorithm == 1) {
+			if (alg == 1) {
 				// Get the next MATCH_STEP+1 data points, and convert them to the appropriate
 				// format, stored in ap.
 				for (j = 0; j < matchSteps; j++) {
-					model->getKNN(ap[j], numNeighbours + 1, nn_idx, dists);
+					model->getKNN(ap[j], numNeighbours + 1, nn_idx, dists, eps);
 					for (l = 0; l < numNeighbours; l++) {
 
 						// Make sure none of the first numNeighbours neighbours is N
 						if (nn_idx[l] == ANN_NULL_IDX)
 							break;
-						else if ((uint) nn_idx[l] == N - 1)
+						else if (!model->hasSuccessor(nn_idx[l]))
 							nn_idx[l] = nn_idx[numNeighbours];
 
 						// p1 and p2 are just pointers to the data in nn and nnn, respectively.
@@ -170,7 +195,7 @@ CvMat* Classifier::classify(ANNcoord** data, ulong length) {
 						p2 = (ANNcoord*) (nnn[k]->data.ptr + l * nnn[k]->step);
 						// p3 and p4 point to the l'th nearest neighbor of our point and its successor, respectively.
 						p3 = model->getDataPoint(nn_idx[l]);
-						p4 = model->getDataPoint(nn_idx[l] + 1);
+						p4 = model->getSuccessor(nn_idx[l]);
 						// This just copies the data from the model into our nn and nnn variables.
 						// This may be a bit slow, but it makes things easier. Maybe we could use
 						// memcpy to speed this up a bit.
@@ -222,9 +247,9 @@ CvMat* Classifier::classify(ANNcoord** data, ulong length) {
 					}
 				}
 			}
-			else if (algorithm == 2) {
+			else if (alg == 2) {
 				// Just get the nearest neighbour of the first point.
-				model->getKNN(ap[0], numNeighbours + extra_neighbours + 1, nn_idx, dists);
+				model->getKNN(ap[0], numNeighbours + extra_neighbours + 1, nn_idx, dists, eps);
 				for (j = 0; j < matchSteps; j++) {
 					for (l = 0; l < numNeighbours; l++) {
 						// Make sure none of the first numNeighbours neighbours is N
@@ -303,11 +328,11 @@ CvMat* Classifier::classify(ANNcoord** data, ulong length) {
 					}
 				}
 			}
-			else if (algorithm == 3) {
+			else if (alg == 3) {
 				// Try to reduce score variance by taking account distance from
 				// line segments when constructing expected next points.
 				for (j = 0; j < matchSteps; j++) {
-					model->getKNN(ap[j], numNeighbours+extra_neighbours+1, nn_idx, dists);
+					model->getKNN(ap[j], numNeighbours+extra_neighbours+1, nn_idx, dists, eps);
 
 					for (l = 0; l < numNeighbours; l++) {
 						// Make sure none of the first neighbours is N, 0, or invalid.
@@ -396,37 +421,73 @@ CvMat* Classifier::classify(ANNcoord** data, ulong length) {
 			annDeallocPts(ap);
 		}
 	}
+	annMaxPtsVisit(0);
 	return mdists;
 }
 
 void Classifier::setAlgorithmNumber(int alg) {
 	algorithm = alg;
+	for (uint i = 0; alg != 1 && i < numModels; i++) {
+		if ((*models)[i]->model->isCompressed()) {
+			HS_LOG2("Model %s is compressed, using algorithm 1 for it.", (*models)[i]->name);
+		}
+	}
+}
+
+void Classifier::setApproximation(double eps, int maxPointsVisited) {
+	this->eps = eps < 0.0 ? 0.0 : eps;
+	// The search only checks the budget between leaves, so it always visits
+	// more than maxPointsVisited points. Keep the budget large enough that
+	// every algorithm still gets all of the neighbours it asks for.
+	if (maxPointsVisited > 0 && maxPointsVisited < (int)(numNeighbours + MAX_EXTRA_NEIGHBOURS)) {
+		maxPointsVisited = numNeighbours + MAX_EXTRA_NEIGHBOURS;
+	}
+	this->maxPointsVisited = maxPointsVisited < 0 ? 0 : maxPointsVisited;
 }
 
 ANNcoord* Classifier::getProjectedData(int modelId, ANNcoord* input, int length) {
-	int embDim, pcaEmbDim, delay;
-	int i, j, k;
-	ANNcoord *data, *projected;
+	int embDim, pcaEmbDim, delay, channels, channelDim;
+	int i, j, c, k;
+	ANNcoord *data;
+	const ANNcoord *mean, *scale;
 	TDEModel *model = (*models)[modelId]->model;
 	embDim = model->getEmbDim();
 	pcaEmbDim = model->getPCAEmbDim();
 	delay = model->getDelay();
+	channels = model->getChannels();
+	channelDim = embDim / channels;
+	mean = model->getChannelMean();
+	scale = model->getChannelScale();
+
+	// Reuse the buffers from the last call, growing them if needed.
+	if ((uint)length > bufferRows[modelId]) {
+		delete [] embedding[modelId];
+		delete [] projection[modelId];
+		embedding[modelId] = new ANNcoord[length * embDim];
+		projection[modelId] = (embDim != pcaEmbDim) ? new ANNcoord[length * pcaEmbDim] : NULL;
+		bufferRows[modelId] = length;
+	}
+	data = embedding[modelId];
 
-	data = new ANNcoord[length * embDim];
+	// Input samples are interleaved, one value per channel. Each channel
+	// fills its own block of channelDim coordinates.
 	k = 0;
 	for (i = 0; i < length; i++) {
-		for (j = 0; j < embDim; j++) {
-			data[k] = input[i + j * delay];
-			k++;
+		for (c = 0; c < channels; c++) {
+			for (j = 0; j < channelDim; j++) {
+				data[k] = input[(i + j * delay) * channels + c];
+				if (mean != NULL) {
+					data[k] = (data[k] - mean[c]) * scale[c];
+				}
+				k++;
+			}
 		}
 	}
 	if (embDim != pcaEmbDim) {
-		projected = model->projectData(data, length, embDim);
-		delete[] data;
-	} else {
-		projected = data;
+		model->projectDataInto(data, length, embDim, projection[modelId]);
+		return projection[modelId];
 	}
-	return projected;
+	return data;
 }
 
 inline float get_interpolation_coefficient(ANNpoint p, ANNpoint p1, ANNpoint p2, uint dim) {
@@ -18,11 +18,20 @@
 class Classifier {
 
 private:
-	uint numModels, windowSize;
+	uint numModels, windowSize, numChannels;
+	// Embedding and projection buffers for each model, reused between calls
+	// to getProjectedData. bufferRows is the number of rows they can hold.
+	ANNcoord **embedding, **projection;
+	uint *bufferRows;
 	uint algorithm;
 	uint numNeighbours, matchSteps;
+	// Approximate search parameters, see setApproximation.
+	double eps;
+	int maxPointsVisited;
 	const static int DEFAULT_NEIGHBOURS = 2;
 	const static int DEFAULT_MATCH_STEPS = 16;
+	// Largest number of extra neighbours requested by any algorithm.
+	const static int MAX_EXTRA_NEIGHBOURS = 32;
 public:
 
 	Classifier(std::vector<NamedModel*> *models, uint numNeighbours=DEFAULT_NEIGHBOURS, uint matchSteps=DEFAULT_MATCH_STEPS);
@@ -34,15 +43,26 @@ public:
 
 	// Computes a time delay embedding for the specified model.
 	// length should be the number of "rows" that are expected,
-	// not the length of the input.
+	// not the length of the input. For models with several channels,
+	// input holds the samples interleaved, getNumChannels() values each.
+	// The result belongs to the classifier, and is only valid until the
+	// next call for the same model.
 	ANNcoord* getProjectedData(int model, ANNcoord* input, int length);
 
 	uint getNumModels();
+	// Number of samples, each with getNumChannels() values, needed to
+	// classify one window.
 	uint getWindowSize();
+	uint getNumChannels();
 	uint getNumNeighbours();
 	uint getMatchSteps();
 
 	void setAlgorithmNumber(int alg);
+	// Trades accuracy for speed in the nearest-neighbour search. Neighbours
+	// returned may be up to (1+eps) times further than the true neighbours,
+	// and the search stops after visiting maxPointsVisited model points
+	// (0 for no limit). eps=0 and maxPointsVisited=0 give exact search.
+	void setApproximation(double eps, int maxPointsVisited);
 	char* getModelNames();
 
 	std::vector<NamedModel*> *models;
@@ -8,6 +8,7 @@
  */
 
 #include <stdlib.h>
+#include <sys/time.h>
 #include <cstring>
 #include <ctype.h>
 #include <vector>
@@ -24,18 +25,35 @@
 
 Classifier *classifier;
 
-void loadModels(const char* ms_file, int numNeighbours, int matchSteps) {
+// Frees the models in the vector, along with the vector itself.
+static void deleteNamedModels(std::vector<NamedModel*> *models) {
+	for (uint i = 0; i < models->size(); i++) {
+		free((*models)[i]->name);
+		delete (*models)[i]->model;
+		free((*models)[i]);
+	}
+	delete models;
+}
+
+Classifier* createClassifier(const char* ms_file, int numNeighbours, int matchSteps) {
 	NamedModel *model;
     FILE* models_file;
     FILE* model_file;
     char buf[STR_LEN+1];
     int n = STR_LEN;
+    struct timeval start, end;
+    Classifier *result;
     std::vector<NamedModel*> *models = new std::vector<NamedModel*>();
 
     HS_LOG2("Using models from: %s", ms_file);
 
     // Read the models.ini file.
     models_file = fopen(ms_file, "r"); // models_file.open(ms_file);
+    if (models_file == NULL) {
+    	__android_log_write(ANDROID_LOG_ERROR, HS_TAG, "Could not open models file.");
+    	delete models;
+    	return NULL;
+    }
 
     while(fgets(buf, STR_LEN + 1, models_file) != NULL) {
     	if (strlen(buf) > 0) {
@@ -47,20 +65,61 @@ void loadModels(const char* ms_file, int numNeighbours, int matchSteps) {
     		model_file = fopen(model->name, "r");
     		if (model_file == NULL) {
     			__android_log_write(ANDROID_LOG_FATAL, HS_TAG, "\tCould not open model file.");
-    			return;
+    			free(model->name);
+    			free(model);
+    			fclose(models_file);
+    			deleteNamedModels(models);
+    			return NULL;
     		}
+    		gettimeofday(&start, NULL);
     		model->model = new TDEModel(model_file);
+    		gettimeofday(&end, NULL);
     		fclose(model_file);
+    		model->loadMillis = (end.tv_sec - start.tv_sec) * 1000.0f
+    				+ (end.tv_usec - start.tv_usec) / 1000.0f;
+    		__android_log_print(ANDROID_LOG_DEBUG, HS_TAG, "\tLoaded %u points in %.1f ms.",
+    				model->model->getLength(), model->loadMillis);
     		models->push_back(model);
+    		// The search asks for one neighbour more than it uses.
+    		if (model->model->getLength() < (uint)numNeighbours + 2) {
+    			__android_log_print(ANDROID_LOG_ERROR, HS_TAG, "\tModel has only %u points.",
+    					model->model->getLength());
+    			fclose(models_file);
+    			deleteNamedModels(models);
+    			return NULL;
+    		}
+    		// Every model reads the same interleaved input samples.
+    		if (model->model->getChannels() != (*models)[0]->model->getChannels()) {
+    			__android_log_print(ANDROID_LOG_ERROR, HS_TAG, "\tModel has %u channels, expected %u.",
+    					model->model->getChannels(), (*models)[0]->model->getChannels());
+    			fclose(models_file);
+    			deleteNamedModels(models);
+    			return NULL;
+    		}
     	}
     }
-    classifier = new Classifier(models, (uint)numNeighbours, (uint)matchSteps);
-    __android_log_print(ANDROID_LOG_DEBUG, HS_TAG, "Loaded %d models.", classifier->getNumModels());
-    __android_log_print(ANDROID_LOG_DEBUG, HS_TAG, "Window Size is %d.", classifier->getWindowSize());
+    fclose(models_file);
+    if (models->size() == 0) {
+    	__android_log_write(ANDROID_LOG_ERROR, HS_TAG, "No models listed in models file.");
+    	delete models;
+    	return NULL;
+    }
+    result = new Classifier(models, (uint)numNeighbours, (uint)matchSteps);
+    __android_log_print(ANDROID_LOG_DEBUG, HS_TAG, "Loaded %d models.", result->getNumModels());
+    __android_log_print(ANDROID_LOG_DEBUG, HS_TAG, "Window Size is %d.", result->getWindowSize());
+    return result;
+}
+
+void loadModels(const char* ms_file, int numNeighbours, int matchSteps) {
+	Classifier *loaded = createClassifier(ms_file, numNeighbours, matchSteps);
+	if (loaded != NULL) {
+		classifier = loaded;
+	}
 }
 
 void cleanUpModels() {
 	delete classifier;
+	classifier = NULL;
 }
 
 ANNcoord* classifySample() {
@@ -9,12 +9,15 @@
 
 #include "TDEModel.h"
 
+class Classifier;
+
 #ifndef CLASSIFYTRAJECTORY_H_
 #define CLASSIFYTRAJECTORY_H_
 
 typedef struct {
 	TDEModel* model;
 	char* name;
+	float loadMillis; // Time taken to read the model from its file.
 } NamedModel;
 
 class ClassifyTrajectory {
@@ -23,6 +26,10 @@ public:
 	virtual ~ClassifyTrajectory();
 };
 
+// Loads and checks the models listed in ms_file into a new classifier,
+// without touching the current one. Returns NULL if any model could not be
+// loaded or is too small to provide the requested number of neighbours.
+Classifier* createClassifier(const char* ms_file, int numNeighbours=2, int matchSteps=16);
 void loadModels(const char* ms_file, int numNeighbours=2, int matchSteps=16);
 void classifyTrajectory(const char* in_file, const char* out_file);
 void cleanUpModels();
@@ -8,6 +8,8 @@
  */
 
 #include <stdlib.h>
+#include <string.h>
+#include <math.h>
 #include <ctype.h>
 #include <stdio.h>
 #include <ANN/ANN.h>
@@ -21,6 +23,7 @@
 #include "TDEModel.h"
 
 #define SIM_NEIGHBOURS 4
+#define KMEANS_ITERATIONS 5
 
 using namespace std;
 
@@ -30,10 +33,20 @@ TDEModel::TDEModel(Settings* settings) {
     length = settings->length;
     embdim = settings->embdim;
     delay = settings->delay;
+    channels = settings->indim;
     use_pca = (settings->embdim > settings->pcaembdim);
 
     get_embedding(settings, data, length);
 
+    channelMean = NULL;
+    channelScale = NULL;
+    if (settings->channelmean != NULL) {
+    	channelMean = new ANNcoord[channels];
+    	channelScale = new ANNcoord[channels];
+    	memcpy(channelMean, settings->channelmean, channels * sizeof(ANNcoord));
+    	memcpy(channelScale, settings->channelscale, channels * sizeof(ANNcoord));
+    }
+
     if (use_pca) {
     	computePCABases(data, length, embdim, settings->pcaembdim);
     	projecteddata = projectData(data, length, embdim);
@@ -44,8 +57,17 @@ TDEModel::TDEModel(Settings* settings) {
     	avg = NULL;
     	bases = NULL;
     }
-    dataPts = annAllocPts(length, settings->pcaembdim);
-    convert_to_ann_points(dataPts, data, length, settings->pcaembdim);
+    originalLength = length;
+    compressionMeanError = 0.0;
+    compressionMaxError = 0.0;
+    successors = NULL;
+    if (settings->maxpoints > 0 && length - 1 > settings->maxpoints) {
+    	compress(data, length, settings->pcaembdim, settings->maxpoints, settings->compression);
+    }
+    else {
+    	dataPts = annAllocPts(length, settings->pcaembdim);
+    	convert_to_ann_points(dataPts, data, length, settings->pcaembdim);
+    }
     kdTree = new ANNkd_tree(dataPts,length,settings->pcaembdim);
     settings->length = length;
     delete [] data;
@@ -58,6 +80,9 @@ TDEModel::TDEModel(FILE* model_file) {
 	fscanf(model_file, "%u", &delay); // *model_file >> delay;
 	fscanf(model_file, "%u", &embdim); // *model_file >> embdim;
 	fscanf(model_file, "%u", &avgsize); // *model_file >> avgsize;
+	channels = 1;
+	channelMean = NULL;
+	channelScale = NULL;
 	//__android_log_print(ANDROID_LOG_DEBUG, HS_TAG, "\tDelay: %u", delay);
 	//__android_log_print(ANDROID_LOG_DEBUG, HS_TAG, "\tEmbed dim: %u", embdim);
 	//__android_log_print(ANDROID_LOG_DEBUG, HS_TAG, "\tReduced dim: %u", avgsize);
@@ -93,6 +118,40 @@ TDEModel::TDEModel(FILE* model_file) {
 	kdTree = new ANNkd_tree(model_file);
 	dataPts = kdTree->thePoints();
 	length = kdTree->nPoints();
+	originalLength = length;
+	compressionMeanError = 0.0;
+	compressionMaxError = 0.0;
+
+	// Optional sections after the tree: the successor of each point for
+	// compressed models, and the normalisation of each input channel for
+	// multi-channel models.
+	char tag[16];
+	successors = NULL;
+	while (fscanf(model_file, "%15s", tag) == 1) {
+		if (strcmp(tag, "successors") == 0) {
+			uint rows, cols;
+			fscanf(model_file, "%u", &rows);
+			fscanf(model_file, "%u", &cols);
+			successors = annAllocPts(rows, cols);
+			for (i = 0; i < rows; i++) {
+				for (j = 0; j < cols; j++) {
+					fscanf(model_file, FLOAT_SCAN, &successors[i][j]);
+				}
+			}
+		} else if (strcmp(tag, "channels") == 0) {
+			fscanf(model_file, "%u", &channels);
+			channelMean = new ANNcoord[channels];
+			channelScale = new ANNcoord[channels];
+			for (i = 0; i < channels; i++) {
+				fscanf(model_file, FLOAT_SCAN, &channelMean[i]);
+			}
+			for (i = 0; i < channels; i++) {
+				fscanf(model_file, FLOAT_SCAN, &channelScale[i]);
+			}
+		} else {
+			break;
+		}
+	}
 }
 
 TDEModel::~TDEModel() {
@@ -100,6 +159,9 @@ TDEModel::~TDEModel() {
 	if (bases != NULL) cvReleaseMat(&bases);
 	delete kdTree;
 	annDeallocPts(dataPts);
+	if (successors != NULL) annDeallocPts(successors);
+	if (channelMean != NULL) delete [] channelMean;
+	if (channelScale != NULL) delete [] channelScale;
 }
 
 void TDEModel::DumpTree(char* outfile) {
@@ -133,11 +195,35 @@ void TDEModel::DumpTree(char* outfile) {
     	}
     }
     kdTree->Dump(ANNtrue, fout);
+    if (successors != NULL) {
+    	uint dim = getPCAEmbDim();
+    	fprintf(fout, "successors %u %u\n", length, dim);
+    	for (uint i = 0; i < length; i++) {
+    		fprintf(fout, FLOAT_OUT, successors[i][0]);
+    		for (uint j = 1; j < dim; j++) {
+    			fprintf(fout, " " FLOAT_OUT, successors[i][j]);
+    		}
+    		fprintf(fout, "\n");
+    	}
+    }
+    if (channelMean != NULL) {
+    	fprintf(fout, "channels %u\n", channels);
+    	fprintf(fout, FLOAT_OUT, channelMean[0]);
+    	for (uint i = 1; i < channels; i++) {
+    		fprintf(fout, " " FLOAT_OUT, channelMean[i]);
+    	}
+    	fprintf(fout, "\n");
+    	fprintf(fout, FLOAT_OUT, channelScale[0]);
+    	for (uint i = 1; i < channels; i++) {
+    		fprintf(fout, " " FLOAT_OUT, channelScale[i]);
+    	}
+    	fprintf(fout, "\n");
+    }
     fclose(fout); // fout.close();
 }
 
-void TDEModel::getKNN(ANNpoint ap, uint k, ANNidxArray nn_idx, ANNdistArray dists) {
-	kdTree->annkSearch(ap, k, nn_idx, dists);
+void TDEModel::getKNN(ANNpoint ap, uint k, ANNidxArray nn_idx, ANNdistArray dists, double eps) {
+	kdTree->annkSearch(ap, k, nn_idx, dists, eps);
 //    for (uint i = 0; i < k; i++) {
 //            cout << "Point " << i+1 << ": [" << dataPts[nn_idx[i]][0] << "," << dataPts[nn_idx[i]][1] << "," << dataPts[nn_idx[i]][2] << "], Dist: " << sqrt(dists[i]) << endl;
 //    }
@@ -182,6 +268,104 @@ ANNpoint TDEModel::getDataPoint(uint idx) {
 	return dataPts[idx];
 }
 
+ANNpoint TDEModel::getSuccessor(uint idx) {
+	if (successors != NULL) {
+		return successors[idx];
+	}
+	return getDataPoint(idx + 1);
+}
+
+// Reduces the embedded trajectory in data to maxpoints representative points,
+// storing them in dataPts along with their successors. The farthest-point
+// method keeps actual training points, chosen so that every training point is
+// close to one of them. The k-means method starts from the same points and
+// moves each one to the mean of the training points closest to it, with the
+// successor moved to the mean of their successors.
+void TDEModel::compress(ANNcoord *data, uint rows, uint cols, uint maxpoints, uint method) {
+	// The last point has no successor, so it is never selected.
+	uint n = rows - 1;
+	uint i, j, s, next, furthest, iter;
+	ANNdist d, best, total;
+	ANNdist *mindist = new ANNdist[n];
+	uint *selected = new uint[maxpoints];
+
+	for (i = 0; i < n; i++) {
+		mindist[i] = ANN_DIST_INF;
+	}
+	next = 0;
+	for (s = 0; s < maxpoints; s++) {
+		selected[s] = next;
+		best = -1.0;
+		furthest = 0;
+		for (i = 0; i < n; i++) {
+			d = annDist(cols, data + next * cols, data + i * cols);
+			if (d < mindist[i]) mindist[i] = d;
+			if (mindist[i] > best) {
+				best = mindist[i];
+				furthest = i;
+			}
+		}
+		next = furthest;
+	}
+
+	dataPts = annAllocPts(maxpoints, cols);
+	successors = annAllocPts(maxpoints, cols);
+	for (s = 0; s < maxpoints; s++) {
+		for (j = 0; j < cols; j++) {
+			dataPts[s][j] = data[selected[s] * cols + j];
+			successors[s][j] = data[(selected[s] + 1) * cols + j];
+		}
+	}
+
+	if (method == COMPRESS_KMEANS) {
+		ANNidx nn_idx;
+		ANNdist nn_dist;
+		ANNcoord *sums = new ANNcoord[maxpoints * cols * 2];
+		uint *counts = new uint[maxpoints];
+		for (iter = 0; iter <= KMEANS_ITERATIONS; iter++) {
+			ANNkd_tree centroids(dataPts, maxpoints, cols);
+			memset(sums, 0, maxpoints * cols * 2 * sizeof(ANNcoord));
+			memset(counts, 0, maxpoints * sizeof(uint));
+			for (i = 0; i < n; i++) {
+				centroids.annkSearch(data + i * cols, 1, &nn_idx, &nn_dist);
+				mindist[i] = nn_dist;
+				counts[nn_idx]++;
+				for (j = 0; j < cols; j++) {
+					sums[nn_idx * cols * 2 + j] += data[i * cols + j];
+					sums[nn_idx * cols * 2 + cols + j] += data[(i + 1) * cols + j];
+				}
+			}
+			// The last pass only measures the error of the final centroids.
+			if (iter == KMEANS_ITERATIONS) break;
+			for (s = 0; s < maxpoints; s++) {
+				// Points that attract no neighbours keep their position.
+				if (counts[s] == 0) continue;
+				for (j = 0; j < cols; j++) {
+					dataPts[s][j] = sums[s * cols * 2 + j] / counts[s];
+					successors[s][j] = sums[s * cols * 2 + cols + j] / counts[s];
+				}
+			}
+		}
+		delete [] sums;
+		delete [] counts;
+	}
+
+	total = 0.0;
+	compressionMaxError = 0.0;
+	for (i = 0; i < n; i++) {
+		d = sqrt(mindist[i]);
+		total += d;
+		if (d > compressionMaxError) compressionMaxError = d;
+	}
+	compressionMeanError = total / n;
+	length = maxpoints;
+	HS_LOG2("Compressed model from %u to %u points, mean error %G, max error %G.",
+			originalLength, length, compressionMeanError, compressionMaxError);
+
+	delete [] mindist;
+	delete [] selected;
+}
+
 void TDEModel::computePCABases(ANNcoord *data, uint rows, uint cols, uint numbases) {
 	CvMat **embedding, *cov, *eigenvectors, *eigenvalues, *vector;
 	ANNcoord *basesdata;
@@ -218,6 +402,21 @@ void TDEModel::computePCABases(ANNcoord *data, uint rows, uint cols, uint numbas
     cvReleaseMat(&eigenvalues);
 }
 
+void TDEModel::projectDataInto(ANNcoord* data, uint rows, uint cols, ANNcoord* out) {
+	uint i, j, offset;
+
+	// Shift in place, the caller's buffer is scratch space.
+	for (i = 0, offset = 0; i < rows; i++) {
+		for (j = 0; j < cols; j++) {
+			data[offset] -= ((ANNcoord*)avg->data.ptr)[j];
+			offset++;
+		}
+	}
+	CvMat projected = cvMat(rows, bases->cols, MAT_TYPE, out);
+	CvMat dataMat = cvMat(rows, cols, MAT_TYPE, data);
+	cvGEMM(&dataMat, bases, 1.0, NULL, 0.0, &projected, 0);
+}
+
 ANNcoord* TDEModel::projectData(ANNcoord* data, uint rows, uint cols) {
 	if (!use_pca) return data;
 	ANNcoord* shifteddata = new ANNcoord[rows*cols];
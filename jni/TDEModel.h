@@ -19,14 +19,37 @@ public:
 	virtual ~TDEModel();
 
 	void DumpTree(char* outfile);
-	void getKNN(ANNpoint ap, uint k, ANNidxArray nn_idx, ANNdistArray dists);
+	void getKNN(ANNpoint ap, uint k, ANNidxArray nn_idx, ANNdistArray dists, double eps=0.0);
 	void simulateTrajectory(ANNpoint s0, ANNpointArray trajectory, uint dim, ulong  N);
     ANNpoint getDataPoint(uint idx);
+    // Returns the point that followed point idx in the training trajectory.
+    ANNpoint getSuccessor(uint idx);
+    bool hasSuccessor(uint idx) const {
+    	return successors != NULL || idx < length - 1;
+    }
+    // True if the model was reduced to a representative subset of points,
+    // in which case consecutive indices are no longer consecutive in time.
+    bool isCompressed() const { return successors != NULL; }
     ANNcoord *projectData(ANNcoord *data, uint rows, uint cols);
+    // Projects into a buffer of rows * getPCAEmbDim() coordinates supplied by
+    // the caller. Only valid if getUsePCA(); data is overwritten.
+    void projectDataInto(ANNcoord *data, uint rows, uint cols, ANNcoord *out);
 
     uint getLength() const { return length; }
+    uint getOriginalLength() const { return originalLength; }
+    // Mean and maximum distance from a training point to the point that
+    // represents it in a compressed model.
+    ANNdist getCompressionMeanError() const { return compressionMeanError; }
+    ANNdist getCompressionMaxError() const { return compressionMaxError; }
     uint getEmbDim() const { return embdim; }
     uint getDelay() const { return delay; }
+    // Number of input channels. The embedding dimension of each channel is
+    // getEmbDim() / getChannels().
+    uint getChannels() const { return channels; }
+    // Mean and scale applied to each input channel, or NULL if the channels
+    // are used as they are.
+    const ANNcoord *getChannelMean() const { return channelMean; }
+    const ANNcoord *getChannelScale() const { return channelScale; }
     bool getUsePCA() const { return use_pca; }
     uint getPCAEmbDim() const {
     	if (use_pca) {
@@ -37,8 +60,14 @@ public:
     	}
     }
 private:
-    uint length, embdim, delay;
+    uint length, embdim, delay, channels;
+    ANNcoord *channelMean, *channelScale;
     ANNpointArray dataPts;
+    // Successor of each point, only used for compressed models.
+    ANNpointArray successors;
+    uint originalLength;
+    ANNdist compressionMeanError, compressionMaxError;
+    void compress(ANNcoord *data, uint rows, uint cols, uint maxpoints, uint method);
     ANNkd_tree *kdTree;
     // Related to the PCA
     void computePCABases(ANNcoord *data, uint rows, uint cols, uint numbases);
@@ -9,6 +9,7 @@
 #include <stdlib.h>
 #include <cstring>
 #include <ctype.h>
+#include <math.h>
 
 #include <ANN/ANN.h>
 #include <android/log.h>
@@ -58,16 +59,32 @@ void get_embedding(Settings* settings, ANNcoord* &data, uint &length) {
 			"\tLength: %d\n\tEmbed Dim: %d\n", settings->length,
 			settings->embdim);
 
+	if (settings->indim > 1) {
+		check_alloc(settings->channelmean = (ANNcoord*) malloc(sizeof(ANNcoord) * settings->indim));
+		check_alloc(settings->channelscale = (ANNcoord*) malloc(sizeof(ANNcoord) * settings->indim));
+		get_channel_stats(series, settings->length, settings->indim,
+				settings->channelmean, settings->channelscale);
+	}
+
 	check_alloc(data = (ANNcoord*) calloc((settings->length - maxemb)
 			* settings->embdim, sizeof(ANNcoord)));
 	uint step = settings->embdim;
+	uint offset;
+	ANNcoord mean = 0.0, scale = 1.0;
 	for (i = maxemb; i < settings->length; i++) {
 		rundel = 0;
+		offset = 0;
 		for (j = 0; j < settings->indim; j++) {
 			emb = formatlist[j];
+			if (settings->channelmean != NULL) {
+				mean = settings->channelmean[j];
+				scale = settings->channelscale[j];
+			}
+			// Each column fills its own block of emb coordinates.
 			for (k = 0; k < emb; k++)
-				data[(i - maxemb) * step + (emb - k - 1)]
-						= (ANNcoord) series[j][i - inddelay[rundel++]];
+				data[(i - maxemb) * step + offset + (emb - k - 1)]
+						= (ANNcoord) ((series[j][i - inddelay[rundel++]] - mean) * scale);
+			offset += emb;
 		}
 	}
 	length = settings->length - maxemb;
@@ -81,6 +98,35 @@ void get_embedding(Settings* settings, ANNcoord* &data, uint &length) {
 
 }
 
+/*
+ * Computes the mean and the inverse of the standard deviation of each column
+ * in a single pass over the data, using Welford's method. Constant columns get
+ * a scale of 1.
+ */
+void get_channel_stats(double **series, ulong length, uint channels,
+		ANNcoord *mean, ANNcoord *scale) {
+	ulong i;
+	uint j;
+	double *m, *m2, delta;
+
+	check_alloc(m = (double*) calloc(channels, sizeof(double)));
+	check_alloc(m2 = (double*) calloc(channels, sizeof(double)));
+	for (i = 0; i < length; i++) {
+		for (j = 0; j < channels; j++) {
+			delta = series[j][i] - m[j];
+			m[j] += delta / (i + 1);
+			m2[j] += delta * (series[j][i] - m[j]);
+		}
+	}
+	for (j = 0; j < channels; j++) {
+		mean[j] = (ANNcoord) m[j];
+		delta = length > 1 ? sqrt(m2[j] / (length - 1)) : 0.0;
+		scale[j] = delta > 0.0 ? (ANNcoord) (1.0 / delta) : 1.0;
+	}
+	free(m);
+	free(m2);
+}
+
 void get_ann_points(ANNpointArray &dataPts, ANNcoord* series,
 		unsigned long rows, uint cols) {
 	unsigned long k = 0;
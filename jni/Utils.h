@@ -33,9 +33,17 @@ typedef struct {
 	char *infile;
 	char *outfile;
 	char stdo;
+	uint maxpoints; // Maximum number of model points, 0 for no limit.
+	uint compression; // One of the COMPRESS_ methods.
+	// Mean and scale of each input column, computed by get_embedding when
+	// indim > 1 so that columns in different units are comparable. The
+	// caller frees them.
+	ANNcoord *channelmean;
+	ANNcoord *channelscale;
 } Settings;
 
 void get_embedding(Settings* settings, ANNcoord*& data, uint &length);
+void get_channel_stats(double **series, ulong length, uint channels, ANNcoord *mean, ANNcoord *scale);
 void convert_to_ann_points(ANNpointArray &dataPts, ANNcoord* series, uint rows, uint cols);
 void get_ann_points(ANNpointArray &dataPts, ANNcoord* series, unsigned long rows, uint cols);
 void print_matrix(CvMat* matrix, FILE *fout);
@@ -52,6 +60,10 @@ char* getline(char *str, int *size, FILE *fin, unsigned int verbosity);
 #define GET_MULTI_SERIES_WRONG_TYPE_OF_C 21
 #define GET_MULTI_SERIES_NO_LINES 22
 
+// Methods for reducing a model to at most Settings.maxpoints points.
+#define COMPRESS_FARTHEST_POINT 1
+#define COMPRESS_KMEANS 2
+
 // Defines the buffer size for reading lines.
 #define INPUT_SIZE 1024
 
@@ -11,6 +11,7 @@
 #include <ANN/ANNx.h>					// all ANN includes
 #include <stdlib.h>
 #include <stdio.h>
+#include <stdint.h>
 #include <jni.h>
 #include "BuildTree.h"
 #include "Classifier.h"
@@ -62,6 +63,36 @@ NATIVE_CLASSIFIER_CALL(void, buildTree)(JNIEnv* env, jobject obj, jstring inputF
 	env->ReleaseStringUTFChars(inputFile, in_file);
 }
 
+NATIVE_CLASSIFIER_CALL(jfloatArray, buildCompressedTree)(JNIEnv* env, jobject obj, jstring inputFile, jint m, jint p, jint d, jint maxPoints, jint method) {
+	const char *in_file = env->GetStringUTFChars(inputFile, 0);
+	float stats[4];
+	jfloatArray ret;
+
+	buildTree(in_file, m, p, d, maxPoints, method, stats);
+
+	env->ReleaseStringUTFChars(inputFile, in_file);
+	ret = env->NewFloatArray(4);
+	if (ret != NULL) {
+		env->SetFloatArrayRegion(ret, 0, 4, stats);
+	}
+	return ret;
+}
+
+NATIVE_CLASSIFIER_CALL(jfloatArray, buildMultiChannelTree)(JNIEnv* env, jobject obj, jstring inputFile, jint channels, jint m, jint p, jint d, jint maxPoints, jint method) {
+	const char *in_file = env->GetStringUTFChars(inputFile, 0);
+	float stats[4];
+	jfloatArray ret;
+
+	buildTree(in_file, m, p, d, maxPoints, method, stats, channels);
+
+	env->ReleaseStringUTFChars(inputFile, in_file);
+	ret = env->NewFloatArray(4);
+	if (ret != NULL) {
+		env->SetFloatArrayRegion(ret, 0, 4, stats);
+	}
+	return ret;
+}
+
 NATIVE_CLASSIFIER_CALL(void, loadModels)(JNIEnv* env, jobject obj, jstring modelsFile, jint numNeighbours, jint matchSteps) {
 	const char *fmodel_name = env->GetStringUTFChars(modelsFile, 0);
 
@@ -81,6 +112,13 @@ NATIVE_CLASSIFIER_CALL(jint, getNumModels)(JNIEnv* env, jobject obj) {
 	return (jint)classifier->getNumModels();
 }
 
+NATIVE_CLASSIFIER_CALL(jint, getNumChannels)(JNIEnv* env, jobject obj) {
+	if (classifier == NULL) {
+		return 0;
+	}
+	return (jint)classifier->getNumChannels();
+}
+
 NATIVE_CLASSIFIER_CALL(jint, getWindowSize)(JNIEnv* env, jobject obj) {
 	if (classifier == NULL) {
 		return 0;
@@ -95,7 +133,14 @@ NATIVE_CLASSIFIER_CALL(void, setAlgorithmNumber)(JNIEnv* env, jobject obj, jint
 
 }
 
-NATIVE_CLASSIFIER_CALL(jstring, getModelNames)(JNIEnv* env, jobject obj) {
+NATIVE_CLASSIFIER_CALL(void, setApproximation)(JNIEnv* env, jobject obj, jfloat eps, jint maxPointsVisited) {
+	if (classifier != NULL) {
+		classifier->setApproximation(eps, maxPointsVisited);
+	}
+}
+
+// Returns the tab-separated model names of the given classifier.
+static jstring get_model_names(JNIEnv* env, Classifier* classifier) {
 	char* res;
 	jstring ret;
 
@@ -110,7 +155,12 @@ NATIVE_CLASSIFIER_CALL(jstring, getModelNames)(JNIEnv* env, jobject obj) {
 	return ret;
 }
 
-NATIVE_CLASSIFIER_CALL(void, classifySample)(JNIEnv* env, jobject obj, jfloatArray in, jint startIndex, jfloatArray out) {
+NATIVE_CLASSIFIER_CALL(jstring, getModelNames)(JNIEnv* env, jobject obj) {
+	return get_model_names(env, classifier);
+}
+
+// Classifies a single window with the given classifier.
+static void classify_sample(JNIEnv* env, Classifier* classifier, jfloatArray in, jint startIndex, jfloatArray out) {
 	int i, M, length;
 	ANNcoord *sample, *output, **data;
 	jboolean isCopy = JNI_FALSE;
@@ -123,7 +173,7 @@ NATIVE_CLASSIFIER_CALL(void, classifySample)(JNIEnv* env, jobject obj, jfloatArr
 	CvMat *dists;
 	data = new ANNcoord*[M];
 	for (i = 0; i < M; i++ ) {
-		data[i] = classifier->getProjectedData(i, sample+startIndex, classifier->getMatchSteps()+1);
+		data[i] = classifier->getProjectedData(i, sample + startIndex * classifier->getNumChannels(), classifier->getMatchSteps()+1);
 		/*
 		__android_log_print(ANDROID_LOG_DEBUG, HS_TAG, "%G %G %G %G %G",
 				data[i][0], data[i][1], data[i][2], data[i][3], data[i][4]);
@@ -134,9 +184,7 @@ NATIVE_CLASSIFIER_CALL(void, classifySample)(JNIEnv* env, jobject obj, jfloatArr
 	// Use JNI_ABORT because this array was read-only
 	env->ReleasePrimitiveArrayCritical(in, sample, JNI_ABORT);
 
-	for (i = 0; i < M; i++) {
-		delete [] data[i];
-	}
+	// The projected data belongs to the classifier.
 	delete [] data;
 
 	output = (jfloat*)env->GetPrimitiveArrayCritical(out, &isCopy);
@@ -149,3 +197,119 @@ NATIVE_CLASSIFIER_CALL(void, classifySample)(JNIEnv* env, jobject obj, jfloatArr
 	env->ReleasePrimitiveArrayCritical(out, output, 0);
 	cvReleaseMat(&probs);
 }
+
+NATIVE_CLASSIFIER_CALL(void, classifySample)(JNIEnv* env, jobject obj, jfloatArray in, jint startIndex, jfloatArray out) {
+	classify_sample(env, classifier, in, startIndex, out);
+}
+
+NATIVE_CLASSIFIER_CALL(jint, classifySeries)(JNIEnv* env, jobject obj, jfloatArray in, jint startIndex, jint numWindows, jint step, jfloatArray out) {
+	int i, w, M, matchSteps;
+	ANNcoord *series, *output, **data, **windowData;
+	jboolean isCopy = JNI_FALSE;
+	CvMat *probs;
+	uint *pcaDims;
+
+	if (classifier == NULL || numWindows <= 0 || step <= 0) {
+		return 0;
+	}
+	M = classifier->getNumModels();
+	matchSteps = classifier->getMatchSteps();
+
+	// Project the whole chunk once per model. Each window then just points
+	// step rows further into the projected data, exactly as classifySample
+	// would if it were called at every window start. Samples are interleaved,
+	// so the first one starts startIndex * channels values in.
+	series = (ANNcoord*)env->GetPrimitiveArrayCritical(in, &isCopy);
+	if (!series) return 0; // exception already pending.
+	data = new ANNcoord*[M];
+	windowData = new ANNcoord*[M];
+	pcaDims = new uint[M];
+	for (i = 0; i < M; i++) {
+		data[i] = classifier->getProjectedData(i,
+				series + startIndex * classifier->getNumChannels(),
+				(numWindows - 1) * step + matchSteps + 1);
+		pcaDims[i] = (*classifier->models)[i]->model->getPCAEmbDim();
+	}
+	env->ReleasePrimitiveArrayCritical(in, series, JNI_ABORT);
+
+	// Scores are copied out one window at a time rather than holding the
+	// output array critical, since a chunk can take a while to classify.
+	output = new jfloat[M];
+	for (w = 0; w < numWindows; w++) {
+		for (i = 0; i < M; i++) {
+			windowData[i] = data[i] + w * step * pcaDims[i];
+		}
+		probs = classifier->classify(windowData, matchSteps);
+		for (i = 0; i < M; i++) {
+			output[i] = CV_MAT_ELEM(*probs, ANNcoord, 0, i);
+		}
+		cvReleaseMat(&probs);
+		env->SetFloatArrayRegion(out, w * M, M, output);
+	}
+	delete [] output;
+
+	delete [] data;
+	delete [] windowData;
+	delete [] pcaDims;
+	return numWindows;
+}
+
+/*
+ * Classifiers referred to by handle. Each one is independent of the current
+ * classifier used by the functions above, so a new set of models can be
+ * loaded while another is in use.
+ */
+
+#define CLASSIFIER_HANDLE(handle) ((Classifier*)(intptr_t)(handle))
+
+NATIVE_CLASSIFIER_CALL(jlong, createClassifier)(JNIEnv* env, jobject obj, jstring modelsFile, jint numNeighbours, jint matchSteps) {
+	const char *fmodel_name = env->GetStringUTFChars(modelsFile, 0);
+
+	Classifier *created = createClassifier(fmodel_name, numNeighbours, matchSteps);
+
+	env->ReleaseStringUTFChars(modelsFile, fmodel_name);
+	return (jlong)(intptr_t)created;
+}
+
+NATIVE_CLASSIFIER_CALL(void, deleteClassifier)(JNIEnv* env, jobject obj, jlong handle) {
+	delete CLASSIFIER_HANDLE(handle);
+}
+
+NATIVE_CLASSIFIER_CALL(void, classifySampleWith)(JNIEnv* env, jobject obj, jlong handle, jfloatArray in, jint startIndex, jfloatArray out) {
+	classify_sample(env, CLASSIFIER_HANDLE(handle), in, startIndex, out);
+}
+
+NATIVE_CLASSIFIER_CALL(jint, getNumModelsOf)(JNIEnv* env, jobject obj, jlong handle) {
+	return (jint)CLASSIFIER_HANDLE(handle)->getNumModels();
+}
+
+NATIVE_CLASSIFIER_CALL(jint, getNumChannelsOf)(JNIEnv* env, jobject obj, jlong handle) {
+	return (jint)CLASSIFIER_HANDLE(handle)->getNumChannels();
+}
+
+NATIVE_CLASSIFIER_CALL(jint, getWindowSizeOf)(JNIEnv* env, jobject obj, jlong handle) {
+	return (jint)CLASSIFIER_HANDLE(handle)->getWindowSize();
+}
+
+NATIVE_CLASSIFIER_CALL(jstring, getModelNamesOf)(JNIEnv* env, jobject obj, jlong handle) {
+	return get_model_names(env, CLASSIFIER_HANDLE(handle));
+}
+
+NATIVE_CLASSIFIER_CALL(jfloatArray, getModelLoadTimes)(JNIEnv* env, jobject obj, jlong handle) {
+	Classifier *c = CLASSIFIER_HANDLE(handle);
+	uint i, M = c->getNumModels();
+	jfloatArray ret = env->NewFloatArray(M);
+	if (ret == NULL) return NULL; // exception already pending.
+	for (i = 0; i < M; i++) {
+		env->SetFloatArrayRegion(ret, i, 1, &(*c->models)[i]->loadMillis);
+	}
+	return ret;
+}
+
+NATIVE_CLASSIFIER_CALL(void, setAlgorithmNumberOf)(JNIEnv* env, jobject obj, jlong handle, jint algNum) {
+	CLASSIFIER_HANDLE(handle)->setAlgorithmNumber(algNum);
+}
+
+NATIVE_CLASSIFIER_CALL(void, setApproximationOf)(JNIEnv* env, jobject obj, jlong handle, jfloat eps, jint maxPointsVisited) {
+	CLASSIFIER_HANDLE(handle)->setApproximation(eps, maxPointsVisited);
+}
@@ -0,0 +1,293 @@
+/* 
+ * Copyright (c) 2010 Jordan Frank, HumanSense Project, McGill University
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ * See LICENSE for more information 
+ */
+package ca.mcgill.hs.classifiers;
+
+import java.io.File;
+
+/**
+ * Compares approximate classification against exact classification on a
+ * recorded series, so that the error bound and search budget can be chosen for
+ * a given device, and so that the accuracy lost by compressing models can be
+ * measured. The approximation is either approximate nearest-neighbour search
+ * with the currently loaded models, or exact search with compressed models.
+ * Both runs classify the same windows, and the report gives the time taken by
+ * each along with how much the approximate scores differ from the exact ones
+ * and how often both pick the same activity.
+ * 
+ * @author Jordan Frank <jordan.frank@cs.mcgill.ca>
+ * 
+ */
+public class ApproximationReport {
+
+	/**
+	 * Classifies the series with exact search and then with the given
+	 * approximation, and compares the results. The models must already be
+	 * loaded in the native classifier. The classifier is left in exact search
+	 * mode.
+	 * 
+	 * @param nativeClassifier
+	 *            Native classifier with the models loaded.
+	 * @param series
+	 *            Recorded data, such as the output of
+	 *            {@link BatchClassifier#readMagnitudes}, with one value per
+	 *            channel for each sample.
+	 * @param step
+	 *            Number of samples between the starts of consecutive windows.
+	 * @param eps
+	 *            Error bound for the approximate search.
+	 * @param maxPointsVisited
+	 *            Search budget for the approximate search, or 0 for no limit.
+	 * @return The comparison, or null if the series is shorter than one window.
+	 */
+	public static ApproximationReport compare(
+			final NativeClassifier nativeClassifier, final float[] series,
+			final int step, final float eps, final int maxPointsVisited) {
+		synchronized (nativeClassifier) {
+			final int numModels = nativeClassifier.getNumModels();
+			final int windowSize = nativeClassifier.getWindowSize();
+			if (numModels == 0) {
+				return null;
+			}
+			final int numSamples = series.length
+					/ nativeClassifier.getNumChannels();
+			if (numSamples < windowSize) {
+				return null;
+			}
+			final int numWindows = (numSamples - windowSize) / step + 1;
+			final float[] exact = new float[numWindows * numModels];
+			final float[] approx = new float[numWindows * numModels];
+
+			nativeClassifier.setApproximation(0.0f, 0);
+			final long exactNanos = classifyAll(nativeClassifier, series,
+					numWindows, step, numModels, exact);
+			nativeClassifier.setApproximation(eps, maxPointsVisited);
+			final long approxNanos = classifyAll(nativeClassifier, series,
+					numWindows, step, numModels, approx);
+			nativeClassifier.setApproximation(0.0f, 0);
+
+			final ApproximationReport report = new ApproximationReport(eps,
+					maxPointsVisited, 0, numWindows, exactNanos, approxNanos);
+			report.compareScores(exact, approx, numModels);
+			return report;
+		}
+	}
+
+	/**
+	 * Classifies the series with a set of models and then with the same models
+	 * compressed, and compares the results. Each set is loaded in turn into
+	 * the native classifier, replacing any models already loaded in it, and
+	 * is deleted afterwards. Both runs use exact search.
+	 * 
+	 * @param nativeClassifier
+	 *            The native classifier to use.
+	 * @param exactModels
+	 *            A file containing the filenames of the uncompressed models,
+	 *            one per line.
+	 * @param compressedModels
+	 *            A file containing the filenames of the compressed models, in
+	 *            the same order.
+	 * @param maxModelPoints
+	 *            The size limit to which the models were compressed.
+	 * @param series
+	 *            Recorded data, such as the data the models were built from,
+	 *            with one value per channel for each sample.
+	 * @param step
+	 *            Number of samples between the starts of consecutive windows.
+	 * @param numNeighbours
+	 *            The number of neighbours used in the nearest-neighbours step
+	 *            of the classifier.
+	 * @param matchSteps
+	 *            The length of the sequence that is compared by the classifier
+	 *            to compute the score.
+	 * @return The comparison, or null if either set of models could not be
+	 *         loaded, the sets do not match, or the series is shorter than one
+	 *         window.
+	 */
+	public static ApproximationReport compareModels(
+			final NativeClassifier nativeClassifier, final File exactModels,
+			final File compressedModels, final int maxModelPoints,
+			final float[] series, final int step, final int numNeighbours,
+			final int matchSteps) {
+		synchronized (nativeClassifier) {
+			try {
+				loadModels(nativeClassifier, exactModels, numNeighbours,
+						matchSteps);
+				final int numModels = nativeClassifier.getNumModels();
+				final int windowSize = nativeClassifier.getWindowSize();
+				final int numChannels = nativeClassifier.getNumChannels();
+				if (numModels == 0) {
+					return null;
+				}
+				final int numSamples = series.length / numChannels;
+				if (numSamples < windowSize) {
+					return null;
+				}
+				final int numWindows = (numSamples - windowSize) / step + 1;
+				final float[] exact = new float[numWindows * numModels];
+				final long exactNanos = classifyAll(nativeClassifier, series,
+						numWindows, step, numModels, exact);
+
+				loadModels(nativeClassifier, compressedModels, numNeighbours,
+						matchSteps);
+				if (nativeClassifier.getNumModels() != numModels
+						|| nativeClassifier.getWindowSize() != windowSize
+						|| nativeClassifier.getNumChannels() != numChannels) {
+					return null;
+				}
+				final float[] approx = new float[numWindows * numModels];
+				final long approxNanos = classifyAll(nativeClassifier, series,
+						numWindows, step, numModels, approx);
+
+				final ApproximationReport report = new ApproximationReport(
+						0.0f, 0, maxModelPoints, numWindows, exactNanos,
+						approxNanos);
+				report.compareScores(exact, approx, numModels);
+				return report;
+			} finally {
+				nativeClassifier.deleteModels();
+			}
+		}
+	}
+
+	/**
+	 * Classifies every window in the series, in chunks, returning the elapsed
+	 * time in nanoseconds.
+	 */
+	private static long classifyAll(final NativeClassifier nativeClassifier,
+			final float[] series, final int numWindows, final int step,
+			final int numModels, final float[] scores) {
+		final float[] chunkScores = new float[BatchClassifier.DEFAULT_CHUNK_WINDOWS
+				* numModels];
+		final long start = System.nanoTime();
+		for (int w = 0; w < numWindows; w += BatchClassifier.DEFAULT_CHUNK_WINDOWS) {
+			final int n = Math.min(BatchClassifier.DEFAULT_CHUNK_WINDOWS,
+					numWindows - w);
+			nativeClassifier.classifySeries(series, w * step, n, step,
+					chunkScores);
+			System.arraycopy(chunkScores, 0, scores, w * numModels, n
+					* numModels);
+		}
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * Replaces the models loaded in the native classifier, matching them with
+	 * the algorithm that suits both compressed and uncompressed models.
+	 */
+	private static void loadModels(final NativeClassifier nativeClassifier,
+			final File models, final int numNeighbours, final int matchSteps) {
+		nativeClassifier.deleteModels();
+		nativeClassifier.loadModels(models.getAbsolutePath(), numNeighbours,
+				matchSteps);
+		nativeClassifier
+				.setAlgorithmNumber(NativeClassifier.GTMALGORITHM_INDEP_STEPS);
+	}
+
+	/** Error bound used for the approximate run, 0 for exact search. */
+	public final float eps;
+
+	/** Search budget used for the approximate run. */
+	public final int maxPointsVisited;
+
+	/**
+	 * Size limit of the compressed models used for the approximate run, or 0
+	 * if the same models were used for both runs.
+	 */
+	public final int maxModelPoints;
+
+	/** Number of windows classified in each run. */
+	public final int numWindows;
+
+	/** Time taken to classify all windows with exact search. */
+	public final long exactNanos;
+
+	/** Time taken to classify all windows with approximate search. */
+	public final long approxNanos;
+
+	/** Mean absolute difference between exact and approximate scores. */
+	public float meanScoreError;
+
+	/** Largest absolute difference between exact and approximate scores. */
+	public float maxScoreError;
+
+	/**
+	 * Number of windows for which both runs gave the highest score to the same
+	 * model.
+	 */
+	public int agreeingWindows;
+
+	private ApproximationReport(final float eps, final int maxPointsVisited,
+			final int maxModelPoints, final int numWindows,
+			final long exactNanos, final long approxNanos) {
+		this.eps = eps;
+		this.maxPointsVisited = maxPointsVisited;
+		this.maxModelPoints = maxModelPoints;
+		this.numWindows = numWindows;
+		this.exactNanos = exactNanos;
+		this.approxNanos = approxNanos;
+	}
+
+	/**
+	 * Computes the score errors and the agreement between the two runs.
+	 */
+	private void compareScores(final float[] exact, final float[] approx,
+			final int numModels) {
+		double errorSum = 0.0;
+		for (int w = 0; w < numWindows; w++) {
+			final int offset = w * numModels;
+			int exactBest = 0;
+			int approxBest = 0;
+			for (int i = 0; i < numModels; i++) {
+				final float error = Math.abs(exact[offset + i]
+						- approx[offset + i]);
+				errorSum += error;
+				if (error > maxScoreError) {
+					maxScoreError = error;
+				}
+				if (exact[offset + i] > exact[offset + exactBest]) {
+					exactBest = i;
+				}
+				if (approx[offset + i] > approx[offset + approxBest]) {
+					approxBest = i;
+				}
+			}
+			if (exactBest == approxBest) {
+				agreeingWindows += 1;
+			}
+		}
+		meanScoreError = (float) (errorSum / (numWindows * numModels));
+	}
+
+	/**
+	 * Returns the fraction of windows for which the approximate run picked the
+	 * same best model as the exact run.
+	 * 
+	 * @return The agreement, between 0 and 1.
+	 */
+	public float getAgreement() {
+		return (float) agreeingWindows / numWindows;
+	}
+
+	/**
+	 * Returns how many times faster the approximate run was.
+	 * 
+	 * @return The ratio of exact to approximate classification time.
+	 */
+	public float getSpeedup() {
+		return approxNanos == 0 ? 0.0f : (float) exactNanos / approxNanos;
+	}
+
+	@Override
+	public String toString() {
+		return "eps=" + eps + " maxPointsVisited=" + maxPointsVisited
+				+ " maxModelPoints=" + maxModelPoints + " windows="
+				+ numWindows + " exact=" + (exactNanos / 1000000)
+				+ "ms approx=" + (approxNanos / 1000000) + "ms speedup="
+				+ getSpeedup() + " agreement=" + getAgreement()
+				+ " meanError=" + meanScoreError + " maxError="
+				+ maxScoreError;
+	}
+}
@@ -0,0 +1,427 @@
+/*
+ * Copyright (c) 2010 Jordan Frank, HumanSense Project, McGill University
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ * See LICENSE for more information
+ */
+package ca.mcgill.hs.classifiers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+import ca.mcgill.hs.util.Log;
+
+/**
+ * Classifies recorded data offline, either from a -raw.log file written by
+ * FileOutput or from an array of accelerometer magnitudes. The series is split
+ * into chunks that overlap by enough samples that every window is classified
+ * exactly once, and each chunk is handed to the native classifier in a single
+ * call.
+ *
+ * When reading from a log file, decompressing and decoding the next chunk runs
+ * on a separate thread while the current chunk is being classified. The native
+ * calls themselves are serialized, since the nearest-neighbour search keeps its
+ * state in static variables.
+ *
+ * The output file starts with a header (see {@link #FILE_MAGIC}) followed by
+ * one record per window: the timestamp of the last sample in the window (or
+ * its index, if no timestamps are available), followed by one float score per
+ * model.
+ *
+ * @author Jordan Frank <jordan.frank@cs.mcgill.ca>
+ *
+ */
+public class BatchClassifier {
+	/**
+	 * A block of consecutive samples, along with their timestamps.
+	 */
+	private static final class Chunk {
+		final float[] samples;
+		final long[] timestamps;
+		int length = 0;
+
+		Chunk(final int capacity) {
+			samples = new float[capacity];
+			timestamps = new long[capacity];
+		}
+	}
+
+	private static final String TAG = "BatchClassifier";
+
+	/** Identifies a batch classification results file. */
+	public static final int FILE_MAGIC = 0x48534243;
+
+	/** Version of the results file format. */
+	public static final int FILE_VERSION = 1;
+
+	/** Default number of samples between the starts of consecutive windows. */
+	public static final int DEFAULT_STEP = 5;
+
+	/** Default number of windows classified per native call. */
+	public static final int DEFAULT_CHUNK_WINDOWS = 4096;
+
+	// Number of floats written by FileOutput for the magnetic field and
+	// orientation vectors of each SensorPacket.
+	private static final int MAGFIELD_LENGTH = 3;
+	private static final int ORIENTATION_LENGTH = 3;
+
+	// Marks the end of the chunk queue.
+	private static final Chunk END_OF_STREAM = new Chunk(0);
+
+	private final NativeClassifier nativeClassifier;
+	private final int step;
+	private final int chunkWindows;
+
+	private int windowSize;
+	private int numModels;
+	private int numChannels;
+	private String modelNames;
+
+	/**
+	 * Creates a batch classifier with the default step and chunk size.
+	 *
+	 * @param nativeClassifier
+	 *            The native classifier to use. Models loaded through this batch
+	 *            classifier replace any models already loaded in it.
+	 */
+	public BatchClassifier(final NativeClassifier nativeClassifier) {
+		this(nativeClassifier, DEFAULT_STEP, DEFAULT_CHUNK_WINDOWS);
+	}
+
+	/**
+	 * Creates a batch classifier.
+	 *
+	 * @param nativeClassifier
+	 *            The native classifier to use. Models loaded through this batch
+	 *            classifier replace any models already loaded in it.
+	 * @param step
+	 *            Number of samples between the starts of consecutive windows.
+	 * @param chunkWindows
+	 *            Number of windows classified per native call.
+	 */
+	public BatchClassifier(final NativeClassifier nativeClassifier,
+			final int step, final int chunkWindows) {
+		if (step < 1 || chunkWindows < 1) {
+			throw new IllegalArgumentException(
+					"Step and chunk size must be positive.");
+		}
+		this.nativeClassifier = nativeClassifier;
+		this.step = step;
+		this.chunkWindows = chunkWindows;
+	}
+
+	/**
+	 * Classifies an array of samples and writes the scores to outFile.
+	 *
+	 * @param series
+	 *            The samples to be classified. For models with several
+	 *            channels, each sample holds one value per channel,
+	 *            interleaved.
+	 * @param timestamps
+	 *            The timestamp of each sample, or null to write sample indices
+	 *            instead.
+	 * @param outFile
+	 *            The file in which the results are stored. If the file exists,
+	 *            it will be overwritten.
+	 * @return The number of windows classified.
+	 * @throws IOException
+	 *             If the results could not be written.
+	 */
+	public int classify(final float[] series, final long[] timestamps,
+			final File outFile) throws IOException {
+		checkModelsLoaded();
+		final float[] scores = new float[chunkWindows * numModels];
+		final int numSamples = series.length / numChannels;
+		final DataOutputStream out = openOutput(outFile);
+		int windows = 0;
+		try {
+			int start = 0;
+			while (numSamples - start >= windowSize) {
+				final int n = Math.min(chunkWindows, (numSamples - start
+						- windowSize)
+						/ step + 1);
+				synchronized (nativeClassifier) {
+					nativeClassifier.classifySeries(series, start, n, step,
+							scores);
+				}
+				for (int w = 0; w < n; w++) {
+					final int last = start + w * step + windowSize - 1;
+					writeRecord(out, timestamps == null ? last
+							: timestamps[last], scores, w);
+				}
+				windows += n;
+				start += n * step;
+			}
+		} finally {
+			out.close();
+		}
+		return windows;
+	}
+
+	/**
+	 * Classifies the accelerometer magnitudes stored in a -raw.log file
+	 * produced by FileOutput, and writes the scores to outFile.
+	 *
+	 * @param rawLog
+	 *            The compressed sensor log.
+	 * @param outFile
+	 *            The file in which the results are stored. If the file exists,
+	 *            it will be overwritten.
+	 * @return The number of windows classified.
+	 * @throws IOException
+	 *             If the log could not be read or the results could not be
+	 *             written.
+	 * @throws IllegalStateException
+	 *             If the loaded models were built from several channels, since
+	 *             only the magnitudes are read from the log.
+	 */
+	public int classifyRawLog(final File rawLog, final File outFile)
+			throws IOException {
+		checkModelsLoaded();
+		if (numChannels != 1) {
+			throw new IllegalStateException(
+					"Only single-channel models can classify a raw log.");
+		}
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new GZIPInputStream(new FileInputStream(rawLog))));
+		final BlockingQueue<Chunk> queue = new ArrayBlockingQueue<Chunk>(2);
+		final IOException[] readError = new IOException[1];
+		final int capacity = (chunkWindows - 1) * step + windowSize;
+
+		final Thread reader = new Thread(TAG + "Reader") {
+			@Override
+			public void run() {
+				try {
+					Chunk chunk = new Chunk(capacity);
+					while (readSamples(in, chunk)) {
+						queue.put(chunk);
+						chunk = carryOver(chunk, capacity);
+					}
+					if (chunk.length >= windowSize) {
+						queue.put(chunk);
+					}
+				} catch (final IOException e) {
+					readError[0] = e;
+				} catch (final InterruptedException e) {
+					return;
+				} finally {
+					try {
+						in.close();
+					} catch (final IOException e) {
+						Log.e(TAG, e);
+					}
+				}
+				try {
+					queue.put(END_OF_STREAM);
+				} catch (final InterruptedException e) {
+					// Consumer has gone away.
+				}
+			}
+		};
+		reader.start();
+
+		final float[] scores = new float[chunkWindows * numModels];
+		DataOutputStream out = null;
+		int windows = 0;
+		try {
+			out = openOutput(outFile);
+			Chunk chunk;
+			while ((chunk = queue.take()) != END_OF_STREAM) {
+				final int n = (chunk.length - windowSize) / step + 1;
+				synchronized (nativeClassifier) {
+					nativeClassifier.classifySeries(chunk.samples, 0, n, step,
+							scores);
+				}
+				for (int w = 0; w < n; w++) {
+					writeRecord(out, chunk.timestamps[w * step + windowSize
+							- 1], scores, w);
+				}
+				windows += n;
+			}
+		} catch (final InterruptedException e) {
+			throw new IOException("Interrupted while classifying "
+					+ rawLog.getName());
+		} finally {
+			// If classification stopped early, the reader may be blocked on a
+			// full queue with the log still open.
+			reader.interrupt();
+			try {
+				reader.join();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (out != null) {
+				out.close();
+			}
+		}
+		if (readError[0] != null) {
+			throw readError[0];
+		}
+		return windows;
+	}
+
+	/**
+	 * Starts a new chunk with the samples from the end of the given chunk that
+	 * have not yet been the start of a window.
+	 */
+	private Chunk carryOver(final Chunk chunk, final int capacity) {
+		final int consumed = ((chunk.length - windowSize) / step + 1) * step;
+		final Chunk next = new Chunk(capacity);
+		next.length = chunk.length - consumed;
+		System.arraycopy(chunk.samples, consumed, next.samples, 0, next.length);
+		System.arraycopy(chunk.timestamps, consumed, next.timestamps, 0,
+				next.length);
+		return next;
+	}
+
+	/**
+	 * Reads all of the accelerometer magnitudes from a -raw.log file produced
+	 * by FileOutput.
+	 *
+	 * @param rawLog
+	 *            The compressed sensor log.
+	 * @return The magnitudes, in the order in which they were recorded.
+	 * @throws IOException
+	 *             If the log could not be read.
+	 */
+	public static float[] readMagnitudes(final File rawLog) throws IOException {
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new GZIPInputStream(new FileInputStream(rawLog))));
+		Chunk chunk = new Chunk(DEFAULT_CHUNK_WINDOWS);
+		try {
+			while (readSamples(in, chunk)) {
+				final Chunk larger = new Chunk(chunk.samples.length * 2);
+				System.arraycopy(chunk.samples, 0, larger.samples, 0,
+						chunk.length);
+				larger.length = chunk.length;
+				chunk = larger;
+			}
+		} finally {
+			in.close();
+		}
+		final float[] magnitudes = new float[chunk.length];
+		System.arraycopy(chunk.samples, 0, magnitudes, 0, chunk.length);
+		return magnitudes;
+	}
+
+	private void checkModelsLoaded() {
+		if (numModels == 0) {
+			throw new IllegalStateException("No models loaded.");
+		}
+	}
+
+	/**
+	 * Deletes the loaded models and frees their memory.
+	 */
+	public void close() {
+		synchronized (nativeClassifier) {
+			nativeClassifier.deleteModels();
+		}
+		numModels = 0;
+	}
+
+	/**
+	 * Returns the tab-separated names of the loaded models, in the same order
+	 * as the scores in each output record.
+	 *
+	 * @return A tab-separated list of model names.
+	 */
+	public String getModelNames() {
+		return modelNames;
+	}
+
+	/**
+	 * Returns the number of samples in each classified window.
+	 *
+	 * @return The window size, or 0 if no models are loaded.
+	 */
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	/**
+	 * Loads a set of models.
+	 *
+	 * @param models
+	 *            A file containing the filenames of the models to load, one per
+	 *            line.
+	 * @param numNeighbours
+	 *            The number of neighbours used in the nearest-neighbours step
+	 *            of the classifier.
+	 * @param matchSteps
+	 *            The length of the sequence that is compared by the classifier
+	 *            to compute the score.
+	 * @param algorithm
+	 *            One of the NativeClassifier.GTMALGORITHM constants.
+	 */
+	public void loadModels(final File models, final int numNeighbours,
+			final int matchSteps, final int algorithm) {
+		synchronized (nativeClassifier) {
+			nativeClassifier.deleteModels();
+			nativeClassifier.loadModels(models.getAbsolutePath(),
+					numNeighbours, matchSteps);
+			nativeClassifier.setAlgorithmNumber(algorithm);
+			windowSize = nativeClassifier.getWindowSize();
+			numModels = nativeClassifier.getNumModels();
+			numChannels = nativeClassifier.getNumChannels();
+			modelNames = nativeClassifier.getModelNames();
+		}
+	}
+
+	private DataOutputStream openOutput(final File outFile) throws IOException {
+		final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(outFile), 65536));
+		out.writeInt(FILE_MAGIC);
+		out.writeInt(FILE_VERSION);
+		out.writeInt(numModels);
+		out.writeUTF(modelNames);
+		out.writeInt(windowSize);
+		out.writeInt(step);
+		return out;
+	}
+
+	/**
+	 * Fills the chunk with samples from the log, returning true if it was
+	 * filled completely and false if the end of the log was reached first.
+	 */
+	private static boolean readSamples(final DataInputStream in,
+			final Chunk chunk) throws IOException {
+		final byte[] unused = new byte[4 * (1 + MAGFIELD_LENGTH
+				+ ORIENTATION_LENGTH)];
+		try {
+			while (chunk.length < chunk.samples.length) {
+				final long time = in.readLong();
+				in.readFloat(); // x
+				in.readFloat(); // y
+				in.readFloat(); // z
+				final float m = in.readFloat();
+				in.readFully(unused); // temperature, magfield, orientation
+				chunk.timestamps[chunk.length] = time;
+				chunk.samples[chunk.length] = m;
+				chunk.length += 1;
+			}
+			return true;
+		} catch (final EOFException e) {
+			// End of the log, or a record truncated when the log was closed.
+			return false;
+		}
+	}
+
+	private void writeRecord(final DataOutputStream out, final long time,
+			final float[] scores, final int window) throws IOException {
+		out.writeLong(time);
+		final int offset = window * numModels;
+		for (int i = 0; i < numModels; i++) {
+			out.writeFloat(scores[offset + i]);
+		}
+	}
+}
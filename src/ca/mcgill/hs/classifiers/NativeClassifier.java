@@ -45,6 +45,21 @@ public class NativeClassifier {
 	 */
 	public static final int GTMALGORITHM_SEGMENT_MATCH = 3;
 
+	/**
+	 * Compresses a model by keeping the training points chosen by
+	 * farthest-point sampling, so that every training point is close to a
+	 * point that is kept. The successor of each kept point is stored with it.
+	 */
+	public static final int COMPRESS_FARTHEST_POINT = 1;
+
+	/**
+	 * Compresses a model by starting from the farthest-point sample and
+	 * running a few k-means iterations, so that each model point is the mean
+	 * of the training points it represents, and its successor is the mean of
+	 * their successors.
+	 */
+	public static final int COMPRESS_KMEANS = 2;
+
 	/**
 	 * Closes and frees the memory for the nearest-neighbour data structure.
 	 */
@@ -81,6 +96,58 @@ public class NativeClassifier {
 	 */
 	public native void buildTree(String in_file, int m, int p, int d);
 
+	/**
+	 * Builds a time-delay embedding model as in {@link #buildTree}, but
+	 * reduces it to at most maxPoints representative points. Compressed models
+	 * can only be used with GTMALGORITHM_INDEP_STEPS; the classifier falls
+	 * back to that algorithm for them.
+	 * 
+	 * @param in_file
+	 *            File name containing a single column of data points, from
+	 *            which the model is built.
+	 * @param m
+	 *            Initial embedding dimension.
+	 * @param p
+	 *            Number of principal components to use for final model.
+	 * @param d
+	 *            Delay time in samples.
+	 * @param maxPoints
+	 *            Maximum number of points in the model, or 0 for no limit.
+	 * @param method
+	 *            Either COMPRESS_FARTHEST_POINT or COMPRESS_KMEANS.
+	 * @return The number of embedded training points, the number of points
+	 *         in the model, and the mean and maximum distance from a training
+	 *         point to the model point that represents it.
+	 */
+	public native float[] buildCompressedTree(String in_file, int m, int p,
+			int d, int maxPoints, int method);
+
+	/**
+	 * Builds a time-delay embedding model over several channels, as in
+	 * {@link #buildCompressedTree}. Each line of in_file holds one value per
+	 * channel, separated by whitespace. Each channel is normalised to zero
+	 * mean and unit variance, and the normalisation is saved with the model
+	 * so that the same one is applied when classifying.
+	 * 
+	 * @param in_file
+	 *            File name containing one column of data points per channel.
+	 * @param channels
+	 *            Number of channels.
+	 * @param m
+	 *            Embedding dimension of each channel.
+	 * @param p
+	 *            Number of principal components to use for final model.
+	 * @param d
+	 *            Delay time in samples.
+	 * @param maxPoints
+	 *            Maximum number of points in the model, or 0 for no limit.
+	 * @param method
+	 *            Either COMPRESS_FARTHEST_POINT or COMPRESS_KMEANS.
+	 * @return The same statistics as {@link #buildCompressedTree}.
+	 */
+	public native float[] buildMultiChannelTree(String in_file, int channels,
+			int m, int p, int d, int maxPoints, int method);
+
 	/**
 	 * Classifies the data in the array in, starting from index offset, and
 	 * returned values are stored in output, which must be an array of length
@@ -89,13 +156,41 @@ public class NativeClassifier {
 	 * @param in
 	 *            Data to be classified.
 	 * @param startIndex
-	 *            Starting index from which to classify for array in.
+	 *            Index of the first sample to classify. For models with
+	 *            several channels, each sample holds {@link #getNumChannels()}
+	 *            values, interleaved.
 	 * @param out
 	 *            Scores, one per model. out must be preallocated with size
 	 *            equal to the number of models.
 	 */
 	public native void classifySample(float[] in, int startIndex, float[] out);
 
+	/**
+	 * Classifies a sequence of windows from the array in with a single native
+	 * call. Window w starts at startIndex + w * step and spans getWindowSize()
+	 * samples, so the array must contain at least (numWindows - 1) * step +
+	 * getWindowSize() samples from startIndex onward. Each window is scored
+	 * exactly as {@link #classifySample} would score it.
+	 * 
+	 * @param in
+	 *            Data to be classified.
+	 * @param startIndex
+	 *            Index of the first sample of the first window. For models
+	 *            with several channels, each sample holds
+	 *            {@link #getNumChannels()} values, interleaved.
+	 * @param numWindows
+	 *            Number of windows to classify.
+	 * @param step
+	 *            Number of samples between the starts of consecutive windows.
+	 * @param out
+	 *            Scores, getNumModels() per window, stored window by window.
+	 *            out must be preallocated with size at least numWindows *
+	 *            getNumModels().
+	 * @return The number of windows that were classified.
+	 */
+	public native int classifySeries(float[] in, int startIndex,
+			int numWindows, int step, float[] out);
+
 	/**
 	 * Classifies an entire trajectory in the file specified by in_file, using
 	 * the models from models_file, and storing the scores in out_file.
@@ -125,6 +220,15 @@ public class NativeClassifier {
 	 */
 	public native String getModelNames();
 
+	/**
+	 * Returns the number of channels the loaded models were built from. Data
+	 * passed to {@link #classifySample} and {@link #classifySeries} holds this
+	 * many values per sample, interleaved.
+	 * 
+	 * @return The number of channels, or 0 if no models are loaded.
+	 */
+	public native int getNumChannels();
+
 	/**
 	 * Returns the number of loaded models
 	 * 
@@ -167,4 +271,141 @@ public class NativeClassifier {
 	 */
 	public native void setAlgorithmNumber(int algNum);
 
+	/**
+	 * Switches the nearest-neighbour search between exact and approximate
+	 * mode. Must be called after the models have been loaded. Setting both
+	 * parameters to 0 restores exact search.
+	 * 
+	 * @param eps
+	 *            Error bound. Neighbours returned may be up to (1+eps) times
+	 *            further away than the true nearest neighbours.
+	 * @param maxPointsVisited
+	 *            Maximum number of model points visited per search, or 0 for
+	 *            no limit. Small values are raised to the number of neighbours
+	 *            the algorithm needs.
+	 */
+	public native void setApproximation(float eps, int maxPointsVisited);
+
+	/**
+	 * Loads the models specified in models_file into a new classifier that is
+	 * independent of the one used by the other methods of this class. The
+	 * classifier is referred to by the returned handle, and must be freed with
+	 * {@link #deleteClassifier} when it is no longer needed.
+	 * 
+	 * @param models_file
+	 *            A file containing the model files, one per line.
+	 * @param numNeighbours
+	 *            The number of neighbours used in the nearest-neighbours step
+	 *            of the classifier.
+	 * @param matchSteps
+	 *            The length of the sequence that is compared by the classifier
+	 *            to compute the score.
+	 * @return A handle to the new classifier, or 0 if any of the models could
+	 *         not be loaded.
+	 */
+	public native long createClassifier(String models_file, int numNeighbours,
+			int matchSteps);
+
+	/**
+	 * Deletes a classifier created by {@link #createClassifier} and frees the
+	 * memory allocated to its models. The handle must not be used afterwards.
+	 * 
+	 * @param handle
+	 *            Classifier handle.
+	 */
+	public native void deleteClassifier(long handle);
+
+	/**
+	 * Classifies the data in the array in, as in {@link #classifySample}, with
+	 * the given classifier.
+	 * 
+	 * @param handle
+	 *            Classifier handle.
+	 * @param in
+	 *            Data to be classified.
+	 * @param startIndex
+	 *            Index of the first sample to classify. For models with
+	 *            several channels, each sample holds {@link #getNumChannels()}
+	 *            values, interleaved.
+	 * @param out
+	 *            Scores, one per model.
+	 */
+	public native void classifySampleWith(long handle, float[] in,
+			int startIndex, float[] out);
+
+	/**
+	 * Returns the number of models in the given classifier.
+	 * 
+	 * @param handle
+	 *            Classifier handle.
+	 * @return The number of models.
+	 */
+	public native int getNumModelsOf(long handle);
+
+	/**
+	 * Returns the number of channels the models of the given classifier were
+	 * built from. Data passed to {@link #classifySampleWith} holds this many
+	 * values per sample, interleaved.
+	 * 
+	 * @param handle
+	 *            Classifier handle.
+	 * @return The number of channels.
+	 */
+	public native int getNumChannelsOf(long handle);
+
+	/**
+	 * Returns the window size of the given classifier, as in
+	 * {@link #getWindowSize}. The size is in samples, each of which has
+	 * {@link #getNumChannelsOf} values.
+	 * 
+	 * @param handle
+	 *            Classifier handle.
+	 * @return The window size.
+	 */
+	public native int getWindowSizeOf(long handle);
+
+	/**
+	 * Returns a tab-separated list of the model names in the given classifier.
+	 * 
+	 * @param handle
+	 *            Classifier handle.
+	 * @return A tab-separated list of model names.
+	 */
+	public native String getModelNamesOf(long handle);
+
+	/**
+	 * Returns the time taken to load each model of the given classifier.
+	 * 
+	 * @param handle
+	 *            Classifier handle.
+	 * @return Load time in milliseconds, one per model.
+	 */
+	public native float[] getModelLoadTimes(long handle);
+
+	/**
+	 * Selects the algorithm used by the given classifier, as in
+	 * {@link #setAlgorithmNumber}.
+	 * 
+	 * @param handle
+	 *            Classifier handle.
+	 * @param algNum
+	 *            Algorithm number.
+	 */
+	public native void setAlgorithmNumberOf(long handle, int algNum);
+
+	/**
+	 * Sets the nearest-neighbour search mode of the given classifier, as in
+	 * {@link #setApproximation}.
+	 * 
+	 * @param handle
+	 *            Classifier handle.
+	 * @param eps
+	 *            Error bound.
+	 * @param maxPointsVisited
+	 *            Maximum number of model points visited per search, or 0 for
+	 *            no limit.
+	 */
+	public native void setApproximationOf(long handle, float eps,
+			int maxPointsVisited);
+
 }
@@ -7,32 +7,254 @@ package ca.mcgill.hs.classifiers;
 
 import java.io.File;
 
+import ca.mcgill.hs.util.Log;
+
 /**
  * Wraps the functionality of the NativeClassifier, and makes it much easier to
- * use by a plugin.
+ * use by a plugin. Each instance holds one set of loaded models, which cannot
+ * be changed once loaded. To switch to a different set of models, load a new
+ * instance with {@link #load} while the current one is still in use, and close
+ * the old one once the new one has taken over.
+ * 
+ * Only one thread may classify at a time, across all instances, since the
+ * native nearest-neighbour search is not reentrant.
  * 
  * @author Jordan Frank <jordan.frank@cs.mcgill.ca>
  * 
  */
 public class TimeDelayEmbeddingClassifier {
-	@SuppressWarnings("unused")
 	private static final String TAG = "TimeDelayEmbeddingClassifier";
 
 	private static final NativeClassifier nativeClassifier = new NativeClassifier();
 
-	// Circular buffer for data.
-	private float[] buffer;
+	// Classifier parameters.
+	private static final int NUM_NEIGHBOURS = 3;
+	private static final int MATCH_STEPS = 8;
+
+	/**
+	 * Just wraps the buildTree method of the native classifier.
+	 * 
+	 * @param modelFile
+	 *            The file containing the data. This file must contain a single
+	 *            column of floating point values. The model will be stored in a
+	 *            file with the same name but with the suffix .dmp appended to
+	 *            it.
+	 * @param m
+	 *            Initial embedding dimension.
+	 * @param p
+	 *            Number of principal components to use for final model.
+	 * @param d
+	 *            Time delay in samples.
+	 * 
+	 * @see NativeClassifier#buildTree
+	 */
+	public static void buildModel(final String modelFile, final int m,
+			final int p, final int d) {
+		nativeClassifier.buildTree(modelFile, m, p, d);
+	}
+
+	/**
+	 * Builds a model that is reduced to at most maxPoints points.
+	 * 
+	 * @param modelFile
+	 *            The file containing the data, as for
+	 *            {@link #buildModel(String, int, int, int)}.
+	 * @param m
+	 *            Initial embedding dimension.
+	 * @param p
+	 *            Number of principal components to use for final model.
+	 * @param d
+	 *            Time delay in samples.
+	 * @param maxPoints
+	 *            Maximum number of points in the model, or 0 for no limit.
+	 * @param method
+	 *            One of the NativeClassifier.COMPRESS constants.
+	 * @return The number of training points, the number of model points, and
+	 *         the mean and maximum distance from a training point to the model
+	 *         point that represents it.
+	 * 
+	 * @see NativeClassifier#buildCompressedTree
+	 */
+	public static float[] buildModel(final String modelFile, final int m,
+			final int p, final int d, final int maxPoints, final int method) {
+		return nativeClassifier.buildCompressedTree(modelFile, m, p, d,
+				maxPoints, method);
+	}
+
+	/**
+	 * Builds a model over several channels.
+	 * 
+	 * @param modelFile
+	 *            The file containing the data, one whitespace-separated column
+	 *            per channel.
+	 * @param channels
+	 *            Number of channels.
+	 * @param m
+	 *            Embedding dimension of each channel.
+	 * @param p
+	 *            Number of principal components to use for final model.
+	 * @param d
+	 *            Time delay in samples.
+	 * @param maxPoints
+	 *            Maximum number of points in the model, or 0 for no limit.
+	 * @param method
+	 *            One of the NativeClassifier.COMPRESS constants.
+	 * @return The same statistics as
+	 *         {@link #buildModel(String, int, int, int, int, int)}.
+	 * 
+	 * @see NativeClassifier#buildMultiChannelTree
+	 */
+	public static float[] buildModel(final String modelFile,
+			final int channels, final int m, final int p, final int d,
+			final int maxPoints, final int method) {
+		return nativeClassifier.buildMultiChannelTree(modelFile, channels, m,
+				p, d, maxPoints, method);
+	}
+
+	/**
+	 * Frees the memory shared by the nearest-neighbour data structures. Must
+	 * only be called once every classifier has been closed.
+	 */
+	public static void closeAll() {
+		nativeClassifier.annClose();
+	}
+
+	/**
+	 * Compares approximate nearest-neighbour search against exact search on a
+	 * recorded series, using the same classifier parameters as the
+	 * classifiers created by {@link #load}. Must not be called while any
+	 * classifier is in use, since it loads the models into the native
+	 * classifier's shared instance.
+	 * 
+	 * @param models
+	 *            A file containing the filenames of the models to load, one per
+	 *            line.
+	 * @param series
+	 *            Recorded data, such as the output of
+	 *            {@link BatchClassifier#readMagnitudes}.
+	 * @param eps
+	 *            Error bound for the approximate search.
+	 * @param maxPointsVisited
+	 *            Search budget for the approximate search, or 0 for no limit.
+	 * @return The comparison, or null if the models could not be loaded or the
+	 *         series is shorter than one window.
+	 * 
+	 * @see ApproximationReport#compare
+	 */
+	public static ApproximationReport compareApproximation(final File models,
+			final float[] series, final float eps, final int maxPointsVisited) {
+		synchronized (nativeClassifier) {
+			nativeClassifier.loadModels(models.getAbsolutePath(),
+					NUM_NEIGHBOURS, MATCH_STEPS);
+			try {
+				nativeClassifier
+						.setAlgorithmNumber(NativeClassifier.GTMALGORITHM_INDEP_STEPS);
+				return ApproximationReport.compare(nativeClassifier, series,
+						BatchClassifier.DEFAULT_STEP, eps, maxPointsVisited);
+			} finally {
+				nativeClassifier.deleteModels();
+			}
+		}
+	}
+
+	/**
+	 * Compares exact search with compressed models against exact search with
+	 * the same models uncompressed, using the same classifier parameters as
+	 * the classifiers created by {@link #load}. Must not be called while any
+	 * classifier is in use, since it loads the models into the native
+	 * classifier's shared instance.
+	 * 
+	 * @param exactModels
+	 *            A file containing the filenames of the uncompressed models,
+	 *            one per line.
+	 * @param compressedModels
+	 *            A file containing the filenames of the compressed models, in
+	 *            the same order.
+	 * @param maxModelPoints
+	 *            The size limit to which the models were compressed.
+	 * @param series
+	 *            Recorded data, such as the data the models were built from.
+	 * @return The comparison, or null if the models could not be loaded or the
+	 *         series is shorter than one window.
+	 * 
+	 * @see ApproximationReport#compareModels
+	 */
+	public static ApproximationReport compareCompression(
+			final File exactModels, final File compressedModels,
+			final int maxModelPoints, final float[] series) {
+		return ApproximationReport.compareModels(nativeClassifier,
+				exactModels, compressedModels, maxModelPoints, series,
+				BatchClassifier.DEFAULT_STEP, NUM_NEIGHBOURS, MATCH_STEPS);
+	}
+
+	/**
+	 * Loads a set of models into a new classifier. The models are validated as
+	 * they are loaded, and if any of them is missing or too small to be used,
+	 * no classifier is created. This may take a while for large models, so it
+	 * should not be called from a thread that handles sensor data.
+	 * 
+	 * @param models
+	 *            A file containing the filenames of the models to load, one per
+	 *            line.
+	 * @param eps
+	 *            Error bound for the nearest-neighbour search, or 0 for exact
+	 *            neighbours.
+	 * @param maxPointsVisited
+	 *            Maximum number of model points visited per search, or 0 for
+	 *            no limit.
+	 * @return The new classifier, or null if the models could not be loaded.
+	 */
+	public static TimeDelayEmbeddingClassifier load(final File models,
+			final float eps, final int maxPointsVisited) {
+		final long handle = nativeClassifier.createClassifier(models
+				.getAbsolutePath(), NUM_NEIGHBOURS, MATCH_STEPS);
+		if (handle == 0) {
+			Log.e(TAG, "Could not load models from "
+					+ models.getAbsolutePath());
+			return null;
+		}
+		nativeClassifier.setAlgorithmNumberOf(handle,
+				NativeClassifier.GTMALGORITHM_INDEP_STEPS);
+		nativeClassifier.setApproximationOf(handle, eps, maxPointsVisited);
+		return new TimeDelayEmbeddingClassifier(handle);
+	}
+
+	// Native classifier holding the models.
+	private final long handle;
+	private boolean closed = false;
+
+	// Circular buffer for data, in samples of numChannels values each.
+	private final float[] buffer;
 	private int bufferIndex = 0;
-	private int bufferMidPoint;
-	private int bufferLength;
-	private int windowLength;
-	private float[] classProbs;
+	private final int bufferMidPoint;
+	private final int bufferLength;
+	private final int windowLength;
+	private final int numChannels;
+	private final float[] window;
+	private final float[] classProbs;
+
+	private final String modelNames;
+	private final float[] modelLoadTimes;
 
-	private int numLoadedModels;
+	private TimeDelayEmbeddingClassifier(final long handle) {
+		this.handle = handle;
+
+		// Prepare the buffer
+		numChannels = nativeClassifier.getNumChannelsOf(handle);
+		windowLength = nativeClassifier.getWindowSizeOf(handle);
+		bufferLength = windowLength * 2 - 1;
+		bufferMidPoint = windowLength - 1;
+		buffer = new float[bufferLength * numChannels];
+		window = new float[windowLength * numChannels];
+
+		classProbs = new float[nativeClassifier.getNumModelsOf(handle)];
+		modelNames = nativeClassifier.getModelNamesOf(handle);
+		modelLoadTimes = nativeClassifier.getModelLoadTimes(handle);
+	}
 
 	/**
-	 * Adds a sample to the data buffer. Returns the index in the buffer at
-	 * which the data was added.
+	 * Adds a sample to the data buffer, for models built from a single series.
+	 * Returns the index in the buffer at which the data was added.
 	 * 
 	 * @param sample
 	 *            Data element to be added to the buffer.
@@ -57,25 +279,30 @@ public class TimeDelayEmbeddingClassifier {
 	}
 
 	/**
-	 * Just wraps the buildTree method of the native classifier.
+	 * Adds a sample with a value for each channel to the data buffer. Returns
+	 * the index in the buffer at which the data was added.
 	 * 
-	 * @param modelFile
-	 *            The file containing the data. This file must contain a single
-	 *            column of floating point values. The model will be stored in a
-	 *            file with the same name but with the suffix .dmp appended to
-	 *            it.
-	 * @param m
-	 *            Initial embedding dimension.
-	 * @param p
-	 *            Number of principal components to use for final model.
-	 * @param d
-	 *            Time delay in samples.
-	 * 
-	 * @see NativeClassifier#buildTree
+	 * @param sample
+	 *            One value per channel, in the order the models were built
+	 *            with. Must hold {@link #getNumChannels()} values.
+	 * @return Index in the buffer where the data can be found.
 	 */
-	public void buildModel(final String modelFile, final int m, final int p,
-			final int d) {
-		nativeClassifier.buildTree(modelFile, m, p, d);
+	public int addSample(final float[] sample) {
+		int index;
+		synchronized (buffer) {
+			System.arraycopy(sample, 0, buffer, bufferIndex * numChannels,
+					numChannels);
+			if (bufferIndex > bufferMidPoint) {
+				System.arraycopy(sample, 0, buffer, (bufferIndex - windowLength)
+						* numChannels, numChannels);
+			}
+			index = bufferIndex;
+			bufferIndex += 1;
+			if (bufferIndex >= bufferLength) {
+				bufferIndex = bufferMidPoint;
+			}
+		}
+		return index;
 	}
 
 	/**
@@ -86,33 +313,31 @@ public class TimeDelayEmbeddingClassifier {
 	 * @return The scores from each of the models. This will be an array
 	 *         containing the same number of values as there are models, and the
 	 *         order of the values correspond to the order of the models
-	 *         returned by {@link #getLoadedModelNames()}
+	 *         returned by {@link #getLoadedModelNames()}. Returns null if the
+	 *         buffer does not yet hold a full window, or if the classifier has
+	 *         been closed.
 	 */
-	public float[] classify(final int index) {
-		if (index < bufferMidPoint) {
+	public synchronized float[] classify(final int index) {
+		if (closed || !isReady(index)) {
 			return null;
 		}
-		final float[] buf = new float[windowLength];
 		synchronized (buffer) {
-			for (int i = 0; i < windowLength; i++) {
-				buf[i] = buffer[index - windowLength + 1 + i];
-			}
+			System.arraycopy(buffer, (index - windowLength + 1) * numChannels,
+					window, 0, window.length);
 		}
 
-		nativeClassifier.classifySample(buf, 0, classProbs);
-		// String message = "Class Probs: ";
-		// for (int i = 0; i < classProbs.length; i++) {
-		// message = message + classProbs[i] + "\t";
-		// }
-		// Log.d(TAG, message);
+		nativeClassifier.classifySampleWith(handle, window, 0, classProbs);
 		return classProbs;
 	}
 
 	/**
-	 * Closes the models files.
+	 * Frees the models. The classifier cannot be used afterwards.
 	 */
-	public void close() {
-		nativeClassifier.annClose();
+	public synchronized void close() {
+		if (!closed) {
+			closed = true;
+			nativeClassifier.deleteClassifier(handle);
+		}
 	}
 
 	/**
@@ -121,33 +346,59 @@ public class TimeDelayEmbeddingClassifier {
 	 * @return A tab-separated list of model names.
 	 */
 	public String getLoadedModelNames() {
-		return nativeClassifier.getModelNames();
+		return modelNames;
 	}
 
-	public int getNumModels() {
-		return nativeClassifier.getNumModels();
+	/**
+	 * Returns the time taken to load each of the models.
+	 * 
+	 * @return Load time in milliseconds, in the same order as the model names.
+	 */
+	public float[] getModelLoadTimes() {
+		return modelLoadTimes;
 	}
 
 	/**
-	 * Loads a set of models
+	 * Returns the number of values in each sample, which is 1 for models
+	 * built from a single series.
 	 * 
-	 * @param models
-	 *            A file containing the filenames of the models to load, one per
-	 *            line.
+	 * @return The number of channels the models were built from.
 	 */
-	public void loadModels(final File models) {
-		nativeClassifier.loadModels(models.getAbsolutePath(), 3, 8);
-		nativeClassifier
-				.setAlgorithmNumber(NativeClassifier.GTMALGORITHM_INDEP_STEPS);
+	public int getNumChannels() {
+		return numChannels;
+	}
 
-		// Prepare the buffer
-		windowLength = nativeClassifier.getWindowSize();
-		bufferLength = windowLength * 2 - 1;
-		bufferMidPoint = windowLength - 1;
-		buffer = new float[bufferLength];
-		bufferIndex = 0;
+	public int getNumModels() {
+		return classProbs.length;
+	}
 
-		numLoadedModels = nativeClassifier.getNumModels();
-		classProbs = new float[numLoadedModels];
+	/**
+	 * Returns whether the buffer holds a full window ending at the specified
+	 * index, that is whether {@link #classify} can score it.
+	 * 
+	 * @param index
+	 *            An index returned by {@link #addSample}.
+	 * @return True if the window ending at index can be classified.
+	 */
+	public boolean isReady(final int index) {
+		return index >= bufferMidPoint;
+	}
+
+	/**
+	 * Sets the approximate nearest-neighbour search parameters.
+	 * 
+	 * @param eps
+	 *            Error bound, or 0 for exact neighbours.
+	 * @param maxPointsVisited
+	 *            Maximum number of model points visited per search, or 0 for
+	 *            no limit.
+	 * 
+	 * @see NativeClassifier#setApproximation
+	 */
+	public synchronized void setApproximation(final float eps,
+			final int maxPointsVisited) {
+		if (!closed) {
+			nativeClassifier.setApproximationOf(handle, eps, maxPointsVisited);
+		}
 	}
 }
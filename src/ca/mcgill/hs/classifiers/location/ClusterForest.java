@@ -0,0 +1,316 @@
+/* 
+ * Copyright (c) 2010 Jordan Frank, HumanSense Project, McGill University
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ * See LICENSE for more information 
+ */
+package ca.mcgill.hs.classifiers.location;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedList;
+
+import ca.mcgill.hs.util.LongIntHashMap;
+
+/**
+ * Keeps track of which cluster each location belongs to, as a union-find
+ * forest over the clustered locations. Each tree is a cluster, and its root
+ * holds the cluster id. Merging two clusters links the root of the smaller
+ * tree under the root of the larger one, so a merge takes near-constant time
+ * however many locations the clusters hold.
+ * 
+ * The cluster id of each location is written to the database lazily: the
+ * forest remembers the id last written for each location, and
+ * {@link #takeChange(int)} reports the locations whose id has since changed.
+ * 
+ * @author Jordan Frank <jordan.frank@cs.mcgill.ca>
+ */
+final class ClusterForest {
+
+	private static final int NONE = -1;
+
+	/** The cluster id of a location that is not in any cluster. */
+	public static final long NO_CLUSTER = -1;
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	/* Node index of each location, and of one location in each cluster. */
+	private final LongIntHashMap nodeOfLocation = new LongIntHashMap(
+			INITIAL_CAPACITY);
+	private final LongIntHashMap nodeOfCluster = new LongIntHashMap(
+			INITIAL_CAPACITY);
+
+	/* Per node: its parent, tree size and cluster id if it is a root. */
+	private int[] parent = new int[INITIAL_CAPACITY];
+	private int[] size = new int[INITIAL_CAPACITY];
+	private long[] clusterIds = new long[INITIAL_CAPACITY];
+
+	/* Per node: its location, and the cluster id last written for it. */
+	private long[] locationIds = new long[INITIAL_CAPACITY];
+	private long[] writtenIds = new long[INITIAL_CAPACITY];
+
+	private int numNodes = 0;
+
+	private long maxClusterId = 0;
+
+	/**
+	 * Adds a location to a cluster, creating the cluster if it does not yet
+	 * exist. If the location is already in another cluster, the two clusters
+	 * are merged under the new id.
+	 * 
+	 * @param locationId
+	 *            The location id.
+	 * @param clusterId
+	 *            The cluster id.
+	 */
+	public void add(final long locationId, final long clusterId) {
+		int node = nodeOfLocation.get(locationId, NONE);
+		if (node == NONE) {
+			node = newNode(locationId);
+		}
+		final int root = find(node);
+		final int clusterNode = nodeOfCluster.get(clusterId, NONE);
+		if (clusterNode == NONE) {
+			setClusterId(root, clusterId);
+		} else {
+			final int clusterRoot = find(clusterNode);
+			if (clusterRoot != root) {
+				union(root, clusterRoot, clusterId);
+			}
+		}
+		if (clusterId > maxClusterId) {
+			maxClusterId = clusterId;
+		}
+	}
+
+	/**
+	 * Returns the root of the tree holding a node, pointing every node on the
+	 * way directly at the root.
+	 */
+	private int find(final int node) {
+		int root = node;
+		while (parent[root] != root) {
+			root = parent[root];
+		}
+		int n = node;
+		while (parent[n] != root) {
+			final int next = parent[n];
+			parent[n] = root;
+			n = next;
+		}
+		return root;
+	}
+
+	/**
+	 * @return The ids of every cluster.
+	 */
+	public Collection<Long> getAllClusters() {
+		final Collection<Long> clusters = new HashSet<Long>();
+		for (int node = 0; node < numNodes; node++) {
+			if (parent[node] == node && clusterIds[node] != NO_CLUSTER) {
+				clusters.add(clusterIds[node]);
+			}
+		}
+		return clusters;
+	}
+
+	/**
+	 * Returns the cluster id for a location.
+	 * 
+	 * @param locationId
+	 *            The location id.
+	 * @return The cluster id, or {@link #NO_CLUSTER}.
+	 */
+	public long getClusterId(final long locationId) {
+		final int node = nodeOfLocation.get(locationId, NONE);
+		return node == NONE ? NO_CLUSTER : clusterIds[find(node)];
+	}
+
+	/**
+	 * Returns the cluster ids of a set of locations.
+	 * 
+	 * @param locations
+	 *            The location ids.
+	 * @return The distinct cluster ids of those locations that are in a
+	 *         cluster.
+	 */
+	public Collection<Long> getClusterIds(final Collection<Long> locations) {
+		final Collection<Long> clusters = new HashSet<Long>();
+		for (final long locationId : locations) {
+			final long clusterId = getClusterId(locationId);
+			if (clusterId != NO_CLUSTER) {
+				clusters.add(clusterId);
+			}
+		}
+		return clusters;
+	}
+
+	/**
+	 * Returns the location held by a node.
+	 * 
+	 * @param node
+	 *            A node index, less than {@link #getNumNodes()}.
+	 * @return The location id.
+	 */
+	public long getLocationId(final int node) {
+		return locationIds[node];
+	}
+
+	/**
+	 * Returns the locations in a cluster. This visits every clustered
+	 * location, so it should only be used for reporting.
+	 * 
+	 * @param clusterId
+	 *            The cluster id.
+	 * @return The location ids.
+	 */
+	public Collection<Long> getLocations(final long clusterId) {
+		final Collection<Long> locations = new LinkedList<Long>();
+		final int clusterNode = nodeOfCluster.get(clusterId, NONE);
+		if (clusterNode != NONE) {
+			final int root = find(clusterNode);
+			for (int node = 0; node < numNodes; node++) {
+				if (find(node) == root) {
+					locations.add(locationIds[node]);
+				}
+			}
+		}
+		return locations;
+	}
+
+	/**
+	 * @return A cluster id that has never been used.
+	 */
+	public long getNewClusterId() {
+		return maxClusterId + 1;
+	}
+
+	/**
+	 * @return The number of nodes, one for each location that has ever been
+	 *         clustered.
+	 */
+	public int getNumNodes() {
+		return numNodes;
+	}
+
+	/**
+	 * Adds a location read from the database, which does not need to be
+	 * written back.
+	 * 
+	 * @param locationId
+	 *            The location id.
+	 * @param clusterId
+	 *            The cluster id stored for it.
+	 */
+	public void load(final long locationId, final long clusterId) {
+		add(locationId, clusterId);
+		writtenIds[nodeOfLocation.get(locationId, NONE)] = clusterId;
+	}
+
+	private int newNode(final long locationId) {
+		if (numNodes == parent.length) {
+			final int capacity = parent.length * 2;
+			parent = grow(parent, capacity);
+			size = grow(size, capacity);
+			clusterIds = grow(clusterIds, capacity);
+			locationIds = grow(locationIds, capacity);
+			writtenIds = grow(writtenIds, capacity);
+		}
+		final int node = numNodes++;
+		parent[node] = node;
+		size[node] = 1;
+		clusterIds[node] = NO_CLUSTER;
+		locationIds[node] = locationId;
+		writtenIds[node] = NO_CLUSTER;
+		nodeOfLocation.put(locationId, node);
+		return node;
+	}
+
+	/**
+	 * Changes the id of a cluster. If a cluster with the new id already
+	 * exists, the two clusters are merged.
+	 * 
+	 * @param oldId
+	 *            The id of the cluster to change.
+	 * @param newId
+	 *            The new id.
+	 */
+	public void relabel(final long oldId, final long newId) {
+		if (oldId == newId) {
+			return;
+		}
+		final int oldNode = nodeOfCluster.get(oldId, NONE);
+		if (oldNode == NONE) {
+			return;
+		}
+		final int oldRoot = find(oldNode);
+		final int newNode = nodeOfCluster.get(newId, NONE);
+		if (newNode == NONE) {
+			setClusterId(oldRoot, newId);
+		} else {
+			union(oldRoot, find(newNode), newId);
+		}
+		if (newId > maxClusterId) {
+			maxClusterId = newId;
+		}
+	}
+
+	/**
+	 * Sets the cluster id held by a root.
+	 */
+	private void setClusterId(final int root, final long clusterId) {
+		if (clusterIds[root] != NO_CLUSTER) {
+			nodeOfCluster.remove(clusterIds[root]);
+		}
+		clusterIds[root] = clusterId;
+		nodeOfCluster.put(clusterId, root);
+	}
+
+	/**
+	 * Returns the cluster id of a location if it has changed since it was
+	 * last taken or loaded, and records it as written.
+	 * 
+	 * @param node
+	 *            A node index, less than {@link #getNumNodes()}.
+	 * @return The new cluster id, or {@link #NO_CLUSTER} if it has not
+	 *         changed.
+	 */
+	public long takeChange(final int node) {
+		final long clusterId = clusterIds[find(node)];
+		if (clusterId == writtenIds[node]) {
+			return NO_CLUSTER;
+		}
+		writtenIds[node] = clusterId;
+		return clusterId;
+	}
+
+	/**
+	 * Merges two trees, given their roots, and gives the result a cluster id.
+	 */
+	private void union(final int root1, final int root2, final long clusterId) {
+		int big = root1;
+		int small = root2;
+		if (size[small] > size[big]) {
+			big = root2;
+			small = root1;
+		}
+		if (clusterIds[small] != NO_CLUSTER) {
+			nodeOfCluster.remove(clusterIds[small]);
+			clusterIds[small] = NO_CLUSTER;
+		}
+		parent[small] = big;
+		size[big] += size[small];
+		setClusterId(big, clusterId);
+	}
+
+	private static int[] grow(final int[] array, final int capacity) {
+		final int[] grown = new int[capacity];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+
+	private static long[] grow(final long[] array, final int capacity) {
+		final long[] grown = new long[capacity];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+}
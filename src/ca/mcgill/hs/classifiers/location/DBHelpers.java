@@ -12,6 +12,9 @@ import java.io.IOException;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
 /**
  * Some helpful routines for managing the SQLite database files
  * 
@@ -51,6 +54,45 @@ public final class DBHelpers {
 		}
 	}
 
+	/**
+	 * Switches a database to write-ahead logging, if the version of SQLite
+	 * supports it. Commits then only append to the log, and readers are not
+	 * blocked by writers. With write-ahead logging, the log is not synced on
+	 * every commit, so the last few transactions can be lost if the phone
+	 * loses power, but the database cannot be corrupted. Older versions of
+	 * SQLite keep their rollback journal, which is truncated rather than
+	 * deleted after each commit.
+	 * 
+	 * This must be called before any transaction is started.
+	 * 
+	 * @param db
+	 *            The database.
+	 * @return The journal mode that is now in use.
+	 */
+	public static String useWriteAheadLogging(final SQLiteDatabase db) {
+		String mode = setJournalMode(db, "WAL");
+		if ("wal".equalsIgnoreCase(mode)) {
+			db.execSQL("PRAGMA synchronous=NORMAL");
+		} else {
+			mode = setJournalMode(db, "TRUNCATE");
+		}
+		return mode;
+	}
+
+	/**
+	 * Sets the journal mode of a database, and returns the mode that is in
+	 * use afterwards, which is the old mode if the new one is not supported.
+	 */
+	private static String setJournalMode(final SQLiteDatabase db,
+			final String mode) {
+		final Cursor cursor = db.rawQuery("PRAGMA journal_mode=" + mode, null);
+		try {
+			return cursor.moveToNext() ? cursor.getString(0) : null;
+		} finally {
+			cursor.close();
+		}
+	}
+
 	/**
 	 * Class only contains static helper methods, and should not be
 	 * instantiated.
@@ -8,7 +8,6 @@ package ca.mcgill.hs.classifiers.location;
 import java.sql.SQLException;
 
 import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
 
 /**
  * Refers to an GPS location. Collections GPS observations to determine its
@@ -18,35 +17,63 @@ import android.database.sqlite.SQLiteDatabase;
  */
 public class GPSLocation extends Location {
 
-	/** Epsilon from the paper, defines the neighbourhood size. */
-	protected static final double EPS = 1E-5f;
+	/**
+	 * Epsilon from the paper, defines the neighbourhood size, in metres. This
+	 * is the old threshold of 1E-5 degrees, measured along a meridian.
+	 */
+	protected static final double EPS = 1E-5
+			* GPSObservation.METRES_PER_DEGREE;
+
+	/*
+	 * The database trigger adds the values given for the totals and weights to
+	 * the row, and recomputes the averages.
+	 */
+	private static final String ADD_OBSERVATION_SQL = "UPDATE "
+			+ GPSLocationSet.LOCATIONS_TABLE + " SET latitude_total=?,"
+			+ "latitude_weights=?,longitude_total=?,longitude_weights=? "
+			+ "WHERE location_id=?";
+
+	/*
+	 * Cached copy of the location's row. The weights are the same for the
+	 * latitude and the longitude, and are NaN until the row has been read.
+	 */
+	private double latitudeTotal = 0.0;
+	private double longitudeTotal = 0.0;
+	private double weights = Double.NaN;
+	private double latitude = 0.0;
+	private double longitude = 0.0;
 
 	/**
 	 * Creates a GPSLocation with the specified timestamp.
 	 * 
+	 * @param work
+	 *            Writes to the GPS location database.
 	 * @param timestamp
 	 *            The timestamp of the GPSLocation.
 	 * @throws SQLException
 	 *             Indicates there is some problem accessing the database.
-	 * @see Location#Location(SQLiteDatabase, double)
+	 * @see Location#Location(UnitOfWork, double)
 	 */
-	public GPSLocation(final SQLiteDatabase db, final double timestamp) {
-		super(db, timestamp);
+	public GPSLocation(final UnitOfWork work, final double timestamp) {
+		super(work, timestamp);
+		weights = 0.0;
 	}
 
 	/**
 	 * Creates a GPSLocation with the specified id.
 	 * 
-	 * @param db
+	 * @param work
 	 * @param id
-	 * @see Location#Location(SQLiteDatabase, long)
+	 * @see Location#Location(UnitOfWork, long)
 	 */
-	public GPSLocation(final SQLiteDatabase db, final long id) {
-		super(db, id);
+	public GPSLocation(final UnitOfWork work, final long id) {
+		super(work, id);
 	}
 
 	/**
-	 * Adds a new observation to the location.
+	 * Adds a new observation to the location. This must not be called once
+	 * the location has been added to a {@link GPSLocationSet}, since its
+	 * position in the set's index would no longer be correct.
 	 * 
 	 * @param o
 	 *            The new {@link GPSObservation} to add to this location.
@@ -58,38 +85,29 @@ public class GPSLocation extends Location {
 				+ getId());
 		DebugHelper.out.println("\t" + observation.toString());
 
-		db.execSQL("UPDATE " + GPSLocationSet.LOCATIONS_TABLE + " SET "
-				+ "latitude_total=" + observation.latitude + ", "
-				+ "latitude_weights=" + (1.0 / observation.accuracy) + ", "
-				+ "longitude_total=" + observation.longitude + ", "
-				+ "longitude_weights=" + (1.0 / observation.accuracy) + " "
-				+ "WHERE location_id=" + getId() + ";");
+		// The database trigger updates the row in the same way.
+		loadCoordinates();
+		final double weight = 1.0 / observation.accuracy;
+		latitudeTotal += observation.latitude * weight;
+		longitudeTotal += observation.longitude * weight;
+		weights += weight;
+		latitude = latitudeTotal / weights;
+		longitude = longitudeTotal / weights;
+
+		work.execSQL(ADD_OBSERVATION_SQL, observation.latitude, weight,
+				observation.longitude, weight, getId());
 	}
 
+	/**
+	 * The distance is the distance in metres between the weighted means of the
+	 * observations associated with each location, where the weights
+	 * correspond to the accuracy of the GPS readings for the observations.
+	 */
 	@Override
 	public double distanceFrom(final Location other) {
-		/**
-		 * The distance is Euclidean distance between the weighted means of the
-		 * observations associated with each location, where the weights
-		 * correspond to the accuracy of the GPS readings for the observations.
-		 */
-		final Cursor cursor = db.rawQuery(""
-				+ "SELECT latitude_average,longitude_average FROM "
-				+ GPSLocationSet.LOCATIONS_TABLE + " WHERE location_id="
-				+ getId() + " OR location_id=" + other.getId() + ";", null);
-		double lat1, lat2, lon1, lon2;
-		try {
-			cursor.moveToNext();
-			lat1 = cursor.getDouble(0);
-			lon1 = cursor.getDouble(1);
-			cursor.moveToNext();
-			lat2 = cursor.getDouble(0);
-			lon2 = cursor.getDouble(1);
-		} finally {
-			cursor.close();
-		}
-		return Math.sqrt((lat1 - lat2) * (lat1 - lat2) + (lon1 - lon2)
-				* (lon1 - lon2));
+		final GPSLocation o = (GPSLocation) other;
+		return GPSObservation.distance(getLatitude(), getLongitude(), o
+				.getLatitude(), o.getLongitude());
 	}
 
 	/**
@@ -100,16 +118,7 @@ public class GPSLocation extends Location {
 	 * @return The average latitude of the location.
 	 */
 	public double getLatitude() {
-		double latitude = -1.0;
-		final Cursor cursor = db.rawQuery("SELECT latitude_average FROM "
-				+ WifiLocationSet.LOCATIONS_TABLE + " WHERE location_id="
-				+ getId(), null);
-		try {
-			cursor.moveToNext();
-			latitude = cursor.getDouble(0);
-		} finally {
-			cursor.close();
-		}
+		loadCoordinates();
 		return latitude;
 	}
 
@@ -121,37 +130,40 @@ public class GPSLocation extends Location {
 	 * @return The average longitude of the location.
 	 */
 	public double getLongitude() {
-		double longitude = -1.0;
-		final Cursor cursor = db.rawQuery("SELECT longitude_average FROM "
-				+ GPSLocationSet.LOCATIONS_TABLE + " WHERE location_id="
-				+ getId(), null);
-		try {
-			cursor.moveToNext();
-			longitude = cursor.getDouble(0);
-		} finally {
-			cursor.close();
-		}
+		loadCoordinates();
 		return longitude;
 	}
 
 	@Override
 	public Observation getObservations() {
-		Observation observation = null;
+		loadCoordinates();
+		return new GPSObservation(getTimestamp(), (int) (1. / weights),
+				latitude, longitude);
+	}
+
+	/**
+	 * Reads the location's coordinates from the database, if they have not
+	 * been read yet.
+	 */
+	private void loadCoordinates() {
+		if (!Double.isNaN(weights)) {
+			return;
+		}
 		final Cursor cursor = db.rawQuery("SELECT "
-				+ "strftime('%s',timestamp) - " + "strftime('%S',timestamp) + "
-				+ "strftime('%f',timestamp),"
-				+ "latitude_weights, latitude_average, longitude_average "
-				+ "FROM " + GPSLocationSet.LOCATIONS_TABLE
-				+ " WHERE location_id=" + getId() + ";", null);
+				+ "latitude_total,longitude_total,latitude_weights,"
+				+ "latitude_average,longitude_average FROM "
+				+ GPSLocationSet.LOCATIONS_TABLE + " WHERE location_id="
+				+ getId(), null);
 		try {
-			cursor.moveToNext();
-			observation = new GPSObservation(cursor.getDouble(0),
-					(int) (1. / cursor.getDouble(1)), cursor.getDouble(2),
-					cursor.getDouble(3));
-
+			if (cursor.moveToNext()) {
+				latitudeTotal = cursor.getDouble(0);
+				longitudeTotal = cursor.getDouble(1);
+				weights = cursor.getDouble(2);
+				latitude = cursor.getDouble(3);
+				longitude = cursor.getDouble(4);
+			}
 		} finally {
 			cursor.close();
 		}
-		return observation;
 	}
 }
@@ -11,8 +11,8 @@ import java.util.LinkedList;
 
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
-import ca.mcgill.hs.util.LRUCache;
 import ca.mcgill.hs.util.Log;
+import ca.mcgill.hs.util.LongObjectCache;
 
 /**
  * A set containing GPS locations.
@@ -22,15 +22,15 @@ import ca.mcgill.hs.util.Log;
 public class GPSLocationSet extends LocationSet {
 
 	/**
-	 * The number of locations to cache.
+	 * The total weight of the locations to cache. Each location weighs one,
+	 * plus one for each neighbour it holds in memory.
 	 */
-	private static final int CACHE_SIZE = 100;
+	private static final int CACHE_WEIGHT = 1000;
 	/**
-	 * Used to cache the last 100 most recently used locations, saves on
-	 * database queries.
+	 * Caches the recently used locations, saves on database queries.
 	 */
-	private final LRUCache<Long, GPSLocation> locationCache = new LRUCache<Long, GPSLocation>(
-			CACHE_SIZE);
+	private final LongObjectCache<GPSLocation> locationCache = new LongObjectCache<GPSLocation>(
+			CACHE_WEIGHT);
 
 	private static final boolean TIME_BASED_WINDOW = false;
 
@@ -48,6 +48,16 @@ public class GPSLocationSet extends LocationSet {
 
 	private static final String TAG = "GPSLocationSet";
 
+	/**
+	 * Index of the coordinates of every location, for finding neighbours.
+	 */
+	private final SpatialGrid grid = new SpatialGrid(GPSLocation.EPS);
+
+	/**
+	 * Runs every statement that changes the database.
+	 */
+	private final UnitOfWork work;
+
 	/**
 	 * Constructor, connects to the database for GPS locations.
 	 * 
@@ -58,76 +68,75 @@ public class GPSLocationSet extends LocationSet {
 		final boolean dbExists = dbFile.exists();
 
 		db = SQLiteDatabase.openOrCreateDatabase(dbFile, null);
+		work = new UnitOfWork(db);
 
 		Log.d(TAG, "Opening Database at " + dbFile.getPath());
+		Log.d(TAG, "Journal mode: " + DBHelpers.useWriteAheadLogging(db));
 		if (!dbExists) {
 			final long startTime = System.currentTimeMillis();
 			createDatabase(db);
 			System.out.println("Took "
 					+ (System.currentTimeMillis() - startTime)
 					+ "ms to create database");
+		} else {
+			// Neighbours are no longer found with these indexes.
+			db.execSQL("DROP INDEX IF EXISTS idx_" + LOCATIONS_TABLE
+					+ "_latitude");
+			db.execSQL("DROP INDEX IF EXISTS idx_" + LOCATIONS_TABLE
+					+ "_longitude");
 		}
+		loadGrid();
+		loadClusters();
 	}
 
 	@Override
 	public long add(final Location loc) {
 		final GPSLocation location = (GPSLocation) loc;
 
-		cacheLocation(location);
-
-		// Now get potential neighbours
-		final Collection<Long> possibleNeighbours = new LinkedList<Long>();
+		/*
+		 * Neighbours are found in the grid, which holds the coordinates of
+		 * every location, so no other location needs to be read. The new
+		 * location is added to the grid afterwards, so it is not its own
+		 * neighbour. The database triggers make each neighbour relation
+		 * symmetric, so the cached neighbours no longer match their rows and
+		 * are read again when next needed.
+		 */
+		final Collection<Long> neighbours = new LinkedList<Long>();
 		final double lat = location.getLatitude();
 		final double lon = location.getLongitude();
-		final Cursor cursor = db.rawQuery("SELECT location_id FROM locations "
-				+ "WHERE latitude_average > " + (lat - GPSLocation.EPS)
-				+ " AND latitude_average < " + (lat + GPSLocation.EPS)
-				+ " AND longitude_average > " + (lon - GPSLocation.EPS)
-				+ " AND longitude_average < " + (lon + GPSLocation.EPS) + ";",
-				null);
-		try {
-			while (cursor.moveToNext()) {
-				possibleNeighbours.add(cursor.getLong(0));
-			}
-		} finally {
-			cursor.close();
+		grid.findNear(lat, lon, GPSLocation.EPS, neighbours);
+		location.addNeighbours(neighbours);
+		for (final long neighbour : neighbours) {
+			locationCache.remove(neighbour);
 		}
-		// DebugHelper.out.println("Adding " + possibleNeighbours.size() +
-		// " possible neighbours.");
-		location.addNeighbours(possibleNeighbours);
-
-		// Add 'o' as a neighbour to 'obs' if they are close, else remove 'obs'
-		// as a neighbour of 'o'. Note that we assumed 'obs' was 'o''s neighbour
-		// earlier; now we adjust that assumption.
-
-		final Collection<Long> neighboursToRemove = new LinkedList<Long>();
-		for (final Long neighbour_id : location.getNeighbours()) {
-			final GPSLocation obs = (GPSLocation) getLocation(neighbour_id);
-			final double dist = location.distanceFrom(obs);
-			// DebugHelper.out.println("\tDistance between " + location.getId()
-			// + " and " + neighbour_id + " is " + dist);
-			if (dist > 0 && dist < GPSLocation.EPS) {
-				obs.addNeighbour(neighbour_id);
-			} else {
-				neighboursToRemove.add(neighbour_id);
-			}
-		}
-		location.removeNeighbours(neighboursToRemove);
+		grid.add(location.getId(), lat, lon);
+		cacheLocation(location);
 		return location.getId();
 	}
 
+	@Override
+	public void beginChanges() {
+		work.begin();
+	}
+
 	/**
-	 * Adds a location to the cache.
+	 * Adds a location to the cache, weighed by the number of neighbours it
+	 * holds.
 	 * 
 	 * @params location The location to be added to the cache.
 	 */
 	private void cacheLocation(final GPSLocation location) {
-		locationCache.put(location.getId(), location);
+		locationCache.put(location.getId(), location, 1 + location
+				.getNeighbours().size());
 	}
 
 	public void close() {
 		try {
 			if (db != null) {
+				Log.d(TAG, "Location cache: " + locationCache);
+				locationCache.clear();
+				writeClusters();
+				work.close();
 				db.close(); // Close the database handle
 			}
 		} finally {
@@ -175,10 +184,6 @@ public class GPSLocationSet extends LocationSet {
 						+ "longitude_weights = OLD.longitude_weights + NEW.longitude_weights, "
 						+ "longitude_average = (OLD.longitude_total + NEW.longitude_total * NEW.longitude_weights) / (OLD.longitude_weights + NEW.longitude_weights) "
 						+ "WHERE location_id = NEW.location_id; " + "END;");
-		db.execSQL("CREATE INDEX idx_" + LOCATIONS_TABLE + "_latitude ON "
-				+ LOCATIONS_TABLE + " (latitude_average);");
-		db.execSQL("CREATE INDEX idx_" + LOCATIONS_TABLE + "_longitude ON "
-				+ LOCATIONS_TABLE + " (longitude_average);");
 
 		/* Neighbours Table */
 		db.execSQL("DROP TABLE IF EXISTS " + NEIGHBOURS_TABLE);
@@ -220,6 +225,16 @@ public class GPSLocationSet extends LocationSet {
 				+ " (cluster_id,location_id);");
 	}
 
+	@Override
+	public void endChanges() {
+		work.end();
+	}
+
+	@Override
+	protected void execDeferredSQL(final String sql, final Object... args) {
+		work.execSQL(sql, args);
+	}
+
 	@Override
 	protected void finalize() throws Throwable {
 		close();
@@ -230,7 +245,7 @@ public class GPSLocationSet extends LocationSet {
 	public Location getLocation(final long locationId) {
 		GPSLocation obs = locationCache.get(locationId);
 		if (obs == null) {
-			obs = new GPSLocation(db, locationId);
+			obs = new GPSLocation(work, locationId);
 			cacheLocation(obs);
 		}
 		return obs;
@@ -241,9 +256,27 @@ public class GPSLocationSet extends LocationSet {
 		return WINDOW_LENGTH;
 	}
 
+	/**
+	 * Adds every location in the database to the grid.
+	 */
+	private void loadGrid() {
+		final Cursor cursor = db.rawQuery("SELECT location_id,"
+				+ "latitude_average,longitude_average FROM " + LOCATIONS_TABLE,
+				null);
+		try {
+			while (cursor.moveToNext()) {
+				grid.add(cursor.getLong(0), cursor.getDouble(1), cursor
+						.getDouble(2));
+			}
+		} finally {
+			cursor.close();
+		}
+		Log.d(TAG, "Loaded " + grid.getNumLocations() + " locations.");
+	}
+
 	@Override
 	public Location newLocation(final double timestamp) {
-		return new GPSLocation(db, timestamp);
+		return new GPSLocation(work, timestamp);
 	}
 
 	@Override
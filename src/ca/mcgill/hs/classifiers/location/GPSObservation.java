@@ -7,6 +7,37 @@ package ca.mcgill.hs.classifiers.location;
 
 public class GPSObservation extends Observation {
 
+	/** Mean radius of the earth, in metres. */
+	public static final double EARTH_RADIUS = 6371009.0;
+
+	/** Length of one degree of latitude, in metres. */
+	public static final double METRES_PER_DEGREE = EARTH_RADIUS * Math.PI
+			/ 180.0;
+
+	/**
+	 * Returns the distance in metres between two points. The earth is treated
+	 * as flat around the points, which is accurate to well under a percent for
+	 * points that are a few kilometres apart, and much cheaper than the
+	 * great-circle distance.
+	 * 
+	 * @param lat1
+	 *            Latitude of the first point, in degrees.
+	 * @param lon1
+	 *            Longitude of the first point, in degrees.
+	 * @param lat2
+	 *            Latitude of the second point, in degrees.
+	 * @param lon2
+	 *            Longitude of the second point, in degrees.
+	 * @return The distance between the points, in metres.
+	 */
+	public static double distance(final double lat1, final double lon1,
+			final double lat2, final double lon2) {
+		final double y = lat1 - lat2;
+		final double x = (lon1 - lon2)
+				* Math.cos(Math.toRadians((lat1 + lat2) / 2.0));
+		return Math.sqrt(x * x + y * y) * METRES_PER_DEGREE;
+	}
+
 	protected final double timestamp;
 	protected final int accuracy;
 	protected final double latitude, longitude;
@@ -27,19 +58,13 @@ public class GPSObservation extends Observation {
 
 	@Override
 	public double distanceFrom(final Observation other) {
-		/*
-		 * Distance is Euclidean. Maybe better to use geodesic distances, but
-		 * we're really only concerned with locations that are really close to
-		 * each other.
-		 */
 		final GPSObservation o = (GPSObservation) other;
-		return Math.sqrt((latitude - o.latitude) * (latitude - o.latitude)
-				+ (longitude - o.longitude) * (longitude - o.longitude));
+		return distance(latitude, longitude, o.latitude, o.longitude);
 	}
 
 	@Override
 	public double getEPS() {
-		return 1E-5;
+		return GPSLocation.EPS;
 	}
 
 	@Override
@@ -13,7 +13,6 @@ import java.util.List;
 import android.database.Cursor;
 import android.database.CursorIndexOutOfBoundsException;
 import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteStatement;
 import ca.mcgill.hs.util.Log;
 
 /**
@@ -25,6 +24,28 @@ import ca.mcgill.hs.util.Log;
 public abstract class Location {
 
 	private static final String TAG = "Location";
+
+	private static final String INSERT_LOCATION_SQL = "INSERT INTO "
+			+ LocationSet.LOCATIONS_TABLE + " (timestamp) VALUES (NULL)";
+	private static final String INSERT_NEIGHBOUR_SQL = "INSERT OR IGNORE INTO "
+			+ LocationSet.NEIGHBOURS_TABLE + " VALUES (?,?)";
+	private static final String DELETE_NEIGHBOUR_SQL = "DELETE FROM "
+			+ LocationSet.NEIGHBOURS_TABLE
+			+ " WHERE location_id1=? AND location_id2=?";
+	private static final String NUM_NEIGHBOURS_SQL = "SELECT "
+			+ "SUM(num_merged) FROM " + LocationSet.NEIGHBOURS_TABLE + " JOIN "
+			+ LocationSet.LOCATIONS_TABLE
+			+ " ON location_id=location_id2 WHERE location_id1=?";
+	private static final String NUM_MERGED_SQL = "SELECT num_merged FROM "
+			+ LocationSet.LOCATIONS_TABLE + " WHERE location_id=?";
+	private static final String UPDATE_NUM_MERGED_SQL = "UPDATE "
+			+ LocationSet.LOCATIONS_TABLE
+			+ " SET num_merged=? WHERE location_id=?";
+	private static final String UPDATE_TIMESTAMP_SQL = "UPDATE "
+			+ LocationSet.LOCATIONS_TABLE + " SET timestamp=strftime("
+			+ LocationSet.SQLITE_DATE_FORMAT + ",?,'unixepoch') "
+			+ "WHERE location_id=?";
+
 	/**
 	 * Locations can be merged, this keeps track of how many locations have been
 	 * merged to create this current one
@@ -33,6 +54,12 @@ public abstract class Location {
 	private long location_id = -1;
 
 	protected SQLiteDatabase db = null;
+
+	/**
+	 * Runs the statements that change the location, so that they can be
+	 * grouped into a single transaction.
+	 */
+	protected final UnitOfWork work;
 	protected double timestamp = -1;
 	private long num_neighbours = -1;
 	private List<Long> neighbours = null;
@@ -41,8 +68,9 @@ public abstract class Location {
 	 * Creates a new location with the specified timestamp, and adds it to the
 	 * database
 	 * 
-	 * @param db
-	 *            The database in which these locations will be stored.
+	 * @param work
+	 *            Writes to the database in which these locations will be
+	 *            stored.
 	 * @param timestamp
 	 *            The timestamp, in milliseconds since the epoch (similar to
 	 *            what is returned by System.currentTimeMillis()) associated
@@ -50,8 +78,9 @@ public abstract class Location {
 	 *            useful for debugging, and may change when points are merged.
 	 * @throws SQLException
 	 */
-	public Location(final SQLiteDatabase db, final double timestamp) {
-		this.db = db;
+	public Location(final UnitOfWork work, final double timestamp) {
+		this.work = work;
+		this.db = work.getDatabase();
 		this.location_id = generateNewLocationId();
 		this.setTimestamp(timestamp);
 		this.num_merged = 1;
@@ -61,19 +90,33 @@ public abstract class Location {
 	/**
 	 * Creates a location that is linked to a record in the database.
 	 * 
-	 * @param db
-	 *            The database in which these locations will be stored.
+	 * @param work
+	 *            Writes to the database in which these locations will be
+	 *            stored.
 	 * @param id
 	 *            The id of the new location.
 	 * @throws SQLException
 	 */
-	public Location(final SQLiteDatabase db, final long id) {
+	public Location(final UnitOfWork work, final long id) {
 		this.location_id = id;
-		this.db = db;
+		this.work = work;
+		this.db = work.getDatabase();
 		this.setTimestamp(getTimestamp());
 		this.num_merged = -1;
 	}
 
+	/**
+	 * Creates a location whose state is kept in memory by the subclass, which
+	 * must then override every method that accesses the database.
+	 * 
+	 * @param id
+	 *            The id of the location.
+	 */
+	protected Location(final long id) {
+		this.location_id = id;
+		this.work = null;
+	}
+
 	/**
 	 * Adds a location as this location's neighbour.
 	 * 
@@ -88,9 +131,7 @@ public abstract class Location {
 			neighbours = getNeighbours();
 		}
 		neighbours.add(id);
-		db.execSQL("INSERT OR IGNORE INTO " + LocationSet.NEIGHBOURS_TABLE
-				+ " VALUES (?,?)", new String[] { Long.toString(getId()),
-				Long.toString(id) });
+		work.execSQL(INSERT_NEIGHBOUR_SQL, getId(), id);
 		num_neighbours = -1;
 	}
 
@@ -105,26 +146,16 @@ public abstract class Location {
 			neighbours = getNeighbours();
 		}
 		neighbours.addAll(ids);
-		final SQLiteStatement stmt = db
-				.compileStatement("INSERT OR IGNORE INTO "
-						+ LocationSet.NEIGHBOURS_TABLE + " VALUES (?,?)");
+		work.begin();
 		try {
-			db.beginTransaction();
 			for (final long id : ids) {
 				if (id == getId()) {
 					continue;
 				}
-				stmt.bindLong(1, getId());
-				stmt.bindLong(2, id);
-				stmt.execute();
-				// db.execSQL("INSERT OR IGNORE INTO "
-				// + LocationSet.NEIGHBOURS_TABLE + " VALUES (" + getId()
-				// + "," + id + ")");
+				work.execSQL(INSERT_NEIGHBOUR_SQL, getId(), id);
 			}
-			db.setTransactionSuccessful();
 		} finally {
-			stmt.close();
-			db.endTransaction();
+			work.end();
 			num_neighbours = -1;
 		}
 	}
@@ -152,10 +183,7 @@ public abstract class Location {
 	 * @return The id of the new empty location that has been created.
 	 */
 	protected long generateNewLocationId() {
-		// Insert Default Values
-		final long new_id = db.insert(LocationSet.LOCATIONS_TABLE, "timestamp",
-				null);
-		return new_id;
+		return work.executeInsert(INSERT_LOCATION_SQL);
 	}
 
 	/**
@@ -199,15 +227,7 @@ public abstract class Location {
 		if (num_merged > 0) {
 			return num_merged;
 		}
-		final Cursor cursor = db.rawQuery("SELECT num_merged FROM "
-				+ LocationSet.LOCATIONS_TABLE + " WHERE location_id=?",
-				new String[] { Long.toString(getId()) });
-		try {
-			cursor.moveToNext();
-			num_merged = cursor.getLong(0);
-		} finally {
-			cursor.close();
-		}
+		num_merged = work.simpleQueryForLong(NUM_MERGED_SQL, getId());
 		return num_merged;
 	}
 
@@ -218,17 +238,7 @@ public abstract class Location {
 		if (num_neighbours >= 0) {
 			return num_neighbours;
 		}
-		final SQLiteStatement stmt = db
-				.compileStatement("SELECT SUM(num_merged) FROM "
-						+ LocationSet.NEIGHBOURS_TABLE + " JOIN "
-						+ LocationSet.LOCATIONS_TABLE
-						+ " ON location_id=location_id2 WHERE location_id1=?");
-		try {
-			stmt.bindLong(1, getId());
-			num_neighbours = stmt.simpleQueryForLong();
-		} finally {
-			stmt.close();
-		}
+		num_neighbours = work.simpleQueryForLong(NUM_NEIGHBOURS_SQL, getId());
 		return num_neighbours;
 	}
 
@@ -278,12 +288,7 @@ public abstract class Location {
 		} catch (final IndexOutOfBoundsException e) {
 			// Ignore
 		}
-		db.execSQL("DELETE FROM " + LocationSet.NEIGHBOURS_TABLE
-				+ " WHERE location_id1=? AND location_id2=?", new String[] {
-				Long.toString(getId()), Long.toString(id) });
-		// db.execSQL("DELETE FROM " + LocationSet.NEIGHBOURS_TABLE
-		// + " WHERE location_id2=? AND location_id1=?", new String[] {
-		// Long.toString(getId()), Long.toString(id) });
+		work.execSQL(DELETE_NEIGHBOUR_SQL, getId(), id);
 		num_neighbours = -1;
 	}
 
@@ -297,31 +302,19 @@ public abstract class Location {
 		if (neighbours == null) {
 			neighbours = getNeighbours();
 		}
-		final SQLiteStatement stmt = db.compileStatement("DELETE FROM "
-				+ LocationSet.NEIGHBOURS_TABLE
-				+ " WHERE location_id1=? AND location_id2=?");
+		work.begin();
 		try {
-			db.beginTransaction();
 			for (final long id : neighboursToRemove) {
 				try {
 					neighbours.remove(id);
 				} catch (final IndexOutOfBoundsException e) {
 					// Ignore
 				}
-				stmt.bindLong(1, getId());
-				stmt.bindLong(2, id);
-				stmt.execute();
-				stmt.bindLong(1, id);
-				stmt.bindLong(2, getId());
-				stmt.execute();
-				// db.execSQL("DELETE FROM " + LocationSet.NEIGHBOURS_TABLE
-				// + " WHERE location_id1=" + getId()
-				// + " AND location_id2=" + id);
+				work.execSQL(DELETE_NEIGHBOUR_SQL, getId(), id);
+				work.execSQL(DELETE_NEIGHBOUR_SQL, id, getId());
 			}
-			db.setTransactionSuccessful();
 		} finally {
-			stmt.close();
-			db.endTransaction();
+			work.end();
 			num_neighbours = -1;
 		}
 
@@ -339,9 +332,7 @@ public abstract class Location {
 	 */
 	public void setNumMerged(final long num) {
 		this.num_merged = num;
-		db.execSQL("UPDATE " + LocationSet.LOCATIONS_TABLE
-				+ " SET num_merged=? WHERE location_id=?", new String[] {
-				Long.toString(num), Long.toString(location_id) });
+		work.execSQL(UPDATE_NUM_MERGED_SQL, num, location_id);
 	}
 
 	/**
@@ -352,9 +343,6 @@ public abstract class Location {
 	 */
 	public void setTimestamp(final double timestamp) {
 		this.timestamp = timestamp;
-		db.execSQL("UPDATE " + LocationSet.LOCATIONS_TABLE
-				+ " SET timestamp=strftime(" + LocationSet.SQLITE_DATE_FORMAT
-				+ ",?,'unixepoch') " + "WHERE location_id=?", new Object[] {
-				timestamp, getId() });
+		work.execSQL(UPDATE_TIMESTAMP_SQL, timestamp, getId());
 	}
 }
@@ -28,8 +28,25 @@ public abstract class LocationSet {
 	 */
 	protected static final float DELTA = 0.90f;
 
+	/**
+	 * Minimum time between writes of changed cluster ids to the database.
+	 */
+	private static final long CLUSTER_WRITE_INTERVAL_MS = 10000;
+
+	private static final String INSERT_CLUSTER_SQL = "INSERT OR IGNORE INTO "
+			+ CLUSTERS_TABLE + " (location_id,cluster_id) VALUES (?,?)";
+	private static final String UPDATE_CLUSTER_SQL = "UPDATE "
+			+ CLUSTERS_TABLE + " SET cluster_id=? WHERE location_id=?";
+
 	protected SQLiteDatabase db = null;
 
+	/**
+	 * The cluster of every clustered location, kept in memory.
+	 */
+	private final ClusterForest clusters = new ClusterForest();
+
+	private long lastClusterWrite = 0;
+
 	/**
 	 * Adds the point the set, and computes all its neighbors upon its addition.
 	 * 
@@ -49,8 +66,18 @@ public abstract class LocationSet {
 	 *            The id of the cluster to add the location to.
 	 */
 	public void addToCluster(final long locationId, final long clusterId) {
-		db.execSQL("REPLACE INTO " + CLUSTERS_TABLE + " VALUES (" + locationId
-				+ "," + clusterId + ", NULL);");
+		clusters.add(locationId, clusterId);
+		writeClustersIfDue();
+	}
+
+	/**
+	 * Starts a group of changes to the set, such as adding a location and
+	 * updating the clusters, which are then written to the database together.
+	 * Every call must be matched by a call to {@link #endChanges()}, in a
+	 * finally block. Groups may be nested. By default, changes are written as
+	 * they are made.
+	 */
+	public void beginChanges() {
 	}
 
 	/**
@@ -67,8 +94,27 @@ public abstract class LocationSet {
 		}
 		DebugHelper.out.println("\tChanging cluster " + oldId + " to cluster "
 				+ newId);
-		db.execSQL("UPDATE " + CLUSTERS_TABLE + " SET cluster_id=" + newId
-				+ " WHERE cluster_id=" + oldId + ";");
+		clusters.relabel(oldId, newId);
+		writeClustersIfDue();
+	}
+
+	/**
+	 * Ends a group of changes started with {@link #beginChanges()}.
+	 */
+	public void endChanges() {
+	}
+
+	/**
+	 * Runs a statement that changes the database. By default the statement
+	 * is run immediately; subclasses may defer it.
+	 * 
+	 * @param sql
+	 *            The statement, with a ? for each argument.
+	 * @param args
+	 *            The arguments.
+	 */
+	protected void execDeferredSQL(final String sql, final Object... args) {
+		db.execSQL(sql, args);
 	}
 
 	/**
@@ -77,17 +123,7 @@ public abstract class LocationSet {
 	 * @return A collection of cluster ids.
 	 */
 	public Collection<Long> getAllClusters() {
-		final Collection<Long> clusters = new LinkedList<Long>();
-		final Cursor cursor = db.rawQuery("SELECT DISTINCT cluster_id FROM "
-				+ CLUSTERS_TABLE + ";", null);
-		try {
-			while (cursor.moveToNext()) {
-				clusters.add(cursor.getLong(0));
-			}
-		} finally {
-			cursor.close();
-		}
-		return clusters;
+		return clusters.getAllClusters();
 	}
 
 	/**
@@ -117,18 +153,7 @@ public abstract class LocationSet {
 	 * @return Cluster id, or -1 if point is not in a cluster.
 	 */
 	public long getClusterId(final long locationId) {
-		long cluster_id = -1;
-		final Cursor cursor = db.rawQuery("SELECT cluster_id FROM "
-				+ CLUSTERS_TABLE + " WHERE location_id=?;", new String[] { Long
-				.toString(locationId) });
-		try {
-			if (cursor.moveToNext()) {
-				cluster_id = cursor.getLong(0);
-			}
-		} finally {
-			cursor.close();
-		}
-		return cluster_id;
+		return clusters.getClusterId(locationId);
 	}
 
 	/**
@@ -140,29 +165,7 @@ public abstract class LocationSet {
 	 * @return The cluster ids that occur in the collection of locations.
 	 */
 	public Collection<Long> getClusterIds(final Collection<Long> locations) {
-		final StringBuilder locationIds = new StringBuilder();
-		boolean first = true;
-		for (final long locationId : locations) {
-			if (first) {
-				locationIds.append(locationId);
-				first = false;
-			} else {
-				locationIds.append("," + locationId);
-			}
-		}
-
-		final Collection<Long> clusters = new LinkedList<Long>();
-		final Cursor cursor = db.rawQuery("SELECT DISTINCT cluster_id FROM "
-				+ CLUSTERS_TABLE + " WHERE location_id IN ("
-				+ locationIds.toString() + ")", null);
-		try {
-			while (cursor.moveToNext()) {
-				clusters.add(cursor.getLong(0));
-			}
-		} finally {
-			cursor.close();
-		}
-		return clusters;
+		return clusters.getClusterIds(locations);
 	}
 
 	/**
@@ -181,18 +184,7 @@ public abstract class LocationSet {
 	 * @return A collection of location ids.
 	 */
 	public Collection<Long> getLocationsForCluster(final long clusterId) {
-		final Collection<Long> ids = new LinkedList<Long>();
-		final Cursor cursor = db.rawQuery("SELECT location_id FROM "
-				+ CLUSTERS_TABLE + " WHERE cluster_id=?", new String[] { Long
-				.toString(clusterId) });
-		try {
-			while (cursor.moveToNext()) {
-				ids.add(cursor.getLong(0));
-			}
-		} finally {
-			cursor.close();
-		}
-		return ids;
+		return clusters.getLocations(clusterId);
 	}
 
 	/**
@@ -201,17 +193,7 @@ public abstract class LocationSet {
 	 * @return An available cluster id.
 	 */
 	public long getNewClusterId() {
-		long cluster_id = -1;
-		final Cursor cursor = db.rawQuery("SELECT MAX(cluster_id) FROM "
-				+ CLUSTERS_TABLE + ";", null);
-		try {
-			if (cursor.moveToNext()) {
-				cluster_id = cursor.getLong(0) + 1;
-			}
-		} finally {
-			cursor.close();
-		}
-		return cluster_id;
+		return clusters.getNewClusterId();
 	}
 
 	/**
@@ -228,6 +210,23 @@ public abstract class LocationSet {
 	 */
 	public abstract Location newLocation(double timestamp);
 
+	/**
+	 * Reads the cluster of every clustered location from the database. Must be
+	 * called by subclasses once the database is open.
+	 */
+	protected void loadClusters() {
+		final Cursor cursor = db.rawQuery("SELECT location_id,cluster_id FROM "
+				+ CLUSTERS_TABLE, null);
+		try {
+			while (cursor.moveToNext()) {
+				clusters.load(cursor.getLong(0), cursor.getLong(1));
+			}
+		} finally {
+			cursor.close();
+		}
+		lastClusterWrite = System.currentTimeMillis();
+	}
+
 	/**
 	 * Returns the percentage of the window that must be considered stationary
 	 * for a new location to be created.
@@ -239,4 +238,33 @@ public abstract class LocationSet {
 	 * window, or false if the window contains a fixed number of samples.
 	 */
 	public abstract boolean usesTimeBasedWindow();
+
+	/**
+	 * Writes the cluster ids that have changed since they were last written.
+	 * Each location is written once, however many times its cluster has been
+	 * merged in the meantime. Subclasses must call this before closing the
+	 * database.
+	 */
+	public void writeClusters() {
+		final int numNodes = clusters.getNumNodes();
+		for (int node = 0; node < numNodes; node++) {
+			final long clusterId = clusters.takeChange(node);
+			if (clusterId != ClusterForest.NO_CLUSTER) {
+				final long locationId = clusters.getLocationId(node);
+				execDeferredSQL(INSERT_CLUSTER_SQL, locationId, clusterId);
+				execDeferredSQL(UPDATE_CLUSTER_SQL, clusterId, locationId);
+			}
+		}
+		lastClusterWrite = System.currentTimeMillis();
+	}
+
+	/**
+	 * Writes the changed cluster ids if they have not been written recently.
+	 */
+	private void writeClustersIfDue() {
+		final long now = System.currentTimeMillis();
+		if (now - lastClusterWrite > CLUSTER_WRITE_INTERVAL_MS) {
+			writeClusters();
+		}
+	}
 }
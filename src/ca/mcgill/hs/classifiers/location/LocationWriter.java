@@ -0,0 +1,314 @@
+/* 
+ * Copyright (c) 2010 Jordan Frank, HumanSense Project, McGill University
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ * See LICENSE for more information 
+ */
+package ca.mcgill.hs.classifiers.location;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import ca.mcgill.hs.util.Log;
+
+/**
+ * Writes changes to a location database in the background. Statements are
+ * queued by the clustering thread, which never waits for the database, and are
+ * written in a single transaction every few seconds, or sooner if many
+ * statements are waiting. Statements are executed in the order in which they
+ * were queued.
+ * 
+ * The statements queued between {@link #begin()} and {@link #end()} form a
+ * unit, which is only written once it is complete, so that a crash never
+ * leaves part of a unit in the database. If a statement fails, the whole
+ * transaction is rolled back and its statements are put back at the head of
+ * the queue, to be written again with the next batch. After
+ * {@link #MAX_FAILURES} failed batches in a row, each unit in the batch is
+ * written in its own transaction, and the units that still fail are logged
+ * and dropped, so that one statement that can never be written does not hold
+ * up all the others.
+ * 
+ * Arguments must be immutable values (numbers, strings or null), since they
+ * are bound on the writer thread.
+ * 
+ * @author Jordan Frank <jordan.frank@cs.mcgill.ca>
+ */
+final class LocationWriter extends Thread {
+
+	/**
+	 * A statement waiting to be written.
+	 */
+	private static final class PendingStatement {
+		public final String sql;
+		public final Object[] args;
+
+		public PendingStatement(final String sql, final Object[] args) {
+			this.sql = sql;
+			this.args = args;
+		}
+	}
+
+	private static final String TAG = "LocationWriter";
+
+	/** Maximum time a statement waits before it is written. */
+	private static final long FLUSH_INTERVAL_MS = 2000;
+
+	/** Number of waiting statements that triggers an early write. */
+	private static final int BATCH_SIZE = 512;
+
+	/** Number of failed batches in a row after which units are dropped. */
+	private static final int MAX_FAILURES = 3;
+
+	/**
+	 * Compiles each statement once, and groups the statements in a batch into
+	 * one transaction. Only used while holding the write lock.
+	 */
+	private final UnitOfWork work;
+
+	private final ArrayList<PendingStatement> pending = new ArrayList<PendingStatement>();
+
+	/** The number of pending statements that belong to complete units. */
+	private int numComplete = 0;
+
+	/** The number of statements in each complete unit, in order. */
+	private final ArrayList<Integer> unitSizes = new ArrayList<Integer>();
+
+	/** The nesting depth of the unit being queued. */
+	private int depth = 0;
+
+	/** Held while writing, so that batches are written in order. */
+	private final Object writeLock = new Object();
+
+	/** The number of batches that failed in a row, guarded by writeLock. */
+	private int numFailures = 0;
+
+	private boolean closed = false;
+
+	/**
+	 * Creates and starts a writer for the specified database.
+	 * 
+	 * @param db
+	 *            The database to write to.
+	 */
+	public LocationWriter(final SQLiteDatabase db) {
+		super(TAG);
+		work = new UnitOfWork(db);
+		start();
+	}
+
+	/**
+	 * Starts a unit of statements. Every call must be matched by a call to
+	 * {@link #end()}, in a finally block. Units may be nested.
+	 */
+	public synchronized void begin() {
+		depth += 1;
+	}
+
+	/**
+	 * Writes all waiting statements and stops the writer thread. Statements
+	 * queued after this are written immediately.
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			notify();
+		}
+		try {
+			join();
+		} catch (final InterruptedException e) {
+			Log.e(TAG, e);
+		}
+		synchronized (this) {
+			completeUnit();
+		}
+		try {
+			flush();
+		} finally {
+			synchronized (writeLock) {
+				work.close();
+			}
+		}
+	}
+
+	/**
+	 * Ends a unit of statements, which can then be written.
+	 */
+	public void end() {
+		final boolean writeNow;
+		synchronized (this) {
+			depth -= 1;
+			if (depth > 0) {
+				return;
+			}
+			completeUnit();
+			if (numComplete >= BATCH_SIZE) {
+				notify();
+			}
+			writeNow = closed;
+		}
+		if (writeNow) {
+			flush();
+		}
+	}
+
+	/**
+	 * Marks the statements queued since the last complete unit as a complete
+	 * unit. Only called while holding the lock on this.
+	 */
+	private void completeUnit() {
+		if (pending.size() > numComplete) {
+			unitSizes.add(pending.size() - numComplete);
+			numComplete = pending.size();
+		}
+	}
+
+	/**
+	 * Queues a statement to be written.
+	 * 
+	 * @param sql
+	 *            The statement, with a ? for each argument.
+	 * @param args
+	 *            The arguments.
+	 */
+	public void execSQL(final String sql, final Object... args) {
+		final boolean writeNow;
+		synchronized (this) {
+			pending.add(new PendingStatement(sql, args));
+			if (depth > 0) {
+				return;
+			}
+			completeUnit();
+			if (numComplete >= BATCH_SIZE) {
+				notify();
+			}
+			writeNow = closed;
+		}
+		if (writeNow) {
+			flush();
+		}
+	}
+
+	/**
+	 * Writes all waiting statements that belong to complete units in a single
+	 * transaction. Statements can still be queued while the transaction is
+	 * being written.
+	 * 
+	 * @throws SQLException
+	 *             If a statement fails. Nothing is written, and the statements
+	 *             are queued again, unless the batch has already failed
+	 *             {@link #MAX_FAILURES} times, in which case the units are
+	 *             written one by one and those that fail are dropped.
+	 */
+	public void flush() {
+		synchronized (writeLock) {
+			final ArrayList<PendingStatement> statements;
+			final ArrayList<Integer> sizes;
+			synchronized (this) {
+				if (numComplete == 0) {
+					return;
+				}
+				final List<PendingStatement> complete = pending.subList(0,
+						numComplete);
+				statements = new ArrayList<PendingStatement>(complete);
+				complete.clear();
+				numComplete = 0;
+				sizes = new ArrayList<Integer>(unitSizes);
+				unitSizes.clear();
+			}
+
+			if (numFailures >= MAX_FAILURES) {
+				numFailures = 0;
+				writeUnits(statements, sizes);
+				return;
+			}
+
+			boolean written = false;
+			work.begin();
+			try {
+				for (final PendingStatement statement : statements) {
+					work.execSQL(statement.sql, statement.args);
+				}
+				written = true;
+			} finally {
+				if (written) {
+					work.end();
+					numFailures = 0;
+				} else {
+					work.abort();
+					numFailures += 1;
+					synchronized (this) {
+						pending.addAll(0, statements);
+						numComplete += statements.size();
+						unitSizes.addAll(0, sizes);
+					}
+				}
+			}
+			Log.d(TAG, "Wrote " + statements.size() + " statements.");
+		}
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			synchronized (this) {
+				if (closed) {
+					break;
+				}
+				try {
+					wait(FLUSH_INTERVAL_MS);
+				} catch (final InterruptedException e) {
+					break;
+				}
+			}
+			try {
+				flush();
+			} catch (final SQLException e) {
+				// The batch is tried again after the next interval.
+				Log.e(TAG, e);
+			}
+		}
+	}
+
+	/**
+	 * Writes each unit of a batch in its own transaction, and drops the units
+	 * that fail. Only called while holding the write lock.
+	 * 
+	 * @param statements
+	 *            The statements in the batch.
+	 * @param sizes
+	 *            The number of statements in each unit of the batch.
+	 */
+	private void writeUnits(final List<PendingStatement> statements,
+			final List<Integer> sizes) {
+		int start = 0;
+		int numDropped = 0;
+		for (final int size : sizes) {
+			final List<PendingStatement> unit = statements.subList(start,
+					start + size);
+			start += size;
+			boolean written = false;
+			work.begin();
+			try {
+				for (final PendingStatement statement : unit) {
+					work.execSQL(statement.sql, statement.args);
+				}
+				written = true;
+			} catch (final SQLException e) {
+				Log.e(TAG, "Dropping a unit of " + size
+						+ " statements that cannot be written, starting with "
+						+ unit.get(0).sql);
+				Log.e(TAG, e);
+				numDropped += 1;
+			} finally {
+				if (written) {
+					work.end();
+				} else {
+					work.abort();
+				}
+			}
+		}
+		Log.d(TAG, "Wrote " + (sizes.size() - numDropped) + " of "
+				+ sizes.size() + " units one by one.");
+	}
+}
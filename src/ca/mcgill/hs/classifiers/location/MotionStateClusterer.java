@@ -11,10 +11,6 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import ca.mcgill.hs.HSAndroid;
 import ca.mcgill.hs.R;
@@ -28,40 +24,48 @@ import ca.mcgill.hs.util.Log;
  * 
  */
 public class MotionStateClusterer {
-	/**
-	 * Contains the timestamp for the observation as well as the index in the
-	 * distance matrix for that observation.
-	 * 
-	 * @author Jordan Frank <jordan.frank@cs.mcgill.ca>
-	 */
-	private static final class Tuple {
-		public final double timestamp;
-		public final int index;
-
-		public Tuple(final double timestamp, final int index) {
-			this.timestamp = timestamp;
-			this.index = index;
-		}
-	}
-
 	private static final int RESET_MOVEMENT_STATE_TIME_IN_SECONDS = 10;
 
 	private BufferedWriter outputLog = null;
 
-	private static final String RESET_MOVEMENT_STATE_TIMER_NAME = "RMSTimer";
-
 	private static final String TAG = "MotionStateClusterer";
 
+	/**
+	 * Returns the file to which the clusters are logged by default, a new file
+	 * in the recent directory named after the current time.
+	 */
+	private static File getDefaultLogFile() {
+		final SimpleDateFormat dfm = new SimpleDateFormat("yy-MM-dd-HHmmss");
+		final File recent_dir = new File(HSAndroid.getStorageDirectory(),
+				HSAndroid.getAppString(R.string.recent_file_path));
+		return new File(recent_dir, dfm.format(new Date(System
+				.currentTimeMillis()))
+				+ "-clusters.log");
+	}
+
 	private final SignificantLocationClusterer slClusterer;
 	private final LocationSet locations;
-	private Timer resetMovementTimer;
 	private long currentCluster = -1;
 
-	/**
-	 * Maintain a queue of the Tuples for the observations that are currently
-	 * being clustered.
+	/*
+	 * The observations that are currently being clustered are kept in a ring
+	 * buffer. The oldest is in slot head, and the rest follow it in order.
+	 */
+	private final double[] timestamps;
+	private final Observation[] observations;
+	private int head = 0;
+	private int pool_size = 0;
+
+	/*
+	 * Neighbour relation between the slots, as a bit set per slot, and the
+	 * number of neighbours of each slot. These are updated as observations
+	 * enter and leave the window, rather than recomputed for each clustering.
 	 */
-	private final LinkedList<Tuple> pool = new LinkedList<Tuple>();
+	private final long[][] neighbours;
+	private final int[] numNeighbours;
+
+	/* Scratch space for clustering: the slots with enough neighbours. */
+	private final long[] coreSlots;
 
 	/**
 	 * Whether to use a window covering a fixed time period or a fixed number of
@@ -82,14 +86,6 @@ public class MotionStateClusterer {
 	 */
 	private final float DELTA;
 
-	/**
-	 * Maintain a lookup table between timestamps and observations, which are
-	 * sets of measurements taken at an instance in time.
-	 */
-	private final HashMap<Double, Observation> observations;
-
-	private final double[][] distMatrix;
-
 	/** True if the previous window was labelled as stationary. */
 	private boolean previouslyMoving = true;
 
@@ -101,6 +97,17 @@ public class MotionStateClusterer {
 
 	private int timerDelay = 1000 * RESET_MOVEMENT_STATE_TIME_IN_SECONDS;
 
+	/**
+	 * Timestamp, in seconds, at which the motion state is reset so that the
+	 * current location is updated. The timer runs on the observations' clock
+	 * rather than the wall clock, so that recorded observations can be
+	 * replayed faster than real time.
+	 */
+	private double resetMovementTime = Double.POSITIVE_INFINITY;
+
+	/** Total time spent clustering significant locations. */
+	private long significantLocationNanos = 0;
+
 	/**
 	 * Creates a new motion state clusterer for a given set of locations.
 	 * 
@@ -108,36 +115,42 @@ public class MotionStateClusterer {
 	 *            The {@link LocationSet} for storing the locations.
 	 */
 	public MotionStateClusterer(final LocationSet locations) {
+		this(locations, getDefaultLogFile());
+	}
+
+	/**
+	 * Creates a new motion state clusterer for a given set of locations, which
+	 * logs the current cluster to the given file.
+	 * 
+	 * @param locations
+	 *            The {@link LocationSet} for storing the locations.
+	 * @param logFile
+	 *            The file to which the cluster for each window is written, or
+	 *            null for no log.
+	 */
+	MotionStateClusterer(final LocationSet locations, final File logFile) {
 		TIME_BASED_WINDOW = locations.usesTimeBasedWindow();
 		WINDOW_LENGTH = locations.getWindowLength();
 		DELTA = locations.pctOfWindowRequiredToBeStationary();
 
-		distMatrix = new double[WINDOW_LENGTH][WINDOW_LENGTH];
-		observations = new HashMap<Double, Observation>(
-				(int) (WINDOW_LENGTH / 0.75f), 0.75f);
+		timestamps = new double[WINDOW_LENGTH];
+		observations = new Observation[WINDOW_LENGTH];
+		final int words = (WINDOW_LENGTH + 63) / 64;
+		neighbours = new long[WINDOW_LENGTH][words];
+		numNeighbours = new int[WINDOW_LENGTH];
+		coreSlots = new long[words];
 
-		for (int i = 0; i < WINDOW_LENGTH; i++) {
-			for (int j = 0; j < WINDOW_LENGTH; j++) {
-				distMatrix[i][j] = -1;
-			}
-		}
 		slClusterer = new SignificantLocationClusterer(locations);
 		this.locations = locations;
-		resetMovementTimer = new Timer(RESET_MOVEMENT_STATE_TIMER_NAME);
 
-		final Date d = new Date(System.currentTimeMillis());
-		final SimpleDateFormat dfm = new SimpleDateFormat("yy-MM-dd-HHmmss");
-
-		final File recent_dir = new File(HSAndroid.getStorageDirectory(),
-				HSAndroid.getAppString(R.string.recent_file_path));
-		final File f = new File(recent_dir, dfm.format(d) + "-clusters.log");
-		try {
-			outputLog = new BufferedWriter(new FileWriter(f));
-		} catch (final IOException e) {
-			Log.e(TAG, e);
-			outputLog = null;
+		if (logFile != null) {
+			try {
+				outputLog = new BufferedWriter(new FileWriter(logFile));
+			} catch (final IOException e) {
+				Log.e(TAG, e);
+				outputLog = null;
+			}
 		}
-
 	}
 
 	/**
@@ -149,17 +162,23 @@ public class MotionStateClusterer {
 
 		// Delete observation outside MAX_TIME window.
 		deleteOldObservations(timestamp);
-		final int index = getAvailableIndex();
 
-		// Update distance matrix
-		for (final Tuple tuple : pool) {
-			distMatrix[index][tuple.index] = distMatrix[tuple.index][index] = observation
-					.distanceFrom(observations.get(tuple.timestamp));
+		// Add the observation after the newest, and find its neighbours.
+		final int slot = (head + pool_size) % WINDOW_LENGTH;
+		final double eps = observation.getEPS();
+		for (int i = 0; i < pool_size; i++) {
+			final int other = (head + i) % WINDOW_LENGTH;
+			final double dist = observation.distanceFrom(observations[other]);
+			if (dist < eps && dist > 0.0) {
+				neighbours[slot][other >> 6] |= 1L << other;
+				neighbours[other][slot >> 6] |= 1L << slot;
+				numNeighbours[slot] += 1;
+				numNeighbours[other] += 1;
+			}
 		}
-		observations.put(timestamp, observation);
-		pool.addLast(new Tuple(timestamp, index));
-
-		final int pool_size = pool.size();
+		timestamps[slot] = timestamp;
+		observations[slot] = observation;
+		pool_size += 1;
 
 		/*
 		 * If it's a time-based window, then don't cluster if there's only one
@@ -171,7 +190,13 @@ public class MotionStateClusterer {
 			return;
 		}
 
-		cluster(observation.getEPS());
+		// Write the changes for this observation together.
+		locations.beginChanges();
+		try {
+			cluster(timestamp);
+		} finally {
+			locations.endChanges();
+		}
 	}
 
 	/**
@@ -203,53 +228,39 @@ public class MotionStateClusterer {
 	}
 
 	/**
-	 * Perform the clustering on the locations currently in the pool.
+	 * Perform the clustering on the locations currently in the pool. A point
+	 * is in a cluster if enough of the other points are its neighbours, or if
+	 * it is the neighbour of such a point.
 	 * 
-	 * @param eps
-	 *            Epsilon from the clustering paper; the maximum distance
-	 *            between two points for them to be considered neighbours.
+	 * @param timestamp
+	 *            The timestamp of the newest observation.
 	 */
-	private void cluster(final double eps) {
-		final int pool_size = pool.size();
-		final boolean[] clusterStatus = new boolean[WINDOW_LENGTH];
-		for (int i = 0; i < WINDOW_LENGTH; i++) {
-			// Set initial cluster status to false
-			clusterStatus[i] = false;
+	private void cluster(final double timestamp) {
+		if (timestamp >= resetMovementTime) {
+			previouslyMoving = true;
+			resetMovementTime = Double.POSITIVE_INFINITY;
 		}
-		for (final Tuple tuple : pool) {
-			final int i = tuple.index;
-
-			// Not the most efficient way to do things, but not too bad
-			// First we check how many neighbours are within epsilon
-			int neighbours = 0;
-			for (final Tuple tuple2 : pool) {
-				final int j = tuple2.index;
-				if (i != j && distMatrix[i][j] < eps && distMatrix[i][j] > 0.0) {
-					neighbours += 1;
-				}
-			}
 
-			// Then, if enough neighbours exist, set ourself and our neighbours
-			// to be in a cluster
-			if (neighbours >= (int) (DELTA * (double) pool_size)) {
-				clusterStatus[i] = true;
-				for (int j = 0; j < WINDOW_LENGTH; j++) {
-					if (distMatrix[i][j] < eps && distMatrix[i][j] > 0.0) {
-						clusterStatus[j] = true;
-					}
-				}
+		final int minNeighbours = (int) (DELTA * (double) pool_size);
+		for (int i = 0; i < coreSlots.length; i++) {
+			coreSlots[i] = 0;
+		}
+		boolean haveCores = false;
+		for (int i = 0; i < pool_size; i++) {
+			final int slot = (head + i) % WINDOW_LENGTH;
+			if (numNeighbours[slot] >= minNeighbours) {
+				coreSlots[slot >> 6] |= 1L << slot;
+				haveCores = true;
 			}
 		}
+
 		// And finally, update the statuses
 		Location location = null;
 		int clusteredPoints = 0;
 		int status = 0;
-		double timestamp;
-		int index;
-		for (final Tuple tuple : pool) {
-			timestamp = tuple.timestamp;
-			index = tuple.index;
-			if (clusterStatus[index]) {
+		for (int i = 0; i < pool_size; i++) {
+			final int slot = (head + i) % WINDOW_LENGTH;
+			if (haveCores && isClustered(slot)) {
 				status -= 1; // Vote for stationarity
 				clusteredPoints += 1;
 				/*
@@ -258,9 +269,9 @@ public class MotionStateClusterer {
 				 */
 				if (previouslyMoving) {
 					if (location == null) {
-						location = locations.newLocation(timestamp);
+						location = locations.newLocation(timestamps[slot]);
 					}
-					location.addObservation(observations.get(timestamp));
+					location.addObservation(observations[slot]);
 				}
 			} else {
 				status += 1; // Vote for motion.
@@ -270,7 +281,9 @@ public class MotionStateClusterer {
 				+ " points.");
 
 		if (location != null) {
+			final long start = System.nanoTime();
 			currentCluster = slClusterer.addNewLocation(location);
+			significantLocationNanos += System.nanoTime() - start;
 			currentlyMoving = false;
 			Log.d(TAG,
 					"WifiClusterer thinks we're stationary and in location: "
@@ -283,13 +296,7 @@ public class MotionStateClusterer {
 				 * every RESET_UPDATE_STATUS_TIME_IN_SECONDS seconds, and then
 				 * after an update we double the time before the next update.
 				 */
-				resetMovementTimer.schedule(new TimerTask() {
-					@Override
-					public void run() {
-						previouslyMoving = true;
-					}
-
-				}, timerDelay);
+				resetMovementTime = timestamp + timerDelay / 1000.0;
 				timerDelay *= 2;
 				previouslyMoving = false;
 			}
@@ -302,9 +309,7 @@ public class MotionStateClusterer {
 			timerDelay = RESET_MOVEMENT_STATE_TIME_IN_SECONDS * 1000;
 			previouslyMoving = true;
 			currentlyMoving = true;
-			resetMovementTimer.cancel();
-			resetMovementTimer.purge();
-			resetMovementTimer = new Timer(RESET_MOVEMENT_STATE_TIMER_NAME);
+			resetMovementTime = Double.POSITIVE_INFINITY;
 		} else if (clusteredPoints == 0) {
 			/* User was moving previously, and is still moving */
 			currentCluster = -1;
@@ -312,9 +317,8 @@ public class MotionStateClusterer {
 		}
 		try {
 			if (outputLog != null) {
-				outputLog
-						.write(dfm.format(new Date(System.currentTimeMillis()))
-								+ "," + currentCluster + "\n");
+				outputLog.write(dfm.format(new Date((long) (timestamp * 1000)))
+						+ "," + currentCluster + "\n");
 			}
 		} catch (final IOException e) {
 			Log.e(TAG, e);
@@ -322,50 +326,28 @@ public class MotionStateClusterer {
 	}
 
 	/**
-	 * Deletes the oldest observation from the pool and returns the index for
-	 * that point in the distance matrix, so that it can be reused.
+	 * Deletes the observations that have fallen out of the window. For a
+	 * time-based window, these are the observations more than WINDOW_LENGTH
+	 * seconds older than the new one, and for either kind of window, the
+	 * oldest observation if the pool is full.
 	 */
 	private void deleteOldObservations(final double timestamp) {
 		if (TIME_BASED_WINDOW) {
 			// Delete anything older than WINDOW_LENGTH seconds.
-			while (pool.size() > 0
-					&& (timestamp - pool.getFirst().timestamp > WINDOW_LENGTH || pool
-							.size() >= WINDOW_LENGTH)) {
-				final Tuple first = pool.getFirst();
-				observations.remove(first.timestamp);
-				final int idx = first.index;
-				for (int i = 0; i < WINDOW_LENGTH; i++) {
-					distMatrix[i][idx] = -1;
-					distMatrix[idx][i] = -1;
-				}
-				pool.removeFirst();
+			while (pool_size > 0
+					&& (timestamp - timestamps[head] > WINDOW_LENGTH || pool_size >= WINDOW_LENGTH)) {
+				removeOldest();
 			}
 		}
 
 		else {
 			// Only delete the one oldest observation.
-			if (!pool.isEmpty() && pool.size() >= WINDOW_LENGTH) {
-				final Tuple first = pool.getFirst();
-				observations.remove(first.timestamp);
-				final int idx = first.index;
-				for (int i = 0; i < WINDOW_LENGTH; i++) {
-					distMatrix[i][idx] = -1;
-					distMatrix[idx][i] = -1;
-				}
-				pool.removeFirst();
+			if (pool_size >= WINDOW_LENGTH) {
+				removeOldest();
 			}
 		}
 	}
 
-	/** Returns the first available index in the distance matrix. */
-	public int getAvailableIndex() {
-		int idx = 0;
-		while (distMatrix[0][idx] >= 0) {
-			idx++;
-		}
-		return idx;
-	}
-
 	/** Returns some clustering statistics */
 	public String getClusterStatus() {
 		return slClusterer.toString();
@@ -388,6 +370,31 @@ public class MotionStateClusterer {
 		return currentCluster;
 	}
 
+	/**
+	 * @return The total time spent clustering significant locations, in
+	 *         nanoseconds.
+	 */
+	long getSignificantLocationNanos() {
+		return significantLocationNanos;
+	}
+
+	/**
+	 * Returns whether a point is in a cluster, given the points that have
+	 * enough neighbours.
+	 */
+	private boolean isClustered(final int slot) {
+		if ((coreSlots[slot >> 6] & (1L << slot)) != 0) {
+			return true;
+		}
+		final long[] row = neighbours[slot];
+		for (int i = 0; i < row.length; i++) {
+			if ((row[i] & coreSlots[i]) != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * @return True if the most recent observation was deemed moving, or false
 	 *         if it was deemed stationary.
@@ -395,4 +402,26 @@ public class MotionStateClusterer {
 	public boolean lastObservationWasMoving() {
 		return currentlyMoving;
 	}
+
+	/**
+	 * Removes the oldest observation from the pool, along with its neighbour
+	 * relations, so that its slot can be reused.
+	 */
+	private void removeOldest() {
+		final long[] row = neighbours[head];
+		for (int i = 0; i < row.length; i++) {
+			long bits = row[i];
+			while (bits != 0) {
+				final int other = (i << 6) + Long.numberOfTrailingZeros(bits);
+				neighbours[other][head >> 6] &= ~(1L << head);
+				numNeighbours[other] -= 1;
+				bits &= bits - 1;
+			}
+			row[i] = 0;
+		}
+		numNeighbours[head] = 0;
+		observations[head] = null;
+		head = (head + 1) % WINDOW_LENGTH;
+		pool_size -= 1;
+	}
 }
@@ -88,12 +88,17 @@ public class SignificantLocationClusterer {
 	 *            The new location to be added.
 	 */
 	public long addNewLocation(Location location) {
-		// Add the point to the pool, compute neighbours.
-		final long new_id = pool.add(location);
-		if (new_id != location.getId()) {
-			location = pool.getLocation(new_id);
+		pool.beginChanges();
+		try {
+			// Add the point to the pool, compute neighbours.
+			final long new_id = pool.add(location);
+			if (new_id != location.getId()) {
+				location = pool.getLocation(new_id);
+			}
+			return assignToCluster(location);
+		} finally {
+			pool.endChanges();
 		}
-		return assignToCluster(location);
 	}
 
 	/**
@@ -0,0 +1,189 @@
+/* 
+ * Copyright (c) 2010 Jordan Frank, HumanSense Project, McGill University
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ * See LICENSE for more information 
+ */
+package ca.mcgill.hs.classifiers.location;
+
+import java.util.Collection;
+
+import ca.mcgill.hs.util.LongIntHashMap;
+
+/**
+ * A uniform grid over the earth's surface, used to find the GPS locations that
+ * lie within some distance of a point. The grid is divided into rows of equal
+ * height, and each row into columns whose width in degrees grows with the
+ * latitude of the row, so that every cell is at least the cell size across, in
+ * metres. The locations in each cell are kept with their coordinates, so that
+ * a search needs no database queries.
+ * 
+ * Locations on either side of the 180th meridian are never found as each
+ * other's neighbours. The grid is not thread-safe.
+ * 
+ * @author Jordan Frank <jordan.frank@cs.mcgill.ca>
+ */
+final class SpatialGrid {
+
+	/**
+	 * The locations in one cell of the grid.
+	 */
+	private static final class Cell {
+		public long[] ids = new long[INITIAL_CAPACITY];
+		public double[] latitudes = new double[INITIAL_CAPACITY];
+		public double[] longitudes = new double[INITIAL_CAPACITY];
+		public int size = 0;
+
+		public void add(final long id, final double latitude,
+				final double longitude) {
+			if (size == ids.length) {
+				final int capacity = size * 2;
+				final long[] grownIds = new long[capacity];
+				System.arraycopy(ids, 0, grownIds, 0, size);
+				ids = grownIds;
+				latitudes = grow(latitudes, size, capacity);
+				longitudes = grow(longitudes, size, capacity);
+			}
+			ids[size] = id;
+			latitudes[size] = latitude;
+			longitudes[size] = longitude;
+			size += 1;
+		}
+
+		private static double[] grow(final double[] array, final int length,
+				final int capacity) {
+			final double[] grown = new double[capacity];
+			System.arraycopy(array, 0, grown, 0, length);
+			return grown;
+		}
+	}
+
+	private static final int INITIAL_CAPACITY = 4;
+
+	private static final int NO_CELL = -1;
+
+	/**
+	 * Returns the key of the cell in a row and column.
+	 */
+	private static long key(final int row, final int column) {
+		return ((long) row << 32) | (column & 0xffffffffL);
+	}
+
+	/* Height of a row, in degrees. */
+	private final double rowHeight;
+
+	/* The index in cells of the cell with each key. */
+	private final LongIntHashMap cellOfKey = new LongIntHashMap(256);
+	private Cell[] cells = new Cell[256];
+	private int numCells = 0;
+
+	private int numLocations = 0;
+
+	/**
+	 * Creates an empty grid.
+	 * 
+	 * @param cellSize
+	 *            The smallest width and height of a cell, in metres. Searches
+	 *            are fastest for distances close to this size.
+	 */
+	public SpatialGrid(final double cellSize) {
+		rowHeight = cellSize / GPSObservation.METRES_PER_DEGREE;
+	}
+
+	/**
+	 * Adds a location to the grid.
+	 * 
+	 * @param id
+	 *            The id of the location.
+	 * @param latitude
+	 *            The latitude of the location, in degrees.
+	 * @param longitude
+	 *            The longitude of the location, in degrees.
+	 */
+	public void add(final long id, final double latitude,
+			final double longitude) {
+		final int row = getRow(latitude);
+		final long key = key(row, getColumn(row, longitude));
+		int cell = cellOfKey.get(key, NO_CELL);
+		if (cell == NO_CELL) {
+			if (numCells == cells.length) {
+				final Cell[] grown = new Cell[cells.length * 2];
+				System.arraycopy(cells, 0, grown, 0, numCells);
+				cells = grown;
+			}
+			cell = numCells++;
+			cells[cell] = new Cell();
+			cellOfKey.put(key, cell);
+		}
+		cells[cell].add(id, latitude, longitude);
+		numLocations += 1;
+	}
+
+	/**
+	 * Finds the locations that are strictly closer than a given distance to a
+	 * point.
+	 * 
+	 * @param latitude
+	 *            The latitude of the point, in degrees.
+	 * @param longitude
+	 *            The longitude of the point, in degrees.
+	 * @param distance
+	 *            The distance, in metres.
+	 * @param ids
+	 *            The ids of the locations found are added to this collection.
+	 * @return The number of locations found.
+	 */
+	public int findNear(final double latitude, final double longitude,
+			final double distance, final Collection<Long> ids) {
+		final double latitudeSpan = distance / GPSObservation.METRES_PER_DEGREE;
+		final double farthestLatitude = Math.min(90.0, Math.abs(latitude)
+				+ latitudeSpan);
+		final double longitudeSpan = Math.min(180.0, latitudeSpan
+				/ Math.cos(Math.toRadians(farthestLatitude)));
+
+		int found = 0;
+		final int lastRow = getRow(latitude + latitudeSpan);
+		for (int row = getRow(latitude - latitudeSpan); row <= lastRow; row++) {
+			final int firstColumn = getColumn(row, longitude - longitudeSpan);
+			final int lastColumn = getColumn(row, longitude + longitudeSpan);
+			for (int column = firstColumn; column <= lastColumn; column++) {
+				final int cell = cellOfKey.get(key(row, column), NO_CELL);
+				if (cell == NO_CELL) {
+					continue;
+				}
+				final Cell c = cells[cell];
+				for (int i = 0; i < c.size; i++) {
+					if (GPSObservation.distance(latitude, longitude,
+							c.latitudes[i], c.longitudes[i]) < distance) {
+						ids.add(c.ids[i]);
+						found += 1;
+					}
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Returns the column holding a longitude in a row. Columns are as wide,
+	 * in metres, as rows are high at the edge of the row nearest a pole.
+	 */
+	private int getColumn(final int row, final double longitude) {
+		final double edge = Math.min(90.0, Math.max(Math.abs(row * rowHeight),
+				Math.abs((row + 1) * rowHeight)));
+		final double scale = Math.cos(Math.toRadians(edge));
+		return (int) Math.floor(longitude * scale / rowHeight);
+	}
+
+	/**
+	 * Returns the number of locations in the grid.
+	 * 
+	 * @return The number of locations.
+	 */
+	public int getNumLocations() {
+		return numLocations;
+	}
+
+	private int getRow(final double latitude) {
+		return (int) Math.floor(latitude / rowHeight);
+	}
+}
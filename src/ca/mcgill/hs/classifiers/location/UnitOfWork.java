@@ -0,0 +1,180 @@
+/* 
+ * Copyright (c) 2010 Jordan Frank, HumanSense Project, McGill University
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ * See LICENSE for more information 
+ */
+package ca.mcgill.hs.classifiers.location;
+
+import java.util.HashMap;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Runs the statements that change a location database, grouping the changes
+ * made between {@link #begin()} and {@link #end()} into a single transaction.
+ * Units can be nested; only the outermost one starts and commits the
+ * transaction. Statements run outside of a unit are committed immediately.
+ * 
+ * Each distinct statement is compiled once and kept until the unit of work is
+ * closed. A unit is always committed, even if it ends because of an exception,
+ * since the in-memory state of the locations has already been changed, unless
+ * it is ended with {@link #abort()} instead.
+ * 
+ * This class is not thread-safe.
+ * 
+ * @author Jordan Frank <jordan.frank@cs.mcgill.ca>
+ */
+final class UnitOfWork {
+
+	/**
+	 * Binds arguments to a statement, by type.
+	 * 
+	 * @param stmt
+	 *            The statement.
+	 * @param args
+	 *            The arguments, which may be numbers, strings or null.
+	 */
+	public static void bind(final SQLiteStatement stmt, final Object[] args) {
+		stmt.clearBindings();
+		for (int i = 0; i < args.length; i++) {
+			final Object arg = args[i];
+			if (arg == null) {
+				stmt.bindNull(i + 1);
+			} else if (arg instanceof Double || arg instanceof Float) {
+				stmt.bindDouble(i + 1, ((Number) arg).doubleValue());
+			} else if (arg instanceof Number) {
+				stmt.bindLong(i + 1, ((Number) arg).longValue());
+			} else {
+				stmt.bindString(i + 1, arg.toString());
+			}
+		}
+	}
+
+	private final SQLiteDatabase db;
+
+	private final HashMap<String, SQLiteStatement> statements = new HashMap<String, SQLiteStatement>();
+
+	private int depth = 0;
+
+	/* Whether a unit in the current transaction has been aborted. */
+	private boolean aborted = false;
+
+	/**
+	 * Creates a unit of work for the specified database.
+	 * 
+	 * @param db
+	 *            The database to write to.
+	 */
+	public UnitOfWork(final SQLiteDatabase db) {
+		this.db = db;
+	}
+
+	/**
+	 * Ends a unit of work without committing it. The whole transaction is
+	 * rolled back when the outermost unit ends, including any other units
+	 * nested in it.
+	 */
+	public void abort() {
+		aborted = true;
+		end();
+	}
+
+	/**
+	 * Starts a unit of work. Every call must be matched by a call to
+	 * {@link #end()}, in a finally block.
+	 */
+	public void begin() {
+		if (depth++ == 0) {
+			db.beginTransaction();
+		}
+	}
+
+	/**
+	 * Closes the compiled statements. Statements run afterwards are compiled
+	 * again.
+	 */
+	public void close() {
+		for (final SQLiteStatement stmt : statements.values()) {
+			stmt.close();
+		}
+		statements.clear();
+	}
+
+	/**
+	 * Ends a unit of work, committing the transaction if this is the outermost
+	 * unit and no unit in it was aborted.
+	 */
+	public void end() {
+		if (--depth == 0) {
+			try {
+				if (!aborted) {
+					db.setTransactionSuccessful();
+				}
+			} finally {
+				aborted = false;
+				db.endTransaction();
+			}
+		}
+	}
+
+	/**
+	 * Runs a statement that returns no rows.
+	 * 
+	 * @param sql
+	 *            The statement, with a ? for each argument.
+	 * @param args
+	 *            The arguments.
+	 */
+	public void execSQL(final String sql, final Object... args) {
+		final SQLiteStatement stmt = getStatement(sql);
+		bind(stmt, args);
+		stmt.execute();
+	}
+
+	/**
+	 * Runs an INSERT statement.
+	 * 
+	 * @param sql
+	 *            The statement, with a ? for each argument.
+	 * @param args
+	 *            The arguments.
+	 * @return The row id of the inserted row.
+	 */
+	public long executeInsert(final String sql, final Object... args) {
+		final SQLiteStatement stmt = getStatement(sql);
+		bind(stmt, args);
+		return stmt.executeInsert();
+	}
+
+	/**
+	 * @return The database that this unit of work writes to.
+	 */
+	public SQLiteDatabase getDatabase() {
+		return db;
+	}
+
+	private SQLiteStatement getStatement(final String sql) {
+		SQLiteStatement stmt = statements.get(sql);
+		if (stmt == null) {
+			stmt = db.compileStatement(sql);
+			statements.put(sql, stmt);
+		}
+		return stmt;
+	}
+
+	/**
+	 * Runs a query that returns a single number.
+	 * 
+	 * @param sql
+	 *            The query, with a ? for each argument.
+	 * @param args
+	 *            The arguments.
+	 * @return The number in the first column of the first row.
+	 */
+	public long simpleQueryForLong(final String sql, final Object... args) {
+		final SQLiteStatement stmt = getStatement(sql);
+		bind(stmt, args);
+		return stmt.simpleQueryForLong();
+	}
+}
@@ -0,0 +1,275 @@
+/* 
+ * Copyright (c) 2010 Jordan Frank, HumanSense Project, McGill University
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ * See LICENSE for more information 
+ */
+package ca.mcgill.hs.classifiers.location;
+
+import java.util.Collection;
+
+/**
+ * An inverted index from WAP ids to the wifi locations from which each WAP has
+ * been observed, used to find the locations that share enough WAPs with a new
+ * location to be its neighbours. Each location is given a slot in the index,
+ * and the posting list for a WAP holds the slots of the locations that observed
+ * it.
+ * 
+ * The index is kept up to date by {@link WifiLocation} and
+ * {@link WifiLocationSet} as WAPs are observed and locations are merged. It is
+ * not thread-safe, and must only be used from the clustering thread.
+ * 
+ * @author Jordan Frank <jordan.frank@cs.mcgill.ca>
+ */
+final class WapIndex {
+
+	/**
+	 * The slots of the locations from which a WAP has been observed.
+	 */
+	private static final class Postings {
+		public final long wapId;
+		public int[] slots = new int[INITIAL_CAPACITY];
+		public int size = 0;
+
+		public Postings(final long wapId) {
+			this.wapId = wapId;
+		}
+
+		public void add(final int slot) {
+			if (size == slots.length) {
+				slots = grow(slots, size);
+			}
+			slots[size++] = slot;
+		}
+
+		public void remove(final int slot) {
+			for (int i = 0; i < size; i++) {
+				if (slots[i] == slot) {
+					slots[i] = slots[--size];
+					return;
+				}
+			}
+		}
+	}
+
+	private static final int INITIAL_CAPACITY = 8;
+
+	private static int[] grow(final int[] array, final int length) {
+		final int[] grown = new int[Math.max(INITIAL_CAPACITY,
+				array.length * 2)];
+		System.arraycopy(array, 0, grown, 0, length);
+		return grown;
+	}
+
+	/*
+	 * Open-addressed hash table of posting lists, keyed by WAP id. Posting
+	 * lists are never removed, since the number of distinct WAPs is small
+	 * compared to the number of locations.
+	 */
+	private Postings[] table = new Postings[64];
+	private int numPostings = 0;
+
+	/* The location in each slot, and the slots that are free for reuse. */
+	private WifiLocation[] locations = new WifiLocation[64];
+	private int numSlots = 0;
+	private int[] freeSlots = new int[INITIAL_CAPACITY];
+	private int numFreeSlots = 0;
+
+	/* Scratch space for candidate searches: the common WAP count per slot. */
+	private int[] counts = new int[64];
+	private int[] touched = new int[64];
+	private Postings[] queryPostings = new Postings[INITIAL_CAPACITY];
+
+	/**
+	 * Adds a location to the index. Its WAPs are added as they are observed,
+	 * with {@link #addWap}.
+	 * 
+	 * @param location
+	 *            The location to add.
+	 */
+	public void addLocation(final WifiLocation location) {
+		int slot;
+		if (numFreeSlots > 0) {
+			slot = freeSlots[--numFreeSlots];
+		} else {
+			slot = numSlots++;
+			if (slot == locations.length) {
+				final WifiLocation[] grown = new WifiLocation[locations.length * 2];
+				System.arraycopy(locations, 0, grown, 0, slot);
+				locations = grown;
+				counts = grow(counts, slot);
+				touched = new int[locations.length];
+			}
+		}
+		locations[slot] = location;
+		location.indexSlot = slot;
+	}
+
+	/**
+	 * Records that a WAP has been observed from a location for the first time.
+	 * 
+	 * @param location
+	 *            A location that has been added to the index.
+	 * @param wapId
+	 *            The id of the WAP.
+	 */
+	public void addWap(final WifiLocation location, final long wapId) {
+		Postings postings = getPostings(wapId);
+		if (postings == null) {
+			if ((numPostings + 1) * 4 > table.length * 3) {
+				rehash();
+			}
+			postings = new Postings(wapId);
+			table[findBucket(wapId)] = postings;
+			numPostings += 1;
+		}
+		postings.add(location.indexSlot);
+	}
+
+	/**
+	 * Finds the locations that have observed enough of the same WAPs as the
+	 * query location to be considered as its neighbours, that is those for
+	 * which the number of WAPs in common times the number of locations merged
+	 * into the query exceeds the threshold. This is the condition that the
+	 * database query in {@link WifiLocationSet#findCandidatesInDatabase}
+	 * tests.
+	 * 
+	 * The posting lists for the query's WAPs are walked from the shortest to
+	 * the longest. Once the remaining lists are too few for a location that
+	 * has not yet been seen to pass the threshold, the longest lists are not
+	 * walked at all; instead the locations already seen are checked for the
+	 * remaining WAPs directly.
+	 * 
+	 * @param query
+	 *            The location whose candidate neighbours are wanted. It is not
+	 *            included in the results.
+	 * @param threshold
+	 *            The threshold derived from ETA.
+	 * @param candidates
+	 *            The ids of the candidates are added to this collection.
+	 * @return The number of candidates found.
+	 */
+	public int findCandidates(final WifiLocation query, final long threshold,
+			final Collection<Long> candidates) {
+		// Collect the posting lists for the query's WAPs, shortest first.
+		final int numWaps = query.getNumObservations();
+		if (queryPostings.length < numWaps) {
+			queryPostings = new Postings[numWaps];
+		}
+		int n = 0;
+		for (int i = 0; i < numWaps; i++) {
+			final Postings postings = getPostings(query.getWapId(i));
+			if (postings == null) {
+				continue;
+			}
+			int j = n++;
+			while (j > 0 && queryPostings[j - 1].size > postings.size) {
+				queryPostings[j] = queryPostings[j - 1];
+				j--;
+			}
+			queryPostings[j] = postings;
+		}
+
+		final long weight = query.getNumMerged();
+		int numTouched = 0;
+		int k = 0;
+		for (; k < n; k++) {
+			if ((n - k) * weight <= threshold) {
+				break;
+			}
+			final Postings postings = queryPostings[k];
+			for (int i = 0; i < postings.size; i++) {
+				final int slot = postings.slots[i];
+				if (counts[slot]++ == 0) {
+					touched[numTouched++] = slot;
+				}
+			}
+		}
+		for (; k < n; k++) {
+			final long wapId = queryPostings[k].wapId;
+			for (int i = 0; i < numTouched; i++) {
+				if (locations[touched[i]].hasWap(wapId)) {
+					counts[touched[i]] += 1;
+				}
+			}
+		}
+
+		int found = 0;
+		for (int i = 0; i < numTouched; i++) {
+			final int slot = touched[i];
+			final WifiLocation location = locations[slot];
+			if (slot != query.indexSlot && counts[slot] * weight > threshold) {
+				candidates.add(location.getId());
+				found += 1;
+			}
+			counts[slot] = 0;
+		}
+		for (int i = 0; i < n; i++) {
+			queryPostings[i] = null;
+		}
+		return found;
+	}
+
+	/**
+	 * Returns the bucket holding the posting list for the WAP, or the empty
+	 * bucket where it should be placed.
+	 */
+	private int findBucket(final long wapId) {
+		final int mask = table.length - 1;
+		int hash = (int) (wapId ^ wapId >>> 32) * 0x9E3779B9;
+		hash ^= hash >>> 16;
+		int bucket = hash & mask;
+		while (table[bucket] != null && table[bucket].wapId != wapId) {
+			bucket = (bucket + 1) & mask;
+		}
+		return bucket;
+	}
+
+	private Postings getPostings(final long wapId) {
+		return table[findBucket(wapId)];
+	}
+
+	/**
+	 * Returns the number of locations in the index.
+	 * 
+	 * @return The number of locations.
+	 */
+	public int getNumLocations() {
+		return numSlots - numFreeSlots;
+	}
+
+	private void rehash() {
+		final Postings[] old = table;
+		table = new Postings[old.length * 2];
+		for (final Postings postings : old) {
+			if (postings != null) {
+				table[findBucket(postings.wapId)] = postings;
+			}
+		}
+	}
+
+	/**
+	 * Removes a location, and all of its WAPs, from the index.
+	 * 
+	 * @param location
+	 *            The location to remove.
+	 */
+	public void removeLocation(final WifiLocation location) {
+		final int slot = location.indexSlot;
+		if (slot < 0) {
+			return;
+		}
+		final int numWaps = location.getNumObservations();
+		for (int i = 0; i < numWaps; i++) {
+			final Postings postings = getPostings(location.getWapId(i));
+			if (postings != null) {
+				postings.remove(slot);
+			}
+		}
+		locations[slot] = null;
+		location.indexSlot = -1;
+		if (numFreeSlots == freeSlots.length) {
+			freeSlots = grow(freeSlots, numFreeSlots);
+		}
+		freeSlots[numFreeSlots++] = slot;
+	}
+}
@@ -23,6 +23,18 @@ public class WifiClusterer {
 		pool = new MotionStateClusterer(locations);
 	}
 
+	/**
+	 * Constructs a clusterer that stores its locations in the given set, and
+	 * does not log the clusters.
+	 * 
+	 * @param locations
+	 *            The set that stores the locations.
+	 */
+	WifiClusterer(final WifiLocationSet locations) {
+		this.locations = locations;
+		pool = new MotionStateClusterer(locations, null);
+	}
+
 	/**
 	 * Closes the clusterer. It is important that this method be called or the
 	 * database may not be properly closed.
@@ -49,6 +61,14 @@ public class WifiClusterer {
 		return pool.getMostRecentClusterId();
 	}
 
+	/**
+	 * @return The total time spent clustering significant locations, in
+	 *         nanoseconds.
+	 */
+	long getSignificantLocationNanos() {
+		return pool.getSignificantLocationNanos();
+	}
+
 	/**
 	 * @return True if the last observation was deemed moving, or False if the
 	 *         last observation was deemed stationary.
@@ -5,15 +5,12 @@
  */
 package ca.mcgill.hs.classifiers.location;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.Map.Entry;
-
-import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteStatement;
-import ca.mcgill.hs.util.Log;
 
 /**
  * A location characterized by observable wifi base stations and the measured
@@ -22,6 +19,11 @@ import ca.mcgill.hs.util.Log;
  * that are common to both locations, with a requirement that the locations have
  * a substantial fraction of the base stations in common.
  * 
+ * Wifi locations are kept in memory by their {@link WifiLocationSet}, which
+ * loads them from the database once. The signal strengths and neighbours are
+ * held in sorted primitive arrays, and every change is queued on the set's
+ * {@link LocationWriter} rather than written to the database directly.
+ * 
  * @author Jordan Frank <jordan.frank@cs.mcgill.ca>
  */
 public class WifiLocation extends Location {
@@ -29,46 +31,96 @@ public class WifiLocation extends Location {
 	/** Epsilon from the paper, maximum distance between neighbouring points. */
 	public static final double EPS = 6.0;
 
-	/**
-	 * Keeps track of the number of observations associated with this location.
-	 */
-	private int num_observations = -1;
-
 	/**
 	 * ETA is the percentage of WAPs that must be shared for two observations to
 	 * have a finite distance between them.
 	 */
 	public static final double ETA = 0.8;
 
-	private static final String TAG = "WifiLocation";
-
 	/**
 	 * Distance threshold for merging two locations.
 	 */
 	public static final double MERGE_DIST = 3.0;
 
-	/**
-	 * Constructs a new location with a specified timestamp.
-	 * 
-	 * @param db
-	 *            The database in which locations are stored.
-	 * @param timestamp
-	 *            The timestamp, in milliseconds, for the new location.
+	private static final int INITIAL_CAPACITY = 8;
+
+	// Statements queued on the writer.
+	private static final String REPLACE_OBSERVATION_SQL = "REPLACE INTO "
+			+ WifiLocationSet.OBSERVATIONS_TABLE
+			+ " (location_id,wap_id,strength,count,average_strength) "
+			+ "VALUES (?,?,?,?,?)";
+	private static final String INSERT_NEIGHBOUR_SQL = "INSERT OR IGNORE INTO "
+			+ LocationSet.NEIGHBOURS_TABLE + " VALUES (?,?)";
+	private static final String DELETE_NEIGHBOUR_SQL = "DELETE FROM "
+			+ LocationSet.NEIGHBOURS_TABLE
+			+ " WHERE location_id1=? AND location_id2=?";
+	private static final String UPDATE_NUM_MERGED_SQL = "UPDATE "
+			+ LocationSet.LOCATIONS_TABLE
+			+ " SET num_merged=? WHERE location_id=?";
+	private static final String UPDATE_TIMESTAMP_SQL = "UPDATE "
+			+ LocationSet.LOCATIONS_TABLE + " SET timestamp=strftime("
+			+ LocationSet.SQLITE_DATE_FORMAT + ",?,'unixepoch') "
+			+ "WHERE location_id=?";
+
+	private final WifiLocationSet set;
+
+	private long num_merged;
+
+	/*
+	 * The observed WAPs, sorted by id, along with the sum of the signal
+	 * strengths measured for each, the number of measurements, and the
+	 * average strength, which is kept up to date for computing distances.
 	 */
-	public WifiLocation(final SQLiteDatabase db, final double timestamp) {
-		super(db, timestamp);
-	}
+	private long[] wapIds = new long[INITIAL_CAPACITY];
+	private int[] strengths = new int[INITIAL_CAPACITY];
+	private int[] counts = new int[INITIAL_CAPACITY];
+	private int[] averages = new int[INITIAL_CAPACITY];
+	private int num_waps = 0;
+
+	/* The ids of the neighbouring locations, sorted. */
+	private long[] neighbourIds = new long[INITIAL_CAPACITY];
+	private int num_neighbour_ids = 0;
+
+	/** The slot of this location in the set's {@link WapIndex}. */
+	int indexSlot = -1;
 
 	/**
-	 * Constructs a new location with a specified id.
+	 * Constructs a location held by the specified set. The set is responsible
+	 * for creating or loading the database record for the location.
 	 * 
-	 * @param db
-	 *            The database in which locations are stored.
+	 * @param set
+	 *            The set that holds this location.
 	 * @param id
-	 *            The id for the new location.
+	 *            The id for the location.
+	 * @param timestamp
+	 *            The timestamp for the location.
+	 * @param numMerged
+	 *            The number of locations that have been merged to form this
+	 *            one.
 	 */
-	public WifiLocation(final SQLiteDatabase db, final long id) {
-		super(db, id);
+	WifiLocation(final WifiLocationSet set, final long id,
+			final double timestamp, final long numMerged) {
+		super(id);
+		this.set = set;
+		this.timestamp = timestamp;
+		this.num_merged = numMerged;
+	}
+
+	@Override
+	public void addNeighbour(final long id) {
+		if (id == getId()) {
+			return;
+		}
+		if (insertNeighbour(id)) {
+			set.getWriter().execSQL(INSERT_NEIGHBOUR_SQL, getId(), id);
+		}
+	}
+
+	@Override
+	public void addNeighbours(final Collection<Long> ids) {
+		for (final long id : ids) {
+			addNeighbour(id);
+		}
 	}
 
 	/**
@@ -81,45 +133,74 @@ public class WifiLocation extends Location {
 	@Override
 	public void addObservation(final Observation obs) {
 		final WifiObservation observation = (WifiObservation) obs;
-		final long my_id = getId();
-		final SQLiteStatement ensureExistsStmt = db
-				.compileStatement("INSERT OR IGNORE INTO "
-						+ WifiLocationSet.OBSERVATIONS_TABLE
-						+ " VALUES (?,?,0,0,0)");
-		ensureExistsStmt.bindLong(1, my_id);
-		final SQLiteStatement updateStrengthStmt = db
-				.compileStatement("UPDATE "
-						+ WifiLocationSet.OBSERVATIONS_TABLE
-						+ " SET strength=strength+?, count=count+1, "
-						+ "average_strength=(strength+?)/(count+1) "
-						+ "WHERE location_id=? AND wap_id=?");
-		updateStrengthStmt.bindLong(3, my_id);
-		try {
-			db.beginTransaction();
-			for (final Entry<Integer, Integer> entry : observation.measurements
-					.entrySet()) {
-				final int wap_id = entry.getKey();
-				ensureExistsStmt.bindLong(2, wap_id);
-				ensureExistsStmt.execute();
+		final LocationWriter writer = set.getWriter();
+		final int numMeasurements = observation.getNumMeasurements();
+		for (int m = 0; m < numMeasurements; m++) {
+			final int i = addStrength(observation.getWapId(m), observation
+					.getStrength(m), 1);
+			writer.execSQL(REPLACE_OBSERVATION_SQL, getId(), wapIds[i],
+					strengths[i], counts[i], getAvgStrengthAt(i));
+		}
+	}
+
+	/**
+	 * Adds measurements for a WAP to the signature, and returns the index of
+	 * the WAP in the signature.
+	 */
+	private int addStrength(final long wap_id, final int strength,
+			final int count) {
+		int i = Arrays.binarySearch(wapIds, 0, num_waps, wap_id);
+		if (i < 0) {
+			i = -i - 1;
+			if (num_waps == wapIds.length) {
+				final long[] grownIds = new long[wapIds.length * 2];
+				System.arraycopy(wapIds, 0, grownIds, 0, num_waps);
+				wapIds = grownIds;
+				strengths = grow(strengths);
+				counts = grow(counts);
+				averages = grow(averages);
+			}
+			System.arraycopy(wapIds, i, wapIds, i + 1, num_waps - i);
+			System.arraycopy(strengths, i, strengths, i + 1, num_waps - i);
+			System.arraycopy(counts, i, counts, i + 1, num_waps - i);
+			System.arraycopy(averages, i, averages, i + 1, num_waps - i);
+			wapIds[i] = wap_id;
+			strengths[i] = 0;
+			counts[i] = 0;
+			num_waps += 1;
+			if (indexSlot >= 0) {
+				set.getIndex().addWap(this, wap_id);
 			}
+		}
+		strengths[i] += strength;
+		counts[i] += count;
+		averages[i] = strengths[i] / counts[i];
+		return i;
+	}
 
-			for (final Entry<Integer, Integer> entry : observation.measurements
-					.entrySet()) {
-				final int strength = entry.getValue();
-				final int wap_id = entry.getKey();
-				updateStrengthStmt.bindLong(1, strength);
-				updateStrengthStmt.bindLong(2, strength);
-				updateStrengthStmt.bindLong(4, wap_id);
-				updateStrengthStmt.execute();
+	/**
+	 * Returns the number of WAPs observed from both this location and other.
+	 * 
+	 * @param other
+	 *            The other location.
+	 * @return The number of WAPs in common.
+	 */
+	int countCommonWaps(final WifiLocation other) {
+		int num_common = 0;
+		int i = 0;
+		int j = 0;
+		while (i < num_waps && j < other.num_waps) {
+			if (wapIds[i] < other.wapIds[j]) {
+				i++;
+			} else if (wapIds[i] > other.wapIds[j]) {
+				j++;
+			} else {
+				num_common += 1;
+				i++;
+				j++;
 			}
-			db.setTransactionSuccessful();
-		} finally {
-			db.endTransaction();
-			ensureExistsStmt.close();
-			updateStrengthStmt.close();
 		}
-		// Invalidate any cached distances
-		updateNumObservations();
+		return num_common;
 	}
 
 	@Override
@@ -130,34 +211,41 @@ public class WifiLocation extends Location {
 		 * from both locations. If the ratio of the number of WAPs that are
 		 * common to both locations to the minimum number of WAPs observed from
 		 * either location is less than ETA, a distance of INFINITY is returned.
+		 * Both signatures are sorted by WAP id, so the common WAPs are found
+		 * by walking them together. The walk stops as soon as too few WAPs
+		 * remain for the ratio to reach ETA, which is the case for most of
+		 * the candidates compared when a location is added.
 		 */
 		final WifiLocation location = (WifiLocation) other;
+		final int[] otherAverages = location.averages;
+		final long[] otherWapIds = location.wapIds;
+		final int other_num_waps = location.num_waps;
+		final int min_waps = Math.min(num_waps, other_num_waps);
 		double dist = 0.0;
 		int num_common = 0;
-
-		final Cursor cursor = db
-				.rawQuery(
-						"SELECT COUNT(*),"
-								+ "SUM((o1.average_strength-o2.average_strength)*(o1.average_strength-o2.average_strength)) "
-								+ "FROM " + WifiLocationSet.OBSERVATIONS_TABLE
-								+ " AS o1 " + "JOIN "
-								+ WifiLocationSet.OBSERVATIONS_TABLE
-								+ " AS o2 USING (wap_id) "
-								+ "WHERE o1.location_id=? AND o2.location_id=?",
-						new String[] { Long.toString(getId()),
-								Long.toString(location.getId()) });
-		if (cursor.moveToNext()) {
-			num_common = cursor.getInt(0);
-			dist = cursor.getDouble(1);
-		} else {
-			Log.e(TAG, "Could not get distance between locations with ids "
-					+ getId() + " and " + location.getId());
+		int i = 0;
+		int j = 0;
+		while (i < num_waps && j < other_num_waps) {
+			if (wapIds[i] == otherWapIds[j]) {
+				final double diff = averages[i] - otherAverages[j];
+				dist += diff * diff;
+				num_common += 1;
+				i++;
+				j++;
+				continue;
+			} else if (wapIds[i] < otherWapIds[j]) {
+				i++;
+			} else {
+				j++;
+			}
+			final int max_common = num_common
+					+ Math.min(num_waps - i, other_num_waps - j);
+			if ((double) max_common / (double) min_waps < ETA) {
+				return Double.POSITIVE_INFINITY;
+			}
 		}
-		cursor.close();
 
-		if ((double) num_common
-				/ (double) Math.min(this.getNumObservations(), location
-						.getNumObservations()) < ETA) {
+		if (num_common == 0 || (double) num_common / (double) min_waps < ETA) {
 			dist = Double.POSITIVE_INFINITY;
 		} else {
 			dist = Math.sqrt((1.0 / num_common) * dist);
@@ -165,109 +253,230 @@ public class WifiLocation extends Location {
 		return dist;
 	}
 
+	/**
+	 * Removes a neighbour from memory only, used when the neighbour's records
+	 * have already been deleted.
+	 * 
+	 * @param id
+	 *            The id of the neighbour.
+	 */
+	void forgetNeighbour(final long id) {
+		final int i = Arrays.binarySearch(neighbourIds, 0,
+				num_neighbour_ids, id);
+		if (i >= 0) {
+			System.arraycopy(neighbourIds, i + 1, neighbourIds, i,
+					num_neighbour_ids - i - 1);
+			num_neighbour_ids -= 1;
+		}
+	}
+
 	/**
 	 * Returns the average strength of this observation at the specified WAP ID.
 	 * 
 	 * @param wap_id
 	 *            The WAP id to examine.
-	 * @return The average strength of this observation at the specified WAP ID.
+	 * @return The average strength of this observation at the specified WAP
+	 *         ID, or 0 if the WAP has not been observed from this location.
+	 */
+	public double getAvgStrength(final long wap_id) {
+		final int i = Arrays.binarySearch(wapIds, 0, num_waps, wap_id);
+		return i < 0 ? 0.0 : getAvgStrengthAt(i);
+	}
+
+	/**
+	 * Returns the average strength at an index in the signature. As in the
+	 * database, the average is rounded towards zero.
 	 */
-	public double getAvgStrength(final int wap_id) {
-		double avgStrength = 0.0;
-		final Cursor cursor = db.rawQuery("SELECT average_strength FROM "
-				+ WifiLocationSet.OBSERVATIONS_TABLE
-				+ " WHERE location_id=? AND wap_id=?", new String[] {
-				Long.toString(getId()), Integer.toString(wap_id) });
-		try {
-			cursor.moveToNext();
-			avgStrength = cursor.getDouble(0);
-		} finally {
-			cursor.close();
+	private int getAvgStrengthAt(final int i) {
+		return averages[i];
+	}
+
+	/**
+	 * Returns the id of a WAP in the signature, which is sorted by WAP id.
+	 * 
+	 * @param i
+	 *            An index less than {@link #getNumObservations()}.
+	 * @return The WAP id.
+	 */
+	long getWapId(final int i) {
+		return wapIds[i];
+	}
+
+	@Override
+	public List<Long> getNeighbours() {
+		final List<Long> neighbours = new ArrayList<Long>(num_neighbour_ids);
+		for (int i = 0; i < num_neighbour_ids; i++) {
+			if (set.getWifiLocation(neighbourIds[i]) != null) {
+				neighbours.add(neighbourIds[i]);
+			}
 		}
-		return avgStrength;
+		return neighbours;
+	}
+
+	@Override
+	public long getNumMerged() {
+		return num_merged;
+	}
+
+	@Override
+	public long getNumNeighbours() {
+		long num_neighbours = 0;
+		for (int i = 0; i < num_neighbour_ids; i++) {
+			final WifiLocation neighbour = set
+					.getWifiLocation(neighbourIds[i]);
+			if (neighbour != null) {
+				num_neighbours += neighbour.num_merged;
+			}
+		}
+		return num_neighbours;
 	}
 
 	/**
 	 * @return The number of observations associated with this location.
 	 */
 	public int getNumObservations() {
-		if (num_observations < 0) {
-			updateNumObservations();
-		}
-		return num_observations;
+		return num_waps;
 	}
 
 	/**
 	 * @return The set of all WAP ids associated with the observations for this
 	 *         location.
 	 */
-	public Set<Integer> getObservableWAPs() {
-		final Set<Integer> wap_ids = new HashSet<Integer>();
-		final Cursor cursor = db.rawQuery("SELECT wap_id FROM "
-				+ WifiLocationSet.OBSERVATIONS_TABLE + " WHERE location_id=?",
-				new String[] { Long.toString(getId()) });
-		try {
-			while (cursor.moveToNext()) {
-				wap_ids.add(cursor.getInt(0));
-			}
-		} finally {
-			cursor.close();
+	public Set<Long> getObservableWAPs() {
+		final Set<Long> wap_ids = new HashSet<Long>();
+		for (int i = 0; i < num_waps; i++) {
+			wap_ids.add(wapIds[i]);
 		}
 		return wap_ids;
 	}
 
 	@Override
 	public Observation getObservations() {
-		final Cursor cursor = db.rawQuery(
-				"SELECT wap_id,average_strength FROM "
-						+ WifiLocationSet.OBSERVATIONS_TABLE
-						+ " WHERE location_id=?", new String[] { Long
-						.toString(getId()) });
-		final WifiObservation observation = new WifiObservation(getTimestamp(),
-				cursor.getCount());
-		try {
-			while (cursor.moveToNext()) {
-				observation.addMeasurement(cursor.getInt(0), cursor.getInt(1));
-			}
-		} finally {
-			cursor.close();
+		final WifiObservation observation = new WifiObservation(timestamp,
+				num_waps);
+		for (int i = 0; i < num_waps; i++) {
+			observation.addMeasurement(wapIds[i], getAvgStrengthAt(i));
 		}
 		return observation;
 	}
 
+	@Override
+	public double getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Returns whether the WAP has been observed from this location.
+	 * 
+	 * @param wap_id
+	 *            The WAP id.
+	 * @return True if the WAP is in the signature.
+	 */
+	boolean hasWap(final long wap_id) {
+		return Arrays.binarySearch(wapIds, 0, num_waps, wap_id) >= 0;
+	}
+
+	/**
+	 * Adds a neighbour to memory, returning false if it was already present.
+	 */
+	private boolean insertNeighbour(final long id) {
+		int i = Arrays.binarySearch(neighbourIds, 0, num_neighbour_ids, id);
+		if (i >= 0) {
+			return false;
+		}
+		i = -i - 1;
+		if (num_neighbour_ids == neighbourIds.length) {
+			final long[] grown = new long[neighbourIds.length * 2];
+			System.arraycopy(neighbourIds, 0, grown, 0, num_neighbour_ids);
+			neighbourIds = grown;
+		}
+		System.arraycopy(neighbourIds, i, neighbourIds, i + 1,
+				num_neighbour_ids - i);
+		neighbourIds[i] = id;
+		num_neighbour_ids += 1;
+		return true;
+	}
+
+	/**
+	 * Adds a neighbour read from the database.
+	 * 
+	 * @param id
+	 *            The id of the neighbour.
+	 */
+	void loadNeighbour(final long id) {
+		insertNeighbour(id);
+	}
+
+	/**
+	 * Adds the measurements for a WAP read from the database.
+	 * 
+	 * @param wap_id
+	 *            The WAP id.
+	 * @param strength
+	 *            The sum of the measured signal strengths.
+	 * @param count
+	 *            The number of measurements.
+	 */
+	void loadObservation(final long wap_id, final int strength,
+			final int count) {
+		if (count > 0) {
+			addStrength(wap_id, strength, count);
+		}
+	}
+
+	@Override
+	public void removeNeighbour(final long id) {
+		forgetNeighbour(id);
+		set.getWriter().execSQL(DELETE_NEIGHBOUR_SQL, getId(), id);
+	}
+
+	@Override
+	public void removeNeighbours(final Collection<Long> neighboursToRemove) {
+		final LocationWriter writer = set.getWriter();
+		for (final long id : neighboursToRemove) {
+			forgetNeighbour(id);
+			final WifiLocation neighbour = set.getWifiLocation(id);
+			if (neighbour != null) {
+				neighbour.forgetNeighbour(getId());
+			}
+			writer.execSQL(DELETE_NEIGHBOUR_SQL, getId(), id);
+			writer.execSQL(DELETE_NEIGHBOUR_SQL, id, getId());
+		}
+	}
+
+	@Override
+	public void setNumMerged(final long num) {
+		num_merged = num;
+		set.getWriter().execSQL(UPDATE_NUM_MERGED_SQL, num, getId());
+	}
+
+	@Override
+	public void setTimestamp(final double timestamp) {
+		this.timestamp = timestamp;
+		set.getWriter().execSQL(UPDATE_TIMESTAMP_SQL, timestamp, getId());
+	}
+
 	@Override
 	public String toString() {
 		final StringBuilder sb = new StringBuilder();
 		sb.append("Location Id: " + getId() + "\n");
 		sb.append("\tWAPS:\n");
-		final Set<Integer> wap_ids = getObservableWAPs();
-		for (final int wap_id : wap_ids) {
-			sb.append("\t\tId: " + wap_id + "\tAverage Strength: "
-					+ getAvgStrength(wap_id) + "\n");
+		for (int i = 0; i < num_waps; i++) {
+			sb.append("\t\tId: " + WifiObservation.formatBSSID(wapIds[i])
+					+ "\tAverage Strength: " + (double) getAvgStrengthAt(i)
+					+ "\n");
 		}
 		sb.append("\tNeighbours:");
-		final List<Long> neighbours = getNeighbours();
-		for (final long neighbour : neighbours) {
+		for (final long neighbour : getNeighbours()) {
 			sb.append(" " + neighbour);
 		}
 		sb.append("\n");
 		return sb.toString();
 	}
 
-	/**
-	 * Updates the number of observations associated with this location. We
-	 * cache this value, to save on database queries, as it is frequently used.
-	 */
-	private void updateNumObservations() {
-		final Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM "
-				+ WifiLocationSet.OBSERVATIONS_TABLE + " WHERE location_id=?",
-				new String[] { Long.toString(getId()) });
-		if (cursor.moveToNext()) {
-			num_observations = cursor.getInt(0);
-		} else {
-			Log.e(TAG, "Could not get number of observations for location id "
-					+ getId());
-		}
-		cursor.close();
+	private static int[] grow(final int[] array) {
+		final int[] grown = new int[array.length * 2];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
 	}
 }
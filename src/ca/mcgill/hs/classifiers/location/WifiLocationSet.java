@@ -7,7 +7,9 @@ package ca.mcgill.hs.classifiers.location;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 
 import android.content.Context;
@@ -15,11 +17,13 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDatabase.CursorFactory;
 import android.database.sqlite.SQLiteOpenHelper;
-import ca.mcgill.hs.util.LRUCache;
 import ca.mcgill.hs.util.Log;
 
 /**
- * Manages a set of Wifi-based Locations
+ * Manages a set of Wifi-based Locations. All of the locations are loaded into
+ * memory when the set is opened, and changes are written back to the database
+ * in the background by a {@link LocationWriter}, so that clustering never
+ * waits for the database.
  * 
  * @author Jordan Frank <jordan.frank@cs.mcgill.ca>
  */
@@ -98,26 +102,61 @@ public final class WifiLocationSet extends LocationSet {
 		@Override
 		public void onUpgrade(final SQLiteDatabase db, final int oldVersion,
 				final int newVersion) {
+			/*
+			 * Version 1 identified WAPs by the hash codes of their BSSIDs,
+			 * which cannot be converted to the BSSIDs themselves, so the
+			 * locations have to be learned again.
+			 */
+			if (oldVersion < 2) {
+				onCreate(db);
+			}
 		}
 
 	}
 
 	private static final String TAG = "WifiLocationSet";
 
+	private static final String DATABASE_NAME = "wificlusters.db";
+
+	/**
+	 * Version 2 identifies WAPs by their BSSIDs, as returned by
+	 * {@link WifiObservation#parseBSSID(String)}.
+	 */
+	private static final int DATABASE_VERSION = 2;
+
 	// Database table names.
 	public static final String OBSERVATIONS_TABLE = "observations";
 	public static final String WAPS_TABLE = "waps";
 
+	private static final String INSERT_LOCATION_SQL = "INSERT INTO "
+			+ LOCATIONS_TABLE + " (location_id,timestamp,num_merged) "
+			+ "VALUES (?,strftime(" + SQLITE_DATE_FORMAT
+			+ ",?,'unixepoch'),1)";
+	private static final String DELETE_OBSERVATIONS_SQL = "DELETE FROM "
+			+ OBSERVATIONS_TABLE + " WHERE location_id=?";
+	private static final String DELETE_NEIGHBOURS_SQL = "DELETE FROM "
+			+ NEIGHBOURS_TABLE + " WHERE location_id1=? OR location_id2=?";
+	private static final String DELETE_LOCATION_SQL = "DELETE FROM "
+			+ LOCATIONS_TABLE + " WHERE location_id=?";
+
+	/**
+	 * Every location in the database, by id.
+	 */
+	private final HashMap<Long, WifiLocation> locations = new HashMap<Long, WifiLocation>();
+
 	/**
-	 * The number of locations to cache.
+	 * The largest location id that has been used, so that new ids can be
+	 * assigned without waiting for the database.
 	 */
-	private static final int CACHE_SIZE = 100;
+	private long lastLocationId = 0;
+
+	private final LocationWriter writer;
+
 	/**
-	 * Used to cache the last 100 most recently used locations, saves on
-	 * database queries.
+	 * Index from WAP ids to the locations that observed them, used to find
+	 * candidate neighbours.
 	 */
-	private final LRUCache<Long, WifiLocation> locationCache = new LRUCache<Long, WifiLocation>(
-			CACHE_SIZE);
+	private final WapIndex index = new WapIndex();
 
 	/**
 	 * Do not use a time-based window, as samples can often come in at irregular
@@ -149,8 +188,28 @@ public final class WifiLocationSet extends LocationSet {
 	 */
 	private final boolean copyFromSDCard = false;
 
+	/**
+	 * Opens the wifi location database used by the application.
+	 * 
+	 * @param context
+	 *            The application context.
+	 */
 	public WifiLocationSet(final Context context) {
-		if (copyFromSDCard) {
+		this(context, DATABASE_NAME);
+	}
+
+	/**
+	 * Opens a wifi location set stored in the named database. Only the
+	 * application's own database is copied to and from the sdcard.
+	 * 
+	 * @param context
+	 *            The application context.
+	 * @param databaseName
+	 *            The name of the database, or null for a database that is
+	 *            only kept in memory.
+	 */
+	WifiLocationSet(final Context context, final String databaseName) {
+		if (copyFromSDCard && DATABASE_NAME.equals(databaseName)) {
 			try {
 				DBHelpers.copy(new File(
 						"/sdcard/hsandroidapp/data/wificlusters.db"), new File(
@@ -166,7 +225,8 @@ public final class WifiLocationSet extends LocationSet {
 				Log.e(TAG, e);
 			}
 		}
-		dbHelper = new WifiDatabaseHelper(context, "wificlusters.db", null, 1);
+		dbHelper = new WifiDatabaseHelper(context, databaseName, null,
+				DATABASE_VERSION);
 		db = dbHelper.getWritableDatabase();
 		Log.d(TAG, "Opened Wifi Database: " + db.getPath());
 
@@ -176,17 +236,16 @@ public final class WifiLocationSet extends LocationSet {
 		// uncomment to delete and recreate all of the tables.
 		// dbHelper.onCreate(db);
 
-		/*
-		 * This should speed things up, as file i/o is slow. However, we should
-		 * be aware that this can be dangerous, as crashes could result in a
-		 * corrupted database.
-		 */
-		db.rawQuery("PRAGMA journal_mode=MEMORY", null).close();
+		Log.d(TAG, "Journal mode: " + DBHelpers.useWriteAheadLogging(db));
 
 		/*
 		 * Does a little optimization when the service is started. Can't hurt.
 		 */
 		db.execSQL("ANALYZE");
+
+		loadLocations();
+		writer = new LocationWriter(db);
+		loadClusters();
 	}
 
 	@Override
@@ -194,17 +253,13 @@ public final class WifiLocationSet extends LocationSet {
 		final WifiLocation location = (WifiLocation) loc;
 		final long location_id = location.getId();
 
-		// Add the location to the cache.
-		cacheLocation(location);
-
 		/*
 		 * Compute a threshold for minumum number of waps that must be common to
 		 * be considered a neighbour. Note that if the neighbour has more waps,
 		 * then it might have to be pruned out later. This is just used to
-		 * retrieve from the database a set of potential neighbours, to quickly
-		 * check if the location is a potential neighbour.
+		 * quickly find a set of potential neighbours.
 		 */
-		final Long temp_threshold = (long) (location.getNumObservations() * WifiLocation.ETA);
+		final long temp_threshold = (long) (location.getNumObservations() * WifiLocation.ETA);
 
 		final Collection<Long> possibleNeighbours = new HashSet<Long>();
 
@@ -212,20 +267,7 @@ public final class WifiLocationSet extends LocationSet {
 		 * Select all locations that have at least threshold neighbours in
 		 * common with our current location.
 		 */
-		final Cursor cursor = db.rawQuery("SELECT o2.location_id FROM "
-				+ OBSERVATIONS_TABLE + " AS o1 " + "JOIN " + OBSERVATIONS_TABLE
-				+ " AS o2 USING (wap_id) JOIN " + LOCATIONS_TABLE
-				+ " AS l USING (location_id) WHERE o1.location_id=? "
-				+ "GROUP BY o2.location_id HAVING SUM(l.num_merged) > "
-				+ temp_threshold,
-				new String[] { Long.toString(location.getId()) });
-		try {
-			while (cursor.moveToNext()) {
-				possibleNeighbours.add(cursor.getLong(0));
-			}
-		} finally {
-			cursor.close();
-		}
+		index.findCandidates(location, temp_threshold, possibleNeighbours);
 		// Make sure the current location isn't in the list of neighbours.
 		possibleNeighbours.remove(location_id);
 
@@ -269,18 +311,20 @@ public final class WifiLocationSet extends LocationSet {
 		return location_id;
 	}
 
-	/**
-	 * Adds a location to the cache.
-	 * 
-	 * @params location The location to be added to the cache.
-	 */
-	private void cacheLocation(final WifiLocation location) {
-		locationCache.put(location.getId(), location);
+	@Override
+	public void beginChanges() {
+		writer.begin();
 	}
 
+	/**
+	 * Writes any changes that are waiting to be written, and closes the
+	 * database.
+	 */
 	public void close() {
 		try {
 			if (db != null) {
+				writeClusters();
+				writer.close();
 				final File dbFile = new File(db.getPath());
 				db.close(); // Close the database handle
 				dbHelper.close();
@@ -291,12 +335,14 @@ public final class WifiLocationSet extends LocationSet {
 				 * this is mostly for debugging, if we want to look at the
 				 * database offline.
 				 */
-				DBHelpers.copy(dbFile, new File(
-						"/sdcard/hsandroidapp/data/wificlusters.db"));
-
-				DBHelpers.copy(new File(
-						"/data/data/ca.mcgill.hs/databases/locations.db"),
-						new File("/sdcard/hsandroidapp/data/locations.db"));
+				if (DATABASE_NAME.equals(dbFile.getName())) {
+					DBHelpers.copy(dbFile, new File(
+							"/sdcard/hsandroidapp/data/wificlusters.db"));
+
+					DBHelpers.copy(new File(
+							"/data/data/ca.mcgill.hs/databases/locations.db"),
+							new File("/sdcard/hsandroidapp/data/locations.db"));
+				}
 			}
 		} catch (final IOException e) {
 			Log.e(TAG, e);
@@ -312,9 +358,19 @@ public final class WifiLocationSet extends LocationSet {
 	 * @return Description of the location.
 	 */
 	public String displayLocation(final long id) {
-		WifiLocation loc = null;
-		loc = new WifiLocation(db, id);
-		return loc.toString();
+		final WifiLocation loc = getWifiLocation(id);
+		return loc == null ? "Location " + id + " does not exist." : loc
+				.toString();
+	}
+
+	@Override
+	public void endChanges() {
+		writer.end();
+	}
+
+	@Override
+	protected void execDeferredSQL(final String sql, final Object... args) {
+		writer.execSQL(sql, args);
 	}
 
 	@Override
@@ -323,14 +379,71 @@ public final class WifiLocationSet extends LocationSet {
 		super.finalize();
 	}
 
+	/**
+	 * Finds candidate neighbours with the database query that was used before
+	 * the {@link WapIndex}, for comparison. Waits for any pending changes to be
+	 * written first.
+	 * 
+	 * @param location
+	 *            The location whose candidate neighbours are wanted.
+	 * @param threshold
+	 *            The threshold derived from ETA.
+	 * @param candidates
+	 *            The ids of the candidates are added to this collection.
+	 */
+	void findCandidatesInDatabase(final WifiLocation location,
+			final long threshold, final Collection<Long> candidates) {
+		flush();
+		final Cursor cursor = db.rawQuery("SELECT o2.location_id FROM "
+				+ OBSERVATIONS_TABLE + " AS o1 " + "JOIN " + OBSERVATIONS_TABLE
+				+ " AS o2 USING (wap_id) JOIN " + LOCATIONS_TABLE
+				+ " AS l USING (location_id) WHERE o1.location_id=? "
+				+ "GROUP BY o2.location_id HAVING SUM(l.num_merged) > "
+				+ threshold, new String[] { Long.toString(location.getId()) });
+		try {
+			while (cursor.moveToNext()) {
+				candidates.add(cursor.getLong(0));
+			}
+		} finally {
+			cursor.close();
+		}
+		candidates.remove(location.getId());
+	}
+
+	/**
+	 * Writes any pending changes to the database now, rather than waiting for
+	 * the writer.
+	 */
+	void flush() {
+		writer.flush();
+	}
+
+	@Override
+	public Collection<Long> getAllLocations() {
+		return new ArrayList<Long>(locations.keySet());
+	}
+
+	/**
+	 * @return The index used to find candidate neighbours.
+	 */
+	WapIndex getIndex() {
+		return index;
+	}
+
 	@Override
 	public Location getLocation(final long id) {
-		WifiLocation obs = locationCache.get(id);
-		if (obs == null) {
-			obs = new WifiLocation(db, id);
-			cacheLocation(obs);
-		}
-		return obs;
+		return locations.get(id);
+	}
+
+	/**
+	 * Returns the location with the specified id.
+	 * 
+	 * @param id
+	 *            The location id.
+	 * @return The location, or null if there is no location with that id.
+	 */
+	WifiLocation getWifiLocation(final long id) {
+		return locations.get(id);
 	}
 
 	@Override
@@ -338,6 +451,82 @@ public final class WifiLocationSet extends LocationSet {
 		return WINDOW_LENGTH;
 	}
 
+	/**
+	 * @return The writer through which the locations in this set write their
+	 *         changes.
+	 */
+	LocationWriter getWriter() {
+		return writer;
+	}
+
+	/**
+	 * Reads every location, along with its signal strengths and neighbours,
+	 * into memory.
+	 */
+	private void loadLocations() {
+		final long startTime = System.currentTimeMillis();
+		Cursor cursor = db.rawQuery("SELECT location_id,"
+				+ "strftime('%s',timestamp)-strftime('%S',timestamp)"
+				+ "+strftime('%f',timestamp),num_merged FROM "
+				+ LOCATIONS_TABLE, null);
+		try {
+			while (cursor.moveToNext()) {
+				final long id = cursor.getLong(0);
+				final WifiLocation location = new WifiLocation(this, id,
+						cursor.getDouble(1), cursor.getLong(2));
+				locations.put(id, location);
+				index.addLocation(location);
+				lastLocationId = Math.max(lastLocationId, id);
+			}
+		} finally {
+			cursor.close();
+		}
+
+		/*
+		 * Ids of deleted locations must not be reused, since they may still
+		 * appear in the clusters table.
+		 */
+		cursor = db.rawQuery("SELECT seq FROM sqlite_sequence WHERE name=?",
+				new String[] { LOCATIONS_TABLE });
+		try {
+			if (cursor.moveToNext()) {
+				lastLocationId = Math.max(lastLocationId, cursor.getLong(0));
+			}
+		} finally {
+			cursor.close();
+		}
+
+		cursor = db.rawQuery("SELECT location_id,wap_id,strength,count FROM "
+				+ OBSERVATIONS_TABLE, null);
+		try {
+			while (cursor.moveToNext()) {
+				final WifiLocation location = locations.get(cursor.getLong(0));
+				if (location != null) {
+					location.loadObservation(cursor.getLong(1), cursor
+							.getInt(2), cursor.getInt(3));
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+
+		cursor = db.rawQuery("SELECT location_id1,location_id2 FROM "
+				+ NEIGHBOURS_TABLE, null);
+		try {
+			while (cursor.moveToNext()) {
+				final WifiLocation location = locations.get(cursor.getLong(0));
+				final long neighbour_id = cursor.getLong(1);
+				if (location != null && locations.containsKey(neighbour_id)) {
+					location.loadNeighbour(neighbour_id);
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+		Log.d(TAG, "Loaded " + locations.size() + " locations in "
+				+ (System.currentTimeMillis() - startTime) + "ms");
+	}
+
 	/**
 	 * Merges the location src into dst, removing src and updating the
 	 * num_merged for dst.
@@ -353,23 +542,26 @@ public final class WifiLocationSet extends LocationSet {
 		Log.d(TAG, "MERGING LOCATIONS " + src_id + " and " + dst_id);
 		dst.addObservation(src.getObservations());
 		dst.setNumMerged(dst.getNumMerged() + src.getNumMerged());
-		db.execSQL("DELETE FROM " + WifiLocationSet.OBSERVATIONS_TABLE
-				+ " WHERE location_id=?",
-				new String[] { Long.toString(src_id) });
-		db.execSQL("DELETE FROM " + LocationSet.NEIGHBOURS_TABLE
-				+ " WHERE location_id1=? OR location_id2=?", new String[] {
-				Long.toString(src_id), Long.toString(src_id) });
-		db.execSQL("DELETE FROM " + LocationSet.LOCATIONS_TABLE
-				+ " WHERE location_id=?",
-				new String[] { Long.toString(src_id) });
-		dst.removeNeighbour(src_id);
-		// Remove from the cache.
-		locationCache.put(src_id, null);
+		writer.execSQL(DELETE_OBSERVATIONS_SQL, src_id);
+		writer.execSQL(DELETE_NEIGHBOURS_SQL, src_id, src_id);
+		writer.execSQL(DELETE_LOCATION_SQL, src_id);
+		for (final long neighbour_id : src.getNeighbours()) {
+			locations.get(neighbour_id).forgetNeighbour(src_id);
+		}
+		dst.forgetNeighbour(src_id);
+		index.removeLocation(src);
+		locations.remove(src_id);
 	}
 
 	@Override
 	public Location newLocation(final double timestamp) {
-		return new WifiLocation(db, timestamp);
+		lastLocationId += 1;
+		final WifiLocation location = new WifiLocation(this, lastLocationId,
+				timestamp, 1);
+		locations.put(lastLocationId, location);
+		index.addLocation(location);
+		writer.execSQL(INSERT_LOCATION_SQL, lastLocationId, timestamp);
+		return location;
 	}
 
 	@Override
@@ -390,12 +582,8 @@ public final class WifiLocationSet extends LocationSet {
 	 *         location.
 	 */
 	public long retrieveNumMerged(final long location_id) {
-		WifiLocation location = locationCache.get(location_id);
-		if (location == null) {
-			location = new WifiLocation(db, location_id);
-			cacheLocation(location);
-		}
-		return location.getNumMerged();
+		final WifiLocation location = locations.get(location_id);
+		return location == null ? 0 : location.getNumMerged();
 	}
 
 	@Override
@@ -5,20 +5,88 @@
  */
 package ca.mcgill.hs.classifiers.location;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Arrays;
 
 /**
  * A Wifi observation consists of a set of signal strength measurements. Each
  * measurement consists of a WAP id (BSSID) and rssi. Observations can then be
  * compared by comparing the signal strengths of common WAPs.
  * 
+ * The measurements are kept in parallel arrays sorted by WAP id, so that two
+ * observations can be compared in a single pass without allocating. WAP ids
+ * are the 48 bits of the BSSID, which are unique to each WAP; see
+ * {@link #parseBSSID(String)}.
+ * 
  * @author Jordan Frank <jordan.frank@cs.mcgill.ca>
  * 
  */
 public class WifiObservation extends Observation {
-	protected final HashMap<Integer, Integer> measurements;
+
+	/**
+	 * Set in the WAP ids of BSSIDs that could not be parsed, which are above
+	 * the range of 48-bit BSSIDs.
+	 */
+	private static final long UNPARSED_BSSID = 1L << 48;
+
+	/**
+	 * Formats a WAP id as a BSSID.
+	 * 
+	 * @param wap_id
+	 *            A WAP id returned by {@link #parseBSSID(String)}.
+	 * @return The BSSID, as six colon-separated pairs of hex digits.
+	 */
+	public static String formatBSSID(final long wap_id) {
+		if ((wap_id & UNPARSED_BSSID) != 0) {
+			return Long.toHexString(wap_id);
+		}
+		final StringBuilder sb = new StringBuilder(17);
+		for (int shift = 40; shift >= 0; shift -= 8) {
+			final int octet = (int) (wap_id >>> shift) & 0xff;
+			sb.append(Character.forDigit(octet >>> 4, 16));
+			sb.append(Character.forDigit(octet & 0xf, 16));
+			if (shift > 0) {
+				sb.append(':');
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Converts a BSSID, such as 00:1a:2b:3c:4d:5e, into a WAP id holding its
+	 * 48 bits, so that different WAPs never share an id. A BSSID that cannot be
+	 * parsed is given an id derived from its hash code, above the range of
+	 * valid BSSIDs.
+	 * 
+	 * @param bssid
+	 *            The BSSID, as reported by the wifi scan.
+	 * @return The WAP id.
+	 */
+	public static long parseBSSID(final String bssid) {
+		if (bssid == null) {
+			return UNPARSED_BSSID;
+		}
+		long wap_id = 0;
+		int digits = 0;
+		for (int i = 0; i < bssid.length(); i++) {
+			final char c = bssid.charAt(i);
+			final int digit = Character.digit(c, 16);
+			if (digit >= 0) {
+				wap_id = wap_id << 4 | digit;
+				digits += 1;
+			} else if (c != ':' && c != '-') {
+				digits = -1;
+				break;
+			}
+		}
+		if (digits != 12) {
+			return UNPARSED_BSSID | (bssid.hashCode() & 0xffffffffL);
+		}
+		return wap_id;
+	}
+
+	/* WAP ids, sorted, and the corresponding signal strengths. */
+	protected long[] wapIds;
+	protected short[] strengths;
 	protected int num_measurements;
 	protected double timestamp;
 
@@ -40,54 +108,74 @@ public class WifiObservation extends Observation {
 	 */
 	public WifiObservation(final double timestamp, final int size) {
 		this.timestamp = timestamp;
-		measurements = new HashMap<Integer, Integer>((int) (size / 0.75f));
+		wapIds = new long[Math.max(1, size)];
+		strengths = new short[wapIds.length];
 		num_measurements = 0;
 	}
 
 	/**
-	 * Adds a new measurement to this observation.
+	 * Adds a new measurement to this observation. If the WAP has already been
+	 * measured, the new signal strength replaces the old one.
 	 * 
 	 * @param ap_id
-	 *            The id of the WAP
+	 *            The id of the WAP, from {@link #parseBSSID(String)}.
 	 * @param signal_strength
 	 *            Signal strength measurement (RSSI)
 	 */
-	public void addMeasurement(final int ap_id, final int signal_strength) {
-		measurements.put(ap_id, signal_strength);
-		num_measurements += 1;
+	public void addMeasurement(final long ap_id, final int signal_strength) {
+		int i = Arrays.binarySearch(wapIds, 0, num_measurements, ap_id);
+		if (i < 0) {
+			i = -i - 1;
+			if (num_measurements == wapIds.length) {
+				final long[] grownIds = new long[wapIds.length * 2];
+				final short[] grownStrengths = new short[grownIds.length];
+				System.arraycopy(wapIds, 0, grownIds, 0, num_measurements);
+				System.arraycopy(strengths, 0, grownStrengths, 0,
+						num_measurements);
+				wapIds = grownIds;
+				strengths = grownStrengths;
+			}
+			System.arraycopy(wapIds, i, wapIds, i + 1, num_measurements - i);
+			System.arraycopy(strengths, i, strengths, i + 1, num_measurements
+					- i);
+			wapIds[i] = ap_id;
+			num_measurements += 1;
+		}
+		strengths[i] = (short) signal_strength;
 	}
 
 	@Override
 	public double distanceFrom(final Observation other) {
 		final WifiObservation observation = (WifiObservation) other;
 
-		// p1 will be the observation with the fewest measurements, to
-		// speed up the distance calculation by having fewer iterations in
-		// distance calculation loop.
-		WifiObservation p1, p2;
+		/*
+		 * Both sets of measurements are sorted by WAP id, so the common WAPs
+		 * are found by walking them together.
+		 */
+		final long[] ids1 = wapIds;
+		final long[] ids2 = observation.wapIds;
+		final int n1 = num_measurements;
+		final int n2 = observation.num_measurements;
 		int num_common = 0; // |C| in the paper
 		double dist = 0.0f;
-		if (this.num_measurements <= observation.num_measurements) {
-			p1 = this;
-			p2 = observation;
-		} else {
-			p1 = observation;
-			p2 = this;
-		}
-
-		Integer strength1;
-		Integer strength2;
-
-		for (final Map.Entry<Integer, Integer> entry : p1.measurements
-				.entrySet()) {
-			strength1 = p2.measurements.get(entry.getKey());
-			if (strength1 != null) {
-				strength2 = entry.getValue();
-				dist += (strength1 - strength2) * (strength1 - strength2);
+		int i = 0;
+		int j = 0;
+		while (i < n1 && j < n2) {
+			if (ids1[i] < ids2[j]) {
+				i++;
+			} else if (ids1[i] > ids2[j]) {
+				j++;
+			} else {
+				final int diff = strengths[i] - observation.strengths[j];
+				dist += diff * diff;
 				num_common += 1;
+				i++;
+				j++;
 			}
 		}
-		if ((float) num_common / (float) p2.num_measurements > ETA) {
+
+		// The fraction of common WAPs is taken over the larger observation.
+		if ((float) num_common / (float) Math.max(n1, n2) > ETA) {
 			dist = Math.sqrt((1.0f / num_common) * dist);
 		} else {
 			dist = Double.POSITIVE_INFINITY;
@@ -100,6 +188,25 @@ public class WifiObservation extends Observation {
 		return 6.0;
 	}
 
+	/**
+	 * @return The number of WAPs measured in this observation.
+	 */
+	public int getNumMeasurements() {
+		return num_measurements;
+	}
+
+	/**
+	 * Returns the signal strength of a measurement.
+	 * 
+	 * @param i
+	 *            The index of the measurement, less than
+	 *            {@link #getNumMeasurements()}.
+	 * @return The signal strength.
+	 */
+	public int getStrength(final int i) {
+		return strengths[i];
+	}
+
 	/**
 	 * @return The timestamp, in milliseconds, associated with this observation.
 	 */
@@ -107,12 +214,24 @@ public class WifiObservation extends Observation {
 		return timestamp;
 	}
 
+	/**
+	 * Returns the WAP id of a measurement. Measurements are sorted by WAP id.
+	 * 
+	 * @param i
+	 *            The index of the measurement, less than
+	 *            {@link #getNumMeasurements()}.
+	 * @return The WAP id.
+	 */
+	public long getWapId(final int i) {
+		return wapIds[i];
+	}
+
 	@Override
 	public String toString() {
 		final StringBuilder sb = new StringBuilder();
-		for (final Entry<Integer, Integer> entry : measurements.entrySet()) {
-			sb.append("\tWapId: " + entry.getKey() + ", Strength: "
-					+ entry.getValue() + "\n");
+		for (int i = 0; i < num_measurements; i++) {
+			sb.append("\tWapId: " + formatBSSID(wapIds[i]) + ", Strength: "
+					+ strengths[i] + "\n");
 		}
 		return sb.toString();
 
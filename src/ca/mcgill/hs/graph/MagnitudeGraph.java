@@ -18,7 +18,17 @@ import ca.mcgill.hs.util.Log;
 public class MagnitudeGraph extends Activity {
 
 	public static interface GraphClosedRunnable extends Runnable {
-		public void setLabelData(String label, float[] data);
+		/**
+		 * Receives the selected segment.
+		 * 
+		 * @param label
+		 *            The label given to the segment.
+		 * @param startIndex
+		 *            Index of the first selected value in the graphed values.
+		 * @param data
+		 *            The selected values.
+		 */
+		public void setLabelData(String label, int startIndex, float[] data);
 	}
 
 	private static final String TAG = "MagnitudeGraph";
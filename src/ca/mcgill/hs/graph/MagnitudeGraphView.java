@@ -960,7 +960,8 @@ public class MagnitudeGraphView extends View {
 												- indexStart + 1; i++) {
 											data[i] = values[i + indexStart];
 										}
-										onGraphClosed.setLabelData(label, data);
+										onGraphClosed.setLabelData(label,
+												indexStart, data);
 										thisView.post(onGraphClosed);
 									}
 									((MagnitudeGraph) thisView.getContext())
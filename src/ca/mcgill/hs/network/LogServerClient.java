@@ -5,28 +5,371 @@
  */
 package ca.mcgill.hs.network;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Random;
 
+import android.os.Process;
 import ca.mcgill.hs.util.Log;
 
 /**
  * Used for demos, this allows the app to connect to a logging server running on
- * another computer, and send data for visualisation. We create two data
- * streams, one for sending the class labels from the classifier, and one for
- * sending the raw sensor data.
+ * another computer, and send data for visualisation. Several channels, such as
+ * one for the class probabilities from the classifier and one for the raw
+ * sensor data, share a single connection.
+ * <p>
+ * Vectors passed to {@link Channel#send(float[])} are queued, and a
+ * background thread packs them into batches, which it writes to the
+ * connection through a buffer. A batch is written once it is
+ * {@link #FLUSH_INTERVAL_MS} old or fills the buffer, so the connection sees a
+ * few large writes rather than one per float. The queue holds at most
+ * {@link #MAX_QUEUED} vectors; if the server or network cannot keep up, new
+ * vectors are dropped rather than holding up the classifier.
+ * <p>
+ * The server acknowledges every frame. If the connection fails, or a frame is
+ * not acknowledged within {@link #ACK_TIMEOUT_MS}, the frames that were not
+ * acknowledged, and those written until the connection is re-established, are
+ * appended to a backlog file of at most {@link #MAX_BACKLOG_BYTES}, which is
+ * replayed once it is. Reconnection is retried with exponential backoff, from
+ * {@link #MIN_BACKOFF_MS} up to {@link #MAX_BACKOFF_MS}. A frame whose
+ * acknowledgement was lost is sent twice, which the server detects from the
+ * index of the first vector in each batch.
+ * <p>
+ * The protocol is binary, and all numbers are big-endian. On connecting, the
+ * client sends {@link #MAGIC} (an int), {@link #VERSION} (a short) and a
+ * random session number (a long), which stays the same when the client
+ * reconnects, and the server answers with the magic and version. The rest is
+ * a sequence of frames, each made of its type (a byte), its channel (a byte),
+ * its sequence number on the connection (an int, starting from 0), and the
+ * length of its payload (an int) followed by the payload:
+ * <ul>
+ * <li>{@link #FRAME_OPEN} starts the channel, and is sent again on each new
+ * connection. The payload is its name, as written by
+ * {@link DataOutputStream#writeUTF(String)}, the length of its vectors (an
+ * int), and the tab-separated labels of the vector elements, also written by
+ * writeUTF.</li>
+ * <li>{@link #FRAME_DATA} holds a batch. The payload is the index of its first
+ * vector on the channel (a long) and the number of vectors (an int), followed
+ * by their elements as floats, one vector after the other.</li>
+ * <li>{@link #FRAME_END} ends the channel, and has no payload.</li>
+ * <li>{@link #FRAME_ACK} is sent by the server, with the sequence number of
+ * the frame it acknowledges, channel 0 and no payload.</li>
+ * </ul>
+ * LocalLogServer, in the test sources, implements the server side.
  * 
  * @author Jordan Frank <jordan.frank@cs.mcgill.ca>
  * 
  */
 public class LogServerClient {
+
+	/**
+	 * A stream of vectors of the same length, such as the class probabilities
+	 * from the classifier, sent to the server.
+	 */
+	public final class Channel {
+		private final byte id;
+		private final byte[] openFrame;
+		private final int width;
+
+		// The frame of the batch being packed, and the index of the next
+		// vector, used by the sender only.
+		private final ByteBuffer batch;
+		private int batchSize = 0;
+		private long batchTime = 0;
+		private long nextIndex = 0;
+		private boolean ended = false;
+
+		/* Guarded by the client. */
+		private boolean closed = false;
+
+		private Channel(final int id, final String name,
+				final List<String> labels) throws IOException {
+			this.id = (byte) id;
+			width = labels.size();
+			final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+			final DataOutputStream out = new DataOutputStream(payload);
+			out.writeUTF(name);
+			out.writeInt(width);
+			out.writeUTF(joinCommas(labels));
+			final ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE
+					+ payload.size());
+			frame.put(FRAME_OPEN);
+			frame.put(this.id);
+			frame.putInt(0);
+			frame.putInt(payload.size());
+			frame.put(payload.toByteArray());
+			openFrame = frame.array();
+			batch = ByteBuffer.allocate(Math.max(BUFFER_SIZE,
+					FRAME_HEADER_SIZE + 12 + 4 * width));
+		}
+
+		/**
+		 * Ends the channel once the vectors already sent have been written.
+		 */
+		public void close() {
+			synchronized (LogServerClient.this) {
+				if (!closed) {
+					closed = true;
+					offer(new Entry(this, null, FRAME_END));
+				}
+			}
+		}
+
+		/**
+		 * Returns the frame of the batch being packed, if any, and starts a
+		 * new batch.
+		 */
+		private Frame endBatch() {
+			if (batchSize == 0) {
+				return null;
+			}
+			batch.putInt(6, batch.position() - FRAME_HEADER_SIZE);
+			batch.putInt(FRAME_HEADER_SIZE + 8, batchSize);
+			final byte[] data = new byte[batch.position()];
+			System.arraycopy(batch.array(), 0, data, 0, data.length);
+			final Frame frame = new Frame(data, batchTime, batchSize);
+			batch.clear();
+			batchSize = 0;
+			return frame;
+		}
+
+		/**
+		 * Adds a vector to the batch being packed, starting a new batch if
+		 * need be.
+		 * 
+		 * @return The frame of the previous batch, if the vector did not fit
+		 *         in it, or null.
+		 */
+		private Frame pack(final float[] vector, final long time) {
+			Frame full = null;
+			if (batchSize > 0 && batch.remaining() < 4 * width) {
+				full = endBatch();
+			}
+			if (batchSize == 0) {
+				batch.put(FRAME_DATA);
+				batch.put(id);
+				batch.putInt(0);
+				batch.putInt(0);
+				batch.putLong(nextIndex);
+				batch.putInt(0);
+				batchTime = time;
+			}
+			for (final float f : vector) {
+				batch.putFloat(f);
+			}
+			batchSize += 1;
+			nextIndex += 1;
+			return full;
+		}
+
+		/**
+		 * Queues a vector to be sent. The vector is copied, so the caller may
+		 * reuse it.
+		 * 
+		 * @param vector
+		 *            The vector, which must have one element for each label
+		 *            the channel was opened with.
+		 * @return True if the vector was queued, or false if it was dropped,
+		 *         because the queue is full, the client is disconnected, or
+		 *         the vector has the wrong length.
+		 */
+		public boolean send(final float[] vector) {
+			synchronized (LogServerClient.this) {
+				if (closed || vector.length != width) {
+					return false;
+				}
+				if (queue.size() >= MAX_QUEUED) {
+					numDropped += 1;
+					return false;
+				}
+				return offer(new Entry(this, vector.clone(), FRAME_DATA));
+			}
+		}
+	}
+
+	/* A vector waiting to be packed, or the start or end of a channel. */
+	private static final class Entry {
+		private final Channel channel;
+		private final float[] vector;
+		private final byte type;
+		private final long time = System.currentTimeMillis();
+
+		private Entry(final Channel channel, final float[] vector,
+				final byte type) {
+			this.channel = channel;
+			this.vector = vector;
+			this.type = type;
+		}
+	}
+
+	/* A frame waiting to be written or acknowledged. */
+	private static final class Frame {
+		private final byte[] data;
+		private final long time;
+		private final int numVectors;
+		private int sequence;
+		private long written;
+
+		private Frame(final byte[] data, final long time,
+				final int numVectors) {
+			this.data = data;
+			this.time = time;
+			this.numVectors = numVectors;
+		}
+	}
+
+	/**
+	 * Statistics on the vectors sent by a client since it connected.
+	 */
+	public static final class Stats {
+		/** Whether the connection to the server is up. */
+		public final boolean connected;
+
+		/** The number of vectors queued. */
+		public final int vectorsSent;
+
+		/** The number of vectors acknowledged by the server. */
+		public final int vectorsAcknowledged;
+
+		/**
+		 * The number of vectors dropped because the queue or the backlog was
+		 * full.
+		 */
+		public final int vectorsDropped;
+
+		/** The number of bytes acknowledged by the server. */
+		public final long bytesAcknowledged;
+
+		/** The number of vectors acknowledged per second. */
+		public final float vectorsPerSecond;
+
+		/** The number of bytes acknowledged per second. */
+		public final float bytesPerSecond;
+
+		/**
+		 * The mean time from the first vector of a batch being queued to the
+		 * batch being acknowledged, in milliseconds.
+		 */
+		public final long meanLatencyMs;
+
+		/** The longest such time, in milliseconds. */
+		public final long maxLatencyMs;
+
+		/** The number of times the connection was re-established. */
+		public final int reconnects;
+
+		/** The number of bytes in the backlog. */
+		public final long backlogBytes;
+
+		private Stats(final LogServerClient client) {
+			connected = client.socket != null;
+			vectorsSent = client.numSent;
+			vectorsAcknowledged = client.numAcknowledged;
+			vectorsDropped = client.numDropped;
+			bytesAcknowledged = client.bytesAcknowledged;
+			final float seconds = Math.max(1, System.currentTimeMillis()
+					- client.connectTime) / 1000f;
+			vectorsPerSecond = vectorsAcknowledged / seconds;
+			bytesPerSecond = bytesAcknowledged / seconds;
+			meanLatencyMs = client.numLatencies == 0 ? 0 : client.totalLatency
+					/ client.numLatencies;
+			maxLatencyMs = client.maxLatency;
+			reconnects = client.numReconnects;
+			backlogBytes = client.backlogBytes;
+		}
+
+		@Override
+		public String toString() {
+			return "connected=" + connected + " sent=" + vectorsSent
+					+ " acknowledged=" + vectorsAcknowledged + " dropped="
+					+ vectorsDropped + " rate=" + vectorsPerSecond
+					+ "/s bytes=" + bytesAcknowledged + " (" + bytesPerSecond
+					+ "B/s) latency=" + meanLatencyMs + "ms max="
+					+ maxLatencyMs + "ms reconnects=" + reconnects
+					+ " backlog=" + backlogBytes;
+		}
+	}
+
 	private static final String TAG = "LogServerClient";
 
+	/** The first int sent by the client and the server on connecting. */
+	public static final int MAGIC = 0x48534c47;
+
+	/** The version of the protocol. */
+	public static final short VERSION = 2;
+
+	/** The type of the frame that opens a channel. */
+	public static final byte FRAME_OPEN = 1;
+
+	/** The type of a frame holding a batch of vectors. */
+	public static final byte FRAME_DATA = 2;
+
+	/** The type of the frame that ends a channel. */
+	public static final byte FRAME_END = 3;
+
+	/** The type of the frame with which the server acknowledges a frame. */
+	public static final byte FRAME_ACK = 4;
+
+	/**
+	 * The length of the type, channel, sequence number and length of a frame.
+	 */
+	public static final int FRAME_HEADER_SIZE = 10;
+
+	/** The longest a vector waits before it is written, in milliseconds. */
+	public static final long FLUSH_INTERVAL_MS = 250;
+
+	/** The most vectors that may wait to be written. */
+	public static final int MAX_QUEUED = 256;
+
+	/**
+	 * The longest the server may take to acknowledge a frame before the
+	 * connection is given up, in milliseconds.
+	 */
+	public static final long ACK_TIMEOUT_MS = 15 * 1000;
+
+	/** The most data that may wait in the backlog to be replayed. */
+	public static final long MAX_BACKLOG_BYTES = 1024 * 1024;
+
+	/** The first delay before reconnecting, in milliseconds. */
+	public static final long MIN_BACKOFF_MS = 1000;
+
+	/** The longest delay before reconnecting, in milliseconds. */
+	public static final long MAX_BACKOFF_MS = 60 * 1000;
+
+	/*
+	 * The size of the buffer through which frames are written, and of the
+	 * largest batch unless a single vector is larger.
+	 */
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	/*
+	 * The most data written but not acknowledged, past which the connection
+	 * is given up.
+	 */
+	private static final int MAX_UNACKNOWLEDGED_BYTES = 256 * 1024;
+
+	private static final int CONNECT_TIMEOUT_MS = 5000;
+
+	/* The longest disconnect() waits for the last frames to be acknowledged. */
+	private static final long DISCONNECT_TIMEOUT_MS = 2000;
+
+	private static final Random random = new Random();
+
 	private static String joinCommas(final List<String> list) {
 		if (list.size() == 0) {
 			return "";
@@ -41,17 +384,37 @@ public class LogServerClient {
 
 	private final InetSocketAddress sockAddr;
 
-	private Socket classSock = null;
+	private File backlog = null;
 
-	private DataOutputStream classOut = null;
+	/* Used by the sender only, once connected. */
+	private final ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private final List<Channel> opened = new ArrayList<Channel>();
+	private Thread sender = null;
+	private DataOutputStream backlogOut = null;
+	private int sequence = 0;
 
-	private DataInputStream classIn = null;
+	/* Guarded by this. */
+	private final LinkedList<Entry> queue = new LinkedList<Entry>();
+	private final LinkedList<Frame> unacknowledged = new LinkedList<Frame>();
+	private final List<Channel> channels = new ArrayList<Channel>();
+	private SocketChannel socket = null;
+	private long session;
+	private boolean active = false;
+	private boolean failed = false;
+	private boolean shutdown = false;
+	private int unacknowledgedBytes = 0;
+	private long backlogBytes = 0;
 
-	private Socket cdataSock = null;
-
-	private DataOutputStream cdataOut = null;
-
-	private DataInputStream cdataIn = null;
+	/* Statistics, guarded by this. */
+	private long connectTime;
+	private int numSent = 0;
+	private int numDropped = 0;
+	private int numAcknowledged = 0;
+	private long bytesAcknowledged = 0;
+	private int numLatencies = 0;
+	private long totalLatency = 0;
+	private long maxLatency = 0;
+	private int numReconnects = 0;
 
 	/**
 	 * Creates a client and sets up the socket connection to localhost, port
@@ -75,137 +438,664 @@ public class LogServerClient {
 	}
 
 	/**
-	 * Returns the stream for sending the raw sensor data.
+	 * Handles the acknowledgement of a frame, and of those written before it,
+	 * unless it comes from a connection that has been given up.
+	 */
+	private synchronized void acknowledge(final SocketChannel connection,
+			final int sequence) {
+		if (socket != connection) {
+			return;
+		}
+		final long now = System.currentTimeMillis();
+		while (!unacknowledged.isEmpty()
+				&& unacknowledged.getFirst().sequence <= sequence) {
+			final Frame frame = unacknowledged.removeFirst();
+			unacknowledgedBytes -= frame.data.length;
+			bytesAcknowledged += frame.data.length;
+			if (frame.numVectors > 0) {
+				final long latency = now - frame.time;
+				numAcknowledged += frame.numVectors;
+				numLatencies += 1;
+				totalLatency += latency;
+				maxLatency = Math.max(maxLatency, latency);
+			}
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Opens the channel for sending the raw sensor data.
 	 * 
 	 * @param classNames
 	 *            The list of class labels.
-	 * @return The stream to which raw sensor data should be written.
+	 * @return The channel to which raw sensor data should be sent, or null if
+	 *         the client is not connected.
 	 */
-	public DataOutputStream cdata(final List<String> classNames) {
-		if (!isConnected()) {
-			return null;
-		} else {
+	public Channel cdata(final List<String> classNames) {
+		return open("CDATA", classNames);
+	}
+
+	/**
+	 * Opens the channel for sending the class scores.
+	 * 
+	 * @param classNames
+	 *            The list of class labels.
+	 * @return The channel to which class scores should be sent, or null if
+	 *         the client is not connected.
+	 */
+	public Channel classify(final List<String> classNames) {
+		return open("CLASSIFY", classNames);
+	}
+
+	/**
+	 * Closes the backlog file, so that it can be read or deleted.
+	 */
+	private void closeBacklog() {
+		if (backlogOut != null) {
 			try {
-				cdataOut.writeUTF("CDATA");
-				cdataOut.writeInt(classNames.size());
-				cdataOut.writeUTF(joinCommas(classNames));
-				Log.d(TAG, "Initialied CDATA Connection.");
+				backlogOut.close();
 			} catch (final IOException e) {
 				Log.e(TAG, e);
-				return null;
 			}
+			backlogOut = null;
 		}
-		return cdataOut;
 	}
 
 	/**
-	 * Returns the stream for sending the class scores.
+	 * Starts the client. Must be called before opening the channels. The
+	 * connection to the server is made in the background, and re-established
+	 * whenever it is lost, until {@link #disconnect()} is called. Until the
+	 * first connection is made, the frames written go to the backlog, as they
+	 * do when the connection is lost.
+	 */
+	public void connect() {
+		synchronized (this) {
+			if (active) {
+				return;
+			}
+			session = random.nextLong();
+			shutdown = false;
+		}
+		// A backlog left by a process that died belongs to another session,
+		// whose vector indices the server would mistake for this one's.
+		if (backlog != null) {
+			backlog.delete();
+		}
+
+		synchronized (this) {
+			active = true;
+			connectTime = System.currentTimeMillis();
+			numSent = 0;
+			numDropped = 0;
+			numAcknowledged = 0;
+			bytesAcknowledged = 0;
+			numLatencies = 0;
+			totalLatency = 0;
+			maxLatency = 0;
+			numReconnects = 0;
+		}
+		sender = new Thread(TAG) {
+			@Override
+			public void run() {
+				send();
+			}
+		};
+		sender.start();
+	}
+
+	/**
+	 * Closes the connection, once the vectors already sent have been written
+	 * and the channels ended. Frames that the server has not acknowledged
+	 * within a short time, and the backlog, are discarded. Any vectors sent
+	 * afterwards are dropped.
 	 * 
-	 * @param classNames
-	 *            The list of class labels.
-	 * @return The stream to which class scores should be written.
+	 * @throws IOException
+	 *             Thrown if the connection cannot be closed.
 	 */
-	public DataOutputStream classify(final List<String> classNames) {
-		if (!isConnected()) {
-			return null;
-		} else {
+	public void disconnect() throws IOException {
+		synchronized (this) {
+			shutdown = true;
+			notifyAll();
+		}
+		if (sender != null) {
+			try {
+				sender.join();
+			} catch (final InterruptedException e) {
+				Log.e(TAG, e);
+			}
+			sender = null;
+		}
+		final SocketChannel current;
+		synchronized (this) {
+			current = socket;
+			socket = null;
+			active = false;
+			unacknowledged.clear();
+			unacknowledgedBytes = 0;
+			channels.clear();
+		}
+		opened.clear();
+		closeBacklog();
+		if (backlog != null && backlog.length() > 0) {
+			Log.d(TAG, "Discarding " + backlog.length() + " bytes of backlog");
+			backlog.delete();
+		}
+		synchronized (this) {
+			backlogBytes = 0;
+		}
+		if (current != null) {
+			current.close();
+		}
+	}
+
+	/**
+	 * Gives up the connection, and moves the frames that have not been
+	 * acknowledged to the backlog.
+	 */
+	private void drop() {
+		final SocketChannel current;
+		final List<Frame> frames;
+		synchronized (this) {
+			current = socket;
+			socket = null;
+			failed = false;
+			frames = new ArrayList<Frame>(unacknowledged);
+			unacknowledged.clear();
+			unacknowledgedBytes = 0;
+		}
+		if (current == null) {
+			return;
+		}
+		Log.d(TAG, "Lost connection to LogServer");
+		try {
+			current.close();
+		} catch (final IOException e) {
+			Log.e(TAG, e);
+		}
+		out.clear();
+		for (final Frame frame : frames) {
+			spool(frame);
+		}
+	}
+
+	/**
+	 * Appends a frame to the buffer, writing the buffer first if the frame
+	 * does not fit, or to the backlog if there is no connection. The frame is
+	 * waiting to be acknowledged from then on, before anything is written, so
+	 * that it goes to the backlog with the others if a write fails.
+	 */
+	private void emit(final Frame frame) {
+		if (socket == null) {
+			spool(frame);
+			return;
+		}
+		frame.sequence = sequence++;
+		frame.written = System.currentTimeMillis();
+		synchronized (this) {
+			unacknowledged.add(frame);
+			unacknowledgedBytes += frame.data.length;
+		}
+		try {
+			if (out.remaining() < frame.data.length) {
+				flush();
+			}
+			if (out.remaining() < frame.data.length) {
+				// The frame is larger than the buffer, so write it directly.
+				final ByteBuffer data = ByteBuffer.wrap(frame.data);
+				data.putInt(2, frame.sequence);
+				while (data.hasRemaining()) {
+					socket.write(data);
+				}
+				return;
+			}
+			final int start = out.position();
+			out.put(frame.data);
+			out.putInt(start + 2, frame.sequence);
+		} catch (final IOException e) {
+			Log.e(TAG, e);
+			drop();
+		}
+	}
+
+	/**
+	 * Writes the batch being packed for a channel, if any, and its END frame.
+	 */
+	private void end(final Channel channel) {
+		final Frame batch = channel.endBatch();
+		if (batch != null) {
+			emit(batch);
+		}
+		final ByteBuffer end = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+		end.put(FRAME_END);
+		end.put(channel.id);
+		emit(new Frame(end.array(), System.currentTimeMillis(), 0));
+		channel.ended = true;
+	}
+
+	/**
+	 * Writes the frames in the buffer to the connection.
+	 */
+	private void flush() throws IOException {
+		out.flip();
+		while (out.hasRemaining()) {
+			socket.write(out);
+		}
+		out.clear();
+	}
+
+	/**
+	 * @return The statistics on the vectors sent since the client connected.
+	 */
+	public synchronized Stats getStats() {
+		return new Stats(this);
+	}
+
+	/**
+	 * Opens a connection to the server, and checks that the server speaks
+	 * the same protocol.
+	 */
+	private SocketChannel handshake() throws IOException {
+		final SocketChannel connection = SocketChannel.open();
+		try {
+			connection.socket().connect(sockAddr, CONNECT_TIMEOUT_MS);
+			connection.socket().setTcpNoDelay(true);
+			final ByteBuffer hello = ByteBuffer.allocate(14);
+			hello.putInt(MAGIC);
+			hello.putShort(VERSION);
+			synchronized (this) {
+				hello.putLong(session);
+			}
+			hello.flip();
+			while (hello.hasRemaining()) {
+				connection.write(hello);
+			}
+
+			connection.socket().setSoTimeout(CONNECT_TIMEOUT_MS);
+			final DataInputStream in = new DataInputStream(connection
+					.socket().getInputStream());
+			final int magic = in.readInt();
+			final short version = in.readShort();
+			if (magic != MAGIC || version != VERSION) {
+				throw new IOException("Protocol Error: server sent "
+						+ Integer.toHexString(magic) + " version " + version);
+			}
+			connection.socket().setSoTimeout(0);
+			return connection;
+		} catch (final IOException e) {
+			connection.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return True if the client has been started and not disconnected since,
+	 *         even if the connection is still being made or re-established,
+	 *         in which case the vectors sent go to the backlog.
+	 */
+	public synchronized boolean isConnected() {
+		return active;
+	}
+
+	/**
+	 * @return The next time at which the sender has something to do: write
+	 *         a batch, check for a missing acknowledgement, or reconnect.
+	 */
+	private long nextWakeup(final long nextAttempt) {
+		long wakeup = Long.MAX_VALUE;
+		for (final Channel channel : opened) {
+			if (channel.batchSize > 0) {
+				wakeup = Math.min(wakeup, channel.batchTime
+						+ FLUSH_INTERVAL_MS);
+			}
+		}
+		if (socket == null) {
+			wakeup = Math.min(wakeup, nextAttempt);
+		} else if (!unacknowledged.isEmpty()) {
+			wakeup = Math.min(wakeup, unacknowledged.getFirst().written
+					+ ACK_TIMEOUT_MS);
+		}
+		return wakeup;
+	}
+
+	/**
+	 * Queues an entry for the sender.
+	 */
+	private synchronized boolean offer(final Entry entry) {
+		if (!active || shutdown) {
+			return false;
+		}
+		queue.add(entry);
+		if (entry.vector != null) {
+			numSent += 1;
+		}
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Starts using a new connection, with a thread that reads the server's
+	 * acknowledgements, and writes the OPEN frames of the channels and then
+	 * the backlog to it.
+	 */
+	private void open(final SocketChannel connection) {
+		synchronized (this) {
+			socket = connection;
+			failed = false;
+		}
+		sequence = 0;
+		out.clear();
+		new Thread(TAG + " reader") {
+			@Override
+			public void run() {
+				receive(connection);
+			}
+		}.start();
+
+		// Even ended channels are opened again, since the backlog may hold
+		// their last frames.
+		for (final Channel channel : opened) {
+			emit(new Frame(channel.openFrame.clone(), 0, 0));
+		}
+		closeBacklog();
+		if (backlog != null && backlog.length() > 0) {
+			final List<Frame> frames = readBacklog();
+			backlog.delete();
+			synchronized (this) {
+				backlogBytes = 0;
+			}
+			for (final Frame frame : frames) {
+				emit(frame);
+			}
+		}
+		if (socket != null) {
 			try {
-				classOut.writeUTF("CLASSIFY");
-				classOut.writeInt(classNames.size());
-				classOut.writeUTF(joinCommas(classNames));
-				Log.d(TAG, "Initialied Classify Connection.");
+				flush();
 			} catch (final IOException e) {
 				Log.e(TAG, e);
-				return null;
+				drop();
 			}
 		}
-		return classOut;
 	}
 
 	/**
-	 * Initializes the connection to the server. Must be called before
-	 * retrieving the output streams.
+	 * Creates a channel, and queues its OPEN frame.
 	 */
-	public void connect() {
+	private synchronized Channel open(final String name,
+			final List<String> classNames) {
+		if (!active || channels.size() > Byte.MAX_VALUE) {
+			return null;
+		}
 		try {
-			Log.d(TAG, "Connecting to LogServer");
-			classSock = new Socket();
-			classSock.connect(sockAddr, 5000);
-			cdataSock = new Socket();
-			cdataSock.connect(sockAddr, 5000);
-			Log.d(TAG, "Sending HELLO");
-
-			classOut = new DataOutputStream(classSock.getOutputStream());
-			classIn = new DataInputStream(classSock.getInputStream());
-			classOut.writeUTF("HELLO");
-			Log.d(TAG, "Sent HELLO");
-			final String response = classIn.readLine();
-			Log.d(TAG, "Received " + response);
-			if (response.compareTo("HELLO") != 0) {
-				Log.e(TAG, "Protocol Error: Did not receive HELLO from server.");
-			} else {
-				Log.d(TAG, "Connected to Classifying LogServer.");
-			}
-
-			cdataOut = new DataOutputStream(cdataSock.getOutputStream());
-			cdataIn = new DataInputStream(cdataSock.getInputStream());
-			cdataOut.writeUTF("HELLO");
-			if (cdataIn.readLine().compareTo("HELLO") != 0) {
-				Log.e(TAG, "Protocol Error: Did not receive HELLO from server.");
-			} else {
-				Log.d(TAG, "Connected to CDATA LogServer.");
+			final Channel channel = new Channel(channels.size(), name,
+					classNames);
+			channels.add(channel);
+			offer(new Entry(channel, null, FRAME_OPEN));
+			Log.d(TAG, "Initialized " + name + " channel.");
+			return channel;
+		} catch (final IOException e) {
+			Log.e(TAG, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the frames in the backlog. A frame cut short, for example because
+	 * the phone ran out of space, ends the backlog.
+	 */
+	private List<Frame> readBacklog() {
+		final List<Frame> frames = new ArrayList<Frame>();
+		try {
+			final DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(backlog)));
+			try {
+				while (true) {
+					final long time = in.readLong();
+					final int numVectors = in.readInt();
+					final byte[] data = new byte[in.readInt()];
+					in.readFully(data);
+					frames.add(new Frame(data, time, numVectors));
+				}
+			} catch (final EOFException e) {
+				// The end of the backlog.
+			} finally {
+				in.close();
 			}
-		} catch (final UnknownHostException e) {
-			Log.e(TAG, "Unknown host: " + sockAddr.getHostName());
-			cdataSock = null;
 		} catch (final IOException e) {
-			Log.e(TAG,
-					"Could not get I/O for connection to "
-							+ sockAddr.getHostName());
-			cdataSock = null;
+			Log.e(TAG, e);
 		}
+		return frames;
 	}
 
 	/**
-	 * Closes the connections. Any attempts to write to the output streams after
-	 * calling this method will cause an exception to be thrown.
+	 * Reads acknowledgements from a connection until it is closed.
+	 */
+	private void receive(final SocketChannel connection) {
+		final ByteBuffer ack = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+		try {
+			while (true) {
+				ack.clear();
+				while (ack.hasRemaining()) {
+					if (connection.read(ack) < 0) {
+						throw new EOFException();
+					}
+				}
+				if (ack.get(0) != FRAME_ACK || ack.getInt(6) != 0) {
+					throw new IOException("Protocol Error: unexpected frame "
+							+ ack.get(0));
+				}
+				acknowledge(connection, ack.getInt(2));
+			}
+		} catch (final IOException e) {
+			synchronized (this) {
+				// Unless the sender closed the connection itself, it is told
+				// to give it up.
+				if (socket == connection) {
+					Log.d(TAG, e);
+					failed = true;
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Tries to establish the connection.
 	 * 
-	 * @throws IOException
-	 *             Thrown if any of the streams cannot be closed.
+	 * @param again
+	 *            Whether the connection was made before, and is being
+	 *            re-established.
+	 * @return True if it was established.
 	 */
-	public void disconnect() throws IOException {
-		if (cdataOut != null) {
-			cdataOut.close();
-			cdataOut = null;
+	private boolean reconnect(final boolean again) {
+		try {
+			open(handshake());
+		} catch (final UnknownHostException e) {
+			Log.e(TAG, "Unknown host: " + sockAddr.getHostName());
+			return false;
+		} catch (final IOException e) {
+			Log.d(TAG, e);
+			return false;
 		}
-		if (classOut != null) {
-			classOut.close();
-			classOut = null;
+		Log.d(TAG, again ? "Reconnected to LogServer"
+				: "Connected to LogServer");
+		synchronized (this) {
+			if (again) {
+				numReconnects += 1;
+			}
+			return socket != null;
 		}
-		if (cdataIn != null) {
-			cdataIn.close();
-			cdataIn = null;
+	}
+
+	/**
+	 * Makes the connection, packs the queued vectors into batches and writes
+	 * them, and keeps the connection up, until the client is disconnected. It
+	 * then ends the channels that are still open, and waits for the last
+	 * frames to be acknowledged.
+	 */
+	private void send() {
+		Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+		long backoff = MIN_BACKOFF_MS;
+		long nextAttempt = 0;
+		boolean connectedBefore = false;
+		while (true) {
+			final List<Entry> entries;
+			final boolean stopping;
+			final boolean lost;
+			synchronized (this) {
+				long now = System.currentTimeMillis();
+				long wakeup = nextWakeup(nextAttempt);
+				while (!shutdown && !failed && queue.isEmpty()
+						&& now < wakeup) {
+					try {
+						wait(wakeup - now);
+					} catch (final InterruptedException e) {
+						return;
+					}
+					now = System.currentTimeMillis();
+					wakeup = nextWakeup(nextAttempt);
+				}
+				entries = new ArrayList<Entry>(queue);
+				queue.clear();
+				stopping = shutdown;
+				lost = failed;
+			}
+			if (lost) {
+				drop();
+			}
+
+			final long now = System.currentTimeMillis();
+			for (final Entry entry : entries) {
+				final Channel channel = entry.channel;
+				if (entry.type == FRAME_DATA) {
+					final Frame full = channel.pack(entry.vector, entry.time);
+					if (full != null) {
+						emit(full);
+					}
+				} else if (entry.type == FRAME_OPEN) {
+					opened.add(channel);
+					emit(new Frame(channel.openFrame.clone(), entry.time, 0));
+				} else {
+					end(channel);
+				}
+			}
+			for (final Channel channel : opened) {
+				if (channel.batchSize > 0
+						&& (stopping || now >= channel.batchTime
+								+ FLUSH_INTERVAL_MS)) {
+					emit(channel.endBatch());
+				}
+			}
+			if (stopping) {
+				for (final Channel channel : opened) {
+					if (!channel.ended) {
+						end(channel);
+					}
+				}
+			}
+			if (socket != null) {
+				try {
+					flush();
+				} catch (final IOException e) {
+					Log.e(TAG, e);
+					drop();
+				}
+			}
+			if (stopping) {
+				waitForAcknowledgements();
+				return;
+			}
+
+			synchronized (this) {
+				if (socket != null && !unacknowledged.isEmpty()) {
+					if (now >= unacknowledged.getFirst().written
+							+ ACK_TIMEOUT_MS
+							|| unacknowledgedBytes > MAX_UNACKNOWLEDGED_BYTES) {
+						Log.d(TAG, "LogServer is not acknowledging frames");
+						failed = true;
+					}
+				}
+			}
+			if (socket == null && now >= nextAttempt) {
+				if (reconnect(connectedBefore)) {
+					connectedBefore = true;
+					backoff = MIN_BACKOFF_MS;
+				} else {
+					nextAttempt = now + backoff;
+					backoff = Math.min(2 * backoff, MAX_BACKOFF_MS);
+				}
+			}
 		}
-		if (classIn != null) {
-			classIn.close();
-			classIn = null;
+	}
+
+	/**
+	 * Sets the file in which to keep the frames written while the connection
+	 * is down. Without one, they are dropped.
+	 * 
+	 * @param backlog
+	 *            The file, which is deleted when the client connects or
+	 *            disconnects.
+	 */
+	public void setBacklog(final File backlog) {
+		this.backlog = backlog;
+	}
+
+	/**
+	 * Appends a frame to the backlog, unless the backlog is full. OPEN frames
+	 * are not kept, since every new connection starts with those of all the
+	 * channels.
+	 */
+	private void spool(final Frame frame) {
+		if (frame.data[0] == FRAME_OPEN) {
+			return;
 		}
-		if (cdataSock != null) {
-			cdataSock.close();
-			cdataSock = null;
+		synchronized (this) {
+			if (backlog == null
+					|| frame.data[0] == FRAME_DATA
+					&& backlogBytes + frame.data.length > MAX_BACKLOG_BYTES) {
+				numDropped += frame.numVectors;
+				return;
+			}
+			backlogBytes += frame.data.length;
 		}
-		if (classSock != null) {
-			classSock.close();
-			classSock = null;
+		try {
+			if (backlogOut == null) {
+				backlogOut = new DataOutputStream(new BufferedOutputStream(
+						new FileOutputStream(backlog, true)));
+			}
+			backlogOut.writeLong(frame.time);
+			backlogOut.writeInt(frame.numVectors);
+			backlogOut.writeInt(frame.data.length);
+			backlogOut.write(frame.data);
+		} catch (final IOException e) {
+			Log.e(TAG, e);
+			synchronized (this) {
+				numDropped += frame.numVectors;
+			}
 		}
 	}
 
+	@Override
+	public synchronized String toString() {
+		return getStats().toString();
+	}
+
 	/**
-	 * @return True if the connection to the server is active, or false
-	 *         otherwise.
+	 * Waits a short time for the frames written to be acknowledged.
 	 */
-	public boolean isConnected() {
-		return (cdataSock != null && classSock != null);
+	private void waitForAcknowledgements() {
+		final long deadline = System.currentTimeMillis()
+				+ DISCONNECT_TIMEOUT_MS;
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			while (socket != null && !failed && !unacknowledged.isEmpty()
+					&& now < deadline) {
+				try {
+					wait(deadline - now);
+				} catch (final InterruptedException e) {
+					return;
+				}
+				now = System.currentTimeMillis();
+			}
+		}
 	}
-
 }
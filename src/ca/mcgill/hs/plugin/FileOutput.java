@@ -10,6 +10,7 @@ import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
@@ -29,8 +30,12 @@ import ca.mcgill.hs.plugin.GSMLogger.GSMPacket;
 import ca.mcgill.hs.plugin.LocationLogger.LocationPacket;
 import ca.mcgill.hs.plugin.SensorLogger.SensorPacket;
 import ca.mcgill.hs.plugin.WifiLogger.WifiPacket;
+import ca.mcgill.hs.prefs.HSAndroidPreferences;
 import ca.mcgill.hs.prefs.PreferenceFactory;
 import ca.mcgill.hs.serv.LogFileUploaderService;
+import ca.mcgill.hs.uploader.NetworkHelper;
+import ca.mcgill.hs.uploader.SegmentStreamer;
+import ca.mcgill.hs.uploader.UploadScheduler;
 import ca.mcgill.hs.util.Log;
 
 /**
@@ -38,6 +43,10 @@ import ca.mcgill.hs.util.Log;
  * be specified in this file, and so it needs to be updated in order to be able
  * to handle new sources of data.
  * 
+ * If the preference is set, the data written to the live files is also
+ * streamed to the server by a {@link SegmentStreamer} as it is written, a few
+ * seconds at a time, so that it need not wait for the files to be rolled over.
+ * 
  */
 public class FileOutput extends OutputPlugin {
 
@@ -223,6 +232,12 @@ public class FileOutput extends OutputPlugin {
 	// each input plugin connected.
 	private final HashMap<Integer, DataOutputStream> fileHandles = new HashMap<Integer, DataOutputStream>();
 
+	// The segmenter of each file that is being streamed, by packet id.
+	private final HashMap<Integer, SegmentStreamer.Segmenter> segmenters = new HashMap<Integer, SegmentStreamer.Segmenter>();
+
+	// Streams the live files to the server, or null if they are not streamed.
+	private SegmentStreamer streamer = null;
+
 	// Size of BufferedOutputStream buffer
 	private int bufferSize;
 
@@ -230,12 +245,13 @@ public class FileOutput extends OutputPlugin {
 	private static final String BUFFER_SIZE_KEY = "fileOutputBufferSize";
 	private static final String ROLLOVER_INTERVAL_KEY = "fileOutputRolloverInterval";
 	private static final String FILE_OUTPUT_LOG_SENSOR_DATA = "fileOutputLogSensorDataFlag";
+	private static final String FILE_OUTPUT_STREAM_LIVE = "fileOutputStreamLive";
 
 	/**
 	 * @see OutputPlugin#getPreferences(PreferenceActivity)
 	 */
 	public static Preference[] getPreferences(final PreferenceActivity activity) {
-		final Preference[] prefs = new Preference[4];
+		final Preference[] prefs = new Preference[5];
 
 		prefs[0] = PreferenceFactory.getCheckBoxPreference(activity,
 				FILE_OUTPUT_ENABLED_PREF,
@@ -261,10 +277,31 @@ public class FileOutput extends OutputPlugin {
 				R.string.fileoutput_log_sensor_data_pref_summary,
 				R.string.fileoutput_log_sensor_data_pref_on,
 				R.string.fileoutput_log_sensor_data_pref_off, false);
+		prefs[4] = PreferenceFactory.getCheckBoxPreference(activity,
+				FILE_OUTPUT_STREAM_LIVE,
+				R.string.fileoutput_stream_live_pref_label,
+				R.string.fileoutput_stream_live_pref_summary,
+				R.string.fileoutput_stream_live_pref_on,
+				R.string.fileoutput_stream_live_pref_off, false);
 
 		return prefs;
 	}
 
+	/**
+	 * Returns the interval at which log files are rolled over. The files from
+	 * one interval are moved to the recent directory together, and are
+	 * uploaded together when bundling is enabled.
+	 * 
+	 * @param prefs
+	 *            The shared preferences.
+	 * @return The interval in milliseconds, or -1 if files are never rolled
+	 *         over.
+	 */
+	public static long getRolloverInterval(final SharedPreferences prefs) {
+		return Long.parseLong(prefs.getString(ROLLOVER_INTERVAL_KEY,
+				FILE_ROLLOVER_INTERVAL_DEFAULT));
+	}
+
 	/**
 	 * @see OutputPlugin#hasPreferences()
 	 */
@@ -333,6 +370,7 @@ public class FileOutput extends OutputPlugin {
 			}
 		}
 		fileHandles.clear();
+		segmenters.clear();
 
 		// In this block, we move all files that are in live (the most recent
 		// files) into the recent directory.
@@ -426,9 +464,16 @@ public class FileOutput extends OutputPlugin {
 					fh.createNewFile();
 				}
 				Log.i("File Output", "File to write: " + fh.getName());
-				fileHandles.put(id, new DataOutputStream(
-						new BufferedOutputStream(new GZIPOutputStream(
-								new FileOutputStream(fh), bufferSize))));
+				OutputStream out = new BufferedOutputStream(
+						new GZIPOutputStream(new FileOutputStream(fh),
+								bufferSize));
+				if (streamer != null) {
+					final SegmentStreamer.Segmenter segmenter = streamer.open(
+							fh.getName(), out);
+					segmenters.put(id, segmenter);
+					out = segmenter;
+				}
+				fileHandles.put(id, new DataOutputStream(out));
 			} catch (final IOException e) {
 				Log.e(PLUGIN_NAME, "Caught IOException");
 				Log.e(PLUGIN_NAME, e);
@@ -498,6 +543,10 @@ public class FileOutput extends OutputPlugin {
 		} else {
 			Log.e(PLUGIN_NAME, "Unknown packet id: " + id);
 		}
+		final SegmentStreamer.Segmenter segmenter = segmenters.get(id);
+		if (segmenter != null) {
+			segmenter.sealIfDue(currentTimeMillis);
+		}
 		numThreadsWriting--;
 	}
 
@@ -510,6 +559,8 @@ public class FileOutput extends OutputPlugin {
 		rolloverInterval = Integer.parseInt(prefs.getString(
 				ROLLOVER_INTERVAL_KEY, FILE_ROLLOVER_INTERVAL_DEFAULT));
 		logSensorData = prefs.getBoolean(FILE_OUTPUT_LOG_SENSOR_DATA, true);
+		setStreaming(pluginEnabled
+				&& prefs.getBoolean(FILE_OUTPUT_STREAM_LIVE, false));
 		if (pluginEnabled) {
 			Log.d(PLUGIN_NAME, "Plugin enabled.");
 		}
@@ -527,6 +578,7 @@ public class FileOutput extends OutputPlugin {
 
 		// Close all open files.
 		closeAll();
+		setStreaming(false);
 
 		pluginStopping = false;
 	}
@@ -542,6 +594,43 @@ public class FileOutput extends OutputPlugin {
 				BUFFER_SIZE_DEFAULT));
 		logSensorData = prefs.getBoolean(FILE_OUTPUT_LOG_SENSOR_DATA, false);
 		super.changePluginEnabledStatus(pluginEnabledNew);
+		setStreaming(pluginEnabled
+				&& prefs.getBoolean(FILE_OUTPUT_STREAM_LIVE, false));
+	}
+
+	/**
+	 * Starts or stops streaming the live files. Files that are already open
+	 * are only streamed if they were opened while streaming was on, until
+	 * streaming is turned off. Like the uploads, the streaming only sends data
+	 * over Wi-Fi or while the phone is charging if the user asks for it.
+	 * 
+	 * @param streaming
+	 *            Whether the live files should be streamed.
+	 */
+	private synchronized void setStreaming(final boolean streaming) {
+		if (streaming && streamer == null) {
+			streamer = new SegmentStreamer(new File(context.getCacheDir(),
+					"stream"), LogFileUploaderService.STREAM_URL, NetworkHelper
+					.getMacAddress(context));
+			final UploadScheduler scheduler = new UploadScheduler(
+					UploadScheduler.ELAPSED_REALTIME, NetworkHelper.sRandom);
+			streamer.setGate(new SegmentStreamer.Gate() {
+				public boolean canSend() {
+					// The preferences may change while streaming.
+					scheduler.setRequireUnmetered(prefs.getBoolean(
+							HSAndroidPreferences.UPLOAD_OVER_WIFI_ONLY_PREF,
+							false));
+					scheduler.setRequireCharging(prefs.getBoolean(
+							HSAndroidPreferences.UPLOAD_CHARGING_ONLY_PREF,
+							false));
+					return NetworkHelper.canUpload(context, scheduler);
+				}
+			});
+		} else if (!streaming && streamer != null) {
+			streamer.shutdown();
+			Log.i(PLUGIN_NAME, "Streaming statistics: " + streamer);
+			streamer = null;
+		}
 	}
 
 }
@@ -245,8 +245,8 @@ public class LocationClusterer extends OutputPlugin {
 			final String[] bssids = wifiPacket.BSSIDs;
 			final int[] signalStrengths = wifiPacket.signalStrengths;
 			for (int i = 0; i < numAccessPoints; i++) {
-				observation.addMeasurement(bssids[i].hashCode(),
-						signalStrengths[i]);
+				observation.addMeasurement(WifiObservation
+						.parseBSSID(bssids[i]), signalStrengths[i]);
 			}
 			wifiObservationQueue.add(observation);
 		}
@@ -7,13 +7,16 @@ package ca.mcgill.hs.plugin;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.FilenameFilter;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -45,10 +48,14 @@ import android.widget.Toast;
 import ca.mcgill.hs.HSAndroid;
 import ca.mcgill.hs.R;
 import ca.mcgill.hs.classifiers.AccelerometerLingeringFilter;
+import ca.mcgill.hs.classifiers.ApproximationReport;
+import ca.mcgill.hs.classifiers.BatchClassifier;
+import ca.mcgill.hs.classifiers.NativeClassifier;
 import ca.mcgill.hs.classifiers.TimeDelayEmbeddingClassifier;
 import ca.mcgill.hs.graph.MagnitudeGraph;
 import ca.mcgill.hs.network.LogServerClient;
 import ca.mcgill.hs.plugin.SensorLogger.SensorPacket;
+import ca.mcgill.hs.prefs.DeleteUnUploadedFileManager;
 import ca.mcgill.hs.prefs.ManageModelsFileManager;
 import ca.mcgill.hs.prefs.PreferenceFactory;
 import ca.mcgill.hs.util.Log;
@@ -66,9 +73,11 @@ import ca.mcgill.hs.widget.SimpleClassifierNotificationWidget;
 public final class TDEClassifierPlugin extends OutputPlugin {
 	/**
 	 * Thread for the classifier, the Handler gets notified with the starting
-	 * index in the data buffer, and passes that on to the classifier. If
-	 * connected to a remote logging server, the class probabilities are sent to
-	 * the server.
+	 * index in the data buffer, and passes that on to the classifier that the
+	 * index belongs to. If connected to a remote logging server, the class
+	 * probabilities are sent to the server. Classifiers that have been
+	 * replaced are closed here, once the windows queued for them have been
+	 * classified.
 	 * 
 	 * @author Jordan Frank <jordan.frank@cs.mcgill.ca>
 	 * 
@@ -81,14 +90,29 @@ public final class TDEClassifierPlugin extends OutputPlugin {
 			Looper.prepare();
 
 			mHandler = new Handler() {
+				private TimeDelayEmbeddingClassifier lastClassifier = null;
+
 				@Override
 				public void handleMessage(final Message msg) {
 					if (msg.what == QUIT_MESSAGE) {
+						TimeDelayEmbeddingClassifier.closeAll();
 						Looper.myLooper().quit();
 						return;
+					} else if (msg.what == RELEASE_MESSAGE) {
+						((TimeDelayEmbeddingClassifier) msg.obj).close();
+						return;
+					}
+					final TimeDelayEmbeddingClassifier classifier = (TimeDelayEmbeddingClassifier) msg.obj;
+					if (classifier != lastClassifier) {
+						// The models have been swapped, so start over.
+						lastClassifier = classifier;
+						cumulativeClassProbs = new float[classifier
+								.getNumModels()];
+						modelNames = Arrays.asList(classifier
+								.getLoadedModelNames().split("\t"));
 					}
 					final int index = msg.arg1;
-					final float[] classProbs = tdeClassifier.classify(index);
+					final float[] classProbs = classifier.classify(index);
 
 					try {
 						if (classProbs != null && classProbs.length > 0) {
@@ -106,16 +130,11 @@ public final class TDEClassifierPlugin extends OutputPlugin {
 
 					for (int i = 0; classProbs != null && i < classProbs.length; i++) {
 						cumulativeClassProbs[i] += classProbs[i];
-						if (remoteLoggingClientConnected) {
-							try {
-								remoteLoggingClassOutputStream
-										.writeFloat(classProbs[i]);
-							} catch (final IOException e) {
-								// TODO Auto-generated catch block
-								Log.e(PLUGIN_NAME, e);
-							}
-
-						}
+					}
+					// The probabilities are queued and sent in batches.
+					if (remoteLoggingClientConnected && classProbs != null
+							&& classProbs.length == remoteLoggingNumModels) {
+						remoteLoggingClassChannel.send(classProbs);
 					}
 				}
 			};
@@ -124,9 +143,13 @@ public final class TDEClassifierPlugin extends OutputPlugin {
 		}
 	}
 
-	private final static TimeDelayEmbeddingClassifier tdeClassifier = new TimeDelayEmbeddingClassifier();
+	// The classifier currently in use, and one that has been loaded to replace
+	// it but is still filling its buffer.
+	private static volatile TimeDelayEmbeddingClassifier tdeClassifier = null;
+	private static volatile TimeDelayEmbeddingClassifier pendingClassifier = null;
+	private static final Object classifierLock = new Object();
 
-	private ClassifierThread classifierThread;
+	private static volatile ClassifierThread classifierThread;
 
 	private boolean classifying = false;
 	private boolean building = false;
@@ -145,15 +168,50 @@ public final class TDEClassifierPlugin extends OutputPlugin {
 	public static final String MANAGE_MODELS_PREF = "manageModels";
 	private static final String ENABLE_REMOTE_LOGGING_KEY = "tdeClassifierEnableRemoteLogging";
 	private static final String REMOTE_LOGGING_HOST_KEY = "tdeClassifierRemoteLoggingHost";
+	private static final String COMPARE_SEARCH_PREF = "tdeClassifierCompareSearch";
+	private static final String SEARCH_MODE_KEY = "tdeClassifierSearchMode";
+	private static final String SEARCH_MODE_DEFAULT = "0";
+	private static final String MAX_MODEL_POINTS_KEY = "tdeClassifierMaxModelPoints";
+	private static final String MAX_MODEL_POINTS_DEFAULT = "0";
+	private static final String CHANNELS_KEY = "tdeClassifierChannels";
+	private static final String CHANNELS_DEFAULT = "0";
 	private final static String PLUGIN_NAME = "TDEClassifierPlugin";
+	private static final String REMOTE_LOGGING_BACKLOG = "logserver.backlog";
+	private static final String RAW_LOG_SUFFIX = "-raw.log";
 	private static final int LOG_MESSAGE = 0;
 	private static final int QUIT_MESSAGE = 1;
+	private static final int RELEASE_MESSAGE = 2;
+
+	// Error bound and search budget for each of the search modes, indexed by
+	// the values of simpleclassifier_pref_search_mode_values.
+	private static final float[] SEARCH_MODE_EPS = { 0.0f, 0.5f, 2.0f };
+	private static final int[] SEARCH_MODE_MAX_POINTS = { 0, 256, 64 };
+
+	// Sensor channels used by the models, indexed by the values of
+	// simpleclassifier_pref_channels_values. The first set is the
+	// acceleration magnitude alone, and the others start with the three
+	// acceleration axes.
+	private static final int CHANNELS_MAGNITUDE = 0;
+	private static final int CHANNELS_MAGNETIC_FIELD = 2;
+	private static final int CHANNELS_ORIENTATION = 3;
+	private static final int[] CHANNEL_COUNTS = { 1, 3, 6, 6 };
+
+	// Embedding parameters for new models. Multi-channel models embed each
+	// channel in MODEL_CHANNEL_DIM dimensions.
+	private static final int MODEL_EMBEDDING_DIM = 9;
+	private static final int MODEL_CHANNEL_DIM = 3;
+	private static final int MODEL_PCA_DIM = 9;
+	private static final int MODEL_DELAY = 3;
+
+	// Current search mode parameters.
+	private static float searchEps = 0.0f;
+	private static int searchMaxPointsVisited = 0;
 
 	/**
 	 * @see OutputPlugin#getPreferences(PreferenceActivity)
 	 */
 	public static Preference[] getPreferences(final PreferenceActivity activity) {
-		final Preference[] prefs = new Preference[6];
+		final Preference[] prefs = new Preference[10];
 
 		prefs[0] = PreferenceFactory.getCheckBoxPreference(activity,
 				PLUGIN_ACTIVE_KEY, R.string.simpleclassifier_enable_pref_label,
@@ -201,6 +259,39 @@ public final class TDEClassifierPlugin extends OutputPlugin {
 				R.string.simpleclassifier_remote_logging_host_pref_dialogmsg,
 				R.string.simpleclassifier_remote_logging_host_pref_dialogtitle,
 				"");
+
+		prefs[6] = PreferenceFactory.getListPreference(activity,
+				R.array.simpleclassifier_pref_search_mode_strings,
+				R.array.simpleclassifier_pref_search_mode_values,
+				SEARCH_MODE_DEFAULT, SEARCH_MODE_KEY,
+				R.string.simpleclassifier_search_mode_pref_label,
+				R.string.simpleclassifier_search_mode_pref_summary);
+
+		prefs[7] = PreferenceFactory.getButtonPreference(activity,
+				COMPARE_SEARCH_PREF,
+				R.string.simpleclassifier_compare_search_pref_label,
+				R.string.simpleclassifier_compare_search_pref_summary);
+		prefs[7].setOnPreferenceClickListener(new OnPreferenceClickListener() {
+			@Override
+			public boolean onPreferenceClick(final Preference preference) {
+				compareSearchModes(activity);
+				return true;
+			}
+		});
+
+		prefs[8] = PreferenceFactory.getListPreference(activity,
+				R.array.simpleclassifier_pref_max_model_points_strings,
+				R.array.simpleclassifier_pref_max_model_points_values,
+				MAX_MODEL_POINTS_DEFAULT, MAX_MODEL_POINTS_KEY,
+				R.string.simpleclassifier_max_model_points_pref_label,
+				R.string.simpleclassifier_max_model_points_pref_summary);
+
+		prefs[9] = PreferenceFactory.getListPreference(activity,
+				R.array.simpleclassifier_pref_channels_strings,
+				R.array.simpleclassifier_pref_channels_values,
+				CHANNELS_DEFAULT, CHANNELS_KEY,
+				R.string.simpleclassifier_channels_pref_label,
+				R.string.simpleclassifier_channels_pref_summary);
 		return prefs;
 	}
 
@@ -234,6 +325,194 @@ public final class TDEClassifierPlugin extends OutputPlugin {
 		return attrs;
 	}
 
+	/**
+	 * Copies a file.
+	 */
+	private static void copyFile(final File from, final File to)
+			throws IOException {
+		final FileInputStream in = new FileInputStream(from);
+		try {
+			final FileOutputStream out = new FileOutputStream(to);
+			try {
+				final byte[] buffer = new byte[8192];
+				int count;
+				while ((count = in.read(buffer)) >= 0) {
+					out.write(buffer, 0, count);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads the data a model is built from, with the values of each sample
+	 * interleaved.
+	 */
+	private static float[] readSeries(final File modelFile, final int channels)
+			throws IOException {
+		final List<String> rows = new ArrayList<String>();
+		final BufferedReader reader = new BufferedReader(new FileReader(
+				modelFile));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				rows.add(line);
+			}
+		} finally {
+			reader.close();
+		}
+		final float[] series = new float[rows.size() * channels];
+		for (int i = 0; i < rows.size(); i++) {
+			final String[] values = rows.get(i).trim().split("\\s+");
+			for (int c = 0; c < channels; c++) {
+				series[i * channels + c] = Float.parseFloat(values[c]);
+			}
+		}
+		return series;
+	}
+
+	/**
+	 * Compares each approximate search mode with exact search on the most
+	 * recent sensor log, using the models in models.ini, and shows how much
+	 * faster each one is and how often it picks the same activity. The
+	 * comparison runs in the background, and is refused until the classifier
+	 * thread has stopped, since only one thread may use the native classifier
+	 * at a time, and the thread closes it when it stops.
+	 * 
+	 * @param activity
+	 *            The activity in which to show the results.
+	 */
+	private static void compareSearchModes(final PreferenceActivity activity) {
+		final ClassifierThread thread = classifierThread;
+		if (thread != null && thread.isAlive()) {
+			Toast.makeText(activity,
+					"Cannot compare search modes while classifying",
+					Toast.LENGTH_SHORT).show();
+			return;
+		}
+		final String channels = PreferenceFactory.getSharedPreferences(
+				activity).getString(CHANNELS_KEY, CHANNELS_DEFAULT);
+		if (Integer.parseInt(channels) != CHANNELS_MAGNITUDE) {
+			Toast.makeText(activity,
+					"Search modes can only be compared for magnitude models",
+					Toast.LENGTH_SHORT).show();
+			return;
+		}
+		final String[] modes = activity.getResources().getStringArray(
+				R.array.simpleclassifier_pref_search_mode_strings);
+		Toast.makeText(activity, "Comparing search modes...",
+				Toast.LENGTH_SHORT).show();
+		new Thread(PLUGIN_NAME + " search comparison") {
+			@Override
+			public void run() {
+				final String result = compareSearchModes(modes);
+				activity.runOnUiThread(new Runnable() {
+					public void run() {
+						Toast.makeText(activity, result, Toast.LENGTH_LONG)
+								.show();
+					}
+				});
+			}
+		}.start();
+	}
+
+	/**
+	 * Runs the comparisons for {@link #compareSearchModes(PreferenceActivity)}
+	 * and returns a summary of the results.
+	 */
+	private static String compareSearchModes(final String[] modes) {
+		final File log = getLatestRawLog();
+		if (log == null) {
+			return "No sensor log to compare search modes on";
+		}
+		final float[] series;
+		try {
+			series = BatchClassifier.readMagnitudes(log);
+		} catch (final IOException e) {
+			Log.e(PLUGIN_NAME, e);
+			return "Could not read " + log.getName();
+		}
+		final StringBuilder summary = new StringBuilder(log.getName());
+		for (int i = 1; i < SEARCH_MODE_EPS.length; i++) {
+			final ApproximationReport report = TimeDelayEmbeddingClassifier
+					.compareApproximation(
+							ManageModelsFileManager.MODELS_INI_FILE, series,
+							SEARCH_MODE_EPS[i], SEARCH_MODE_MAX_POINTS[i]);
+			if (report == null) {
+				return "Could not classify " + log.getName()
+						+ " with the selected models";
+			}
+			Log.i(PLUGIN_NAME, modes[i] + " search on " + log.getName()
+					+ ": " + report);
+			summary.append("\n" + modes[i] + ": "
+					+ Math.round(report.getSpeedup() * 10) / 10.0f
+					+ "x faster, " + Math.round(report.getAgreement() * 100)
+					+ "% agreement");
+		}
+		return summary.toString();
+	}
+
+	/**
+	 * Copies the values of the given channel set from a sensor packet.
+	 * 
+	 * @param packet
+	 *            The sensor readings.
+	 * @param channelSet
+	 *            One of the CHANNELS constants other than CHANNELS_MAGNITUDE.
+	 * @param channels
+	 *            Receives the values, must hold CHANNEL_COUNTS[channelSet]
+	 *            values.
+	 */
+	private static void getChannels(final SensorPacket packet,
+			final int channelSet, final float[] channels) {
+		channels[0] = packet.x;
+		channels[1] = packet.y;
+		channels[2] = packet.z;
+		if (channelSet == CHANNELS_MAGNETIC_FIELD) {
+			System.arraycopy(packet.magfield, 0, channels, 3, 3);
+		} else if (channelSet == CHANNELS_ORIENTATION) {
+			System.arraycopy(packet.orientation, 0, channels, 3, 3);
+		}
+	}
+
+	/**
+	 * Returns the most recent sensor log, whether or not it has been uploaded.
+	 * 
+	 * @return The log, or null if there is none.
+	 */
+	private static File getLatestRawLog() {
+		final FilenameFilter filter = new FilenameFilter() {
+			public boolean accept(final File dir, final String filename) {
+				return filename.endsWith(RAW_LOG_SUFFIX);
+			}
+		};
+		File latest = null;
+		for (final File dir : new File[] {
+				DeleteUnUploadedFileManager.RECENT_FILES_DIRECTORY,
+				DeleteUnUploadedFileManager.UPLOADED_FILES_DIRECTORY }) {
+			final File[] logs = dir.listFiles(filter);
+			for (int i = 0; logs != null && i < logs.length; i++) {
+				if (latest == null
+						|| logs[i].lastModified() > latest.lastModified()) {
+					latest = logs[i];
+				}
+			}
+		}
+		return latest;
+	}
+
+	/**
+	 * @return Statistics on the delivery of the class probabilities to the
+	 *         remote logging server, or null if remote logging is off.
+	 */
+	public static synchronized LogServerClient.Stats getRemoteLoggingStats() {
+		return remoteLoggingClientConnected ? remoteLoggingClient.getStats()
+				: null;
+	}
+
 	/**
 	 * @see OutputPlugin#hasPreferences()
 	 */
@@ -255,6 +534,11 @@ public final class TDEClassifierPlugin extends OutputPlugin {
 
 	private File modelFile = null;
 
+	// Channel set used for the model being built or for classifying, and a
+	// buffer for the values of a single sample.
+	private int channelSet = CHANNELS_MAGNITUDE;
+	private final float[] sampleChannels = new float[6];
+
 	private final OnClickListener startBuildingModel = new OnClickListener() {
 		@Override
 		public void onClick(final View v) {
@@ -270,6 +554,7 @@ public final class TDEClassifierPlugin extends OutputPlugin {
 						"ERROR: Building requested while building already in progress.");
 			} else {
 				try {
+					channelSet = getChannelSet();
 					modelFile = File.createTempFile("model", ".dat");
 					modelFileWriter = new BufferedWriter(new FileWriter(
 							modelFile));
@@ -322,14 +607,13 @@ public final class TDEClassifierPlugin extends OutputPlugin {
 							ACCEL_WINDOW_KEY, ACCEL_WINDOW_DEFAULT));
 					final File modelsFile = ManageModelsFileManager.MODELS_INI_FILE;
 					if (modelsFile.canRead()) {
+						channelSet = getChannelSet();
 						loadModelNames();
 						classifierThread = new ClassifierThread();
 						classifierThread.start();
-						tdeClassifier.loadModels(modelsFile);
 						lingeringFilter = new AccelerometerLingeringFilter(
 								threshold, windowSize);
-						cumulativeClassProbs = new float[tdeClassifier
-								.getNumModels()];
+						cumulativeClassProbs = new float[modelNames.size()];
 
 						try {
 							classOutputFile = new BufferedWriter(
@@ -341,6 +625,10 @@ public final class TDEClassifierPlugin extends OutputPlugin {
 						}
 
 						classifying = true;
+						updateSearchMode();
+						// Classification starts once the models are loaded and
+						// have a full window of data.
+						loadClassifier(modelsFile);
 					} else {
 						// No Models.ini file found!
 						Log.e(PLUGIN_NAME, "Could not load models.ini from "
@@ -348,16 +636,36 @@ public final class TDEClassifierPlugin extends OutputPlugin {
 						classifying = false;
 					}
 					if (classifying && enableRemoteLogging) {
+						// The client must be done disconnecting from the last
+						// session before it connects again.
+						final Thread disconnect = remoteLoggingDisconnectThread;
+						if (disconnect != null) {
+							try {
+								disconnect.join();
+							} catch (final InterruptedException e) {
+								Log.e(PLUGIN_NAME, e);
+								return;
+							}
+						}
 						synchronized (TDEClassifierPlugin.class) {
 							if (sshForwardingEnabled) {
+								// Probabilities classified while the server is
+								// unreachable wait here until it returns.
+								remoteLoggingClient.setBacklog(new File(
+										context.getCacheDir(),
+										REMOTE_LOGGING_BACKLOG));
 								remoteLoggingClient.connect();
 								remoteLoggingClientConnected = remoteLoggingClient
 										.isConnected();
 								if (remoteLoggingClientConnected) {
-									remoteLoggingClassOutputStream = remoteLoggingClient
+									remoteLoggingNumModels = modelNames.size();
+									remoteLoggingClassChannel = remoteLoggingClient
 											.classify(modelNames);
-									remoteLoggingCDataOutputStream = remoteLoggingClient
-											.cdata(modelNames);
+									// The server expects the sensor data
+									// channel, though nothing is sent on it.
+									remoteLoggingClient.cdata(modelNames);
+									remoteLoggingClientConnected = remoteLoggingClassChannel
+											!= null;
 								}
 							}
 						}
@@ -377,32 +685,7 @@ public final class TDEClassifierPlugin extends OutputPlugin {
 		@Override
 		public void onClick(final View v) {
 			final Button classifyButton = (Button) v;
-
-			if (remoteLoggingClientConnected) {
-				final int N = modelNames.size();
-				try {
-					for (int i = 0; i < N; i++) {
-						remoteLoggingClassOutputStream
-								.writeFloat(Float.MIN_VALUE);
-					}
-					remoteLoggingCDataOutputStream.writeFloat(Float.MIN_VALUE);
-					remoteLoggingClient.disconnect();
-					remoteLoggingClientConnected = false;
-				} catch (final IOException e) {
-				} finally {
-					remoteLoggingClientConnected = false;
-				}
-			}
-			if (classOutputFile != null) {
-				try {
-					classOutputFile.close();
-				} catch (final IOException e) {
-					Log.e(PLUGIN_NAME,
-							"Exception closing classification results file.");
-				}
-			}
-			classifying = false;
-
+			finishClassifying();
 			classifyButton.setText(R.string.start_classifying_button_text);
 			classifyButton.setOnClickListener(startClassifying);
 		}
@@ -412,10 +695,15 @@ public final class TDEClassifierPlugin extends OutputPlugin {
 
 	private static boolean remoteLoggingClientConnected = false;
 
-	private List<String> modelNames = null;
+	// Disconnects the client at the end of a session, or null.
+	private static volatile Thread remoteLoggingDisconnectThread = null;
+
+	// Number of models the remote logging server was told about.
+	private static int remoteLoggingNumModels = 0;
+
+	private static List<String> modelNames = null;
 
-	private static DataOutputStream remoteLoggingClassOutputStream = null;
-	private static DataOutputStream remoteLoggingCDataOutputStream = null;
+	private static LogServerClient.Channel remoteLoggingClassChannel = null;
 
 	private long startTimeStamp;
 	private long endTimeStamp;
@@ -444,14 +732,29 @@ public final class TDEClassifierPlugin extends OutputPlugin {
 	 * @throws IOException
 	 */
 	private void displayModelData() throws IOException {
-		// First read in time series data from model file.
+		// First read in time series data from model file. Multi-channel
+		// recordings are graphed by their acceleration magnitude, from the
+		// first three columns.
 		final BufferedReader reader = new BufferedReader(new FileReader(
 				modelFile));
+		final int channels = CHANNEL_COUNTS[channelSet];
+		final List<String> rows = new ArrayList<String>();
 		final List<Float> dataList = new LinkedList<Float>();
 		String line;
 		while ((line = reader.readLine()) != null) {
-			dataList.add(new Float(line));
+			rows.add(line);
+			if (channels == 1) {
+				dataList.add(new Float(line));
+			} else {
+				final String[] values = line.split(" ");
+				final float x = Float.parseFloat(values[0]);
+				final float y = Float.parseFloat(values[1]);
+				final float z = Float.parseFloat(values[2]);
+				dataList.add((float) Math.sqrt(x * x + y * y + z * z)
+						- SensorManager.STANDARD_GRAVITY);
+			}
 		}
+		reader.close();
 		final Float[] data = dataList.toArray(new Float[0]);
 		final int[] labels = new int[data.length];
 		MagnitudeGraph.setValues(data, labels);
@@ -466,6 +769,7 @@ public final class TDEClassifierPlugin extends OutputPlugin {
 					 * build the model.
 					 */
 					private String label;
+					private int startIndex = 0;
 					private float[] data = new float[0];
 
 					@Override
@@ -477,12 +781,52 @@ public final class TDEClassifierPlugin extends OutputPlugin {
 							final BufferedWriter writer = new BufferedWriter(
 									new FileWriter(modelFile));
 							for (int i = 0; i < data.length; i++) {
-								writer.write(Float.toString(data[i]) + "\n");
+								if (channels == 1) {
+									writer.write(Float.toString(data[i])
+											+ "\n");
+								} else {
+									writer.write(rows.get(startIndex + i)
+											+ "\n");
+								}
 							}
 							writer.flush();
 							writer.close();
-							tdeClassifier.buildModel(
-									modelFile.getAbsolutePath(), 9, 9, 3);
+							final int maxPoints = Integer.parseInt(prefs
+									.getString(MAX_MODEL_POINTS_KEY,
+											MAX_MODEL_POINTS_DEFAULT));
+							final float[] stats;
+							if (channels > 1) {
+								stats = TimeDelayEmbeddingClassifier
+										.buildModel(modelFile.getAbsolutePath(),
+												channels, MODEL_CHANNEL_DIM,
+												MODEL_PCA_DIM, MODEL_DELAY,
+												maxPoints,
+												NativeClassifier.COMPRESS_FARTHEST_POINT);
+							} else if (maxPoints > 0) {
+								stats = TimeDelayEmbeddingClassifier
+										.buildModel(modelFile.getAbsolutePath(),
+												MODEL_EMBEDDING_DIM,
+												MODEL_PCA_DIM, MODEL_DELAY,
+												maxPoints,
+												NativeClassifier.COMPRESS_FARTHEST_POINT);
+							} else {
+								stats = null;
+								TimeDelayEmbeddingClassifier.buildModel(
+										modelFile.getAbsolutePath(),
+										MODEL_EMBEDDING_DIM, MODEL_PCA_DIM,
+										MODEL_DELAY);
+							}
+							if (stats != null) {
+								Log.d(PLUGIN_NAME, "Built model " + label
+										+ " from " + (int) stats[0] + " to "
+										+ (int) stats[1]
+										+ " points, mean error " + stats[2]
+										+ ", max error " + stats[3]);
+							}
+							if (maxPoints > 0) {
+								logCompressionReport(label, modelFile,
+										channels, maxPoints);
+							}
 							makeToast("Saved model for activity: " + label);
 						} catch (final IOException e) {
 							Log.e(PLUGIN_NAME, e);
@@ -491,8 +835,9 @@ public final class TDEClassifierPlugin extends OutputPlugin {
 
 					@Override
 					public void setLabelData(final String label,
-							final float[] data) {
+							final int startIndex, final float[] data) {
 						this.label = label;
+						this.startIndex = startIndex;
 						this.data = data;
 					}
 				});
@@ -524,6 +869,59 @@ public final class TDEClassifierPlugin extends OutputPlugin {
 		}
 	}
 
+	/**
+	 * Stops classifying: disconnects from the remote logging server in the
+	 * background, closes the results file, releases the current and pending
+	 * classifiers and stops the classifier thread, so that the next start
+	 * loads its models afresh.
+	 */
+	private void finishClassifying() {
+		if (remoteLoggingClientConnected) {
+			remoteLoggingClientConnected = false;
+			// Disconnecting writes the queued probabilities and ends the
+			// channels, which can take several seconds if the server is slow
+			// or unreachable, so it is not done on the calling thread.
+			remoteLoggingDisconnectThread = new Thread(PLUGIN_NAME
+					+ " disconnect") {
+				@Override
+				public void run() {
+					Log.d(PLUGIN_NAME, "Remote logging: "
+							+ remoteLoggingClient.getStats());
+					try {
+						remoteLoggingClient.disconnect();
+					} catch (final IOException e) {
+						Log.e(PLUGIN_NAME, e);
+					}
+				}
+			};
+			remoteLoggingDisconnectThread.start();
+		}
+		if (classOutputFile != null) {
+			try {
+				classOutputFile.close();
+			} catch (final IOException e) {
+				Log.e(PLUGIN_NAME,
+						"Exception closing classification results file.");
+			}
+		}
+		synchronized (classifierLock) {
+			classifying = false;
+			if (tdeClassifier != null) {
+				releaseClassifier(tdeClassifier);
+				tdeClassifier = null;
+			}
+			if (pendingClassifier != null) {
+				releaseClassifier(pendingClassifier);
+				pendingClassifier = null;
+			}
+		}
+		if (ClassifierThread.mHandler != null) {
+			final Message msg = ClassifierThread.mHandler
+					.obtainMessage(QUIT_MESSAGE);
+			ClassifierThread.mHandler.sendMessage(msg);
+		}
+	}
+
 	public float[] getCumulativeClassProbs() {
 		return cumulativeClassProbs;
 	}
@@ -540,6 +938,81 @@ public final class TDEClassifierPlugin extends OutputPlugin {
 		return timeMoving;
 	}
 
+	/**
+	 * Adds the current sample to a classifier, either as the acceleration
+	 * magnitude or as the values of the selected channels.
+	 * 
+	 * @param classifier
+	 *            The classifier to add the sample to.
+	 * @param m
+	 *            The acceleration magnitude.
+	 * @return The index in the classifier's buffer.
+	 */
+	private int addSample(final TimeDelayEmbeddingClassifier classifier,
+			final float m) {
+		if (channelSet == CHANNELS_MAGNITUDE) {
+			return classifier.addSample(m);
+		} else {
+			return classifier.addSample(sampleChannels);
+		}
+	}
+
+	/**
+	 * Returns the channel set selected in the preferences.
+	 * 
+	 * @return One of the CHANNELS constants.
+	 */
+	private int getChannelSet() {
+		final int set = Integer.parseInt(prefs.getString(CHANNELS_KEY,
+				CHANNELS_DEFAULT));
+		if (set < 0 || set >= CHANNEL_COUNTS.length) {
+			return CHANNELS_MAGNITUDE;
+		}
+		return set;
+	}
+
+	/**
+	 * Loads the models listed in modelsFile into a new classifier, which
+	 * replaces the current one once it has a full window of data. Should be
+	 * called from a background thread, since loading large models is slow.
+	 * 
+	 * @param modelsFile
+	 *            A file containing the filenames of the models to load, one per
+	 *            line.
+	 */
+	private void loadClassifier(final File modelsFile) {
+		final TimeDelayEmbeddingClassifier loaded = TimeDelayEmbeddingClassifier
+				.load(modelsFile, searchEps, searchMaxPointsVisited);
+		if (loaded == null) {
+			return;
+		}
+		if (loaded.getNumChannels() != CHANNEL_COUNTS[channelSet]) {
+			Log.e(PLUGIN_NAME, "Models have " + loaded.getNumChannels()
+					+ " channels, but " + CHANNEL_COUNTS[channelSet]
+					+ " are selected.");
+			loaded.close();
+			return;
+		}
+		final String[] names = loaded.getLoadedModelNames().split("\t");
+		final float[] loadTimes = loaded.getModelLoadTimes();
+		for (int i = 0; i < loadTimes.length; i++) {
+			Log.d(PLUGIN_NAME, "Loaded model " + names[i] + " in "
+					+ loadTimes[i] + "ms");
+		}
+		synchronized (classifierLock) {
+			if (!classifying) {
+				// Stopped while loading.
+				loaded.close();
+				return;
+			}
+			if (pendingClassifier != null) {
+				// Superseded before it was used.
+				releaseClassifier(pendingClassifier);
+			}
+			pendingClassifier = loaded;
+		}
+	}
+
 	/**
 	 * Parses the models.ini file and populates the modelNames list with the
 	 * model names.
@@ -563,6 +1036,92 @@ public final class TDEClassifierPlugin extends OutputPlugin {
 
 	}
 
+	/**
+	 * Compares classification with a newly compressed model against the same
+	 * model built without compression, and logs the report. Each version is
+	 * classified together with the other models in models.ini, on the data
+	 * the model was built from, so the report shows how often compression
+	 * changes the activity picked as well as how much it changes the scores.
+	 * 
+	 * @param label
+	 *            The name of the model.
+	 * @param modelFile
+	 *            The data the compressed model was built from, one
+	 *            whitespace-separated column per channel.
+	 * @param channels
+	 *            The number of channels in the data.
+	 * @param maxPoints
+	 *            The size limit of the compressed model.
+	 */
+	private void logCompressionReport(final String label,
+			final File modelFile, final int channels, final int maxPoints) {
+		final File dir = context.getCacheDir();
+		final File exactFile = new File(dir, modelFile.getName());
+		final File exactModel = new File(exactFile.getPath() + ".dmp");
+		final File exactModels = new File(dir, "exact-models.ini");
+		final File compressedModels = new File(dir, "compressed-models.ini");
+		try {
+			copyFile(modelFile, exactFile);
+			if (channels > 1) {
+				TimeDelayEmbeddingClassifier.buildModel(exactFile
+						.getAbsolutePath(), channels, MODEL_CHANNEL_DIM,
+						MODEL_PCA_DIM, MODEL_DELAY, 0,
+						NativeClassifier.COMPRESS_FARTHEST_POINT);
+			} else {
+				TimeDelayEmbeddingClassifier.buildModel(exactFile
+						.getAbsolutePath(), MODEL_EMBEDDING_DIM, MODEL_PCA_DIM,
+						MODEL_DELAY);
+			}
+
+			final BufferedWriter exactWriter = new BufferedWriter(
+					new FileWriter(exactModels));
+			final BufferedWriter compressedWriter = new BufferedWriter(
+					new FileWriter(compressedModels));
+			try {
+				if (ManageModelsFileManager.MODELS_INI_FILE.canRead()) {
+					final BufferedReader reader = new BufferedReader(
+							new FileReader(
+									ManageModelsFileManager.MODELS_INI_FILE));
+					try {
+						String line;
+						while ((line = reader.readLine()) != null) {
+							if (!new File(line).getName().split("\\.")[0]
+									.equals(label)) {
+								exactWriter.write(line + "\n");
+								compressedWriter.write(line + "\n");
+							}
+						}
+					} finally {
+						reader.close();
+					}
+				}
+				exactWriter.write(exactModel.getAbsolutePath() + "\n");
+				compressedWriter.write(modelFile.getAbsolutePath() + ".dmp\n");
+			} finally {
+				exactWriter.close();
+				compressedWriter.close();
+			}
+
+			final ApproximationReport report = TimeDelayEmbeddingClassifier
+					.compareCompression(exactModels, compressedModels,
+							maxPoints, readSeries(modelFile, channels));
+			if (report == null) {
+				Log.e(PLUGIN_NAME, "Could not compare compressed model "
+						+ label);
+			} else {
+				Log.d(PLUGIN_NAME, "Compressed model " + label
+						+ " against uncompressed: " + report);
+			}
+		} catch (final IOException e) {
+			Log.e(PLUGIN_NAME, e);
+		} finally {
+			exactFile.delete();
+			exactModel.delete();
+			exactModels.delete();
+			compressedModels.delete();
+		}
+	}
+
 	/**
 	 * Helper method for notifying the user.
 	 * 
@@ -590,12 +1149,23 @@ public final class TDEClassifierPlugin extends OutputPlugin {
 			 * accelerometer magnitude and save that in our model file.
 			 */
 			final SensorPacket sensorPacket = (SensorPacket) packet;
-			final Float m = (float) Math.sqrt(sensorPacket.x * sensorPacket.x
-					+ sensorPacket.y * sensorPacket.y + sensorPacket.z
-					* sensorPacket.z)
-					- SensorManager.STANDARD_GRAVITY;
 			try {
-				modelFileWriter.write(m.toString() + "\n");
+				if (channelSet == CHANNELS_MAGNITUDE) {
+					final Float m = (float) Math.sqrt(sensorPacket.x
+							* sensorPacket.x + sensorPacket.y * sensorPacket.y
+							+ sensorPacket.z * sensorPacket.z)
+							- SensorManager.STANDARD_GRAVITY;
+					modelFileWriter.write(m.toString() + "\n");
+				} else {
+					// One column per channel.
+					getChannels(sensorPacket, channelSet, sampleChannels);
+					modelFileWriter.write(Float.toString(sampleChannels[0]));
+					for (int i = 1; i < CHANNEL_COUNTS[channelSet]; i++) {
+						modelFileWriter.write(" "
+								+ Float.toString(sampleChannels[i]));
+					}
+					modelFileWriter.write("\n");
+				}
 			} catch (final IOException e) {
 				Log.e(PLUGIN_NAME, e);
 			}
@@ -611,7 +1181,33 @@ public final class TDEClassifierPlugin extends OutputPlugin {
 					* sensorPacket.z)
 					- SensorManager.STANDARD_GRAVITY;
 
-			final int index = tdeClassifier.addSample(m);
+			/*
+			 * Newly loaded models are given the same samples as the current
+			 * ones until they have a full window, and then take over, so that
+			 * no windows are missed.
+			 */
+			if (channelSet != CHANNELS_MAGNITUDE) {
+				getChannels(sensorPacket, channelSet, sampleChannels);
+			}
+			TimeDelayEmbeddingClassifier classifier = tdeClassifier;
+			int index = classifier == null ? -1 : addSample(classifier, m);
+			synchronized (classifierLock) {
+				final TimeDelayEmbeddingClassifier pending = pendingClassifier;
+				if (pending != null) {
+					final int pendingIndex = addSample(pending, m);
+					if (pending.isReady(pendingIndex)) {
+						tdeClassifier = pending;
+						pendingClassifier = null;
+						if (classifier != null) {
+							releaseClassifier(classifier);
+						}
+						classifier = pending;
+						index = pendingIndex;
+						Log.d(PLUGIN_NAME, "Switched to models: "
+								+ pending.getLoadedModelNames());
+					}
+				}
+			}
 			final boolean moving = lingeringFilter.update(m);
 			if (moving) {
 				timeMoving += 1;
@@ -624,10 +1220,10 @@ public final class TDEClassifierPlugin extends OutputPlugin {
 			/*
 			 * Classify every 5 samples when moving consistently.
 			 */
-			if (timeMovingWithoutStopping % 5 == 4) {
+			if (classifier != null && timeMovingWithoutStopping % 5 == 4) {
 				// Update widget text
 				final Message msg = ClassifierThread.mHandler.obtainMessage(
-						LOG_MESSAGE, index, (int) sensorPacket.time);
+						LOG_MESSAGE, index, (int) sensorPacket.time, classifier);
 				ClassifierThread.mHandler.sendMessage(msg);
 			}
 
@@ -672,11 +1268,7 @@ public final class TDEClassifierPlugin extends OutputPlugin {
 			finishBuilding();
 		}
 		if (classifying) {
-			final Message msg = ClassifierThread.mHandler
-					.obtainMessage(QUIT_MESSAGE);
-			ClassifierThread.mHandler.sendMessage(msg);
-			classifying = false;
-			tdeClassifier.close();
+			finishClassifying();
 		}
 		if (sshForwardingEnabled) {
 			tearDownSSHForwarding();
@@ -714,6 +1306,7 @@ public final class TDEClassifierPlugin extends OutputPlugin {
 			lingeringFilter.setThreshold(threshold);
 			lingeringFilter.setWindowSize(windowSize);
 		}
+		updateSearchMode();
 	}
 
 	/**
@@ -749,6 +1342,38 @@ public final class TDEClassifierPlugin extends OutputPlugin {
 
 	}
 
+	/**
+	 * Loads the models in the models.ini file in the background, and switches
+	 * to them without interrupting classification. Does nothing if the plugin
+	 * is not classifying.
+	 */
+	public void reloadModels() {
+		if (!classifying) {
+			return;
+		}
+		final Thread t = new Thread() {
+			@Override
+			public void run() {
+				loadClassifier(ManageModelsFileManager.MODELS_INI_FILE);
+			}
+		};
+		t.start();
+	}
+
+	/**
+	 * Closes a classifier that is no longer used, on the classifier thread so
+	 * that the windows already queued for it are classified first.
+	 * 
+	 * @param classifier
+	 *            The classifier to close.
+	 */
+	private static void releaseClassifier(
+			final TimeDelayEmbeddingClassifier classifier) {
+		final Message msg = ClassifierThread.mHandler.obtainMessage(
+				RELEASE_MESSAGE, classifier);
+		ClassifierThread.mHandler.sendMessage(msg);
+	}
+
 	private void setupSSHForwarding() {
 		final Thread setupSSHThread = new Thread() {
 			@Override
@@ -786,6 +1411,24 @@ public final class TDEClassifierPlugin extends OutputPlugin {
 		setupSSHThread.start();
 	}
 
+	/**
+	 * Passes the nearest-neighbour search mode from the preferences on to the
+	 * classifier, and keeps it for classifiers loaded later.
+	 */
+	private void updateSearchMode() {
+		int mode = Integer.parseInt(prefs.getString(SEARCH_MODE_KEY,
+				SEARCH_MODE_DEFAULT));
+		if (mode < 0 || mode >= SEARCH_MODE_EPS.length) {
+			mode = 0;
+		}
+		searchEps = SEARCH_MODE_EPS[mode];
+		searchMaxPointsVisited = SEARCH_MODE_MAX_POINTS[mode];
+		final TimeDelayEmbeddingClassifier classifier = tdeClassifier;
+		if (classifier != null) {
+			classifier.setApproximation(searchEps, searchMaxPointsVisited);
+		}
+	}
+
 	private void tearDownSSHForwarding() {
 		Log.d(PLUGIN_NAME, "Tearing down SSH tunnel.");
 		final Runtime rt = Runtime.getRuntime();
@@ -35,6 +35,13 @@ public class HSAndroidPreferences extends PreferenceActivity {
 
 	public static final String UPLOAD_OVER_WIFI_ONLY_PREF = "uploadWifiOnly";
 	public static final String AUTO_UPLOAD_DATA_PREF = "autoUploadData";
+	public static final String UPLOAD_PARALLEL_TRANSFERS_PREF = "uploadParallelTransfers";
+	public static final String UPLOAD_RATE_LIMIT_PREF = "uploadRateLimit";
+	public static final String UPLOAD_CHARGING_ONLY_PREF = "uploadChargingOnly";
+	public static final String UPLOAD_BUNDLE_FILES_PREF = "uploadBundleFiles";
+	public static final String UPLOAD_RECOMPRESS_PREF = "uploadRecompressWhileCharging";
+	public static final String UPLOAD_SKIP_DUPLICATES_PREF = "uploadSkipDuplicates";
+	public static final String UPLOAD_RESUME_PREF = "uploadResume";
 	public static final String DELETE_UNUPLOADED_PREF = "deleteUnuploaded";
 	public static final String MANAGE_UNUPLOADED_PREF = "manageUnuploaded";
 	public static final String MANUAL_CLEAR_DATA_PREF = "manualClearData";
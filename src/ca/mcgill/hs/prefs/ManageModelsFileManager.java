@@ -20,6 +20,8 @@ import android.widget.Button;
 import android.widget.ListView;
 import ca.mcgill.hs.HSAndroid;
 import ca.mcgill.hs.R;
+import ca.mcgill.hs.plugin.PluginFactory;
+import ca.mcgill.hs.plugin.TDEClassifierPlugin;
 import ca.mcgill.hs.util.Log;
 
 /**
@@ -125,6 +127,10 @@ public class ManageModelsFileManager extends FileManager {
 						}
 					}
 				}
+				// Switch a running classifier over to the new models.
+				((TDEClassifierPlugin) PluginFactory
+						.getOutputPlugin(TDEClassifierPlugin.class))
+						.reloadModels();
 				finish();
 			}
 		});
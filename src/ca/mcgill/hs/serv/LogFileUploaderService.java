@@ -6,26 +6,18 @@
 package ca.mcgill.hs.serv;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.HttpVersion;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.mime.MultipartEntity;
-import org.apache.http.entity.mime.content.ContentBody;
-import org.apache.http.entity.mime.content.FileBody;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.params.CoreProtocolPNames;
-import org.apache.http.util.EntityUtils;
-
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
@@ -43,16 +35,30 @@ import android.os.IBinder;
 import android.widget.Toast;
 import ca.mcgill.hs.HSAndroid;
 import ca.mcgill.hs.R;
+import ca.mcgill.hs.plugin.FileOutput;
 import ca.mcgill.hs.prefs.HSAndroidPreferences;
 import ca.mcgill.hs.prefs.PreferenceFactory;
+import ca.mcgill.hs.uploader.HttpStatusException;
+import ca.mcgill.hs.uploader.NetworkHelper;
+import ca.mcgill.hs.uploader.UploadBundler;
+import ca.mcgill.hs.uploader.UploadEngine;
+import ca.mcgill.hs.uploader.UploadJournal;
+import ca.mcgill.hs.uploader.UploadScheduler;
 import ca.mcgill.hs.util.Log;
 
 /**
  * A service for uploading data files to a web server. When this service starts,
- * it retrieves the list of saved files. Then, if an option is set, it will
- * attempt to connect 3 times to a wifi connection. Afterwards, it will upload
- * the files, recording error codes. Finally, it will toast the user to alert
- * them of the success or failure of the operation.
+ * it adds any new saved files to its {@link UploadJournal}, which remembers
+ * which files still have to be uploaded or moved even if the process is killed.
+ * Then, if an option is set, it will attempt to connect 3 times to a wifi
+ * connection. Afterwards, it will upload the files through an
+ * {@link UploadEngine}, several at a time, recording error codes. If the
+ * preference is set, small files from the same rollover interval are sent
+ * together in a bundle made by an {@link UploadBundler}, and files whose
+ * content the server already has are skipped. An {@link UploadScheduler}
+ * decides whether the phone may upload, limits the upload rate, and sets the
+ * delay before failed files are retried. Finally, it will toast the user to
+ * alert them of the success or failure of the operation.
  * 
  * If the service was already started, then it will simply update the list of
  * files and resume its operations.
@@ -78,17 +84,35 @@ public class LogFileUploaderService extends Service {
 	 */
 	public static final String UPLOAD_URL = "http://www.cs.mcgill.ca/~jfrank8/humansense/uploader.php";
 
+	/**
+	 * URL for asking whether the server already has the content of a file.
+	 */
+	public static final String DEDUP_URL = "http://www.cs.mcgill.ca/~jfrank8/humansense/have.php";
+
+	/**
+	 * URL for uploading data files in chunks that can be resumed.
+	 */
+	public static final String CHUNKED_URL = "http://www.cs.mcgill.ca/~jfrank8/humansense/chunked.php";
+
+	/**
+	 * URL for streaming the data written to live files.
+	 */
+	public static final String STREAM_URL = "http://www.cs.mcgill.ca/~jfrank8/humansense/stream.php";
+
 	private boolean connectionReceiverRegistered = false;
 	private boolean waiting = false;
 	private Timer timer = new Timer();
-	private final long DELAY = 30000;
+	private final UploadScheduler scheduler = new UploadScheduler(
+			UploadScheduler.ELAPSED_REALTIME, NetworkHelper.sRandom);
 
+	// Receives the network and power changes that may allow uploading.
 	private final BroadcastReceiver connectReceiver = new BroadcastReceiver() {
 		@Override
 		public void onReceive(final Context context, final Intent intent) {
-			if (((NetworkInfo) intent
-					.getParcelableExtra(ConnectivityManager.EXTRA_NETWORK_INFO))
-					.isConnected()) {
+			if (Intent.ACTION_POWER_CONNECTED.equals(intent.getAction())
+					|| ((NetworkInfo) intent
+							.getParcelableExtra(ConnectivityManager.EXTRA_NETWORK_INFO))
+							.isConnected()) {
 				networkChanged();
 			}
 		}
@@ -114,8 +138,8 @@ public class LogFileUploaderService extends Service {
 	private static boolean started = false;
 
 	/* LIST OF FILES */
-	private static final LinkedList<String> fileList = new LinkedList<String>();
-	private static final HashMap<String, Object> fileMap = new HashMap<String, Object>();
+	private static final String JOURNAL_FILE = "uploads.journal";
+	private UploadJournal journal;
 
 	/* ERROR CODES */
 	public static final int NO_ERROR_CODE = 0x0;
@@ -136,11 +160,9 @@ public class LogFileUploaderService extends Service {
 	private int filesUploaded;
 
 	/* CONNECTION VARIABLES */
-	private HttpClient httpclient;
-	private HttpPost httppost;
+	private UploadEngine engine;
 	private boolean wifiOnly;
 	private boolean automatic;
-	private ConnectivityManager connectivityMgr;
 
 	/* NOTIFICATION VARIABLES */
 	private static final String NOTIFICATION_STRING = Context.NOTIFICATION_SERVICE;
@@ -165,6 +187,61 @@ public class LogFileUploaderService extends Service {
 
 	private static SharedPreferences prefs;
 
+	// Files that could not be read, which are skipped until the service is
+	// next started.
+	private final HashSet<String> skipped = new HashSet<String>();
+
+	// Whether some files failed to upload in the current pass, and should be
+	// retried.
+	private boolean retry;
+
+	/* BUNDLES */
+	private final UploadBundler bundler = new UploadBundler();
+	private File bundleDirectory;
+	// The files in each bundle that is being uploaded.
+	private final HashMap<File, List<File>> bundles = new HashMap<File, List<File>>();
+
+	private final UploadEngine.Listener uploadListener = new UploadEngine.Listener() {
+		public void onUploadFinished(final File file, final String response,
+				final Exception error) {
+			final List<File> bundled;
+			synchronized (LogFileUploaderService.this) {
+				bundled = bundles.remove(file);
+			}
+			if (bundled != null && !file.delete()) {
+				Log.e(TAG, "Unable to delete bundle " + file.getName());
+			}
+			final List<File> files = bundled == null ? Collections
+					.singletonList(file) : bundled;
+			final int retCode = uploadFinished(files, response, error);
+			synchronized (LogFileUploaderService.this) {
+				if (retCode == NO_ERROR_CODE) {
+					return;
+				} else if (retCode == UPLOAD_FAILED_FILE_NOT_FOUND_ERROR_CODE
+						&& bundled == null) {
+					journal.setState(file.getName(), UploadJournal.MOVED);
+					return;
+				}
+				CURRENT_ERROR_CODE = retCode;
+				for (final File f : files) {
+					final String name = f.getName();
+					// A file the server already has only needs to be moved.
+					if (journal.getState(name) == UploadJournal.IN_FLIGHT) {
+						journal.setState(name, UploadJournal.QUEUED);
+					}
+					// If there is some problem reading the file, then the
+					// file is skipped. Otherwise it is retried.
+					if (retCode == IOEXCEPTION_ERROR_CODE) {
+						skipped.add(name);
+					}
+				}
+				if (retCode != IOEXCEPTION_ERROR_CODE) {
+					retry = true;
+				}
+			}
+		}
+	};
+
 	/**
 	 * Called when the auto upload preference has changed.
 	 */
@@ -186,26 +263,52 @@ public class LogFileUploaderService extends Service {
 
 	/**
 	 * Determines whether or not the phone is able to upload data over the
-	 * internet.
+	 * internet, and whether the scheduler allows it to.
 	 * 
 	 * @return True if it is possible to upload, false otherwise.
 	 */
 	private boolean canUpload() {
-		if (connectivityMgr == null
-				|| connectivityMgr.getActiveNetworkInfo() == null) {
-			return false;
+		return NetworkHelper.canUpload(this, scheduler);
+	}
+
+	/**
+	 * Queues files to be uploaded. If the preference is set, the files from
+	 * each rollover interval are bundled, and recompressed if the phone is
+	 * charging and that preference is set too.
+	 * 
+	 * @param files
+	 *            The files to upload.
+	 */
+	private void enqueueFiles(final List<File> files) {
+		if (!prefs.getBoolean(HSAndroidPreferences.UPLOAD_BUNDLE_FILES_PREF,
+				false)) {
+			for (final File file : files) {
+				engine.enqueue(file);
+			}
+			return;
 		}
-		if (!wifiOnly) {
-			if (connectivityMgr.getActiveNetworkInfo().getState() != NetworkInfo.State.CONNECTED) {
-				return false;
+		final boolean recompress = prefs.getBoolean(
+				HSAndroidPreferences.UPLOAD_RECOMPRESS_PREF, false)
+				&& NetworkHelper.isCharging(this);
+		for (final List<File> group : UploadBundler.group(files, FileOutput
+				.getRolloverInterval(prefs))) {
+			if (group.size() > 1) {
+				try {
+					final File bundle = bundler.bundle(group, bundleDirectory,
+							recompress);
+					synchronized (this) {
+						bundles.put(bundle, group);
+					}
+					engine.enqueue(bundle);
+					continue;
+				} catch (final IOException e) {
+					Log.e(TAG, e);
+				}
 			}
-		} else {
-			if (connectivityMgr.getActiveNetworkInfo().getState() != NetworkInfo.State.CONNECTED
-					|| connectivityMgr.getActiveNetworkInfo().getType() != ConnectivityManager.TYPE_WIFI) {
-				return false;
+			for (final File file : group) {
+				engine.enqueue(file);
 			}
 		}
-		return true;
 	}
 
 	/**
@@ -228,6 +331,51 @@ public class LogFileUploaderService extends Service {
 		slice.show();
 	}
 
+	/**
+	 * Moves a file that the server acknowledged before the upload could be
+	 * completed, for example because the process was killed, and records it
+	 * as moved. A file that no longer exists is forgotten.
+	 * 
+	 * @param file
+	 *            The file.
+	 */
+	private void moveAcknowledgedFile(final File file) {
+		try {
+			if (file.exists()) {
+				moveUploadedFile(file);
+				filesUploaded++;
+			}
+			journal.setState(file.getName(), UploadJournal.MOVED);
+		} catch (final IOException e) {
+			Log.e(TAG, e);
+		}
+	}
+
+	/**
+	 * Moves a file that has been uploaded to the uploaded directory.
+	 * 
+	 * @param file
+	 *            The file.
+	 * @throws IOException
+	 *             If the file cannot be moved.
+	 */
+	private void moveUploadedFile(final File file) throws IOException {
+		Log.i(TAG, "Moving file to uploaded directory.");
+		final File dest = new File(HSAndroid.getStorageDirectory(), HSAndroid
+				.getAppString(R.string.uploaded_file_path));
+		if (!dest.isDirectory()) {
+			if (!dest.mkdirs()) {
+				throw new IOException("ERROR: Unable to create directory "
+						+ dest.getName());
+			}
+		}
+
+		if (!file.renameTo(new File(dest, file.getName()))) {
+			throw new IOException("ERROR: Unable to transfer file "
+					+ file.getName());
+		}
+	}
+
 	/**
 	 * Called when there has been a change in network connectivity.
 	 */
@@ -249,6 +397,18 @@ public class LogFileUploaderService extends Service {
 		shutdownIntent = new Intent(this, LogFileUploaderService.class);
 		UNUPLOADED_PATH = (String) getBaseContext().getResources().getText(
 				R.string.recent_file_path);
+		journal = new UploadJournal(new File(getFilesDir(), JOURNAL_FILE));
+
+		// Bundles left over from a pass that was interrupted are made again.
+		bundleDirectory = new File(getCacheDir(), "bundles");
+		final File[] leftovers = bundleDirectory.listFiles();
+		if (leftovers != null) {
+			for (final File bundle : leftovers) {
+				bundle.delete();
+			}
+		} else if (!bundleDirectory.mkdirs()) {
+			Log.e(TAG, "Unable to create " + bundleDirectory.getPath());
+		}
 	}
 
 	@Override
@@ -257,10 +417,15 @@ public class LogFileUploaderService extends Service {
 		waiting = false;
 		started = false;
 		timer.cancel();
+		if (engine != null) {
+			engine.shutdown();
+		}
 		unregisterConnectReceiver();
 		unregisterReceiver(wifiOnlyPrefChanged);
 		unregisterReceiver(autoPrefChanged);
 		onUploadComplete();
+		Log.i(TAG, "Upload journal: " + journal);
+		journal.close();
 	}
 
 	@Override
@@ -269,7 +434,7 @@ public class LogFileUploaderService extends Service {
 		updateFileList();
 
 		// If there are no files, return.
-		if (fileList.size() == 0 && !started) {
+		if (journal.size() == 0 && !started) {
 			makeToast(getResources().getString(R.string.uploader_no_new_files),
 					Toast.LENGTH_SHORT);
 			return;
@@ -297,6 +462,18 @@ public class LogFileUploaderService extends Service {
 
 		// Connect to a network
 		setUpConnection();
+		final int parallelTransfers = Integer.parseInt(prefs.getString(
+				HSAndroidPreferences.UPLOAD_PARALLEL_TRANSFERS_PREF, "2"));
+		engine = new UploadEngine(UPLOAD_URL, wifiInfo.getMacAddress(),
+				parallelTransfers, uploadListener);
+		engine.setScheduler(scheduler);
+		if (prefs.getBoolean(HSAndroidPreferences.UPLOAD_SKIP_DUPLICATES_PREF,
+				false)) {
+			engine.setDedupUrl(DEDUP_URL);
+		}
+		if (prefs.getBoolean(HSAndroidPreferences.UPLOAD_RESUME_PREF, false)) {
+			engine.setChunkedUrl(CHUNKED_URL);
+		}
 
 		notificationMgr = (NotificationManager) getSystemService(NOTIFICATION_STRING);
 		notificationMgr.cancel(NOTIFICATION_ID);
@@ -386,15 +563,30 @@ public class LogFileUploaderService extends Service {
 	}
 
 	/**
-	 * Initializes preferences and the ConnectivityManager.
+	 * Initializes preferences.
 	 */
 	private void setUpConnection() {
 		wifiOnly = prefs.getBoolean(
 				HSAndroidPreferences.UPLOAD_OVER_WIFI_ONLY_PREF, false);
 		automatic = prefs.getBoolean(
 				HSAndroidPreferences.AUTO_UPLOAD_DATA_PREF, false);
+		setUpScheduler();
+	}
 
-		connectivityMgr = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+	/**
+	 * Applies the upload preferences to the scheduler. Called before each
+	 * pass, since the preferences may have changed in the meantime. Only
+	 * automatic uploads wait for the phone to be plugged in; an upload the
+	 * user asked for starts at once.
+	 */
+	private void setUpScheduler() {
+		scheduler.setRequireUnmetered(wifiOnly);
+		scheduler.setRequireCharging(automatic
+				&& prefs.getBoolean(
+						HSAndroidPreferences.UPLOAD_CHARGING_ONLY_PREF, false));
+		final long rateLimit = Long.parseLong(prefs.getString(
+				HSAndroidPreferences.UPLOAD_RATE_LIMIT_PREF, "0"));
+		scheduler.setRateLimit(rateLimit);
 	}
 
 	/**
@@ -406,7 +598,8 @@ public class LogFileUploaderService extends Service {
 	}
 
 	/**
-	 * Starts the timer for reattempting file upload.
+	 * Starts the timer for reattempting file upload, after the delay given by
+	 * the scheduler.
 	 */
 	private void timerStart() {
 		final TimerTask task = new TimerTask() {
@@ -415,7 +608,9 @@ public class LogFileUploaderService extends Service {
 				uploadFiles();
 			}
 		};
-		timer.schedule(task, DELAY);
+		final long delay = scheduler.onFailure();
+		Log.i(TAG, "Retrying failed uploads in " + delay / 1000 + "s.");
+		timer.schedule(task, delay);
 	}
 
 	/**
@@ -433,8 +628,7 @@ public class LogFileUploaderService extends Service {
 	}
 
 	/**
-	 * Goes through the recent folder and adds all the files to the list of
-	 * files to upload.
+	 * Goes through the recent folder and adds any new files to the journal.
 	 */
 	private synchronized void updateFileList() {
 
@@ -453,168 +647,141 @@ public class LogFileUploaderService extends Service {
 		if (files == null || files.length == 0) {
 			return;
 		} else {
-			/*
-			 * Add all files to a map so that we can keep track of which files
-			 * were supposed to upload as the list is cleared.
-			 */
 			for (final String s : files) {
-				if (!fileMap.containsKey(s)) {
-					fileMap.put(s, null);
-					fileList.add(UNUPLOADED_PATH + s);
-				}
+				journal.add(s);
 			}
 		}
 	}
 
 	/**
-	 * Uploads the specified file to the server.
+	 * Handles the result of uploading a file or bundle, moving the files to
+	 * the uploaded directory if the upload was successful. Called by the
+	 * upload engine's workers.
 	 * 
-	 * @param fileName
-	 *            The file to upload
+	 * @param files
+	 *            The files that were uploaded, more than one if they were
+	 *            bundled.
+	 * @param response
+	 *            The server's response, or null if there was none.
+	 * @param error
+	 *            The reason the upload failed, or null.
 	 * @return A code indicating the result of the upload.
 	 */
-	private int uploadFile(final String fileName) {
-		Log.d(TAG, "Uploading " + fileName);
-		httpclient = new DefaultHttpClient();
-		httpclient.getParams().setParameter(
-				CoreProtocolPNames.PROTOCOL_VERSION, HttpVersion.HTTP_1_0);
-
-		httppost = new HttpPost(UPLOAD_URL);
-		final File file = new File(HSAndroid.getStorageDirectory(), fileName);
-		if (!file.exists()) {
-			// File may be deleted while in the queue for uploading
-			Log.d(TAG, "Unable to upload " + fileName
-					+ ". File does not exist.");
-			return UPLOAD_FAILED_FILE_NOT_FOUND_ERROR_CODE;
-		}
-		Log.d(TAG, "MAC ADDRESS: " + wifiInfo.getMacAddress());
-		httppost.addHeader("MAC", wifiInfo.getMacAddress());
-
-		final MultipartEntity mpEntity = new MultipartEntity();
-		final ContentBody cbFile = new FileBody(file, "binary/octet-stream");
-		mpEntity.addPart("uploadedfile", cbFile);
-
-		httppost.setEntity(mpEntity);
+	private int uploadFinished(final List<File> files, final String response,
+			final Exception error) {
 		try {
-			final HttpResponse response = httpclient.execute(httppost);
-			final HttpEntity resEntity = response.getEntity();
-
-			String responseMsg = "";
-			if (resEntity != null) {
-				responseMsg = EntityUtils.toString(resEntity);
-				resEntity.consumeContent();
+			if (error != null) {
+				throw error;
 			}
-			Log.i(TAG, "Server Response: " + responseMsg);
-			if (responseMsg.contains("FAILURE")) {
-				CURRENT_ERROR_CODE = UPLOAD_FAILED_ERROR_CODE;
+			if (response.contains("FAILURE")) {
 				return UPLOAD_FAILED_ERROR_CODE;
 			}
 			// Move files to uploaded folder if successful
-			else {
-				Log.i(TAG, "Moving file to uploaded directory.");
-				final File dest = new File(HSAndroid.getStorageDirectory(),
-						HSAndroid.getAppString(R.string.uploaded_file_path));
-				if (!dest.isDirectory()) {
-					if (!dest.mkdirs()) {
-						throw new IOException(
-								"ERROR: Unable to create directory "
-										+ dest.getName());
-					}
-				}
-
-				if (!file.renameTo(new File(dest, file.getName()))) {
-					throw new IOException("ERROR: Unable to transfer file "
-							+ file.getName());
+			for (final File file : files) {
+				journal.setState(file.getName(), UploadJournal.ACKED);
+			}
+			for (final File file : files) {
+				moveUploadedFile(file);
+				synchronized (this) {
+					filesUploaded++;
+					journal.setState(file.getName(), UploadJournal.MOVED);
 				}
 			}
-
+		} catch (final FileNotFoundException e) {
+			// File may be deleted while in the queue for uploading
+			return UPLOAD_FAILED_FILE_NOT_FOUND_ERROR_CODE;
 		} catch (final MalformedURLException e) {
 			Log.e(TAG, android.util.Log.getStackTraceString(e));
-			CURRENT_ERROR_CODE = MALFORMEDURLEXCEPTION_ERROR_CODE;
 			return MALFORMEDURLEXCEPTION_ERROR_CODE;
 		} catch (final UnknownHostException e) {
 			Log.e(TAG, android.util.Log.getStackTraceString(e));
-			CURRENT_ERROR_CODE = UNKNOWNHOSTEXCEPTION_ERROR_CODE;
 			return UNKNOWNHOSTEXCEPTION_ERROR_CODE;
+		} catch (final HttpStatusException e) {
+			// The server failed, not the file, so it is retried later.
+			Log.e(TAG, e.getMessage());
+			return UPLOAD_FAILED_ERROR_CODE;
 		} catch (final IOException e) {
 			Log.e(TAG, android.util.Log.getStackTraceString(e));
-			CURRENT_ERROR_CODE = IOEXCEPTION_ERROR_CODE;
 			return IOEXCEPTION_ERROR_CODE;
-		} catch (final IllegalStateException e) {
+		} catch (final Exception e) {
 			Log.e(TAG, android.util.Log.getStackTraceString(e));
-			CURRENT_ERROR_CODE = ILLEGALSTATEEXCEPTION_ERROR_CODE;
 			return ILLEGALSTATEEXCEPTION_ERROR_CODE;
 		}
 		return NO_ERROR_CODE;
 	}
 
 	/**
-	 * Runs a new thread that uploads all files in the fileList.
+	 * Runs a new thread that uploads all files pending in the journal. Files
+	 * that the server already has are only moved.
 	 */
 	private void uploadFiles() {
 		new Thread() {
 			@Override
 			public void run() {
 				updateFileList();
-				String ff = null;
-				while (!fileList.isEmpty()) {
+				setUpScheduler();
+				final List<String> files = journal.getPending();
+				if (!files.isEmpty()) {
 					if (canUpload()) {
-						final String f = fileList.remove();
-						final int retCode = uploadFile(f);
-						if (retCode != NO_ERROR_CODE) {
-							// If the file is missing, or there is some problem
-							// reading the file, then the file is skipped.
-							// Otherwise it is put back into the queue.
-							if (retCode != UPLOAD_FAILED_FILE_NOT_FOUND_ERROR_CODE
-									&& retCode != IOEXCEPTION_ERROR_CODE) {
-								fileList.addLast(f);
-								if (ff == null) {
-									ff = f;
-								} else {
-									// If we have gone through the whole list
-									// and all files are giving errors, if on
-									// automatic set the timer to try again,
-									// else break and alert user that there were
-									// errors.
-									if (ff.equals(f)) {
-										if (automatic) {
-											waiting = true;
-											// We are waiting to try the upload
-											// for this file again after a set
-											// time.
-											timerStart();
-											return;
-										} else {
-											break;
-										}
-									}
+						final List<File> toSend = new ArrayList<File>();
+						for (final String f : files) {
+							final File file = new File(HSAndroid
+									.getStorageDirectory(), UNUPLOADED_PATH
+									+ f);
+							synchronized (LogFileUploaderService.this) {
+								final int state = journal.getState(f);
+								if (state == UploadJournal.ACKED) {
+									moveAcknowledgedFile(file);
+									continue;
+								} else if (skipped.contains(f)) {
+									continue;
 								}
+								journal.setState(f, UploadJournal.IN_FLIGHT);
 							}
-						} else {
-							// If there was no error code, the file was
-							// successfully uploaded.
-							filesUploaded++;
+							toSend.add(file);
+						}
+						enqueueFiles(toSend);
+						try {
+							engine.awaitIdle();
+						} catch (final InterruptedException e) {
+							Log.e(TAG, e);
+							return;
+						}
+						Log.i(TAG, "Upload statistics: " + engine);
+						Log.i(TAG, "Bundle statistics: " + bundler);
+						final boolean retryNeeded;
+						synchronized (LogFileUploaderService.this) {
+							retryNeeded = retry;
+							retry = false;
+						}
+						if (!retryNeeded) {
+							scheduler.onSuccess();
+						}
+						// If some files are giving errors, if on automatic set
+						// the timer to try them again, else alert user that
+						// there were errors.
+						if (retryNeeded && automatic) {
+							waiting = true;
+							timerStart();
+							return;
 						}
 					} else {
 						if (automatic) {
 							waiting = true;
 							// We now wait for a connection to become available,
-							// so register a receiver for it.
-							registerReceiver(connectReceiver, new IntentFilter(
-									ConnectivityManager.CONNECTIVITY_ACTION));
+							// or the phone to be plugged in, so register a
+							// receiver for them.
+							final IntentFilter filter = new IntentFilter(
+									ConnectivityManager.CONNECTIVITY_ACTION);
+							filter.addAction(Intent.ACTION_POWER_CONNECTED);
+							registerReceiver(connectReceiver, filter);
 							connectionReceiverRegistered = true;
 							return;
 						} else {
 							CURRENT_ERROR_CODE = NO_CONNECTION_ERROR;
-							break;
 						}
 					}
 				}
-				fileMap.clear();
-				fileList.clear();
-				if (httpclient != null) {
-					httpclient.getConnectionManager().shutdown();
-				}
 				final Intent i = new Intent();
 				i.setAction(UPLOAD_COMPLETE_INTENT);
 				sendBroadcast(i);
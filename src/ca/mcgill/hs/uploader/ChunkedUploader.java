@@ -0,0 +1,261 @@
+/* 
+ * Copyright (c) 2010 Jordan Frank, HumanSense Project, McGill University
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ * See LICENSE for more information 
+ */
+package ca.mcgill.hs.uploader;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URLEncoder;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.util.EntityUtils;
+
+import ca.mcgill.hs.util.CRC32C;
+import ca.mcgill.hs.util.Log;
+
+/**
+ * Uploads a file in fixed-size chunks, so that a dropped connection only costs
+ * the chunk that was being sent rather than the whole file.
+ * <p>
+ * The protocol has two requests, both of which identify the file by the
+ * phone's MAC header and the name and total length parameters:
+ * <ul>
+ * <li>A GET asks the server how much of the file it already has.</li>
+ * <li>A POST with an offset parameter sends the chunk starting at that offset,
+ * with its CRC-32C in the {@link #CHECKSUM_HEADER} header.</li>
+ * </ul>
+ * The server answers both with "OFFSET n", where n is the number of bytes of
+ * the file that it has stored, or with "SUCCESS" once it has the whole file. A
+ * chunk that does not start where the server expects, or whose checksum does
+ * not match, is refused with an error status, but the server still gives its
+ * offset so that the upload can carry on from there. When a request fails, the
+ * offset is asked for again, and the upload resumes from the last chunk the
+ * server acknowledged. A server error, status 500 or above, counts as a
+ * failed request, and if it is the last one the upload ends with an
+ * {@link HttpStatusException}.
+ * <p>
+ * LocalUploadServer, in the test sources, implements the server side.
+ * 
+ * @author Jordan Frank <jordan.frank@cs.mcgill.ca>
+ */
+public final class ChunkedUploader {
+
+	private static final String TAG = "ChunkedUploader";
+
+	/** The number of bytes in each chunk, except perhaps the last. */
+	public static final int CHUNK_SIZE = 256 * 1024;
+
+	/** The header holding the CRC-32C of a chunk, as eight hex digits. */
+	public static final String CHECKSUM_HEADER = "X-Chunk-CRC32C";
+
+	private static final String OFFSET = "OFFSET ";
+
+	private static final String SUCCESS = "SUCCESS";
+
+	private final HttpClient client;
+	private final String url;
+	private final String macAddress;
+
+	/* Statistics, guarded by this. */
+	private int numChunks = 0;
+	private int numRetries = 0;
+	private int numResumed = 0;
+	private long bytesSkipped = 0;
+
+	/**
+	 * Creates an uploader.
+	 * 
+	 * @param client
+	 *            The HTTP client with which to send the chunks. It may be
+	 *            shared with other threads if its connection manager allows it.
+	 * @param url
+	 *            The URL of the server's chunked upload script.
+	 * @param macAddress
+	 *            The MAC address of the phone, which identifies it to the
+	 *            server.
+	 */
+	public ChunkedUploader(final HttpClient client, final String url,
+			final String macAddress) {
+		this.client = client;
+		this.url = url;
+		this.macAddress = macAddress;
+	}
+
+	/**
+	 * Sends a request and returns the server's response.
+	 * 
+	 * @throws HttpStatusException
+	 *             If the server answers with a server error.
+	 */
+	private String execute(final HttpUriRequest request) throws IOException {
+		request.addHeader("MAC", macAddress);
+		final int status;
+		final String message;
+		try {
+			final HttpResponse response = client.execute(request);
+			final HttpEntity entity = response.getEntity();
+			status = response.getStatusLine().getStatusCode();
+			// Reading the whole response frees the connection for reuse.
+			message = entity == null ? "" : EntityUtils.toString(entity)
+					.trim();
+		} catch (final IOException e) {
+			request.abort();
+			throw e;
+		} catch (final IllegalStateException e) {
+			request.abort();
+			throw e;
+		}
+		if (status >= 500) {
+			throw new HttpStatusException(status, "Server returned " + status
+					+ " for " + request.getURI());
+		}
+		return message;
+	}
+
+	/**
+	 * Returns the offset given in a response other than SUCCESS.
+	 */
+	private long parseOffset(final String message, final String name,
+			final long length) throws IOException {
+		long offset = -1;
+		if (message.startsWith(OFFSET)) {
+			try {
+				offset = Long.parseLong(message.substring(OFFSET.length()));
+			} catch (final NumberFormatException e) {
+				// Handled below.
+			}
+		}
+		if (offset < 0 || offset > length) {
+			throw new IOException("Unexpected response for " + name + ": "
+					+ message);
+		}
+		return offset;
+	}
+
+	/**
+	 * Returns the URL of a request about part of a file.
+	 */
+	private String requestUrl(final String name, final long length,
+			final long offset) throws IOException {
+		final StringBuilder builder = new StringBuilder(url);
+		builder.append(url.indexOf('?') < 0 ? '?' : '&');
+		builder.append("name=").append(URLEncoder.encode(name, "UTF-8"));
+		builder.append("&length=").append(length);
+		if (offset >= 0) {
+			builder.append("&offset=").append(offset);
+		}
+		return builder.toString();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "chunks=" + numChunks + " retries=" + numRetries + " resumed="
+				+ numResumed + " skipped=" + bytesSkipped;
+	}
+
+	/**
+	 * Uploads a file, picking up where an earlier attempt left off. Failed
+	 * requests are retried until {@link Constants#MAX_RETRIES} of them in a
+	 * row have gone by without the server acknowledging a chunk.
+	 * 
+	 * @param file
+	 *            The file to upload.
+	 * @return The server's final response, SUCCESS.
+	 * @throws IOException
+	 *             If the file cannot be read, or the server cannot be reached
+	 *             or keeps refusing chunks.
+	 */
+	public String upload(final File file) throws IOException {
+		final String name = file.getName();
+		final RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			final long length = in.length();
+			final byte[] buffer = new byte[(int) Math.min(CHUNK_SIZE, length)];
+			final CRC32C checksum = new CRC32C();
+			boolean first = true;
+			int failures = 0;
+			// The server's offset, or -1 if it needs to be asked for.
+			long offset = -1;
+			while (true) {
+				final String message;
+				try {
+					if (offset < 0) {
+						message = execute(new HttpGet(requestUrl(name, length,
+								-1)));
+					} else {
+						// An empty file is sent as a single empty chunk.
+						final int count = (int) Math.min(CHUNK_SIZE, length
+								- offset);
+						in.seek(offset);
+						in.readFully(buffer, 0, count);
+						checksum.reset();
+						checksum.update(buffer, 0, count);
+						final HttpPost post = new HttpPost(requestUrl(name,
+								length, offset));
+						post.addHeader(CHECKSUM_HEADER, CRC32C
+								.toHexString(checksum.getValue()));
+						post.setEntity(new InputStreamEntity(
+								new ByteArrayInputStream(buffer, 0, count),
+								count));
+						message = execute(post);
+					}
+				} catch (final IOException e) {
+					if (++failures > Constants.MAX_RETRIES) {
+						throw e;
+					}
+					Log.d(TAG, e);
+					synchronized (this) {
+						numRetries += 1;
+					}
+					offset = -1;
+					continue;
+				}
+				if (message.equals(SUCCESS)) {
+					if (offset >= 0) {
+						synchronized (this) {
+							numChunks += 1;
+						}
+					}
+					return message;
+				}
+
+				final long next = parseOffset(message, name, length);
+				if (offset < 0) {
+					if (first && next > 0) {
+						Log.d(TAG, "Resuming " + name + " at " + next);
+						synchronized (this) {
+							numResumed += 1;
+							bytesSkipped += next;
+						}
+					}
+					first = false;
+				} else if (next > offset) {
+					failures = 0;
+					synchronized (this) {
+						numChunks += 1;
+					}
+				} else if (++failures > Constants.MAX_RETRIES) {
+					throw new IOException("Server refused chunk of " + name
+							+ " at " + offset);
+				} else {
+					synchronized (this) {
+						numRetries += 1;
+					}
+				}
+				offset = next;
+			}
+		} finally {
+			in.close();
+		}
+	}
+}
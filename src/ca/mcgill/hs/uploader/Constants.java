@@ -51,6 +51,12 @@ public class Constants {
 	 */
 	public static final int RETRY_FIRST_DELAY = 30; // 30s
 
+	/**
+	 * The longest time between a failure and the next retry, however many
+	 * failures there have been in a row. The time is in seconds.
+	 */
+	public static final int MAX_RETRY_DELAY = 60 * 60; // 1h
+
 	public static final int STATUS_PENDING = 0x0;
 	public static final int STATUS_RUNNING = 0x1;
 	public static final int STATUS_RUNNING_PAUSED = 0x2;
@@ -0,0 +1,96 @@
+/* 
+ * Copyright (c) 2010 Jordan Frank, HumanSense Project, McGill University
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ * See LICENSE for more information 
+ */
+package ca.mcgill.hs.uploader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes the hash of the content of a file, which identifies the file to the
+ * server whatever its name, so that a file the server already has need not be
+ * sent again. Files are read through a channel into a direct buffer, so that
+ * hashing a large file takes little memory and few copies.
+ * 
+ * @author Jordan Frank <jordan.frank@cs.mcgill.ca>
+ */
+public final class ContentHash {
+
+	/** The hash algorithm. */
+	public static final String ALGORITHM = "SHA-256";
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	/**
+	 * Hashes part of an array.
+	 * 
+	 * @param data
+	 *            The array.
+	 * @param offset
+	 *            The index of the first byte to hash.
+	 * @param length
+	 *            The number of bytes to hash.
+	 * @return The hash, as lowercase hex digits.
+	 */
+	public static String digest(final byte[] data, final int offset,
+			final int length) {
+		final MessageDigest digest = newDigest();
+		digest.update(data, offset, length);
+		return toHexString(digest.digest());
+	}
+
+	/**
+	 * Hashes the content of a file.
+	 * 
+	 * @param file
+	 *            The file.
+	 * @return The hash, as lowercase hex digits.
+	 * @throws IOException
+	 *             If the file cannot be read.
+	 */
+	public static String digest(final File file) throws IOException {
+		final MessageDigest digest = newDigest();
+		final FileInputStream in = new FileInputStream(file);
+		try {
+			final FileChannel channel = in.getChannel();
+			final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			while (channel.read(buffer) >= 0) {
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		} finally {
+			in.close();
+		}
+		return toHexString(digest.digest());
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(ALGORITHM);
+		} catch (final NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHexString(final byte[] hash) {
+		final char[] digits = new char[hash.length * 2];
+		for (int i = 0; i < hash.length; i++) {
+			digits[2 * i] = HEX_DIGITS[(hash[i] >> 4) & 0xf];
+			digits[2 * i + 1] = HEX_DIGITS[hash[i] & 0xf];
+		}
+		return new String(digits);
+	}
+
+	private ContentHash() {
+	}
+}
@@ -0,0 +1,133 @@
+/* 
+ * Copyright (c) 2010 Jordan Frank, HumanSense Project, McGill University
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ * See LICENSE for more information 
+ */
+package ca.mcgill.hs.uploader;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * A multipart/form-data request body holding a single file, in the same form
+ * as a MultipartEntity with one FileBody, but streamed from the file with as
+ * little copying as possible. The file is read through its channel into one
+ * large buffer, and each buffer is written to the connection in one call,
+ * which is large enough for HttpClient to pass it straight to the socket
+ * instead of copying it into its own, smaller buffer. The memory used is the
+ * same whatever the size of the file.
+ * 
+ * @author Jordan Frank <jordan.frank@cs.mcgill.ca>
+ */
+public final class FileUploadEntity extends AbstractHttpEntity {
+
+	/* The size of the buffer through which the file is copied. */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final char[] BOUNDARY_CHARS = "-_1234567890abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ"
+			.toCharArray();
+
+	private static final Random random = new Random();
+
+	private static byte[] bytes(final String s) {
+		try {
+			return s.getBytes("US-ASCII");
+		} catch (final UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns a random boundary between 30 and 40 characters long, like
+	 * those of MultipartEntity.
+	 */
+	private static String newBoundary() {
+		final StringBuilder boundary = new StringBuilder();
+		final int length;
+		synchronized (random) {
+			length = 30 + random.nextInt(11);
+			for (int i = 0; i < length; i++) {
+				boundary.append(BOUNDARY_CHARS[random
+						.nextInt(BOUNDARY_CHARS.length)]);
+			}
+		}
+		return boundary.toString();
+	}
+
+	private final File file;
+	private final byte[] head;
+	private final byte[] tail;
+
+	/**
+	 * Creates the body of a request uploading a file.
+	 * 
+	 * @param file
+	 *            The file.
+	 * @param name
+	 *            The name of the form field holding the file.
+	 * @param mimeType
+	 *            The MIME type of the file.
+	 */
+	public FileUploadEntity(final File file, final String name,
+			final String mimeType) {
+		this.file = file;
+		final String boundary = newBoundary();
+		head = bytes("--" + boundary + "\r\n"
+				+ "Content-Disposition: form-data; name=\"" + name
+				+ "\"; filename=\"" + file.getName() + "\"\r\n"
+				+ "Content-Type: " + mimeType + "\r\n"
+				+ "Content-Transfer-Encoding: binary\r\n\r\n");
+		tail = bytes("\r\n--" + boundary + "--\r\n");
+		setContentType("multipart/form-data; boundary=" + boundary);
+	}
+
+	/**
+	 * Returns the body. Use {@link #writeTo(OutputStream)} to send it.
+	 */
+	public InputStream getContent() throws IOException {
+		return new SequenceInputStream(new SequenceInputStream(
+				new ByteArrayInputStream(head), new FileInputStream(file)),
+				new ByteArrayInputStream(tail));
+	}
+
+	public long getContentLength() {
+		return head.length + file.length() + tail.length;
+	}
+
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	public boolean isStreaming() {
+		return false;
+	}
+
+	public void writeTo(final OutputStream out) throws IOException {
+		out.write(head);
+		final FileInputStream in = new FileInputStream(file);
+		try {
+			final FileChannel channel = in.getChannel();
+			final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			int count;
+			while ((count = channel.read(buffer)) >= 0) {
+				out.write(buffer.array(), 0, count);
+				buffer.clear();
+			}
+		} finally {
+			in.close();
+		}
+		out.write(tail);
+		out.flush();
+	}
+}
@@ -0,0 +1,40 @@
+/* 
+ * Copyright (c) 2010 Jordan Frank, HumanSense Project, McGill University
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ * See LICENSE for more information 
+ */
+package ca.mcgill.hs.uploader;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the upload server answers with an error status. Unlike other
+ * I/O errors, which may come from the file itself, it means the server could
+ * not take the file this time, so the upload should be tried again later.
+ * 
+ * @author Jordan Frank <jordan.frank@cs.mcgill.ca>
+ */
+public final class HttpStatusException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int status;
+
+	/**
+	 * @param status
+	 *            The status the server answered with.
+	 * @param message
+	 *            A description of the request that failed.
+	 */
+	public HttpStatusException(final int status, final String message) {
+		super(message);
+		this.status = status;
+	}
+
+	/**
+	 * @return The status the server answered with.
+	 */
+	public int getStatus() {
+		return status;
+	}
+}
@@ -8,9 +8,12 @@ package ca.mcgill.hs.uploader;
 import java.util.Random;
 
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.wifi.WifiManager;
+import android.os.BatteryManager;
 import android.os.SystemClock;
 import android.telephony.TelephonyManager;
 import ca.mcgill.hs.util.Log;
@@ -22,6 +25,33 @@ public class NetworkHelper {
 
 	private static String macAddress = null;
 
+	/**
+	 * Returns whether the phone may upload now: whether it is connected, and
+	 * whether the network and the charging state meet the requirements set on
+	 * the scheduler.
+	 * 
+	 * @param context
+	 *            The context in which to look up the network and battery.
+	 * @param scheduler
+	 *            The scheduler holding the requirements.
+	 * @return True if uploads may start.
+	 */
+	public static boolean canUpload(final Context context,
+			final UploadScheduler scheduler) {
+		final ConnectivityManager connectivity = (ConnectivityManager) context
+				.getSystemService(Context.CONNECTIVITY_SERVICE);
+		final NetworkInfo info = connectivity == null ? null : connectivity
+				.getActiveNetworkInfo();
+		if (info == null) {
+			return false;
+		}
+		// Only Wi-Fi is known to be unmetered on all phones.
+		return scheduler.canUpload(
+				info.getState() == NetworkInfo.State.CONNECTED,
+				info.getType() == ConnectivityManager.TYPE_WIFI,
+				isCharging(context));
+	}
+
 	public static String getMacAddress(final Context context) {
 		if (macAddress == null) {
 			macAddress = ((WifiManager) context
@@ -31,6 +61,16 @@ public class NetworkHelper {
 		return macAddress;
 	}
 
+	/**
+	 * Returns whether the phone is plugged in.
+	 */
+	public static boolean isCharging(final Context context) {
+		final Intent battery = context.registerReceiver(null,
+				new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+		return battery != null
+				&& battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+	}
+
 	/**
 	 * Returns whether the network is available
 	 */
@@ -0,0 +1,631 @@
+/* 
+ * Copyright (c) 2010 Jordan Frank, HumanSense Project, McGill University
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ * See LICENSE for more information 
+ */
+package ca.mcgill.hs.uploader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.util.EntityUtils;
+
+import android.os.Process;
+import ca.mcgill.hs.util.Log;
+
+/**
+ * Streams the data written to live log files to the server as it is written,
+ * rather than waiting for the files to be rolled over and uploaded whole.
+ * <p>
+ * What is written to a file opened with {@link #open(String, OutputStream)}
+ * is copied into a block, which is sealed once it is
+ * {@link #BATCH_INTERVAL_MS} old or {@link #MAX_SEGMENT_SIZE} long. A
+ * background thread compresses each sealed block into a segment and writes it
+ * to a spool directory, and then posts the spooled segments to the server in
+ * batches, oldest first, one batch every {@link #BATCH_INTERVAL_MS} or so.
+ * While the server cannot be reached, or the {@link Gate} given to
+ * {@link #setGate(Gate)} does not allow uploads, segments wait in the spool,
+ * which survives the process, and the sender backs off exponentially.
+ * <p>
+ * Streaming never holds up logging. If the sender falls behind, sealed blocks
+ * wait in memory, and once {@link #MAX_PENDING_BYTES} are waiting, or the
+ * spool holds {@link #MAX_SPOOL_BYTES}, new segments are dropped. The file
+ * whose segment is dropped is no longer streamed, since the server could not
+ * append what follows the gap. Nothing is lost by this, since the log files
+ * themselves are still uploaded once they are rolled over.
+ * <p>
+ * A batch is the concatenation of segments, each made of the file name (as
+ * written by {@link DataOutputStream#writeUTF(String)}), the offset of the
+ * segment's data in the uncompressed file (a long), the length of the
+ * uncompressed data (an int), and the length of the compressed data (an int)
+ * followed by the data in GZIP format. Appending the compressed data of a
+ * file's segments in order gives a GZIP stream of the file's content, and a
+ * segment whose offset the server has already passed is a retry that it can
+ * ignore. The server answers SUCCESS once it has stored the whole batch. A
+ * segment that starts past the end of the data the server has for its file is
+ * refused, with status 409 and "OFFSET n name", where n is where the server's
+ * copy of the file ends and name is the file's name. The server stores the
+ * segments before the refused one, and drops the rest of the batch. The data
+ * from n on is no longer held by the streamer, or the server would already
+ * have it, so the streamer stops streaming the file, deletes its spooled
+ * segments and sends the rest again.
+ * LocalUploadServer, in the test sources, implements the server side.
+ * 
+ * @author Jordan Frank <jordan.frank@cs.mcgill.ca>
+ */
+public final class SegmentStreamer {
+
+	/* A sealed block waiting to be spooled. */
+	private static final class Block {
+		private final String name;
+		private final long offset;
+		private final byte[] data;
+
+		private Block(final String name, final long offset, final byte[] data) {
+			this.name = name;
+			this.offset = offset;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * Decides whether batches may be sent now.
+	 */
+	public interface Gate {
+		/**
+		 * @return True if a batch may be sent, for example because the phone
+		 *         is on a network the user allows uploads over.
+		 */
+		public boolean canSend();
+	}
+
+	/**
+	 * Writes to a live log file, and copies what is written into blocks that
+	 * are streamed to the server. Like the stream it wraps, it must only be
+	 * used by one thread at a time.
+	 */
+	public final class Segmenter extends FilterOutputStream {
+		private final String name;
+		private final ByteArrayOutputStream block = new ByteArrayOutputStream();
+
+		// The offset of the block in the file.
+		private long offset = 0;
+
+		// The time at which the block is due to be sealed, or -1 if it has
+		// not been set.
+		private long deadline = -1;
+
+		private Segmenter(final String name, final OutputStream out) {
+			super(out);
+			this.name = name;
+		}
+
+		/**
+		 * Seals the last block, and closes the file.
+		 */
+		@Override
+		public void close() throws IOException {
+			try {
+				seal();
+				forget(name);
+			} finally {
+				super.close();
+			}
+		}
+
+		private void seal() {
+			if (block.size() > 0) {
+				offer(new Block(name, offset, block.toByteArray()));
+				offset += block.size();
+				block.reset();
+			}
+			deadline = -1;
+		}
+
+		/**
+		 * Seals the current block if it is due. This should be called after
+		 * each record is written, so that the data is streamed even if the
+		 * blocks do not fill up.
+		 * 
+		 * @param now
+		 *            The current time, in milliseconds.
+		 */
+		public void sealIfDue(final long now) {
+			if (deadline < 0) {
+				deadline = now + BATCH_INTERVAL_MS;
+			} else if (now >= deadline) {
+				seal();
+			}
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len)
+				throws IOException {
+			out.write(b, off, len);
+			block.write(b, off, len);
+			if (block.size() >= MAX_SEGMENT_SIZE) {
+				seal();
+			}
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			out.write(b);
+			block.write(b);
+			if (block.size() >= MAX_SEGMENT_SIZE) {
+				seal();
+			}
+		}
+	}
+
+	private static final String TAG = "SegmentStreamer";
+
+	/** The time over which data is batched, in milliseconds. */
+	public static final long BATCH_INTERVAL_MS = 5 * 1000;
+
+	/** The largest block of uncompressed data in a segment. */
+	public static final int MAX_SEGMENT_SIZE = 64 * 1024;
+
+	/** The most data that may wait in memory to be spooled. */
+	public static final int MAX_PENDING_BYTES = 1024 * 1024;
+
+	/** The most compressed data that may wait in the spool to be sent. */
+	public static final long MAX_SPOOL_BYTES = 8 * 1024 * 1024;
+
+	/* The largest batch, unless a single segment is larger. */
+	private static final int MAX_BATCH_SIZE = 256 * 1024;
+
+	private static final long MAX_BACKOFF_MS = 5 * 60 * 1000;
+
+	private static final String SEGMENT_SUFFIX = ".seg";
+
+	private static final String SUCCESS = "SUCCESS";
+
+	private static final String OFFSET = "OFFSET ";
+
+	private final File spool;
+	private final String url;
+	private final String macAddress;
+	private final HttpClient client;
+	private final Thread sender;
+
+	/* The spooled segments in the order sealed, used by the sender only. */
+	private final LinkedList<File> spooled = new LinkedList<File>();
+	private long spoolBytes = 0;
+	private long nextSequence = 0;
+
+	/* Guarded by this. */
+	private final LinkedList<Block> pending = new LinkedList<Block>();
+	private int pendingBytes = 0;
+	private boolean shutdown = false;
+	private Gate gate = null;
+	// The files that are no longer streamed because a segment was dropped.
+	private final HashSet<String> abandoned = new HashSet<String>();
+
+	/* Statistics, guarded by this. */
+	private int numSegments = 0;
+	private int numBatches = 0;
+	private int numFailures = 0;
+	private int numDropped = 0;
+	private int numAbandoned = 0;
+	private long bytesStreamed = 0;
+	private long bytesSent = 0;
+
+	/**
+	 * Creates a streamer and starts its sender, which first sends any
+	 * segments left in the spool by an earlier streamer.
+	 * 
+	 * @param spool
+	 *            The directory in which to keep the segments until they have
+	 *            been sent.
+	 * @param url
+	 *            The URL to which batches are posted.
+	 * @param macAddress
+	 *            The MAC address of the phone, which identifies it to the
+	 *            server.
+	 */
+	public SegmentStreamer(final File spool, final String url,
+			final String macAddress) {
+		this.spool = spool;
+		this.url = url;
+		this.macAddress = macAddress;
+		client = UploadEngine.newHttpClient(1);
+
+		if (!spool.isDirectory() && !spool.mkdirs()) {
+			Log.e(TAG, "Unable to create " + spool.getPath());
+		}
+		final File[] files = spool.listFiles();
+		if (files != null) {
+			// The names are zero-padded sequence numbers, so they sort in the
+			// order in which the segments were sealed.
+			Arrays.sort(files);
+			for (final File file : files) {
+				final String name = file.getName();
+				if (!name.endsWith(SEGMENT_SUFFIX)) {
+					continue;
+				}
+				try {
+					nextSequence = Math.max(nextSequence, Long.parseLong(name
+							.substring(0, name.length()
+									- SEGMENT_SUFFIX.length())) + 1);
+				} catch (final NumberFormatException e) {
+					continue;
+				}
+				spooled.add(file);
+				spoolBytes += file.length();
+			}
+		}
+
+		sender = new Thread(TAG) {
+			@Override
+			public void run() {
+				send();
+			}
+		};
+		sender.start();
+	}
+
+	/**
+	 * Stops streaming a file whose data has a gap. Called with the lock held.
+	 */
+	private void abandon(final String name) {
+		if (abandoned.add(name)) {
+			Log.i(TAG, "No longer streaming " + name);
+			numAbandoned += 1;
+		}
+	}
+
+	/**
+	 * Forgets that a file was no longer streamed, once it has been closed.
+	 */
+	private synchronized void forget(final String name) {
+		abandoned.remove(name);
+	}
+
+	/**
+	 * Hands a sealed block to the sender, or drops it if its file is no longer
+	 * streamed or too much data is already waiting.
+	 */
+	private synchronized void offer(final Block block) {
+		if (shutdown) {
+			return;
+		}
+		if (abandoned.contains(block.name)) {
+			numDropped += 1;
+			return;
+		}
+		if (pendingBytes + block.data.length > MAX_PENDING_BYTES) {
+			Log.d(TAG, "Dropping segment of " + block.name);
+			numDropped += 1;
+			abandon(block.name);
+			return;
+		}
+		pending.add(block);
+		pendingBytes += block.data.length;
+		notifyAll();
+	}
+
+	/**
+	 * Opens a live log file for streaming.
+	 * 
+	 * @param name
+	 *            The name of the file, under which its data is stored on the
+	 *            server.
+	 * @param out
+	 *            The stream that writes the file.
+	 * @return A stream that writes to out, and streams what it writes.
+	 */
+	public Segmenter open(final String name, final OutputStream out) {
+		return new Segmenter(name, out);
+	}
+
+	/**
+	 * Reads the whole of a file.
+	 */
+	private byte[] read(final File file) throws IOException {
+		final byte[] data = new byte[(int) file.length()];
+		final DataInputStream in = new DataInputStream(new FileInputStream(
+				file));
+		try {
+			in.readFully(data);
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	/**
+	 * Spools blocks and sends batches until the streamer is shut down.
+	 */
+	private void send() {
+		Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+		long nextAttempt = 0;
+		long backoff = BATCH_INTERVAL_MS;
+		while (true) {
+			final List<Block> blocks;
+			final boolean stopping;
+			synchronized (this) {
+				long now = System.currentTimeMillis();
+				while (!shutdown && pending.isEmpty()
+						&& (spooled.isEmpty() || now < nextAttempt)) {
+					try {
+						wait(spooled.isEmpty() ? 0 : nextAttempt - now);
+					} catch (final InterruptedException e) {
+						return;
+					}
+					now = System.currentTimeMillis();
+				}
+				blocks = new ArrayList<Block>(pending);
+				pending.clear();
+				pendingBytes = 0;
+				stopping = shutdown;
+			}
+
+			for (final Block block : blocks) {
+				spool(block);
+			}
+			if (stopping) {
+				return;
+			}
+
+			final long now = System.currentTimeMillis();
+			if (spooled.isEmpty() || now < nextAttempt) {
+				continue;
+			}
+			final Gate current;
+			synchronized (this) {
+				current = gate;
+			}
+			if (current != null && !current.canSend()) {
+				// Not a failure, so the gate is simply asked again later.
+				nextAttempt = now + BATCH_INTERVAL_MS;
+				continue;
+			}
+			if (sendBatch()) {
+				backoff = BATCH_INTERVAL_MS;
+				// A backlog is sent without waiting.
+				nextAttempt = spooled.isEmpty() ? now + BATCH_INTERVAL_MS
+						: now;
+			} else {
+				nextAttempt = now + backoff;
+				backoff = Math.min(2 * backoff, MAX_BACKOFF_MS);
+			}
+		}
+	}
+
+	/**
+	 * Posts the oldest spooled segments to the server, and deletes them once
+	 * it has acknowledged them. If the server refuses a segment because of a
+	 * gap, the segments of its file are deleted instead.
+	 * 
+	 * @return True if the batch was acknowledged or refused because of a gap,
+	 *         so that the next batch may be sent at once.
+	 */
+	private boolean sendBatch() {
+		final ByteArrayOutputStream batch = new ByteArrayOutputStream();
+		final List<File> files = new ArrayList<File>();
+		for (final File file : spooled) {
+			if (!files.isEmpty()
+					&& batch.size() + file.length() > MAX_BATCH_SIZE) {
+				break;
+			}
+			try {
+				batch.write(read(file));
+			} catch (final IOException e) {
+				// The segment is dropped below along with those sent.
+				Log.e(TAG, e);
+			}
+			files.add(file);
+		}
+
+		final HttpPost post = new HttpPost(url);
+		post.addHeader("MAC", macAddress);
+		final ByteArrayEntity entity = new ByteArrayEntity(batch
+				.toByteArray());
+		entity.setContentType(Constants.MIME_TYPE);
+		post.setEntity(entity);
+		String message = "";
+		int status = 0;
+		try {
+			final HttpResponse response = client.execute(post);
+			status = response.getStatusLine().getStatusCode();
+			final HttpEntity responseEntity = response.getEntity();
+			if (responseEntity != null) {
+				// Reading the whole response frees the connection for reuse.
+				message = EntityUtils.toString(responseEntity).trim();
+			}
+		} catch (final IOException e) {
+			post.abort();
+			Log.d(TAG, e);
+		} catch (final IllegalStateException e) {
+			post.abort();
+			Log.d(TAG, e);
+		}
+		if (status == 409 && message.startsWith(OFFSET)) {
+			final int space = message.indexOf(' ', OFFSET.length());
+			if (space > 0) {
+				Log.d(TAG, "Server refused batch: " + message);
+				final String name = message.substring(space + 1);
+				synchronized (this) {
+					numFailures += 1;
+					abandon(name);
+				}
+				// Unless the refused segment was deleted, sending the batch
+				// again would only be refused again.
+				return unspool(name) > 0;
+			}
+		}
+		if (status != 200 || !message.equals(SUCCESS)) {
+			synchronized (this) {
+				numFailures += 1;
+			}
+			return false;
+		}
+
+		for (final File file : files) {
+			spoolBytes -= file.length();
+			if (!file.delete()) {
+				Log.e(TAG, "Unable to delete " + file.getName());
+			}
+		}
+		spooled.subList(0, files.size()).clear();
+		synchronized (this) {
+			numBatches += 1;
+			bytesSent += batch.size();
+		}
+		return true;
+	}
+
+	/**
+	 * Stops the sender once it has spooled the blocks that are waiting, and
+	 * closes its connection. A batch being sent is aborted, and sent again by
+	 * the next streamer. Files that are still open must be closed first so
+	 * that their last blocks are sealed.
+	 */
+	public void shutdown() {
+		synchronized (this) {
+			shutdown = true;
+			notifyAll();
+		}
+		client.getConnectionManager().shutdown();
+		try {
+			sender.join();
+		} catch (final InterruptedException e) {
+			Log.e(TAG, e);
+		}
+	}
+
+	/**
+	 * Sends batches from now on only when a gate allows it.
+	 * 
+	 * @param gate
+	 *            The gate to ask before each batch, or null to send whenever
+	 *            the server can be reached.
+	 */
+	public synchronized void setGate(final Gate gate) {
+		this.gate = gate;
+	}
+
+	/**
+	 * Compresses a block into a segment and writes it to the spool, unless
+	 * its file is no longer streamed or the spool is full.
+	 */
+	private void spool(final Block block) {
+		synchronized (this) {
+			if (abandoned.contains(block.name)) {
+				numDropped += 1;
+				return;
+			}
+		}
+		final ByteArrayOutputStream segment = new ByteArrayOutputStream();
+		try {
+			final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+			final GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+			gzip.write(block.data);
+			gzip.close();
+			final DataOutputStream out = new DataOutputStream(segment);
+			out.writeUTF(block.name);
+			out.writeLong(block.offset);
+			out.writeInt(block.data.length);
+			out.writeInt(compressed.size());
+			compressed.writeTo(out);
+		} catch (final IOException e) {
+			throw new IllegalStateException(e);
+		}
+
+		if (spoolBytes + segment.size() > MAX_SPOOL_BYTES) {
+			Log.d(TAG, "Spool full, dropping segment of " + block.name);
+			synchronized (this) {
+				numDropped += 1;
+				abandon(block.name);
+			}
+			return;
+		}
+		final File file = new File(spool, String.format("%016d",
+				nextSequence++)
+				+ SEGMENT_SUFFIX);
+		try {
+			final FileOutputStream out = new FileOutputStream(file);
+			try {
+				segment.writeTo(out);
+			} finally {
+				out.close();
+			}
+		} catch (final IOException e) {
+			Log.e(TAG, e);
+			file.delete();
+			synchronized (this) {
+				numDropped += 1;
+				abandon(block.name);
+			}
+			return;
+		}
+		spooled.add(file);
+		spoolBytes += segment.size();
+		synchronized (this) {
+			numSegments += 1;
+			bytesStreamed += block.data.length;
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "segments=" + numSegments + " batches=" + numBatches
+				+ " failures=" + numFailures + " dropped=" + numDropped
+				+ " abandoned=" + numAbandoned + " streamed=" + bytesStreamed
+				+ " sent=" + bytesSent;
+	}
+
+	/**
+	 * Deletes the spooled segments of a file. A segment that cannot be read is
+	 * deleted too, since the server could not use it either.
+	 * 
+	 * @return The number of segments deleted.
+	 */
+	private int unspool(final String name) {
+		int count = 0;
+		for (final Iterator<File> i = spooled.iterator(); i.hasNext();) {
+			final File file = i.next();
+			String segmentName = null;
+			try {
+				final DataInputStream in = new DataInputStream(
+						new FileInputStream(file));
+				try {
+					segmentName = in.readUTF();
+				} finally {
+					in.close();
+				}
+			} catch (final IOException e) {
+				Log.e(TAG, e);
+			}
+			if (segmentName == null || segmentName.equals(name)) {
+				spoolBytes -= file.length();
+				if (!file.delete()) {
+					Log.e(TAG, "Unable to delete " + file.getName());
+				}
+				i.remove();
+				count += 1;
+			}
+		}
+		return count;
+	}
+}
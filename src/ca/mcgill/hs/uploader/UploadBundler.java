@@ -0,0 +1,330 @@
+/* 
+ * Copyright (c) 2010 Jordan Frank, HumanSense Project, McGill University
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ * See LICENSE for more information 
+ */
+package ca.mcgill.hs.uploader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import ca.mcgill.hs.util.Log;
+
+/**
+ * Packs the small log files written during one rollover interval into a
+ * single ZIP bundle, so that they are uploaded with one request instead of
+ * one each. The log files are already compressed, so they are stored in the
+ * bundle as they are. Optionally, for example while the phone is charging,
+ * each one is first compressed again at the best compression level, which
+ * takes more time than the phone can spare while logging.
+ * <p>
+ * The server recognizes a bundle by its name, which ends in
+ * {@link #BUNDLE_SUFFIX}, and unpacks it with
+ * {@link #unpack(InputStream, File)}.
+ * 
+ * @author Jordan Frank <jordan.frank@cs.mcgill.ca>
+ */
+public final class UploadBundler {
+
+	/* A GZIP stream that compresses at the best compression level. */
+	private static final class BestGZIPOutputStream extends GZIPOutputStream {
+		public BestGZIPOutputStream(final OutputStream out) throws IOException {
+			super(out);
+			def.setLevel(Deflater.BEST_COMPRESSION);
+		}
+	}
+
+	private static final String TAG = "UploadBundler";
+
+	/** The suffix of the name of a bundle. */
+	public static final String BUNDLE_SUFFIX = "-bundle.zip";
+
+	/** Files larger than this are uploaded on their own. */
+	public static final long MAX_BUNDLED_FILE_SIZE = 256 * 1024;
+
+	/*
+	 * The start of the name of a log file is the time at which it was created,
+	 * in the format used by FileOutput.
+	 */
+	private static final String TIMESTAMP_FORMAT = "yy-MM-dd-HHmmss";
+
+	/**
+	 * Copies a stream to another.
+	 */
+	private static void copy(final InputStream in, final OutputStream out,
+			final byte[] buffer) throws IOException {
+		int count;
+		while ((count = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, count);
+		}
+	}
+
+	/**
+	 * Groups files by the rollover interval in which they were created. The
+	 * first file of each interval is created as the interval starts, and the
+	 * others before it ends, so each group starts with the oldest file not yet
+	 * grouped and holds the files created less than one interval after it.
+	 * Files that are too large to bundle, or whose names do not start with a
+	 * timestamp, are put in groups of their own.
+	 * 
+	 * @param files
+	 *            The files to group.
+	 * @param interval
+	 *            The rollover interval, in milliseconds, or -1 if files are
+	 *            never rolled over, in which case no files are grouped.
+	 * @return The groups, each in the order in which its files were created.
+	 */
+	public static List<List<File>> group(final List<File> files,
+			final long interval) {
+		final List<List<File>> groups = new ArrayList<List<File>>();
+		final List<File> bundled = new ArrayList<File>();
+		final List<Long> times = new ArrayList<Long>();
+		for (final File file : files) {
+			final long time = interval > 0
+					&& file.length() <= MAX_BUNDLED_FILE_SIZE ? timestamp(file)
+					: -1;
+			if (time < 0) {
+				groups.add(Collections.singletonList(file));
+			} else {
+				bundled.add(file);
+			}
+		}
+		Collections.sort(bundled, new Comparator<File>() {
+			public int compare(final File a, final File b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+		for (final File file : bundled) {
+			times.add(timestamp(file));
+		}
+
+		int start = 0;
+		for (int i = 1; i <= bundled.size(); i++) {
+			if (i == bundled.size()
+					|| times.get(i) >= times.get(start) + interval) {
+				groups.add(new ArrayList<File>(bundled.subList(start, i)));
+				start = i;
+			}
+		}
+		return groups;
+	}
+
+	/**
+	 * @param name
+	 *            The name of an uploaded file.
+	 * @return True if the file is a bundle.
+	 */
+	public static boolean isBundle(final String name) {
+		return name.endsWith(BUNDLE_SUFFIX);
+	}
+
+	/**
+	 * Returns the time at which a log file was created, from its name.
+	 * 
+	 * @return The time, or -1 if the name does not start with a timestamp.
+	 */
+	private static long timestamp(final File file) {
+		final String name = file.getName();
+		if (name.length() < TIMESTAMP_FORMAT.length()) {
+			return -1;
+		}
+		try {
+			return new SimpleDateFormat(TIMESTAMP_FORMAT).parse(
+					name.substring(0, TIMESTAMP_FORMAT.length())).getTime();
+		} catch (final ParseException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Extracts the files in a bundle.
+	 * 
+	 * @param in
+	 *            The bundle.
+	 * @param directory
+	 *            The directory in which to put the files.
+	 * @return The files extracted.
+	 * @throws IOException
+	 *             If the bundle cannot be read or is malformed, or a file
+	 *             cannot be written.
+	 */
+	public static List<File> unpack(final InputStream in,
+			final File directory) throws IOException {
+		final ZipInputStream zip = new ZipInputStream(in);
+		final byte[] buffer = new byte[Constants.BUFFER_SIZE];
+		final List<File> files = new ArrayList<File>();
+		ZipEntry entry;
+		while ((entry = zip.getNextEntry()) != null) {
+			final String name = entry.getName();
+			if (entry.isDirectory() || name.indexOf('/') >= 0
+					|| name.indexOf('\\') >= 0 || name.startsWith(".")) {
+				throw new IOException("Invalid entry in bundle: " + name);
+			}
+			final File file = new File(directory, name);
+			final FileOutputStream out = new FileOutputStream(file);
+			try {
+				copy(zip, out, buffer);
+			} finally {
+				out.close();
+			}
+			files.add(file);
+		}
+		return files;
+	}
+
+	private final byte[] buffer = new byte[Constants.BUFFER_SIZE];
+
+	/* Statistics, guarded by this. */
+	private int numBundles = 0;
+	private int numFiles = 0;
+	private long bytesIn = 0;
+	private long bytesOut = 0;
+
+	/**
+	 * Writes a bundle of files. Each file is stored in the bundle under its
+	 * own name.
+	 * 
+	 * @param files
+	 *            The files to bundle, which should come from {@link #group}.
+	 * @param directory
+	 *            The directory in which to write the bundle.
+	 * @param recompress
+	 *            Whether to compress each file again at the best compression
+	 *            level. A file is kept as it is if this does not make it
+	 *            smaller, or if it cannot be decompressed, for example because
+	 *            it was cut short.
+	 * @return The bundle, named after the first file.
+	 * @throws IOException
+	 *             If a file cannot be read, or the bundle cannot be written.
+	 */
+	public synchronized File bundle(final List<File> files,
+			final File directory, final boolean recompress)
+			throws IOException {
+		final String first = files.get(0).getName();
+		final int dot = first.lastIndexOf('.');
+		final File bundle = new File(directory, (dot > 0 ? first.substring(0,
+				dot) : first)
+				+ BUNDLE_SUFFIX);
+		final ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(
+				bundle));
+		long in = 0;
+		try {
+			for (final File file : files) {
+				final byte[] data = read(file);
+				in += data.length;
+				byte[] stored = data;
+				if (recompress) {
+					final byte[] recompressed = recompress(data);
+					if (recompressed != null
+							&& recompressed.length < data.length) {
+						stored = recompressed;
+					}
+				}
+
+				// The files are already compressed, so they are stored as is.
+				final ZipEntry entry = new ZipEntry(file.getName());
+				final CRC32 crc = new CRC32();
+				crc.update(stored);
+				entry.setMethod(ZipEntry.STORED);
+				entry.setSize(stored.length);
+				entry.setCompressedSize(stored.length);
+				entry.setCrc(crc.getValue());
+				entry.setTime(file.lastModified());
+				zip.putNextEntry(entry);
+				zip.write(stored);
+				zip.closeEntry();
+			}
+		} finally {
+			zip.close();
+		}
+		numBundles += 1;
+		numFiles += files.size();
+		bytesIn += in;
+		bytesOut += bundle.length();
+		return bundle;
+	}
+
+	/**
+	 * @return The number of bytes in the files that have been bundled.
+	 */
+	public synchronized long getBytesIn() {
+		return bytesIn;
+	}
+
+	/**
+	 * @return The number of bytes in the bundles that have been written.
+	 */
+	public synchronized long getBytesOut() {
+		return bytesOut;
+	}
+
+	/**
+	 * @return The number of requests saved by bundling files, that is, the
+	 *         number of files bundled less the number of bundles.
+	 */
+	public synchronized int getRequestsSaved() {
+		return numFiles - numBundles;
+	}
+
+	/**
+	 * Reads the whole of a file.
+	 */
+	private byte[] read(final File file) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(
+				(int) file.length());
+		final FileInputStream in = new FileInputStream(file);
+		try {
+			copy(in, out, buffer);
+		} finally {
+			in.close();
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decompresses a GZIP file and compresses it again at the best level.
+	 * 
+	 * @return The recompressed file, or null if it cannot be decompressed.
+	 */
+	private byte[] recompress(final byte[] data) {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(
+				data.length);
+		try {
+			final GZIPInputStream in = new GZIPInputStream(
+					new ByteArrayInputStream(data));
+			final GZIPOutputStream gzip = new BestGZIPOutputStream(out);
+			copy(in, gzip, buffer);
+			gzip.close();
+		} catch (final IOException e) {
+			Log.d(TAG, e);
+			return null;
+		}
+		return out.toByteArray();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "bundles=" + numBundles + " files=" + numFiles
+				+ " requestsSaved=" + getRequestsSaved() + " bytesIn="
+				+ bytesIn + " bytesOut=" + bytesOut;
+	}
+}
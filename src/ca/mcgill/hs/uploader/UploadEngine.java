@@ -0,0 +1,496 @@
+/* 
+ * Copyright (c) 2010 Jordan Frank, HumanSense Project, McGill University
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ * See LICENSE for more information 
+ */
+package ca.mcgill.hs.uploader;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+import android.os.Process;
+import ca.mcgill.hs.util.Log;
+
+/**
+ * Uploads log files to the server, several at a time. Files are queued with
+ * {@link #enqueue(File)} and sent by a fixed number of worker threads, in the
+ * order given by {@link UploadQueue}. The workers share a single HTTP/1.1
+ * client, so connections to the server are kept alive and reused from one
+ * file to the next rather than opened for every file.
+ * 
+ * Files are sent as multipart POSTs streamed by {@link FileUploadEntity}, or
+ * with {@link ChunkedUploader} once {@link #setChunkedUrl(String)} has been
+ * called. Once {@link #setDedupUrl(String)} has been called, the engine first
+ * asks the server whether it already has the content of each file, and skips
+ * the files it has. Once {@link #setScheduler(UploadScheduler)} has been
+ * called, every request body is throttled to the scheduler's rate limit. The
+ * engine only sends files; what to do with a file once it has been sent is up
+ * to the {@link Listener}.
+ * 
+ * @author Jordan Frank <jordan.frank@cs.mcgill.ca>
+ */
+public final class UploadEngine {
+
+	/**
+	 * Receives the result of each upload.
+	 */
+	public interface Listener {
+		/**
+		 * Called on a worker thread once a file has been sent, or has failed
+		 * to be sent.
+		 * 
+		 * @param file
+		 *            The file.
+		 * @param response
+		 *            The server's response, or null if there was none. It is
+		 *            {@link UploadEngine#HAVE} if the file was skipped because
+		 *            the server already had it.
+		 * @param error
+		 *            The reason the upload failed, or null if the server
+		 *            responded. A {@link FileNotFoundException} means the file
+		 *            no longer exists.
+		 */
+		public void onUploadFinished(File file, String response,
+				Exception error);
+	}
+
+	/* A request body written at the rate allowed by a scheduler. */
+	private static final class ThrottledEntity extends HttpEntityWrapper {
+		private final UploadScheduler scheduler;
+
+		private ThrottledEntity(final HttpEntity entity,
+				final UploadScheduler scheduler) {
+			super(entity);
+			this.scheduler = scheduler;
+		}
+
+		@Override
+		public void writeTo(final OutputStream out) throws IOException {
+			wrappedEntity.writeTo(scheduler.throttle(out));
+		}
+	}
+
+	private static final String TAG = "UploadEngine";
+
+	/** The server's response when it already has the content of a file. */
+	public static final String HAVE = "HAVE";
+
+	/** The server's response when it does not have the content of a file. */
+	public static final String MISSING = "MISSING";
+
+	private static final int CONNECTION_TIMEOUT_MS = 20 * 1000;
+
+	private static final int SOCKET_TIMEOUT_MS = 60 * 1000;
+
+	/**
+	 * Creates an HTTP client that can be used by several threads at once, and
+	 * that keeps up to maxConnections connections to each server alive.
+	 * 
+	 * @param maxConnections
+	 *            The maximum number of connections to each server.
+	 * @return The client, whose connection manager must be shut down once it
+	 *         is no longer needed.
+	 */
+	public static HttpClient newHttpClient(final int maxConnections) {
+		final HttpParams params = new BasicHttpParams();
+		HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+		HttpProtocolParams.setUserAgent(params, Constants.DEFAULT_USER_AGENT);
+		HttpConnectionParams.setConnectionTimeout(params,
+				CONNECTION_TIMEOUT_MS);
+		HttpConnectionParams.setSoTimeout(params, SOCKET_TIMEOUT_MS);
+		HttpConnectionParams.setSocketBufferSize(params, 8 * 1024);
+		ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+		ConnManagerParams.setMaxConnectionsPerRoute(params,
+				new ConnPerRouteBean(maxConnections));
+
+		final SchemeRegistry schemes = new SchemeRegistry();
+		schemes.register(new Scheme("http", PlainSocketFactory
+				.getSocketFactory(), 80));
+		schemes.register(new Scheme("https", SSLSocketFactory
+				.getSocketFactory(), 443));
+		final ClientConnectionManager manager = new ThreadSafeClientConnManager(
+				params, schemes);
+		return new DefaultHttpClient(manager, params);
+	}
+
+	private final String url;
+	private final String macAddress;
+	private final Listener listener;
+	private final HttpClient client;
+
+	/* Guarded by this. */
+	private final UploadQueue queue = new UploadQueue();
+	private ChunkedUploader chunkedUploader = null;
+	private String dedupUrl = null;
+	private UploadScheduler scheduler = null;
+	private int numActive = 0;
+	private boolean shutdown = false;
+
+	/* Statistics, guarded by this. */
+	private int numUploaded = 0;
+	private int numFailed = 0;
+	private long bytesUploaded = 0;
+	private int numDuplicates = 0;
+	private long bytesDeduplicated = 0;
+	private long busyNanos = 0;
+	private long busySince = 0;
+
+	/**
+	 * Creates an engine and starts its workers.
+	 * 
+	 * @param url
+	 *            The URL to which files are posted.
+	 * @param macAddress
+	 *            The MAC address of the phone, which identifies it to the
+	 *            server.
+	 * @param numWorkers
+	 *            The number of files to upload at once.
+	 * @param listener
+	 *            Receives the result of each upload.
+	 */
+	public UploadEngine(final String url, final String macAddress,
+			final int numWorkers, final Listener listener) {
+		this.url = url;
+		this.macAddress = macAddress;
+		this.listener = listener;
+		client = newHttpClient(numWorkers);
+		((DefaultHttpClient) client)
+				.addRequestInterceptor(new HttpRequestInterceptor() {
+					public void process(final HttpRequest request,
+							final HttpContext context) {
+						throttle(request);
+					}
+				});
+		for (int i = 0; i < numWorkers; i++) {
+			new Thread(TAG + " " + i) {
+				@Override
+				public void run() {
+					work();
+				}
+			}.start();
+		}
+	}
+
+	/**
+	 * Waits until every queued file has been uploaded, or the engine has been
+	 * shut down.
+	 * 
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting.
+	 */
+	public synchronized void awaitIdle() throws InterruptedException {
+		while (!shutdown && (numActive > 0 || !queue.isEmpty())) {
+			wait();
+		}
+	}
+
+	/**
+	 * Queues a file to be uploaded. A file that is already waiting is not
+	 * queued again.
+	 * 
+	 * @param file
+	 *            The file to upload.
+	 */
+	public synchronized void enqueue(final File file) {
+		if (!shutdown && queue.add(file)) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Asks the server whether it already has the content of a file. A file
+	 * whose content the server has under another name is stored under this
+	 * name too, so the file need not be sent.
+	 * 
+	 * @return True if the server has the content. False if it does not, or if
+	 *         it cannot be asked, in which case the file is sent anyway.
+	 */
+	private boolean findDuplicate(final File file, final String dedupUrl) {
+		final HttpGet get;
+		try {
+			get = new HttpGet(dedupUrl
+					+ (dedupUrl.indexOf('?') < 0 ? '?' : '&') + "hash="
+					+ ContentHash.digest(file) + "&name="
+					+ URLEncoder.encode(file.getName(), "UTF-8"));
+		} catch (final IOException e) {
+			Log.e(TAG, e);
+			return false;
+		}
+		get.addHeader("MAC", macAddress);
+		try {
+			final HttpResponse response = client.execute(get);
+			final HttpEntity entity = response.getEntity();
+			final String message = entity == null ? "" : EntityUtils
+					.toString(entity).trim();
+			return response.getStatusLine().getStatusCode() == 200
+					&& message.equals(HAVE);
+		} catch (final IOException e) {
+			get.abort();
+			Log.d(TAG, e);
+		} catch (final IllegalStateException e) {
+			get.abort();
+			Log.d(TAG, e);
+		}
+		return false;
+	}
+
+	/**
+	 * Records the result of an upload and passes it to the listener.
+	 */
+	private void finished(final File file, final long bytes,
+			final String response, final Exception error) {
+		synchronized (this) {
+			if (error == null) {
+				numUploaded += 1;
+				bytesUploaded += bytes;
+			} else {
+				numFailed += 1;
+			}
+		}
+		listener.onUploadFinished(file, response, error);
+	}
+
+	/**
+	 * Returns the average rate at which files have been uploaded, counting
+	 * only the time during which at least one upload was in progress.
+	 * 
+	 * @return The throughput, in bytes per second.
+	 */
+	public synchronized double getBytesPerSecond() {
+		long nanos = busyNanos;
+		if (busySince != 0) {
+			nanos += System.nanoTime() - busySince;
+		}
+		return nanos == 0 ? 0.0 : bytesUploaded * 1E9 / nanos;
+	}
+
+	/**
+	 * @return The HTTP client shared by the workers.
+	 */
+	public HttpClient getHttpClient() {
+		return client;
+	}
+
+	/**
+	 * Sends files in chunks from now on, so that an upload that fails part of
+	 * the way through is resumed rather than started over.
+	 * 
+	 * @param chunkedUrl
+	 *            The URL of the server's chunked upload script, or null to go
+	 *            back to sending each file in a single multipart POST.
+	 */
+	public synchronized void setChunkedUrl(final String chunkedUrl) {
+		chunkedUploader = chunkedUrl == null ? null : new ChunkedUploader(
+				client, chunkedUrl, macAddress);
+	}
+
+	/**
+	 * Asks the server before sending each file whether it already has the
+	 * file's content, for example because the file was sent before the
+	 * process was killed, and skips the file if it does. The server is asked
+	 * with a GET whose hash parameter is the file's {@link ContentHash} and
+	 * whose name parameter is the file's name, and answers {@link #HAVE} or
+	 * {@link #MISSING}.
+	 * 
+	 * @param dedupUrl
+	 *            The URL of the server's script that looks up hashes, or null
+	 *            to send every file without asking.
+	 */
+	public synchronized void setDedupUrl(final String dedupUrl) {
+		this.dedupUrl = dedupUrl;
+	}
+
+	/**
+	 * Throttles the bodies of the requests sent from now on, including those
+	 * of uploads already under way that are retried.
+	 * 
+	 * @param scheduler
+	 *            The scheduler whose rate limit to apply, or null to send at
+	 *            full speed.
+	 */
+	public synchronized void setScheduler(final UploadScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Stops the workers and closes the connections, without waiting. Uploads
+	 * in progress are aborted, and files still waiting are dropped.
+	 */
+	public void shutdown() {
+		synchronized (this) {
+			shutdown = true;
+			queue.clear();
+			notifyAll();
+		}
+		client.getConnectionManager().shutdown();
+	}
+
+	/**
+	 * Wraps the body of a request so that it is sent at the rate allowed by
+	 * the scheduler.
+	 */
+	private void throttle(final HttpRequest request) {
+		final UploadScheduler current;
+		synchronized (this) {
+			current = scheduler;
+		}
+		if (current == null
+				|| !(request instanceof HttpEntityEnclosingRequest)) {
+			return;
+		}
+		final HttpEntityEnclosingRequest post = (HttpEntityEnclosingRequest) request;
+		final HttpEntity entity = post.getEntity();
+		// A request that is retried goes through the interceptors again.
+		if (entity != null && !(entity instanceof ThrottledEntity)) {
+			post.setEntity(new ThrottledEntity(entity, current));
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "uploaded=" + numUploaded + " failed=" + numFailed + " bytes="
+				+ bytesUploaded + " rate=" + (long) getBytesPerSecond()
+				+ "B/s duplicates=" + numDuplicates + " deduplicated="
+				+ bytesDeduplicated
+				+ (chunkedUploader == null ? "" : " " + chunkedUploader);
+	}
+
+	/**
+	 * Sends a file to the server.
+	 */
+	private void upload(final File file) {
+		if (!file.exists()) {
+			Log.d(TAG, "Unable to upload " + file.getName()
+					+ ". File does not exist.");
+			finished(file, 0, null, new FileNotFoundException(file.getPath()));
+			return;
+		}
+		Log.d(TAG, "Uploading " + file.getName());
+		final long length = file.length();
+		final ChunkedUploader chunked;
+		final String dedup;
+		synchronized (this) {
+			chunked = chunkedUploader;
+			dedup = dedupUrl;
+		}
+		if (dedup != null && findDuplicate(file, dedup)) {
+			Log.i(TAG, "Skipping duplicate " + file.getName());
+			synchronized (this) {
+				numDuplicates += 1;
+				bytesDeduplicated += length;
+			}
+			finished(file, 0, HAVE, null);
+			return;
+		}
+		if (chunked != null) {
+			try {
+				final String message = chunked.upload(file);
+				Log.i(TAG, "Server Response: " + message);
+				finished(file, length, message, null);
+			} catch (final IOException e) {
+				finished(file, 0, null, e);
+			} catch (final IllegalStateException e) {
+				finished(file, 0, null, e);
+			}
+			return;
+		}
+		final HttpPost post = new HttpPost(url);
+		post.addHeader("MAC", macAddress);
+		post.setEntity(new FileUploadEntity(file, "uploadedfile",
+				Constants.MIME_TYPE));
+		try {
+			final HttpResponse response = client.execute(post);
+			final HttpEntity responseEntity = response.getEntity();
+			String message = "";
+			if (responseEntity != null) {
+				// Reading the whole response frees the connection for reuse.
+				message = EntityUtils.toString(responseEntity);
+				responseEntity.consumeContent();
+			}
+			Log.i(TAG, "Server Response: " + message);
+			final int status = response.getStatusLine().getStatusCode();
+			if (status == 200) {
+				finished(file, length, message, null);
+			} else {
+				// An error page is not an answer, so the file is retried.
+				finished(file, 0, null, new HttpStatusException(status,
+						"Server returned " + status + " for "
+								+ file.getName()));
+			}
+		} catch (final IOException e) {
+			post.abort();
+			finished(file, 0, null, e);
+		} catch (final IllegalStateException e) {
+			post.abort();
+			finished(file, 0, null, e);
+		}
+	}
+
+	/**
+	 * Uploads queued files until the engine is shut down.
+	 */
+	private void work() {
+		Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+		while (true) {
+			final File file;
+			synchronized (this) {
+				while (!shutdown && queue.isEmpty()) {
+					try {
+						wait();
+					} catch (final InterruptedException e) {
+						return;
+					}
+				}
+				if (shutdown) {
+					return;
+				}
+				file = queue.poll();
+				if (numActive++ == 0) {
+					busySince = System.nanoTime();
+				}
+			}
+			try {
+				upload(file);
+			} catch (final RuntimeException e) {
+				Log.e(TAG, e);
+			} finally {
+				synchronized (this) {
+					if (--numActive == 0) {
+						busyNanos += System.nanoTime() - busySince;
+						busySince = 0;
+					}
+					notifyAll();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,322 @@
+/* 
+ * Copyright (c) 2010 Jordan Frank, HumanSense Project, McGill University
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ * See LICENSE for more information 
+ */
+package ca.mcgill.hs.uploader;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ca.mcgill.hs.util.Log;
+
+/**
+ * Keeps track of the files waiting to be uploaded, in a journal that survives
+ * the process being killed. Each file goes through the states
+ * {@link #QUEUED}, {@link #IN_FLIGHT}, {@link #ACKED} (the server has the
+ * file) and {@link #MOVED} (the file has been moved out of the upload
+ * directory, and is forgotten). Every change of state is appended to the
+ * journal as a line holding the state's code and the file name, and the
+ * current states are kept in memory.
+ * <p>
+ * When the journal is opened, it is replayed to recover the states. A file
+ * that was in flight when the process died is queued again, while a file that
+ * had been acknowledged only needs to be moved, not sent again. Once the
+ * journal holds more than twice as many records as there are files, it is
+ * compacted by writing out one record per file, so that recovering takes time
+ * proportional to the number of files still pending, not to the number of
+ * files ever uploaded.
+ * <p>
+ * A record is written with a single call to the operating system, so it is
+ * not lost if the process dies, although it may be if the phone loses power.
+ * A record cut short that way is ignored. If the journal cannot be written,
+ * the states are still kept in memory, and the whole journal is rewritten at
+ * the next change.
+ * 
+ * @author Jordan Frank <jordan.frank@cs.mcgill.ca>
+ */
+public final class UploadJournal {
+
+	private static final String TAG = "UploadJournal";
+
+	/** The state of a file the journal does not know about. */
+	public static final int UNKNOWN = -1;
+
+	/** The file is waiting to be uploaded. */
+	public static final int QUEUED = 0;
+
+	/** The file is being uploaded. */
+	public static final int IN_FLIGHT = 1;
+
+	/** The server has acknowledged the file, which has not yet been moved. */
+	public static final int ACKED = 2;
+
+	/** The file has been moved out of the upload directory. */
+	public static final int MOVED = 3;
+
+	/* The code of each state in the journal, indexed by state. */
+	private static final String CODES = "QFAM";
+
+	private static final int MIN_RECORDS_TO_COMPACT = 64;
+
+	private static byte[] record(final String name, final int state) {
+		try {
+			return (CODES.charAt(state) + " " + name + "\n").getBytes("UTF-8");
+		} catch (final UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private final File file;
+
+	/* The state of each file that has not been moved, in the order queued. */
+	private final LinkedHashMap<String, Integer> states = new LinkedHashMap<String, Integer>();
+
+	private FileOutputStream out = null;
+
+	/* The number of records in the journal, or -1 if it must be rewritten. */
+	private int numRecords = -1;
+
+	private int numCompactions = 0;
+
+	private boolean closed = false;
+
+	/**
+	 * Opens a journal, recovering the states recorded in it.
+	 * 
+	 * @param file
+	 *            The journal, which is created if it does not exist.
+	 */
+	public UploadJournal(final File file) {
+		this.file = file;
+		try {
+			recover();
+		} catch (final IOException e) {
+			Log.e(TAG, e);
+		}
+		// In-flight uploads died with the process that was sending them.
+		for (final Map.Entry<String, Integer> entry : states.entrySet()) {
+			if (entry.getValue() == IN_FLIGHT) {
+				entry.setValue(QUEUED);
+			}
+		}
+		compact();
+	}
+
+	/**
+	 * Queues a file, unless the journal already knows about it or has been
+	 * closed.
+	 * 
+	 * @param name
+	 *            The name of the file, which must not contain a line break.
+	 * @return True if the file was queued.
+	 */
+	public synchronized boolean add(final String name) {
+		if (closed || states.containsKey(name)) {
+			return false;
+		}
+		setState(name, QUEUED);
+		return true;
+	}
+
+	/**
+	 * Closes the journal. Changes made afterwards, such as those of uploads
+	 * that finish while the uploader is shutting down, are ignored, so the
+	 * files they concern are recovered in their earlier states when the
+	 * journal is next opened.
+	 */
+	public synchronized void close() {
+		closed = true;
+		closeOutput();
+	}
+
+	/**
+	 * Closes the file the records are appended to.
+	 */
+	private void closeOutput() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (final IOException e) {
+				Log.e(TAG, e);
+			}
+			out = null;
+		}
+	}
+
+	/**
+	 * Rewrites the journal with one record per file, replacing the old one
+	 * only once the new one is safely on disk.
+	 */
+	private void compact() {
+		closeOutput();
+		final File temporary = new File(file.getPath() + ".tmp");
+		try {
+			final FileOutputStream compacted = new FileOutputStream(temporary);
+			try {
+				for (final Map.Entry<String, Integer> entry : states
+						.entrySet()) {
+					compacted.write(record(entry.getKey(), entry.getValue()));
+				}
+				compacted.getFD().sync();
+			} finally {
+				compacted.close();
+			}
+			if (!temporary.renameTo(file)) {
+				throw new IOException("Unable to replace " + file.getPath());
+			}
+			numRecords = states.size();
+			numCompactions += 1;
+			out = new FileOutputStream(file, true);
+		} catch (final IOException e) {
+			Log.e(TAG, e);
+			numRecords = -1;
+		}
+	}
+
+	/**
+	 * Returns the files in a state, in the order in which they were queued.
+	 * 
+	 * @param state
+	 *            The state, other than {@link #MOVED}.
+	 * @return The names of the files.
+	 */
+	public synchronized List<String> getNames(final int state) {
+		final List<String> names = new ArrayList<String>();
+		for (final Map.Entry<String, Integer> entry : states.entrySet()) {
+			if (entry.getValue() == state) {
+				names.add(entry.getKey());
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * @return The names of the files that have not been moved, in the order
+	 *         in which they were queued.
+	 */
+	public synchronized List<String> getPending() {
+		return new ArrayList<String>(states.keySet());
+	}
+
+	/**
+	 * Returns the state of a file.
+	 * 
+	 * @param name
+	 *            The name of the file.
+	 * @return The state, or {@link #UNKNOWN} if the file was never queued or
+	 *         has been moved.
+	 */
+	public synchronized int getState(final String name) {
+		final Integer state = states.get(name);
+		return state == null ? UNKNOWN : state;
+	}
+
+	/**
+	 * Replays the journal. Records that are cut short or garbled are skipped,
+	 * and dropped when the journal is compacted after being opened.
+	 */
+	private void recover() throws IOException {
+		states.clear();
+		if (!file.exists()) {
+			return;
+		}
+		final byte[] data = new byte[(int) file.length()];
+		final DataInputStream in = new DataInputStream(new FileInputStream(
+				file));
+		try {
+			in.readFully(data);
+		} finally {
+			in.close();
+		}
+
+		int start = 0;
+		for (int end = 0; end < data.length; end++) {
+			if (data[end] != '\n') {
+				continue;
+			}
+			final int state = end - start > 2 && data[start + 1] == ' ' ? CODES
+					.indexOf(data[start]) : UNKNOWN;
+			if (state == UNKNOWN) {
+				Log.d(TAG, "Skipping garbled record at " + start);
+			} else {
+				final String name = new String(data, start + 2, end - start
+						- 2, "UTF-8");
+				if (state == MOVED) {
+					states.remove(name);
+				} else {
+					states.put(name, state);
+				}
+			}
+			start = end + 1;
+		}
+		if (start < data.length) {
+			Log.d(TAG, "Skipping incomplete record at " + start);
+		}
+	}
+
+	/**
+	 * Records a change in the state of a file. Moving a file the journal does
+	 * not know about does nothing, and so does any change once the journal
+	 * has been closed.
+	 * 
+	 * @param name
+	 *            The name of the file, which must not contain a line break.
+	 * @param state
+	 *            The new state.
+	 */
+	public synchronized void setState(final String name, final int state) {
+		if (name.indexOf('\n') >= 0) {
+			throw new IllegalArgumentException("Invalid file name: " + name);
+		}
+		if (closed) {
+			Log.d(TAG, "Ignoring change to " + name + " after close");
+			return;
+		}
+		if (state == MOVED) {
+			if (states.remove(name) == null) {
+				return;
+			}
+		} else {
+			states.put(name, state);
+		}
+
+		if (numRecords < 0) {
+			compact();
+			return;
+		}
+		try {
+			out.write(record(name, state));
+			numRecords += 1;
+		} catch (final IOException e) {
+			Log.e(TAG, e);
+			numRecords = -1;
+			return;
+		}
+		if (numRecords > MIN_RECORDS_TO_COMPACT
+				&& numRecords > 2 * states.size()) {
+			compact();
+		}
+	}
+
+	/**
+	 * @return The number of files that have not been moved.
+	 */
+	public synchronized int size() {
+		return states.size();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "pending=" + states.size() + " records=" + numRecords
+				+ " compactions=" + numCompactions;
+	}
+}
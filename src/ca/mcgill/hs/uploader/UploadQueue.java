@@ -0,0 +1,107 @@
+/* 
+ * Copyright (c) 2010 Jordan Frank, HumanSense Project, McGill University
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ * See LICENSE for more information 
+ */
+package ca.mcgill.hs.uploader;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+
+/**
+ * The files waiting to be uploaded, in the order in which they should be sent.
+ * Older files go first, so that data reaches the server in roughly the order
+ * in which it was recorded, but a small file is allowed ahead of a large file
+ * of about the same age: each byte of a file counts as {@link #MS_PER_BYTE}
+ * milliseconds of age that it does not have. A file can only be queued once.
+ * <p>
+ * This class is not thread-safe.
+ * 
+ * @author Jordan Frank <jordan.frank@cs.mcgill.ca>
+ */
+final class UploadQueue {
+
+	private static final class Entry implements Comparable<Entry> {
+		public final File file;
+		public final double priority;
+		public final long sequence;
+
+		public Entry(final File file, final long sequence) {
+			this.file = file;
+			this.priority = file.lastModified() + file.length() * MS_PER_BYTE;
+			this.sequence = sequence;
+		}
+
+		public int compareTo(final Entry other) {
+			if (priority != other.priority) {
+				return priority < other.priority ? -1 : 1;
+			}
+			return sequence < other.sequence ? -1
+					: (sequence == other.sequence ? 0 : 1);
+		}
+	}
+
+	/**
+	 * The penalty for each byte in a file, in milliseconds of age. A megabyte
+	 * counts as an hour.
+	 */
+	public static final double MS_PER_BYTE = 60.0 * 60.0 * 1000.0 / (1 << 20);
+
+	private final PriorityQueue<Entry> entries = new PriorityQueue<Entry>();
+
+	private final HashSet<String> paths = new HashSet<String>();
+
+	private long nextSequence = 0;
+
+	/**
+	 * Adds a file to the queue, unless it is already queued.
+	 * 
+	 * @param file
+	 *            The file to add.
+	 * @return True if the file was added.
+	 */
+	public boolean add(final File file) {
+		if (!paths.add(file.getPath())) {
+			return false;
+		}
+		entries.add(new Entry(file, nextSequence++));
+		return true;
+	}
+
+	/**
+	 * Removes every file from the queue.
+	 */
+	public void clear() {
+		entries.clear();
+		paths.clear();
+	}
+
+	/**
+	 * @return True if no files are waiting.
+	 */
+	public boolean isEmpty() {
+		return entries.isEmpty();
+	}
+
+	/**
+	 * Removes and returns the file that should be uploaded next.
+	 * 
+	 * @return The file, or null if the queue is empty.
+	 */
+	public File poll() {
+		final Entry entry = entries.poll();
+		if (entry == null) {
+			return null;
+		}
+		paths.remove(entry.file.getPath());
+		return entry.file;
+	}
+
+	/**
+	 * @return The number of files waiting.
+	 */
+	public int size() {
+		return entries.size();
+	}
+}
@@ -0,0 +1,246 @@
+/* 
+ * Copyright (c) 2010 Jordan Frank, HumanSense Project, McGill University
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ * See LICENSE for more information 
+ */
+package ca.mcgill.hs.uploader;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import android.os.SystemClock;
+
+/**
+ * Decides when files may be uploaded, and how fast.
+ * <ul>
+ * <li>Uploads only start while the phone is connected, and, if the user asks
+ * for it, on an unmetered network or while the phone is charging.</li>
+ * <li>After a pass in which some uploads failed, the next pass is delayed
+ * exponentially, starting from {@link Constants#RETRY_FIRST_DELAY} and up to
+ * {@link Constants#MAX_RETRY_DELAY}, with a random part so that phones that
+ * failed together do not all retry at the same moment.</li>
+ * <li>The bytes uploaded are limited to a rate by a token bucket, which holds
+ * up to one second's worth of tokens. Each write to a stream returned by
+ * {@link #throttle(OutputStream)} takes the tokens for its bytes, running the
+ * bucket into debt if need be, and the next write waits until the debt has
+ * been paid. The bucket is shared by all the streams, so the limit holds for
+ * all the uploads together.</li>
+ * </ul>
+ * Apart from the throttled streams, the scheduler never waits itself; it only
+ * computes delays. Time is read from a {@link Clock}, so a fake clock makes
+ * it deterministic.
+ * 
+ * @author Jordan Frank <jordan.frank@cs.mcgill.ca>
+ */
+public final class UploadScheduler {
+
+	/**
+	 * The source of the current time.
+	 */
+	public interface Clock {
+		/**
+		 * @return The current time, in milliseconds. It must never go
+		 *         backwards.
+		 */
+		public long now();
+	}
+
+	/* Limits the rate at which bytes are written to a stream. */
+	private final class ThrottledOutputStream extends FilterOutputStream {
+		private ThrottledOutputStream(final OutputStream out) {
+			super(out);
+		}
+
+		private void pause(final long bytes) throws IOException {
+			final long delay = reserve(bytes);
+			if (delay > 0) {
+				try {
+					Thread.sleep(delay);
+				} catch (final InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+			}
+		}
+
+		@Override
+		public void write(final byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				final int count = Math.min(len, MAX_WRITE_SIZE);
+				pause(count);
+				out.write(b, off, count);
+				off += count;
+				len -= count;
+			}
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			pause(1);
+			out.write(b);
+		}
+	}
+
+	/* The most bytes written at once to a throttled stream. */
+	private static final int MAX_WRITE_SIZE = 8 * 1024;
+
+	/** The clock that counts the milliseconds since the phone booted. */
+	public static final Clock ELAPSED_REALTIME = new Clock() {
+		public long now() {
+			return SystemClock.elapsedRealtime();
+		}
+	};
+
+	private final Clock clock;
+	private final Random random;
+
+	/* Guarded by this. */
+	private boolean requireUnmetered = false;
+	private boolean requireCharging = false;
+	private long bytesPerSecond = 0;
+	// The tokens in the bucket, in thousandths of a byte so that none are
+	// lost to rounding, and negative while the bucket is in debt.
+	private long milliTokens = 0;
+	private long lastRefill;
+	private int numFailures = 0;
+	private long nextAttempt = 0;
+
+	/**
+	 * Creates a scheduler with no rate limit or requirements.
+	 * 
+	 * @param clock
+	 *            The source of the current time.
+	 * @param random
+	 *            The source of the random part of the retry delays, such as
+	 *            {@link NetworkHelper#sRandom}.
+	 */
+	public UploadScheduler(final Clock clock, final Random random) {
+		this.clock = clock;
+		this.random = random;
+		lastRefill = clock.now();
+	}
+
+	/**
+	 * Returns whether a pass of uploads may start now.
+	 * 
+	 * @param connected
+	 *            Whether the phone is connected to a network.
+	 * @param unmetered
+	 *            Whether the network is unmetered, such as Wi-Fi.
+	 * @param charging
+	 *            Whether the phone is charging.
+	 * @return True if the phone is connected and meets the requirements.
+	 */
+	public synchronized boolean canUpload(final boolean connected,
+			final boolean unmetered, final boolean charging) {
+		return connected && (unmetered || !requireUnmetered)
+				&& (charging || !requireCharging);
+	}
+
+	/**
+	 * @return The time to wait before retrying the uploads that failed, in
+	 *         milliseconds, or 0 if none have failed.
+	 */
+	public synchronized long getRetryDelay() {
+		return numFailures == 0 ? 0 : Math.max(0, nextAttempt - clock.now());
+	}
+
+	/**
+	 * Records that some uploads failed in a pass, and sets the delay before
+	 * the next attempt. Each failure in a row doubles the delay.
+	 * 
+	 * @return The delay, in milliseconds.
+	 */
+	public synchronized long onFailure() {
+		numFailures += 1;
+		long seconds = (long) Constants.RETRY_FIRST_DELAY << Math.min(
+				numFailures - 1, 30);
+		seconds = Math.max(Constants.MIN_RETRY_AFTER, Math.min(seconds,
+				Constants.MAX_RETRY_DELAY));
+		// Between one and two times the delay, as in UploadInfo.
+		final long delay = seconds * (1000 + random.nextInt(1001));
+		nextAttempt = clock.now() + delay;
+		return delay;
+	}
+
+	/**
+	 * Records that a pass of uploads succeeded, so that the next failure is
+	 * retried after the shortest delay.
+	 */
+	public synchronized void onSuccess() {
+		numFailures = 0;
+		nextAttempt = 0;
+	}
+
+	/**
+	 * Takes the tokens needed to upload some bytes.
+	 * 
+	 * @param bytes
+	 *            The number of bytes about to be uploaded.
+	 * @return The time to wait before uploading them, in milliseconds, which
+	 *         is 0 if there is no rate limit.
+	 */
+	public synchronized long reserve(final long bytes) {
+		if (bytesPerSecond <= 0) {
+			return 0;
+		}
+		final long now = clock.now();
+		milliTokens = Math.min(bytesPerSecond * 1000, milliTokens
+				+ (now - lastRefill) * bytesPerSecond);
+		lastRefill = now;
+		milliTokens -= bytes * 1000;
+		return milliTokens >= 0 ? 0 : (-milliTokens + bytesPerSecond - 1)
+				/ bytesPerSecond;
+	}
+
+	/**
+	 * Sets the rate limit. The bucket starts out full.
+	 * 
+	 * @param bytesPerSecond
+	 *            The highest average rate at which to upload, in bytes per
+	 *            second, or 0 for no limit.
+	 */
+	public synchronized void setRateLimit(final long bytesPerSecond) {
+		this.bytesPerSecond = bytesPerSecond;
+		milliTokens = bytesPerSecond * 1000;
+		lastRefill = clock.now();
+	}
+
+	/**
+	 * @param requireCharging
+	 *            Whether uploads may only start while the phone is charging.
+	 */
+	public synchronized void setRequireCharging(final boolean requireCharging) {
+		this.requireCharging = requireCharging;
+	}
+
+	/**
+	 * @param requireUnmetered
+	 *            Whether uploads may only start on an unmetered network.
+	 */
+	public synchronized void setRequireUnmetered(
+			final boolean requireUnmetered) {
+		this.requireUnmetered = requireUnmetered;
+	}
+
+	/**
+	 * Limits the rate at which bytes are written to a stream to the rate limit
+	 * in force at the time of each write.
+	 * 
+	 * @param out
+	 *            The stream, such as the connection to the server.
+	 * @return A stream that writes to out.
+	 */
+	public OutputStream throttle(final OutputStream out) {
+		return new ThrottledOutputStream(out);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "failures=" + numFailures + " retryDelay=" + getRetryDelay()
+				+ " rate=" + bytesPerSecond + "B/s tokens=" + milliTokens
+				/ 1000;
+	}
+}
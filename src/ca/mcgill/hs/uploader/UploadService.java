@@ -7,6 +7,7 @@ package ca.mcgill.hs.uploader;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashSet;
 
 import android.app.AlarmManager;
 import android.app.PendingIntent;
@@ -110,17 +111,12 @@ public class UploadService extends Service {
 				wakeUp = Long.MAX_VALUE;
 
 				final String[] allFiles = recentDir.list();
+				if (allFiles == null) {
+					continue;
+				}
 				for (final String file : allFiles) {
-					// Check if our file is already in the uploadList
-					boolean alreadySeen = false;
-					for (final UploadInfo info : uploadList) {
-						if (info.mFileName.equals(file)) {
-							alreadySeen = true;
-							break;
-						}
-					}
-					if (!alreadySeen) {
-						// New file, add to uploadList.
+					// New files are added to the uploadList.
+					if (queuedNames.add(file)) {
 						insertUpload(new File(recentDir.getPath(), file),
 								networkAvailable, isWifiNetwork, now);
 					}
@@ -134,6 +130,9 @@ public class UploadService extends Service {
 
 	private static ArrayList<UploadInfo> uploadList;
 
+	// The names of the files in the uploadList.
+	private static HashSet<String> queuedNames;
+
 	public static final String ACTION_UPLOAD_COMPLETED = "android.intent.action.UPLOAD_COMPLETED";
 
 	private static final String TAG = "UploaderService";
@@ -247,6 +246,7 @@ public class UploadService extends Service {
 
 		context = getApplicationContext();
 		uploadList = new ArrayList<UploadInfo>();
+		queuedNames = new HashSet<String>();
 	}
 
 	@Override
@@ -10,13 +10,13 @@ import java.io.IOException;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.mime.MultipartEntity;
 import org.apache.http.entity.mime.content.FileBody;
 import org.apache.http.util.EntityUtils;
 
 import android.content.Context;
-import android.net.http.AndroidHttpClient;
 import android.os.PowerManager;
 import android.os.Process;
 import ca.mcgill.hs.util.Log;
@@ -24,10 +24,25 @@ import ca.mcgill.hs.util.Log;
 public class UploadThread extends Thread {
 	private final Context mContext;
 	private final UploadInfo mInfo;
+	private final HttpClient mClient;
 
-	public UploadThread(final Context context, final UploadInfo info) {
+	/**
+	 * Creates a thread to upload a file.
+	 * 
+	 * @param context
+	 *            The application context.
+	 * @param info
+	 *            The file to upload.
+	 * @param client
+	 *            The client to upload with, which is shared between uploads
+	 *            so that connections are reused. See
+	 *            {@link UploadEngine#newHttpClient(int)}.
+	 */
+	public UploadThread(final Context context, final UploadInfo info,
+			final HttpClient client) {
 		mContext = context;
 		mInfo = info;
+		mClient = client;
 	}
 
 	/**
@@ -40,7 +55,6 @@ public class UploadThread extends Thread {
 		int finalStatus = Constants.STATUS_UNKNOWN_ERROR;
 		boolean countRetry = false;
 		int retryAfter = 0;
-		AndroidHttpClient client = null;
 		PowerManager.WakeLock wakeLock = null;
 		String filename = null;
 
@@ -60,8 +74,6 @@ public class UploadThread extends Thread {
 					finalStatus = Constants.STATUS_FILE_ERROR;
 					break http_request_loop;
 				}
-				client = AndroidHttpClient.newInstance(
-						Constants.DEFAULT_USER_AGENT, mContext);
 				Log.v(Constants.TAG, "initiating upload for " + mInfo.mUri);
 				final HttpPost request = new HttpPost(Constants.UPLOAD_URL);
 				request.addHeader("MAC", NetworkHelper.getMacAddress(mContext));
@@ -73,7 +85,7 @@ public class UploadThread extends Thread {
 
 				HttpResponse response;
 				try {
-					response = client.execute(request);
+					response = mClient.execute(request);
 					final HttpEntity resEntity = response.getEntity();
 
 					String responseMsg = null;
@@ -133,10 +145,6 @@ public class UploadThread extends Thread {
 					wakeLock.release();
 					wakeLock = null;
 				}
-				if (client != null) {
-					client.close();
-					client = null;
-				}
 				if (finalStatus == Constants.STATUS_SUCCESS) {
 					// TODO: Move the file.
 				}
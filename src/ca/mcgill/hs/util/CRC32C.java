@@ -0,0 +1,94 @@
+/* 
+ * Copyright (c) 2010 Jordan Frank, HumanSense Project, McGill University
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ * See LICENSE for more information 
+ */
+package ca.mcgill.hs.util;
+
+import java.util.zip.Checksum;
+
+/**
+ * Computes the CRC-32C (Castagnoli) checksum of a stream of bytes, as used by
+ * iSCSI and SCTP. It catches more of the errors seen in practice than the
+ * CRC-32 in java.util.zip, which is the only checksum available on older
+ * phones. The bytes are processed eight at a time using eight lookup tables.
+ * <p>
+ * This class is not thread-safe.
+ * 
+ * @author Jordan Frank <jordan.frank@cs.mcgill.ca>
+ */
+public final class CRC32C implements Checksum {
+
+	/** The reversed Castagnoli polynomial. */
+	private static final int POLYNOMIAL = 0x82F63B78;
+
+	/*
+	 * TABLES[k][b] is the CRC of the byte b followed by k zero bytes, so that
+	 * eight bytes can be combined with eight lookups.
+	 */
+	private static final int[][] TABLES = new int[8][256];
+
+	static {
+		for (int b = 0; b < 256; b++) {
+			int crc = b;
+			for (int i = 0; i < 8; i++) {
+				crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+			}
+			TABLES[0][b] = crc;
+		}
+		for (int b = 0; b < 256; b++) {
+			for (int k = 1; k < 8; k++) {
+				final int previous = TABLES[k - 1][b];
+				TABLES[k][b] = (previous >>> 8) ^ TABLES[0][previous & 0xff];
+			}
+		}
+	}
+
+	/**
+	 * Formats a checksum as eight hexadecimal digits.
+	 * 
+	 * @param checksum
+	 *            The checksum.
+	 * @return The digits.
+	 */
+	public static String toHexString(final long checksum) {
+		final String digits = Long.toHexString(checksum & 0xffffffffL);
+		return "00000000".substring(digits.length()) + digits;
+	}
+
+	private int crc = 0xffffffff;
+
+	public long getValue() {
+		return ~crc & 0xffffffffL;
+	}
+
+	public void reset() {
+		crc = 0xffffffff;
+	}
+
+	public void update(final byte[] b, int off, int len) {
+		int c = crc;
+		while (len >= 8) {
+			final int low = c ^ ((b[off] & 0xff) | (b[off + 1] & 0xff) << 8
+					| (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24);
+			c = TABLES[7][low & 0xff] ^ TABLES[6][(low >>> 8) & 0xff]
+					^ TABLES[5][(low >>> 16) & 0xff] ^ TABLES[4][low >>> 24]
+					^ TABLES[3][b[off + 4] & 0xff]
+					^ TABLES[2][b[off + 5] & 0xff]
+					^ TABLES[1][b[off + 6] & 0xff]
+					^ TABLES[0][b[off + 7] & 0xff];
+			off += 8;
+			len -= 8;
+		}
+		while (len > 0) {
+			c = (c >>> 8) ^ TABLES[0][(c ^ b[off]) & 0xff];
+			off++;
+			len--;
+		}
+		crc = c;
+	}
+
+	public void update(final int b) {
+		crc = (crc >>> 8) ^ TABLES[0][(crc ^ b) & 0xff];
+	}
+}
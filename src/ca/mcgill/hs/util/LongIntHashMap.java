@@ -0,0 +1,159 @@
+/* 
+ * Copyright (c) 2010 Jordan Frank, HumanSense Project, McGill University
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ * See LICENSE for more information 
+ */
+package ca.mcgill.hs.util;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from long keys to int values, using open addressing so that
+ * neither keys nor values are boxed. Lookups for missing keys return a value
+ * chosen by the caller.
+ * <p>
+ * This class is not thread-safe.
+ * 
+ * @author Jordan Frank <jordan.frank@cs.mcgill.ca>
+ */
+public final class LongIntHashMap {
+
+	private static final float LOAD_FACTOR = 0.75f;
+
+	private long[] keys;
+	private int[] values;
+	private boolean[] used;
+	private int size = 0;
+
+	/**
+	 * Creates a new map.
+	 * 
+	 * @param expectedSize
+	 *            The number of entries the map should hold before it needs to
+	 *            grow.
+	 */
+	public LongIntHashMap(final int expectedSize) {
+		int capacity = 16;
+		while (capacity * LOAD_FACTOR < expectedSize) {
+			capacity *= 2;
+		}
+		keys = new long[capacity];
+		values = new int[capacity];
+		used = new boolean[capacity];
+	}
+
+	/**
+	 * Removes every entry from the map.
+	 */
+	public void clear() {
+		Arrays.fill(used, false);
+		size = 0;
+	}
+
+	/**
+	 * Returns the bucket holding the key, or the empty bucket where it should
+	 * be placed.
+	 */
+	private int findBucket(final long key) {
+		final int mask = keys.length - 1;
+		int hash = (int) (key ^ key >>> 32) * 0x9E3779B9;
+		hash ^= hash >>> 16;
+		int bucket = hash & mask;
+		while (used[bucket] && keys[bucket] != key) {
+			bucket = (bucket + 1) & mask;
+		}
+		return bucket;
+	}
+
+	/**
+	 * Returns the value for a key.
+	 * 
+	 * @param key
+	 *            The key.
+	 * @param missing
+	 *            The value to return if the key is not in the map.
+	 * @return The value for the key, or missing.
+	 */
+	public int get(final long key, final int missing) {
+		final int bucket = findBucket(key);
+		return used[bucket] ? values[bucket] : missing;
+	}
+
+	/**
+	 * Sets the value for a key.
+	 * 
+	 * @param key
+	 *            The key.
+	 * @param value
+	 *            The new value.
+	 */
+	public void put(final long key, final int value) {
+		int bucket = findBucket(key);
+		if (!used[bucket]) {
+			if ((size + 1) > keys.length * LOAD_FACTOR) {
+				rehash(keys.length * 2);
+				bucket = findBucket(key);
+			}
+			used[bucket] = true;
+			keys[bucket] = key;
+			size += 1;
+		}
+		values[bucket] = value;
+	}
+
+	private void rehash(final int capacity) {
+		final long[] oldKeys = keys;
+		final int[] oldValues = values;
+		final boolean[] oldUsed = used;
+		keys = new long[capacity];
+		values = new int[capacity];
+		used = new boolean[capacity];
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldUsed[i]) {
+				final int bucket = findBucket(oldKeys[i]);
+				used[bucket] = true;
+				keys[bucket] = oldKeys[i];
+				values[bucket] = oldValues[i];
+			}
+		}
+	}
+
+	/**
+	 * Removes a key from the map.
+	 * 
+	 * @param key
+	 *            The key.
+	 * @return True if the key was in the map.
+	 */
+	public boolean remove(final long key) {
+		final int bucket = findBucket(key);
+		if (!used[bucket]) {
+			return false;
+		}
+		used[bucket] = false;
+		size -= 1;
+
+		/*
+		 * Move later entries in the same run back into the gap, so that they
+		 * can still be found.
+		 */
+		final int mask = keys.length - 1;
+		int next = (bucket + 1) & mask;
+		while (used[next]) {
+			used[next] = false;
+			final int moved = findBucket(keys[next]);
+			used[moved] = true;
+			keys[moved] = keys[next];
+			values[moved] = values[next];
+			next = (next + 1) & mask;
+		}
+		return true;
+	}
+
+	/**
+	 * @return The number of entries in the map.
+	 */
+	public int size() {
+		return size;
+	}
+}
@@ -0,0 +1,238 @@
+/* 
+ * Copyright (c) 2010 Jordan Frank, HumanSense Project, McGill University
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ * See LICENSE for more information 
+ */
+package ca.mcgill.hs.util;
+
+/**
+ * A cache from long keys to objects, which keeps the total weight of its
+ * entries under a fixed budget. Each entry is given a weight when it is put
+ * in the cache, for example the number of items it holds, so that a few large
+ * entries cannot crowd out many small ones unnoticed.
+ * <p>
+ * Entries are evicted with the CLOCK policy, which approximates LRU: each
+ * entry has a bit that is set whenever it is read, and a hand sweeps over the
+ * entries, clearing the bits that are set and evicting the first entry whose
+ * bit is already clear. Reads only set a bit, so unlike an LRU list they
+ * never reorder anything. Keys are held in a {@link LongIntHashMap}, so they
+ * are never boxed.
+ * <p>
+ * This class is not thread-safe.
+ * 
+ * @author Jordan Frank <jordan.frank@cs.mcgill.ca>
+ */
+public final class LongObjectCache<V> {
+
+	private static final int NO_SLOT = -1;
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	/* The slot holding each key. */
+	private final LongIntHashMap slotOfKey;
+
+	/* Per slot: its key, value, weight and reference bit. */
+	private long[] keys = new long[INITIAL_CAPACITY];
+	private Object[] values = new Object[INITIAL_CAPACITY];
+	private int[] weights = new int[INITIAL_CAPACITY];
+	private boolean[] referenced = new boolean[INITIAL_CAPACITY];
+
+	/* Slots below numSlots that hold no entry. */
+	private int[] freeSlots = new int[INITIAL_CAPACITY];
+	private int numFreeSlots = 0;
+	private int numSlots = 0;
+
+	private int hand = 0;
+
+	private final int maxWeight;
+	private int weight = 0;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	/**
+	 * Creates an empty cache.
+	 * 
+	 * @param maxWeight
+	 *            The total weight of the entries that the cache may hold.
+	 */
+	public LongObjectCache(final int maxWeight) {
+		this.maxWeight = maxWeight;
+		slotOfKey = new LongIntHashMap(Math.min(maxWeight, 1024));
+	}
+
+	/**
+	 * Removes every entry from the cache. The statistics are kept.
+	 */
+	public void clear() {
+		for (int slot = 0; slot < numSlots; slot++) {
+			values[slot] = null;
+		}
+		slotOfKey.clear();
+		numSlots = 0;
+		numFreeSlots = 0;
+		hand = 0;
+		weight = 0;
+	}
+
+	/**
+	 * Evicts the entry under the hand, or the first entry after it that has
+	 * not been read since the hand last passed.
+	 */
+	private void evict() {
+		while (true) {
+			if (hand >= numSlots) {
+				hand = 0;
+			}
+			final int slot = hand++;
+			if (values[slot] == null) {
+				continue;
+			} else if (referenced[slot]) {
+				referenced[slot] = false;
+			} else {
+				removeSlot(slot);
+				evictions += 1;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Returns the value for a key, and marks it as recently used.
+	 * 
+	 * @param key
+	 *            The key.
+	 * @return The value, or null if the key is not in the cache.
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(final long key) {
+		final int slot = slotOfKey.get(key, NO_SLOT);
+		if (slot == NO_SLOT) {
+			misses += 1;
+			return null;
+		}
+		hits += 1;
+		referenced[slot] = true;
+		return (V) values[slot];
+	}
+
+	/**
+	 * @return The number of entries evicted to make room for others.
+	 */
+	public long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return The number of calls to {@link #get(long)} that found an entry.
+	 */
+	public long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return The number of calls to {@link #get(long)} that found no entry.
+	 */
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return The total weight of the entries in the cache.
+	 */
+	public int getWeight() {
+		return weight;
+	}
+
+	/**
+	 * Adds an entry to the cache, replacing any entry with the same key.
+	 * Entries are evicted until the new one fits; an entry heavier than the
+	 * whole cache is kept only until the next entry is added.
+	 * 
+	 * @param key
+	 *            The key.
+	 * @param value
+	 *            The value, which must not be null.
+	 * @param entryWeight
+	 *            The weight of the entry, at least 1.
+	 */
+	public void put(final long key, final V value, final int entryWeight) {
+		remove(key);
+		while (weight + entryWeight > maxWeight && size() > 0) {
+			evict();
+		}
+
+		final int slot;
+		if (numFreeSlots > 0) {
+			slot = freeSlots[--numFreeSlots];
+		} else {
+			if (numSlots == keys.length) {
+				final int capacity = keys.length * 2;
+				final long[] grownKeys = new long[capacity];
+				System.arraycopy(keys, 0, grownKeys, 0, numSlots);
+				keys = grownKeys;
+				final Object[] grownValues = new Object[capacity];
+				System.arraycopy(values, 0, grownValues, 0, numSlots);
+				values = grownValues;
+				final int[] grownWeights = new int[capacity];
+				System.arraycopy(weights, 0, grownWeights, 0, numSlots);
+				weights = grownWeights;
+				final boolean[] grownReferenced = new boolean[capacity];
+				System.arraycopy(referenced, 0, grownReferenced, 0, numSlots);
+				referenced = grownReferenced;
+			}
+			slot = numSlots++;
+		}
+		keys[slot] = key;
+		values[slot] = value;
+		weights[slot] = entryWeight;
+		referenced[slot] = false;
+		weight += entryWeight;
+		slotOfKey.put(key, slot);
+	}
+
+	/**
+	 * Removes the entry for a key, if there is one.
+	 * 
+	 * @param key
+	 *            The key.
+	 * @return The value that was removed, or null.
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(final long key) {
+		final int slot = slotOfKey.get(key, NO_SLOT);
+		if (slot == NO_SLOT) {
+			return null;
+		}
+		final V value = (V) values[slot];
+		removeSlot(slot);
+		return value;
+	}
+
+	private void removeSlot(final int slot) {
+		slotOfKey.remove(keys[slot]);
+		values[slot] = null;
+		weight -= weights[slot];
+		if (numFreeSlots == freeSlots.length) {
+			final int[] grown = new int[freeSlots.length * 2];
+			System.arraycopy(freeSlots, 0, grown, 0, numFreeSlots);
+			freeSlots = grown;
+		}
+		freeSlots[numFreeSlots++] = slot;
+	}
+
+	/**
+	 * @return The number of entries in the cache.
+	 */
+	public int size() {
+		return slotOfKey.size();
+	}
+
+	@Override
+	public String toString() {
+		return "entries=" + size() + " weight=" + weight + "/" + maxWeight
+				+ " hits=" + hits + " misses=" + misses + " evictions="
+				+ evictions;
+	}
+}
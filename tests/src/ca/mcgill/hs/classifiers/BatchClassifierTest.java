@@ -0,0 +1,234 @@
+/* 
+ * Copyright (c) 2010 Jordan Frank, HumanSense Project, McGill University
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ * See LICENSE for more information 
+ */
+package ca.mcgill.hs.classifiers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that {@link BatchClassifier} gives every window the same scores as
+ * classifying it on its own with {@link NativeClassifier#classifySample}, and
+ * that classifying a -raw.log file gives the same results as classifying the
+ * magnitudes in it. The models are built from synthetic walking and sitting
+ * series, and the chunks are kept small so that the series spans many of
+ * them. The test needs the native library, so it only runs on a device or
+ * emulator.
+ * 
+ * @author Jordan Frank <jordan.frank@cs.mcgill.ca>
+ */
+public class BatchClassifierTest extends TestCase {
+
+	// The classifier parameters used by TimeDelayEmbeddingClassifier, and the
+	// embedding used by TDEClassifierPlugin for single-channel models.
+	private static final int NUM_NEIGHBOURS = 3;
+	private static final int MATCH_STEPS = 8;
+	private static final int EMBEDDING_DIM = 9;
+	private static final int PCA_DIM = 9;
+	private static final int DELAY = 3;
+
+	private static final int STEP = BatchClassifier.DEFAULT_STEP;
+	private static final int CHUNK_WINDOWS = 7;
+
+	/**
+	 * Deletes a directory and everything in it.
+	 */
+	private static void delete(final File file) {
+		final File[] children = file.listFiles();
+		if (children != null) {
+			for (final File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	/**
+	 * Reads a file into an array.
+	 */
+	private static byte[] read(final File file) throws IOException {
+		final byte[] data = new byte[(int) file.length()];
+		final DataInputStream in = new DataInputStream(new FileInputStream(
+				file));
+		try {
+			in.readFully(data);
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	/**
+	 * Returns a synthetic series of acceleration magnitudes, either a noisy
+	 * oscillation, like walking, or low noise, like sitting.
+	 */
+	private static float[] series(final int length, final boolean walking,
+			final long seed) {
+		final Random random = new Random(seed);
+		final float[] series = new float[length];
+		for (int i = 0; i < length; i++) {
+			if (walking) {
+				series[i] = (float) (3 * Math.sin(i * 0.35) + 0.3 * random
+						.nextGaussian());
+			} else {
+				series[i] = (float) (0.2 * random.nextGaussian());
+			}
+		}
+		return series;
+	}
+
+	/**
+	 * Writes a series as a single column, as models are built from.
+	 */
+	private static void writeColumn(final File file, final float[] series)
+			throws IOException {
+		final BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+		try {
+			for (final float value : series) {
+				writer.write(value + "\n");
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Writes magnitudes in the -raw.log format written by FileOutput, with
+	 * the other sensor values set to zero.
+	 */
+	private static void writeRawLog(final File file, final float[] magnitudes,
+			final long[] timestamps) throws IOException {
+		final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new GZIPOutputStream(
+						new FileOutputStream(file))));
+		try {
+			for (int i = 0; i < magnitudes.length; i++) {
+				out.writeLong(timestamps[i]);
+				out.writeFloat(0); // x
+				out.writeFloat(0); // y
+				out.writeFloat(0); // z
+				out.writeFloat(magnitudes[i]);
+				// Temperature, magnetic field and orientation.
+				for (int j = 0; j < 7; j++) {
+					out.writeFloat(0);
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private File directory;
+	private NativeClassifier nativeClassifier;
+	private BatchClassifier batch;
+
+	/* A series that walks and then sits, to be classified. */
+	private float[] test;
+
+	@Override
+	protected void setUp() throws IOException {
+		directory = File.createTempFile("batch-classifier-test", "");
+		if (!directory.delete() || !directory.mkdir()) {
+			throw new IOException("Unable to create directory "
+					+ directory.getPath());
+		}
+		final File walking = new File(directory, "walking");
+		final File sitting = new File(directory, "sitting");
+		writeColumn(walking, series(2000, true, 1));
+		writeColumn(sitting, series(2000, false, 2));
+		TimeDelayEmbeddingClassifier.buildModel(walking.getAbsolutePath(),
+				EMBEDDING_DIM, PCA_DIM, DELAY);
+		TimeDelayEmbeddingClassifier.buildModel(sitting.getAbsolutePath(),
+				EMBEDDING_DIM, PCA_DIM, DELAY);
+		final File models = new File(directory, "models.ini");
+		final BufferedWriter writer = new BufferedWriter(new FileWriter(
+				models));
+		try {
+			writer.write(walking.getAbsolutePath() + ".dmp\n");
+			writer.write(sitting.getAbsolutePath() + ".dmp\n");
+		} finally {
+			writer.close();
+		}
+
+		nativeClassifier = new NativeClassifier();
+		batch = new BatchClassifier(nativeClassifier, STEP, CHUNK_WINDOWS);
+		batch.loadModels(models, NUM_NEIGHBOURS, MATCH_STEPS,
+				NativeClassifier.GTMALGORITHM_INDEP_STEPS);
+
+		final float[] walk = series(500, true, 3);
+		final float[] sit = series(500, false, 4);
+		test = new float[walk.length + sit.length];
+		System.arraycopy(walk, 0, test, 0, walk.length);
+		System.arraycopy(sit, 0, test, walk.length, sit.length);
+	}
+
+	@Override
+	protected void tearDown() {
+		batch.close();
+		delete(directory);
+	}
+
+	public void testRawLogMatchesSeries() throws IOException {
+		final long[] timestamps = new long[test.length];
+		for (int i = 0; i < timestamps.length; i++) {
+			timestamps[i] = 1000000 + 20 * i;
+		}
+		final File log = new File(directory, "test-raw.log");
+		writeRawLog(log, test, timestamps);
+
+		final File fromSeries = new File(directory, "series.dat");
+		final File fromLog = new File(directory, "log.dat");
+		final int numWindows = batch.classify(test, timestamps, fromSeries);
+		assertEquals(numWindows, batch.classifyRawLog(log, fromLog));
+		assertTrue(Arrays.equals(read(fromSeries), read(fromLog)));
+	}
+
+	public void testSeriesMatchesPerSample() throws IOException {
+		final File results = new File(directory, "results.dat");
+		final int windowSize = batch.getWindowSize();
+		final int numWindows = batch.classify(test, null, results);
+		assertEquals((test.length - windowSize) / STEP + 1, numWindows);
+		assertTrue(numWindows > 10 * CHUNK_WINDOWS);
+
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(results)));
+		try {
+			assertEquals(BatchClassifier.FILE_MAGIC, in.readInt());
+			assertEquals(BatchClassifier.FILE_VERSION, in.readInt());
+			final int numModels = in.readInt();
+			assertEquals(2, numModels);
+			assertEquals(batch.getModelNames(), in.readUTF());
+			assertEquals(windowSize, in.readInt());
+			assertEquals(STEP, in.readInt());
+
+			final float[] expected = new float[numModels];
+			for (int w = 0; w < numWindows; w++) {
+				final int start = w * STEP;
+				assertEquals(start + windowSize - 1, in.readLong());
+				nativeClassifier.classifySample(test, start, expected);
+				for (int i = 0; i < numModels; i++) {
+					assertEquals("Window " + w + ", model " + i, expected[i],
+							in.readFloat(), 1e-6f);
+				}
+			}
+			assertEquals(0, in.available());
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,160 @@
+/* 
+ * Copyright (c) 2010 Jordan Frank, HumanSense Project, McGill University
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ * See LICENSE for more information 
+ */
+package ca.mcgill.hs.classifiers.location;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import android.content.Context;
+
+/**
+ * Compares the {@link WapIndex} against the database query it replaced for
+ * finding candidate neighbours of wifi locations. A scratch database is filled
+ * with synthetic locations, grouped into buildings that each have their own
+ * WAPs, and the candidates for a sample of those locations are found both
+ * ways. The report gives the time taken by each and the number of locations
+ * for which the two disagreed, which should be zero. It is a developer tool,
+ * built only with the tests.
+ * 
+ * @author Jordan Frank <jordan.frank@cs.mcgill.ca>
+ * 
+ */
+public class CandidateSearchBenchmark {
+
+	private static final String DATABASE_NAME = "candidatebenchmark.db";
+
+	// Shape of the synthetic data.
+	private static final int LOCATIONS_PER_BUILDING = 50;
+	private static final int WAPS_PER_BUILDING = 30;
+	private static final int MIN_WAPS_PER_LOCATION = 10;
+	private static final int MAX_WAPS_PER_LOCATION = 20;
+
+	/**
+	 * Builds the scratch database and runs the comparison. This takes a while
+	 * for large sets, and should not be run on the main thread.
+	 * 
+	 * @param context
+	 *            The application context, used to create the scratch database.
+	 * @param numLocations
+	 *            The number of locations to create.
+	 * @param numQueries
+	 *            The number of locations whose candidates are found.
+	 * @param seed
+	 *            Seed for the random data, so that runs can be repeated.
+	 * @return The comparison.
+	 */
+	public static CandidateSearchBenchmark run(final Context context,
+			final int numLocations, final int numQueries, final long seed) {
+		context.deleteDatabase(DATABASE_NAME);
+		final WifiLocationSet set = new WifiLocationSet(context, DATABASE_NAME);
+		try {
+			final Random random = new Random(seed);
+			final List<WifiLocation> locations = new ArrayList<WifiLocation>(
+					numLocations);
+			final int numBuildings = Math.max(1, numLocations
+					/ LOCATIONS_PER_BUILDING);
+			for (int i = 0; i < numLocations; i++) {
+				final WifiLocation location = (WifiLocation) set
+						.newLocation(i);
+				location.addObservation(randomObservation(random, i, random
+						.nextInt(numBuildings)));
+				locations.add(location);
+			}
+			set.flush();
+
+			final CandidateSearchBenchmark benchmark = new CandidateSearchBenchmark(
+					numLocations, numQueries);
+			final HashSet<Long> fromIndex = new HashSet<Long>();
+			final HashSet<Long> fromDatabase = new HashSet<Long>();
+			for (int i = 0; i < numQueries; i++) {
+				final WifiLocation query = locations.get(random
+						.nextInt(numLocations));
+				final long threshold = (long) (query.getNumObservations() * WifiLocation.ETA);
+				fromIndex.clear();
+				fromDatabase.clear();
+
+				long start = System.nanoTime();
+				set.findCandidatesInDatabase(query, threshold, fromDatabase);
+				benchmark.databaseNanos += System.nanoTime() - start;
+
+				start = System.nanoTime();
+				set.getIndex().findCandidates(query, threshold, fromIndex);
+				benchmark.indexNanos += System.nanoTime() - start;
+
+				benchmark.candidates += fromIndex.size();
+				if (!fromIndex.equals(fromDatabase)) {
+					benchmark.mismatches += 1;
+				}
+			}
+			return benchmark;
+		} finally {
+			set.close();
+			context.deleteDatabase(DATABASE_NAME);
+		}
+	}
+
+	/**
+	 * Creates an observation of some of the WAPs in a building.
+	 */
+	private static WifiObservation randomObservation(final Random random,
+			final double timestamp, final int building) {
+		final int numWaps = MIN_WAPS_PER_LOCATION
+				+ random.nextInt(MAX_WAPS_PER_LOCATION - MIN_WAPS_PER_LOCATION
+						+ 1);
+		final WifiObservation observation = new WifiObservation(timestamp,
+				numWaps);
+		final int firstWap = building * WAPS_PER_BUILDING;
+		final int offset = random.nextInt(WAPS_PER_BUILDING);
+		for (int i = 0; i < numWaps; i++) {
+			observation.addMeasurement(firstWap + (offset + i)
+					% WAPS_PER_BUILDING, -40 - random.nextInt(50));
+		}
+		return observation;
+	}
+
+	/** Number of locations in the scratch database. */
+	public final int numLocations;
+
+	/** Number of locations whose candidates were found. */
+	public final int numQueries;
+
+	/** Total time taken by the database query. */
+	public long databaseNanos;
+
+	/** Total time taken by the index. */
+	public long indexNanos;
+
+	/** Total number of candidates found by the index. */
+	public int candidates;
+
+	/** Number of queries for which the index and database disagreed. */
+	public int mismatches;
+
+	private CandidateSearchBenchmark(final int numLocations,
+			final int numQueries) {
+		this.numLocations = numLocations;
+		this.numQueries = numQueries;
+	}
+
+	/**
+	 * Returns how many times faster the index was.
+	 * 
+	 * @return The ratio of database to index search time.
+	 */
+	public float getSpeedup() {
+		return indexNanos == 0 ? 0.0f : (float) databaseNanos / indexNanos;
+	}
+
+	@Override
+	public String toString() {
+		return "locations=" + numLocations + " queries=" + numQueries
+				+ " database=" + (databaseNanos / 1000000) + "ms index="
+				+ (indexNanos / 1000000) + "ms speedup=" + getSpeedup()
+				+ " candidates=" + candidates + " mismatches=" + mismatches;
+	}
+}
@@ -0,0 +1,273 @@
+/* 
+ * Copyright (c) 2010 Jordan Frank, HumanSense Project, McGill University
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ * See LICENSE for more information 
+ */
+package ca.mcgill.hs.classifiers.location;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+
+import android.content.Context;
+import ca.mcgill.hs.util.Log;
+
+/**
+ * Replays recorded wifi scans through the location clustering pipeline, as
+ * fast as they can be read. The scans are read from the -wifiloc.log files
+ * written by FileOutput, turned into observations in the same way as
+ * LocationClusterer does, and fed to a {@link WifiClusterer} backed by a
+ * scratch database. The motion state timers run on the scans' timestamps, so
+ * a replay reaches the same clusters as the live run would have.
+ * 
+ * The report gives the throughput, the time spent in each stage of the
+ * pipeline, and the final clusters, so that changes to the clustering can be
+ * checked for both speed and results against days of recorded data. Nothing
+ * in the application uses it, so it is kept with the tests.
+ * 
+ * @author Jordan Frank <jordan.frank@cs.mcgill.ca>
+ */
+public class WifiLogReplay {
+
+	private static final String TAG = "WifiLogReplay";
+
+	// Marks the end of a log.
+	private static final WifiObservation END_OF_LOG = new WifiObservation(0,
+			0);
+
+	/**
+	 * Reads the next scan from a log, in the format written by FileOutput.
+	 * 
+	 * @return The observation, null if no access points were in range, or
+	 *         END_OF_LOG if there are no more scans.
+	 * @throws EOFException
+	 *             If the log ends part way through a scan.
+	 */
+	private static WifiObservation readObservation(final DataInputStream in)
+			throws IOException {
+		final int numAccessPoints;
+		try {
+			numAccessPoints = in.readInt();
+		} catch (final EOFException e) {
+			return END_OF_LOG;
+		}
+		final double timestamp = in.readLong() / 1000.0;
+		final WifiObservation observation = numAccessPoints < 1 ? null
+				: new WifiObservation(timestamp, numAccessPoints);
+		for (int i = 0; i < numAccessPoints; i++) {
+			final int strength = in.readInt();
+			in.readUTF(); // SSID
+			final String bssid = in.readUTF();
+			observation.addMeasurement(WifiObservation.parseBSSID(bssid),
+					strength);
+		}
+		return observation;
+	}
+
+	/**
+	 * Replays a set of logs. The logs are replayed in order of their names,
+	 * which for FileOutput's logs is the order in which they were recorded.
+	 * This takes a while for large sets of logs, and should not be run on the
+	 * main thread.
+	 * 
+	 * @param context
+	 *            The application context, used to create the scratch database.
+	 * @param logs
+	 *            The -wifiloc.log files to replay.
+	 * @param databaseName
+	 *            The name of the scratch database, which is deleted before the
+	 *            replay and kept afterwards so that it can be inspected, or
+	 *            null to keep the locations only in memory.
+	 * @return The report.
+	 */
+	public static WifiLogReplay run(final Context context, final File[] logs,
+			final String databaseName) {
+		final File[] sorted = logs.clone();
+		Arrays.sort(sorted);
+		if (databaseName != null) {
+			context.deleteDatabase(databaseName);
+		}
+
+		final WifiLogReplay replay = new WifiLogReplay();
+		final long start = System.nanoTime();
+		final WifiLocationSet set = new WifiLocationSet(context, databaseName);
+		final WifiClusterer clusterer = new WifiClusterer(set);
+		try {
+			for (final File log : sorted) {
+				replay.replay(log, clusterer);
+			}
+			replay.significantLocationNanos = clusterer
+					.getSignificantLocationNanos();
+			replay.motionStateNanos = replay.clusterNanos
+					- replay.significantLocationNanos;
+			replay.numLocations = set.getAllLocations().size();
+			for (final long clusterId : set.getAllClusters()) {
+				final List<Long> locations = new ArrayList<Long>(set
+						.getLocationsForCluster(clusterId));
+				Collections.sort(locations);
+				replay.clusters.put(clusterId, locations);
+			}
+		} finally {
+			final long closeStart = System.nanoTime();
+			clusterer.close();
+			replay.closeNanos = System.nanoTime() - closeStart;
+			replay.totalNanos = System.nanoTime() - start;
+		}
+		return replay;
+	}
+
+	/** Number of logs replayed. */
+	public int numLogs;
+
+	/** Number of logs that ended part way through a scan. */
+	public int numTruncatedLogs;
+
+	/** Number of observations fed to the clusterer. */
+	public int numObservations;
+
+	/** Number of scans skipped because no access points were in range. */
+	public int numEmptyScans;
+
+	/** Number of observations after which the user was deemed stationary. */
+	public int numStationary;
+
+	/** Number of times the current cluster changed. */
+	public int numClusterChanges;
+
+	/** Number of locations at the end of the replay. */
+	public int numLocations;
+
+	/** Total time spent reading and decoding the logs. */
+	public long parseNanos;
+
+	/** Total time spent in the clusterer, over all stages. */
+	public long clusterNanos;
+
+	/** Longest time spent in the clusterer for a single observation. */
+	public long maxClusterNanos;
+
+	/** Time spent deciding the motion state, and creating new locations. */
+	public long motionStateNanos;
+
+	/**
+	 * Time spent finding the neighbours of new locations, merging them and
+	 * updating the clusters.
+	 */
+	public long significantLocationNanos;
+
+	/** Time spent closing the clusterer, writing out any pending changes. */
+	public long closeNanos;
+
+	/** Total time taken by the replay. */
+	public long totalNanos;
+
+	/** The final clusters, with the sorted ids of their locations. */
+	public final SortedMap<Long, Collection<Long>> clusters = new TreeMap<Long, Collection<Long>>();
+
+	private long currentCluster = -1;
+
+	private WifiLogReplay() {
+	}
+
+	/**
+	 * Returns the number of observations clustered per second of the replay.
+	 * 
+	 * @return The throughput.
+	 */
+	public float getObservationsPerSecond() {
+		return totalNanos == 0 ? 0.0f : numObservations * 1E9f / totalNanos;
+	}
+
+	/**
+	 * Feeds the scans in one log to the clusterer.
+	 */
+	private void replay(final File log, final WifiClusterer clusterer) {
+		numLogs += 1;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new GZIPInputStream(new FileInputStream(log))));
+			while (true) {
+				long start = System.nanoTime();
+				final WifiObservation observation;
+				try {
+					observation = readObservation(in);
+				} catch (final EOFException e) {
+					// The log was not closed properly.
+					numTruncatedLogs += 1;
+					break;
+				} finally {
+					parseNanos += System.nanoTime() - start;
+				}
+				if (observation == END_OF_LOG) {
+					break;
+				} else if (observation == null) {
+					numEmptyScans += 1;
+					continue;
+				}
+
+				start = System.nanoTime();
+				clusterer.cluster(observation);
+				final long elapsed = System.nanoTime() - start;
+				clusterNanos += elapsed;
+				if (elapsed > maxClusterNanos) {
+					maxClusterNanos = elapsed;
+				}
+
+				numObservations += 1;
+				if (!clusterer.isMoving()) {
+					numStationary += 1;
+				}
+				final long cluster = clusterer.getCurrentCluster();
+				if (cluster != currentCluster) {
+					numClusterChanges += 1;
+					currentCluster = cluster;
+				}
+			}
+		} catch (final IOException e) {
+			Log.e(TAG, "Unable to replay " + log.getName());
+			Log.e(TAG, e);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (final IOException e) {
+					Log.e(TAG, e);
+				}
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder();
+		sb.append("logs=" + numLogs + " truncated=" + numTruncatedLogs
+				+ " observations=" + numObservations + " empty="
+				+ numEmptyScans + "\n");
+		sb.append("total=" + (totalNanos / 1000000) + "ms rate="
+				+ getObservationsPerSecond() + "/s\n");
+		sb.append("parse=" + (parseNanos / 1000000) + "ms motion="
+				+ (motionStateNanos / 1000000) + "ms significant="
+				+ (significantLocationNanos / 1000000) + "ms close="
+				+ (closeNanos / 1000000) + "ms maxObservation="
+				+ (maxClusterNanos / 1000) + "us\n");
+		sb.append("stationary=" + numStationary + " clusterChanges="
+				+ numClusterChanges + " locations=" + numLocations
+				+ " clusters=" + clusters.size() + "\n");
+		for (final Long clusterId : clusters.keySet()) {
+			sb.append(clusterId + ": " + clusters.get(clusterId) + "\n");
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,317 @@
+/* 
+ * Copyright (c) 2010 Jordan Frank, HumanSense Project, McGill University
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ * See LICENSE for more information 
+ */
+package ca.mcgill.hs.network;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import ca.mcgill.hs.util.Log;
+
+/**
+ * A stand-in for the logging server, so that {@link LogServerClient} can be
+ * exercised and timed without the real one, either on the phone itself or on
+ * a development machine. It speaks the protocol described in
+ * {@link LogServerClient}, checks that the frames on each connection arrive in
+ * sequence, acknowledges them, and hands the vectors it receives to a
+ * {@link Listener}, once each even if a batch is sent again after the client
+ * reconnects. Each connection is served by its own thread, and
+ * {@link #dropConnections()} cuts them all, as a failing network would.
+ * <p>
+ * The server lives in the test sources so that it is not built into the
+ * application.
+ * 
+ * @author Jordan Frank <jordan.frank@cs.mcgill.ca>
+ */
+public class LocalLogServer extends Thread {
+
+	/**
+	 * Receives the vectors sent to the server.
+	 */
+	public interface Listener {
+		/**
+		 * Called for each vector, on the thread serving its connection.
+		 * 
+		 * @param channel
+		 *            The name of the channel, such as "CLASSIFY".
+		 * @param vector
+		 *            The vector.
+		 */
+		public void onVector(String channel, float[] vector);
+	}
+
+	/* A channel opened on a connection. */
+	private static final class Stream {
+		private final String name;
+		private final String key;
+		private final int width;
+
+		private Stream(final String name, final String key, final int width) {
+			this.name = name;
+			this.key = key;
+			this.width = width;
+		}
+	}
+
+	private static final String TAG = "LocalLogServer";
+
+	private final ServerSocket serverSocket;
+	private final Listener listener;
+
+	/* The connections being served, guarded by this. */
+	private final HashSet<Socket> sockets = new HashSet<Socket>();
+
+	/*
+	 * The index of the next vector expected on each channel of each session,
+	 * guarded by this.
+	 */
+	private final HashMap<String, Long> nextIndex = new HashMap<String, Long>();
+
+	/* Statistics, guarded by this. */
+	private int numConnections = 0;
+	private int numFrames = 0;
+	private int numVectors = 0;
+	private int numDuplicates = 0;
+	private int numEnded = 0;
+	private int numErrors = 0;
+	private long bytesReceived = 0;
+
+	/**
+	 * Creates a server listening on the loopback interface. Call
+	 * {@link #start()} to begin serving connections.
+	 * 
+	 * @param port
+	 *            The port to listen on, or 0 for any free port.
+	 * @param listener
+	 *            The listener to which to hand the vectors, or null.
+	 * @throws IOException
+	 *             If the port cannot be opened.
+	 */
+	public LocalLogServer(final int port, final Listener listener)
+			throws IOException {
+		super(TAG);
+		this.listener = listener;
+		serverSocket = new ServerSocket(port, 50, InetAddress
+				.getByName("127.0.0.1"));
+	}
+
+	/**
+	 * Stops accepting connections. Connections that are open are closed by
+	 * their clients.
+	 */
+	public void close() {
+		try {
+			serverSocket.close();
+		} catch (final IOException e) {
+			Log.e(TAG, e);
+		}
+	}
+
+	/**
+	 * Closes the connections being served, as if the network had failed.
+	 */
+	public synchronized void dropConnections() {
+		for (final Socket socket : sockets) {
+			try {
+				socket.close();
+			} catch (final IOException e) {
+				Log.e(TAG, e);
+			}
+		}
+		sockets.clear();
+	}
+
+	/**
+	 * @return The number of vectors received more than once and ignored.
+	 */
+	public synchronized int getNumDuplicates() {
+		return numDuplicates;
+	}
+
+	/**
+	 * @return The number of channels that have been ended by their clients.
+	 */
+	public synchronized int getNumEnded() {
+		return numEnded;
+	}
+
+	/**
+	 * @return The number of vectors received.
+	 */
+	public synchronized int getNumVectors() {
+		return numVectors;
+	}
+
+	/**
+	 * @return The port on which the server is listening.
+	 */
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Reads a batch, and hands the vectors that have not been received
+	 * before to the listener.
+	 */
+	private void receive(final Stream stream, final DataInputStream frame,
+			final int length) throws IOException {
+		final long index = frame.readLong();
+		final int count = frame.readInt();
+		if (length != 12 + 4 * count * stream.width) {
+			throw new IOException("Protocol Error: batch of " + count
+					+ " vectors is " + length + " bytes");
+		}
+		final long skip;
+		synchronized (this) {
+			final Long next = nextIndex.get(stream.key);
+			skip = next == null ? 0 : Math.max(0, next - index);
+			if (skip < count) {
+				nextIndex.put(stream.key, index + count);
+			}
+			numDuplicates += Math.min(skip, count);
+			numVectors += Math.max(0, count - skip);
+		}
+		for (int i = 0; i < count; i++) {
+			final float[] vector = new float[stream.width];
+			for (int j = 0; j < stream.width; j++) {
+				vector[j] = frame.readFloat();
+			}
+			if (i >= skip && listener != null) {
+				listener.onVector(stream.name, vector);
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		while (!serverSocket.isClosed()) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (final IOException e) {
+				// The server has been closed.
+				break;
+			}
+			synchronized (this) {
+				numConnections += 1;
+				sockets.add(socket);
+			}
+			new Thread(TAG + " connection") {
+				@Override
+				public void run() {
+					serve(socket);
+				}
+			}.start();
+		}
+	}
+
+	/**
+	 * Reads frames from a connection, and acknowledges each, until the client
+	 * closes the connection.
+	 */
+	private void serve(final Socket socket) {
+		try {
+			final DataInputStream in = new DataInputStream(
+					new BufferedInputStream(socket.getInputStream()));
+			final DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(socket.getOutputStream()));
+			if (in.readInt() != LogServerClient.MAGIC
+					|| in.readShort() != LogServerClient.VERSION) {
+				throw new IOException("Protocol Error: bad header");
+			}
+			final long session = in.readLong();
+			out.writeInt(LogServerClient.MAGIC);
+			out.writeShort(LogServerClient.VERSION);
+			out.flush();
+
+			final HashMap<Byte, Stream> streams = new HashMap<Byte, Stream>();
+			for (int expected = 0;; expected++) {
+				final byte type = in.readByte();
+				final byte id = in.readByte();
+				final int sequence = in.readInt();
+				final int length = in.readInt();
+				if (sequence != expected) {
+					throw new IOException("Protocol Error: frame " + sequence
+							+ " where " + expected + " was expected");
+				}
+				final byte[] payload = new byte[length];
+				in.readFully(payload);
+				final DataInputStream frame = new DataInputStream(
+						new ByteArrayInputStream(payload));
+				synchronized (this) {
+					numFrames += 1;
+					bytesReceived += LogServerClient.FRAME_HEADER_SIZE
+							+ length;
+				}
+
+				final Stream stream = streams.get(id);
+				if (type == LogServerClient.FRAME_OPEN) {
+					final String name = frame.readUTF();
+					streams.put(id, new Stream(name, session + "/" + id,
+							frame.readInt()));
+					Log.d(TAG, "Opened " + name + ": " + frame.readUTF());
+				} else if (type == LogServerClient.FRAME_DATA
+						&& stream != null) {
+					receive(stream, frame, length);
+				} else if (type == LogServerClient.FRAME_END
+						&& stream != null) {
+					Log.d(TAG, "Ended " + stream.name);
+					synchronized (this) {
+						numEnded += 1;
+					}
+				} else {
+					throw new IOException("Protocol Error: unexpected frame "
+							+ type + " on channel " + id);
+				}
+
+				out.writeByte(LogServerClient.FRAME_ACK);
+				out.writeByte(0);
+				out.writeInt(sequence);
+				out.writeInt(0);
+				// Acknowledge the frames that have arrived together at once.
+				if (in.available() == 0) {
+					out.flush();
+				}
+			}
+		} catch (final EOFException e) {
+			// The client closed the connection.
+		} catch (final IOException e) {
+			synchronized (this) {
+				// Unless the connection was dropped on purpose.
+				if (sockets.contains(socket)) {
+					Log.e(TAG, e);
+					numErrors += 1;
+				}
+			}
+		} finally {
+			synchronized (this) {
+				sockets.remove(socket);
+			}
+			try {
+				socket.close();
+			} catch (final IOException e) {
+				Log.e(TAG, e);
+			}
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "connections=" + numConnections + " frames=" + numFrames
+				+ " vectors=" + numVectors + " duplicates=" + numDuplicates
+				+ " ended=" + numEnded + " errors=" + numErrors + " bytes="
+				+ bytesReceived;
+	}
+}
@@ -0,0 +1,776 @@
+/* 
+ * Copyright (c) 2010 Jordan Frank, HumanSense Project, McGill University
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ * See LICENSE for more information 
+ */
+package ca.mcgill.hs.uploader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import org.apache.http.ConnectionClosedException;
+import org.apache.http.Header;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.http.impl.DefaultHttpResponseFactory;
+import org.apache.http.impl.DefaultHttpServerConnection;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.BasicHttpProcessor;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.protocol.HttpRequestHandlerRegistry;
+import org.apache.http.protocol.HttpService;
+import org.apache.http.protocol.ResponseConnControl;
+import org.apache.http.protocol.ResponseContent;
+import org.apache.http.protocol.ResponseDate;
+import org.apache.http.protocol.ResponseServer;
+import org.apache.http.util.EntityUtils;
+
+import ca.mcgill.hs.util.CRC32C;
+import ca.mcgill.hs.util.Log;
+
+/**
+ * A stand-in for the upload server, so that the uploader can be exercised and
+ * timed without the real one, either on the phone itself or on a development
+ * machine. It accepts the same multipart POST as uploader.php, stores each
+ * file under its root directory in a folder named after the phone's MAC
+ * address, and answers SUCCESS, or FAILURE if the request is malformed. It
+ * also implements the server side of the chunked protocol used by
+ * {@link ChunkedUploader}, at {@link #getChunkedUrl()}. Bundles written by
+ * {@link UploadBundler} are unpacked, and only the files in them are kept. The
+ * server remembers the {@link ContentHash} of every file and bundle it
+ * receives, and answers the lookups made by {@link UploadEngine} at
+ * {@link #getDedupUrl()}. Segments of live files sent by
+ * {@link SegmentStreamer} to {@link #getStreamUrl()} are appended to a file
+ * named after the live file with the suffix ".live". Connections are kept
+ * alive between requests, and each is served by its own thread. To test
+ * retries, {@link #failNext(int)} makes the server answer the next uploads
+ * with an internal server error.
+ * <p>
+ * The server lives in the test sources so that it is not built into the
+ * application. {@link UploadBenchmark} runs it against {@link UploadEngine},
+ * and {@link UploadEngineTest} uses it to check how failures are reported.
+ * 
+ * @author Jordan Frank <jordan.frank@cs.mcgill.ca>
+ */
+public class LocalUploadServer extends Thread {
+
+	private static final String TAG = "LocalUploadServer";
+
+	private static final String SUCCESS = "SUCCESS";
+
+	private static final String FAILURE = "FAILURE";
+
+	/* The suffix of a file whose chunks are still being received. */
+	private static final String PART_SUFFIX = ".part";
+
+	/* The suffix of a file holding the segments streamed from a live file. */
+	private static final String LIVE_SUFFIX = ".live";
+
+	private static byte[] bytes(final String s) {
+		try {
+			return s.getBytes("US-ASCII");
+		} catch (final UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Copies a stream to another.
+	 */
+	private static void copy(final InputStream in, final OutputStream out)
+			throws IOException {
+		final byte[] buffer = new byte[Constants.BUFFER_SIZE];
+		int count;
+		while ((count = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, count);
+		}
+	}
+
+	/**
+	 * Returns the index of the first occurrence of a pattern in an array, at
+	 * or after an index.
+	 */
+	private static int indexOf(final byte[] data, final byte[] pattern,
+			final int from) {
+		final int last = data.length - pattern.length;
+		outer: for (int i = from; i <= last; i++) {
+			for (int j = 0; j < pattern.length; j++) {
+				if (data[i + j] != pattern[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the value of a parameter in a header, such as the boundary in a
+	 * Content-Type or the filename in a Content-Disposition. The value ends at
+	 * the next parameter or line.
+	 */
+	private static String parameter(final String header, final String name) {
+		final int start = header.indexOf(name + "=");
+		if (start < 0) {
+			return null;
+		}
+		int end = start + name.length() + 1;
+		while (end < header.length()
+				&& ";\r\n".indexOf(header.charAt(end)) < 0) {
+			end++;
+		}
+		String value = header.substring(start + name.length() + 1, end).trim();
+		if (value.startsWith("\"") && value.endsWith("\"")) {
+			value = value.substring(1, value.length() - 1);
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the parameters in the query string of a request.
+	 */
+	private static HashMap<String, String> query(final HttpRequest request)
+			throws UnsupportedEncodingException {
+		final HashMap<String, String> parameters = new HashMap<String, String>();
+		final String uri = request.getRequestLine().getUri();
+		final int start = uri.indexOf('?');
+		if (start < 0) {
+			return parameters;
+		}
+		for (final String pair : uri.substring(start + 1).split("&")) {
+			final int equals = pair.indexOf('=');
+			if (equals > 0) {
+				parameters.put(URLDecoder.decode(pair.substring(0, equals),
+						"UTF-8"), URLDecoder.decode(pair.substring(equals + 1),
+						"UTF-8"));
+			}
+		}
+		return parameters;
+	}
+
+	private final File root;
+	private final ServerSocket serverSocket;
+	private final HttpRequestHandlerRegistry handlers = new HttpRequestHandlerRegistry();
+
+	/* The file stored with each hash, guarded by this. */
+	private final HashMap<String, File> contents = new HashMap<String, File>();
+
+	/* The hashes of the bundles received, guarded by this. */
+	private final HashSet<String> bundleHashes = new HashSet<String>();
+
+	/* The length of the data streamed for each live file, guarded by this. */
+	private final HashMap<File, Long> streamed = new HashMap<File, Long>();
+
+	/* The number of uploads still to fail, guarded by this. */
+	private int numToFail = 0;
+
+	/* Statistics, guarded by this. */
+	private int numConnections = 0;
+	private int numRequests = 0;
+	private int numFiles = 0;
+	private int numBundles = 0;
+	private int numChunks = 0;
+	private int numRejected = 0;
+	private int numFailed = 0;
+	private int numLookups = 0;
+	private int numDuplicates = 0;
+	private int numSegments = 0;
+	private long bytesReceived = 0;
+
+	/**
+	 * Creates a server listening on the loopback interface. Call
+	 * {@link #start()} to begin serving requests.
+	 * 
+	 * @param root
+	 *            The directory in which to store the uploaded files.
+	 * @param port
+	 *            The port to listen on, or 0 for any free port.
+	 * @throws IOException
+	 *             If the port cannot be opened.
+	 */
+	public LocalUploadServer(final File root, final int port)
+			throws IOException {
+		super(TAG);
+		this.root = root;
+		serverSocket = new ServerSocket(port, 50, InetAddress
+				.getByName("127.0.0.1"));
+		handlers.register("/chunked.php*", new HttpRequestHandler() {
+			public void handle(final HttpRequest request,
+					final HttpResponse response, final HttpContext context)
+					throws HttpException, IOException {
+				handleChunk(request, response);
+			}
+		});
+		handlers.register("/have.php*", new HttpRequestHandler() {
+			public void handle(final HttpRequest request,
+					final HttpResponse response, final HttpContext context)
+					throws HttpException, IOException {
+				handleLookup(request, response);
+			}
+		});
+		handlers.register("/stream.php*", new HttpRequestHandler() {
+			public void handle(final HttpRequest request,
+					final HttpResponse response, final HttpContext context)
+					throws HttpException, IOException {
+				handleStream(request, response);
+			}
+		});
+		handlers.register("*", new HttpRequestHandler() {
+			public void handle(final HttpRequest request,
+					final HttpResponse response, final HttpContext context)
+					throws HttpException, IOException {
+				handleUpload(request, response);
+			}
+		});
+	}
+
+	/**
+	 * Stops accepting connections. Connections that are open are closed by
+	 * their clients.
+	 */
+	public void close() {
+		try {
+			serverSocket.close();
+		} catch (final IOException e) {
+			Log.e(TAG, e);
+		}
+	}
+
+	/**
+	 * Returns the directory holding the files from a phone, creating it if
+	 * necessary.
+	 */
+	private File directory(final String mac) throws IOException {
+		final File directory = new File(root, mac.replace(':', '-'));
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create directory "
+					+ directory.getPath());
+		}
+		return directory;
+	}
+
+	/**
+	 * Makes the server answer the next uploads, whether multipart POSTs or
+	 * chunked requests, with status 500 instead of handling them.
+	 * 
+	 * @param count
+	 *            The number of requests to fail.
+	 */
+	public synchronized void failNext(final int count) {
+		numToFail = count;
+	}
+
+	/**
+	 * @return The URL for uploads with {@link ChunkedUploader}.
+	 */
+	public String getChunkedUrl() {
+		return "http://127.0.0.1:" + getPort() + "/chunked.php";
+	}
+
+	/**
+	 * @return The URL for looking up hashes before uploading.
+	 */
+	public String getDedupUrl() {
+		return "http://127.0.0.1:" + getPort() + "/have.php";
+	}
+
+	/**
+	 * @return The port the server is listening on.
+	 */
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * @return The directory in which the uploaded files are stored.
+	 */
+	public File getRoot() {
+		return root;
+	}
+
+	/**
+	 * @return The URL to which {@link SegmentStreamer} posts its batches.
+	 */
+	public String getStreamUrl() {
+		return "http://127.0.0.1:" + getPort() + "/stream.php";
+	}
+
+	/**
+	 * @return The URL to which files should be posted.
+	 */
+	public String getUrl() {
+		return "http://127.0.0.1:" + getPort() + "/uploader.php";
+	}
+
+	/**
+	 * Answers an offset query, or appends a chunk to a partly received file.
+	 * The chunk is accepted only if it starts at the end of the part received
+	 * so far and matches its checksum. Once the file is complete, the part is
+	 * renamed to the file's name.
+	 */
+	private void handleChunk(final HttpRequest request,
+			final HttpResponse response) throws IOException {
+		synchronized (this) {
+			numRequests += 1;
+		}
+		if (takeFailure(response)) {
+			return;
+		}
+		final HashMap<String, String> parameters = query(request);
+		final Header mac = request.getFirstHeader("MAC");
+		final String fileName = parameters.get("name");
+		final long length;
+		try {
+			length = Long.parseLong(parameters.get("length"));
+		} catch (final NumberFormatException e) {
+			reply(response, HttpStatus.SC_BAD_REQUEST, FAILURE);
+			return;
+		}
+		if (mac == null || fileName == null || fileName.length() == 0
+				|| fileName.indexOf('/') >= 0 || length < 0) {
+			reply(response, HttpStatus.SC_BAD_REQUEST, FAILURE);
+			return;
+		}
+
+		// The chunk is read before taking the lock, so that slow clients do
+		// not hold up each other.
+		byte[] chunk = null;
+		long offset = -1;
+		Header checksum = null;
+		if (request instanceof HttpEntityEnclosingRequest) {
+			chunk = EntityUtils
+					.toByteArray(((HttpEntityEnclosingRequest) request)
+							.getEntity());
+			checksum = request.getFirstHeader(ChunkedUploader.CHECKSUM_HEADER);
+			try {
+				offset = Long.parseLong(parameters.get("offset"));
+			} catch (final NumberFormatException e) {
+				reply(response, HttpStatus.SC_BAD_REQUEST, FAILURE);
+				return;
+			}
+		}
+
+		synchronized (this) {
+			final File directory = directory(mac.getValue());
+			final File file = new File(directory, fileName);
+			final File part = new File(directory, fileName + PART_SUFFIX);
+			if (file.isFile() && file.length() == length) {
+				reply(response, HttpStatus.SC_OK, SUCCESS);
+				return;
+			}
+			final long received = part.length();
+			if (chunk == null) {
+				reply(response, HttpStatus.SC_OK, "OFFSET " + received);
+				return;
+			}
+
+			final CRC32C crc = new CRC32C();
+			crc.update(chunk, 0, chunk.length);
+			if (offset != received) {
+				numRejected += 1;
+				reply(response, HttpStatus.SC_CONFLICT, "OFFSET " + received);
+				return;
+			} else if (checksum == null
+					|| !checksum.getValue().equalsIgnoreCase(
+							CRC32C.toHexString(crc.getValue()))
+					|| received + chunk.length > length) {
+				numRejected += 1;
+				reply(response, HttpStatus.SC_BAD_REQUEST, "OFFSET "
+						+ received);
+				return;
+			}
+
+			final FileOutputStream out = new FileOutputStream(part, true);
+			try {
+				out.write(chunk);
+			} finally {
+				out.close();
+			}
+			numChunks += 1;
+			bytesReceived += chunk.length;
+			if (received + chunk.length < length) {
+				reply(response, HttpStatus.SC_OK, "OFFSET "
+						+ (received + chunk.length));
+				return;
+			}
+			if (UploadBundler.isBundle(fileName)) {
+				try {
+					bundleHashes.add(ContentHash.digest(part));
+					unpack(new FileInputStream(part), directory);
+				} catch (final IOException e) {
+					Log.e(TAG, e);
+					reply(response, HttpStatus.SC_INTERNAL_SERVER_ERROR,
+							FAILURE);
+					return;
+				} finally {
+					part.delete();
+				}
+			} else if (!part.renameTo(file)) {
+				throw new IOException("Unable to rename " + part.getPath());
+			} else {
+				contents.put(ContentHash.digest(file), file);
+				numFiles += 1;
+			}
+			reply(response, HttpStatus.SC_OK, SUCCESS);
+		}
+	}
+
+	/**
+	 * Answers whether the server has a file with the given hash. If it has
+	 * the content under another name, it is copied to the given name.
+	 */
+	private void handleLookup(final HttpRequest request,
+			final HttpResponse response) throws IOException {
+		final HashMap<String, String> parameters = query(request);
+		final Header mac = request.getFirstHeader("MAC");
+		final String hash = parameters.get("hash");
+		final String fileName = parameters.get("name");
+		if (mac == null || hash == null || fileName == null
+				|| fileName.length() == 0 || fileName.indexOf('/') >= 0) {
+			reply(response, HttpStatus.SC_BAD_REQUEST, FAILURE);
+			return;
+		}
+		synchronized (this) {
+			numRequests += 1;
+			numLookups += 1;
+			if (UploadBundler.isBundle(fileName)) {
+				if (!bundleHashes.contains(hash)) {
+					reply(response, HttpStatus.SC_OK, UploadEngine.MISSING);
+					return;
+				}
+			} else {
+				final File stored = contents.get(hash);
+				if (stored == null || !stored.isFile()) {
+					reply(response, HttpStatus.SC_OK, UploadEngine.MISSING);
+					return;
+				}
+				final File file = new File(directory(mac.getValue()), fileName);
+				if (!file.equals(stored)) {
+					final FileInputStream in = new FileInputStream(stored);
+					try {
+						write(file, in);
+					} finally {
+						in.close();
+					}
+					numFiles += 1;
+				}
+			}
+			numDuplicates += 1;
+		}
+		reply(response, HttpStatus.SC_OK, UploadEngine.HAVE);
+	}
+
+	/**
+	 * Appends each segment in a batch to its live file, skipping the segments
+	 * that were already received. A segment that does not start where the
+	 * data received for its file ends is refused with a conflict, along with
+	 * the rest of the batch, since appending it would leave a gap in the file.
+	 */
+	private void handleStream(final HttpRequest request,
+			final HttpResponse response) throws IOException {
+		synchronized (this) {
+			numRequests += 1;
+		}
+		final Header mac = request.getFirstHeader("MAC");
+		if (mac == null || !(request instanceof HttpEntityEnclosingRequest)) {
+			reply(response, HttpStatus.SC_BAD_REQUEST, FAILURE);
+			return;
+		}
+		final byte[] body = EntityUtils
+				.toByteArray(((HttpEntityEnclosingRequest) request)
+						.getEntity());
+		final DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(body));
+		synchronized (this) {
+			bytesReceived += body.length;
+			final File directory = directory(mac.getValue());
+			while (in.available() > 0) {
+				final String fileName;
+				final long offset;
+				final int length;
+				final int compressedLength;
+				try {
+					fileName = in.readUTF();
+					offset = in.readLong();
+					length = in.readInt();
+					compressedLength = in.readInt();
+				} catch (final EOFException e) {
+					reply(response, HttpStatus.SC_BAD_REQUEST, FAILURE);
+					return;
+				}
+				if (fileName.length() == 0 || fileName.indexOf('/') >= 0
+						|| compressedLength < 0
+						|| compressedLength > in.available()) {
+					reply(response, HttpStatus.SC_BAD_REQUEST, FAILURE);
+					return;
+				}
+				final byte[] data = new byte[compressedLength];
+				in.readFully(data);
+
+				final File file = new File(directory, fileName + LIVE_SUFFIX);
+				final Long received = streamed.get(file);
+				final long expected = received == null ? 0 : received;
+				if (offset < expected) {
+					continue;
+				} else if (offset > expected) {
+					numRejected += 1;
+					reply(response, HttpStatus.SC_CONFLICT, "OFFSET "
+							+ expected + " " + fileName);
+					return;
+				}
+				final FileOutputStream out = new FileOutputStream(file, true);
+				try {
+					out.write(data);
+				} finally {
+					out.close();
+				}
+				streamed.put(file, offset + length);
+				numSegments += 1;
+			}
+		}
+		reply(response, HttpStatus.SC_OK, SUCCESS);
+	}
+
+	/**
+	 * Stores the file in a multipart upload.
+	 */
+	private void handleUpload(final HttpRequest request,
+			final HttpResponse response) throws IOException {
+		synchronized (this) {
+			numRequests += 1;
+		}
+		if (takeFailure(response)) {
+			return;
+		}
+		if (!(request instanceof HttpEntityEnclosingRequest)) {
+			reply(response, HttpStatus.SC_BAD_REQUEST, FAILURE);
+			return;
+		}
+		final byte[] body = EntityUtils
+				.toByteArray(((HttpEntityEnclosingRequest) request)
+						.getEntity());
+		final Header contentType = request.getFirstHeader("Content-Type");
+		final String boundary = contentType == null ? null : parameter(
+				contentType.getValue(), "boundary");
+		final Header mac = request.getFirstHeader("MAC");
+		if (boundary == null || mac == null) {
+			reply(response, HttpStatus.SC_BAD_REQUEST, FAILURE);
+			return;
+		}
+
+		// The part is the first one, holding the headers and then the file.
+		final byte[] delimiter = bytes("--" + boundary);
+		final int partStart = indexOf(body, delimiter, 0);
+		final int headersEnd = partStart < 0 ? -1 : indexOf(body,
+				bytes("\r\n\r\n"), partStart);
+		final int partEnd = headersEnd < 0 ? -1 : indexOf(body, bytes("\r\n--"
+				+ boundary), headersEnd);
+		if (partEnd < 0) {
+			reply(response, HttpStatus.SC_BAD_REQUEST, FAILURE);
+			return;
+		}
+		final String headers = new String(body, partStart, headersEnd
+				- partStart, "US-ASCII");
+		final String fileName = parameter(headers, "filename");
+		if (fileName == null || fileName.indexOf('/') >= 0) {
+			reply(response, HttpStatus.SC_BAD_REQUEST, FAILURE);
+			return;
+		}
+		final int dataStart = headersEnd + 4;
+		try {
+			store(mac.getValue(), fileName, body, dataStart, partEnd
+					- dataStart);
+		} catch (final IOException e) {
+			Log.e(TAG, e);
+			reply(response, HttpStatus.SC_INTERNAL_SERVER_ERROR, FAILURE);
+			return;
+		}
+		reply(response, HttpStatus.SC_OK, SUCCESS);
+	}
+
+	/**
+	 * Sets the status and text of a response.
+	 */
+	private void reply(final HttpResponse response, final int status,
+			final String message) throws UnsupportedEncodingException {
+		response.setStatusCode(status);
+		response.setEntity(new StringEntity(message));
+	}
+
+	@Override
+	public void run() {
+		while (!serverSocket.isClosed()) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (final IOException e) {
+				// The server has been closed.
+				break;
+			}
+			synchronized (this) {
+				numConnections += 1;
+			}
+			new Thread(TAG + " connection") {
+				@Override
+				public void run() {
+					serve(socket);
+				}
+			}.start();
+		}
+	}
+
+	/**
+	 * Serves requests on a connection until the client closes it.
+	 */
+	private void serve(final Socket socket) {
+		final HttpParams params = new BasicHttpParams();
+		HttpConnectionParams.setSocketBufferSize(params, 8 * 1024);
+		final BasicHttpProcessor processor = new BasicHttpProcessor();
+		processor.addInterceptor(new ResponseDate());
+		processor.addInterceptor(new ResponseServer());
+		processor.addInterceptor(new ResponseContent());
+		processor.addInterceptor(new ResponseConnControl());
+		final HttpService service = new HttpService(processor,
+				new DefaultConnectionReuseStrategy(),
+				new DefaultHttpResponseFactory());
+		service.setParams(params);
+		service.setHandlerResolver(handlers);
+
+		final DefaultHttpServerConnection connection = new DefaultHttpServerConnection();
+		try {
+			connection.bind(socket, params);
+			final HttpContext context = new BasicHttpContext();
+			while (connection.isOpen()) {
+				service.handleRequest(connection, context);
+			}
+		} catch (final ConnectionClosedException e) {
+			// The client closed the connection.
+		} catch (final IOException e) {
+			Log.d(TAG, e);
+		} catch (final HttpException e) {
+			Log.e(TAG, e);
+		} finally {
+			try {
+				connection.shutdown();
+			} catch (final IOException e) {
+				Log.e(TAG, e);
+			}
+		}
+	}
+
+	/**
+	 * Writes a file received from a phone.
+	 */
+	private void store(final String mac, final String fileName,
+			final byte[] data, final int offset, final int length)
+			throws IOException {
+		final String hash = ContentHash.digest(data, offset, length);
+		synchronized (this) {
+			bytesReceived += length;
+		}
+		if (UploadBundler.isBundle(fileName)) {
+			unpack(new ByteArrayInputStream(data, offset, length),
+					directory(mac));
+			synchronized (this) {
+				bundleHashes.add(hash);
+			}
+			return;
+		}
+		final File file = new File(directory(mac), fileName);
+		write(file, new ByteArrayInputStream(data, offset, length));
+		synchronized (this) {
+			contents.put(hash, file);
+			numFiles += 1;
+		}
+	}
+
+	/**
+	 * Answers a request with an internal server error if
+	 * {@link #failNext(int)} asked for more failures.
+	 * 
+	 * @return True if the request was failed.
+	 */
+	private boolean takeFailure(final HttpResponse response)
+			throws UnsupportedEncodingException {
+		synchronized (this) {
+			if (numToFail == 0) {
+				return false;
+			}
+			numToFail -= 1;
+			numFailed += 1;
+		}
+		reply(response, HttpStatus.SC_INTERNAL_SERVER_ERROR, FAILURE);
+		return true;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "connections=" + numConnections + " requests=" + numRequests
+				+ " files=" + numFiles + " bundles=" + numBundles + " chunks="
+				+ numChunks + " rejected=" + numRejected + " failed="
+				+ numFailed + " lookups="
+				+ numLookups + " duplicates=" + numDuplicates + " segments="
+				+ numSegments + " bytes=" + bytesReceived;
+	}
+
+	/**
+	 * Extracts the files in a bundle, and closes it.
+	 */
+	private void unpack(final InputStream in, final File directory)
+			throws IOException {
+		final List<File> files;
+		try {
+			files = UploadBundler.unpack(in, directory);
+		} finally {
+			in.close();
+		}
+		for (final File file : files) {
+			final String hash = ContentHash.digest(file);
+			synchronized (this) {
+				contents.put(hash, file);
+			}
+		}
+		synchronized (this) {
+			numBundles += 1;
+			numFiles += files.size();
+		}
+	}
+
+	/**
+	 * Writes a stream to a file.
+	 */
+	private void write(final File file, final InputStream in)
+			throws IOException {
+		final FileOutputStream out = new FileOutputStream(file);
+		try {
+			copy(in, out);
+		} finally {
+			out.close();
+		}
+	}
+}
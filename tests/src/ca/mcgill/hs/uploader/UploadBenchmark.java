@@ -0,0 +1,164 @@
+/* 
+ * Copyright (c) 2010 Jordan Frank, HumanSense Project, McGill University
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ * See LICENSE for more information 
+ */
+package ca.mcgill.hs.uploader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Times {@link UploadEngine} against a {@link LocalUploadServer} on the
+ * loopback interface, and prints the throughput for each number of workers,
+ * first with single multipart POSTs and then with chunked uploads. Each file
+ * the server stores is checked against the one that was sent.
+ * <p>
+ * Usage: UploadBenchmark [files [bytes [workers...]]], where files is the
+ * number of files to send, bytes is the size of each, and the workers are the
+ * numbers of workers to try. The defaults are 50 files of 256 KB with 1, 2
+ * and 4 workers.
+ * 
+ * @author Jordan Frank <jordan.frank@cs.mcgill.ca>
+ */
+public class UploadBenchmark {
+
+	private static final String MAC_ADDRESS = "00:11:22:33:44:55";
+
+	/**
+	 * Creates a directory that does not exist yet.
+	 */
+	private static File createDirectory(final String prefix)
+			throws IOException {
+		final File directory = File.createTempFile(prefix, "");
+		if (!directory.delete() || !directory.mkdir()) {
+			throw new IOException("Unable to create directory "
+					+ directory.getPath());
+		}
+		return directory;
+	}
+
+	/**
+	 * Writes the files to be sent, filled with random bytes so that they do
+	 * not compress.
+	 */
+	private static File[] createFiles(final File directory,
+			final int numFiles, final int fileSize) throws IOException {
+		final Random random = new Random(numFiles);
+		final byte[] data = new byte[fileSize];
+		final File[] files = new File[numFiles];
+		for (int i = 0; i < numFiles; i++) {
+			random.nextBytes(data);
+			files[i] = new File(directory, "benchmark-" + i + ".log");
+			final FileOutputStream out = new FileOutputStream(files[i]);
+			try {
+				out.write(data);
+			} finally {
+				out.close();
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Deletes a directory and everything in it.
+	 */
+	private static void delete(final File file) {
+		final File[] children = file.listFiles();
+		if (children != null) {
+			for (final File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	public static void main(final String[] args) throws Exception {
+		final int numFiles = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+		final int fileSize = args.length > 1 ? Integer.parseInt(args[1])
+				: 256 * 1024;
+		int[] workers = { 1, 2, 4 };
+		if (args.length > 2) {
+			workers = new int[args.length - 2];
+			for (int i = 0; i < workers.length; i++) {
+				workers[i] = Integer.parseInt(args[i + 2]);
+			}
+		}
+
+		final File directory = createDirectory("upload-benchmark");
+		try {
+			final File[] files = createFiles(directory, numFiles, fileSize);
+			for (final boolean chunked : new boolean[] { false, true }) {
+				for (final int numWorkers : workers) {
+					run(new File(directory, "server"), files, numWorkers,
+							chunked);
+				}
+			}
+		} finally {
+			delete(directory);
+		}
+		// The engine's connection manager may leave threads behind.
+		System.exit(0);
+	}
+
+	/**
+	 * Sends the files once and prints the result.
+	 */
+	private static void run(final File root, final File[] files,
+			final int numWorkers, final boolean chunked) throws IOException,
+			InterruptedException {
+		final LocalUploadServer server = new LocalUploadServer(root, 0);
+		server.start();
+		final int[] numFailed = { 0 };
+		final UploadEngine engine = new UploadEngine(server.getUrl(),
+				MAC_ADDRESS, numWorkers, new UploadEngine.Listener() {
+					public void onUploadFinished(final File file,
+							final String response, final Exception error) {
+						if (error != null || !response.contains("SUCCESS")) {
+							synchronized (numFailed) {
+								numFailed[0] += 1;
+							}
+						}
+					}
+				});
+		if (chunked) {
+			engine.setChunkedUrl(server.getChunkedUrl());
+		}
+		try {
+			final long start = System.nanoTime();
+			for (final File file : files) {
+				engine.enqueue(file);
+			}
+			engine.awaitIdle();
+			final double seconds = (System.nanoTime() - start) / 1E9;
+
+			long bytes = 0;
+			int numMissing = 0;
+			final File stored = new File(root, MAC_ADDRESS.replace(':', '-'));
+			for (final File file : files) {
+				final File copy = new File(stored, file.getName());
+				if (!copy.isFile()
+						|| !ContentHash.digest(copy).equals(
+								ContentHash.digest(file))) {
+					numMissing += 1;
+				}
+				bytes += file.length();
+			}
+			synchronized (numFailed) {
+				System.out.println((chunked ? "chunked" : "post") + " workers="
+						+ numWorkers + " files=" + files.length + " failed="
+						+ numFailed[0] + " missing=" + numMissing + " seconds="
+						+ (float) seconds + " rate="
+						+ (long) (bytes / seconds / 1024) + "KB/s");
+			}
+			System.out.println("  engine: " + engine);
+			System.out.println("  server: " + server);
+		} finally {
+			engine.shutdown();
+			server.close();
+			delete(root);
+		}
+	}
+}
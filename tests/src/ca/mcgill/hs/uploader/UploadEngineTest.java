@@ -0,0 +1,129 @@
+/* 
+ * Copyright (c) 2010 Jordan Frank, HumanSense Project, McGill University
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ * See LICENSE for more information 
+ */
+package ca.mcgill.hs.uploader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests how {@link UploadEngine} reports a server that fails, against a
+ * {@link LocalUploadServer} on the loopback interface.
+ * 
+ * @author Jordan Frank <jordan.frank@cs.mcgill.ca>
+ */
+public class UploadEngineTest extends TestCase {
+
+	private static final String MAC_ADDRESS = "00:11:22:33:44:55";
+
+	/**
+	 * Deletes a directory and everything in it.
+	 */
+	private static void delete(final File file) {
+		final File[] children = file.listFiles();
+		if (children != null) {
+			for (final File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	private File directory;
+	private File file;
+	private LocalUploadServer server;
+	private UploadEngine engine;
+
+	/* The outcome of the last upload. */
+	private volatile String response;
+	private volatile Exception error;
+
+	/**
+	 * Checks that an upload fails with a server error while the server fails,
+	 * that the file is not stored, and that it is stored once the server
+	 * recovers.
+	 * 
+	 * @param numFailures
+	 *            The number of requests the server must fail for the upload to
+	 *            fail.
+	 */
+	private void checkRetried(final int numFailures) throws IOException,
+			InterruptedException {
+		server.failNext(numFailures);
+		upload();
+		assertTrue("Error was " + error, error instanceof HttpStatusException);
+		assertEquals(500, ((HttpStatusException) error).getStatus());
+		final File stored = new File(new File(server.getRoot(), MAC_ADDRESS
+				.replace(':', '-')), file.getName());
+		assertFalse(stored.isFile());
+
+		upload();
+		assertNull(error);
+		assertTrue(response.contains("SUCCESS"));
+		assertEquals(ContentHash.digest(file), ContentHash.digest(stored));
+	}
+
+	@Override
+	protected void setUp() throws IOException {
+		directory = File.createTempFile("upload-engine-test", "");
+		if (!directory.delete() || !directory.mkdir()) {
+			throw new IOException("Unable to create directory "
+					+ directory.getPath());
+		}
+		file = new File(directory, "test.log");
+		final byte[] data = new byte[100 * 1024];
+		new Random(1).nextBytes(data);
+		final FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+
+		server = new LocalUploadServer(new File(directory, "server"), 0);
+		server.start();
+		engine = new UploadEngine(server.getUrl(), MAC_ADDRESS, 1,
+				new UploadEngine.Listener() {
+					public void onUploadFinished(final File file,
+							final String response, final Exception error) {
+						UploadEngineTest.this.response = response;
+						UploadEngineTest.this.error = error;
+					}
+				});
+	}
+
+	@Override
+	protected void tearDown() {
+		engine.shutdown();
+		server.close();
+		delete(directory);
+	}
+
+	public void testChunkedServerErrorIsRetried() throws IOException,
+			InterruptedException {
+		engine.setChunkedUrl(server.getChunkedUrl());
+		// The uploader itself retries failed requests a few times.
+		checkRetried(1 + Constants.MAX_RETRIES);
+	}
+
+	public void testServerErrorIsRetried() throws IOException,
+			InterruptedException {
+		checkRetried(1);
+	}
+
+	/**
+	 * Uploads the file and waits for the outcome.
+	 */
+	private void upload() throws InterruptedException {
+		response = null;
+		error = null;
+		engine.enqueue(file);
+		engine.awaitIdle();
+	}
+}
@@ -0,0 +1,177 @@
+/* 
+ * Copyright (c) 2010 Jordan Frank, HumanSense Project, McGill University
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ * See LICENSE for more information 
+ */
+package ca.mcgill.hs.uploader;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the rate limit and retry delays of {@link UploadScheduler} against a
+ * fake clock, which only moves when a test moves it.
+ * 
+ * @author Jordan Frank <jordan.frank@cs.mcgill.ca>
+ */
+public class UploadSchedulerTest extends TestCase {
+
+	private static final class FakeClock implements UploadScheduler.Clock {
+		private long time = 1000000;
+
+		private void advance(final long millis) {
+			time += millis;
+		}
+
+		public long now() {
+			return time;
+		}
+	}
+
+	/* Always draws the same value for the random part of the delays. */
+	private static final class FixedRandom extends Random {
+		private static final long serialVersionUID = 1L;
+
+		private final boolean highest;
+
+		private FixedRandom(final boolean highest) {
+			this.highest = highest;
+		}
+
+		@Override
+		public int nextInt(final int n) {
+			return highest ? n - 1 : 0;
+		}
+	}
+
+	private FakeClock clock;
+	private UploadScheduler scheduler;
+
+	/**
+	 * Checks the delays of a run of failures, with the random part fixed.
+	 */
+	private void checkRetryDelays(final boolean highest) {
+		scheduler = new UploadScheduler(clock, new FixedRandom(highest));
+		for (int failures = 1; failures <= 40; failures++) {
+			long seconds = (long) Constants.RETRY_FIRST_DELAY << Math.min(
+					failures - 1, 30);
+			seconds = Math.min(seconds, Constants.MAX_RETRY_DELAY);
+			final long expected = seconds * (highest ? 2000 : 1000);
+			assertEquals("Delay after " + failures + " failures", expected,
+					scheduler.onFailure());
+			assertEquals(expected, scheduler.getRetryDelay());
+		}
+	}
+
+	@Override
+	protected void setUp() {
+		clock = new FakeClock();
+		scheduler = new UploadScheduler(clock, new Random(1));
+	}
+
+	public void testBucketHoldsOneSecond() {
+		scheduler.setRateLimit(1000);
+		assertEquals(0, scheduler.reserve(1000));
+		// Tokens do not pile up beyond one second's worth while idle.
+		clock.advance(60 * 1000);
+		assertEquals(0, scheduler.reserve(1000));
+		assertEquals(500, scheduler.reserve(500));
+	}
+
+	public void testBucketStartsFull() {
+		scheduler.setRateLimit(1000);
+		assertEquals(0, scheduler.reserve(400));
+		assertEquals(0, scheduler.reserve(600));
+		assertEquals(1, scheduler.reserve(1));
+	}
+
+	public void testCanUpload() {
+		assertFalse(scheduler.canUpload(false, true, true));
+		assertTrue(scheduler.canUpload(true, false, false));
+
+		scheduler.setRequireUnmetered(true);
+		assertFalse(scheduler.canUpload(true, false, true));
+		assertTrue(scheduler.canUpload(true, true, false));
+
+		scheduler.setRequireCharging(true);
+		assertFalse(scheduler.canUpload(true, true, false));
+		assertTrue(scheduler.canUpload(true, true, true));
+	}
+
+	public void testDebtIsPaidOverTime() {
+		scheduler.setRateLimit(1000);
+		assertEquals(0, scheduler.reserve(1000));
+		assertEquals(2000, scheduler.reserve(2000));
+		clock.advance(1500);
+		assertEquals(500, scheduler.reserve(0));
+		clock.advance(500);
+		assertEquals(0, scheduler.reserve(0));
+	}
+
+	public void testNoRateLimit() {
+		for (int i = 0; i < 100; i++) {
+			assertEquals(0, scheduler.reserve(1024 * 1024));
+		}
+		scheduler.setRateLimit(1000);
+		scheduler.setRateLimit(0);
+		assertEquals(0, scheduler.reserve(1024 * 1024));
+	}
+
+	public void testRateHoldsOverManyWrites() {
+		final long bytesPerSecond = 3000;
+		scheduler.setRateLimit(bytesPerSecond);
+		final long start = clock.now();
+		long bytes = 0;
+		for (int i = 0; i < 1000; i++) {
+			final int count = 1 + i % 700;
+			clock.advance(scheduler.reserve(count));
+			bytes += count;
+		}
+		// The first second's worth goes out at once, from the full bucket.
+		final long expected = (bytes - bytesPerSecond) * 1000 / bytesPerSecond;
+		final long elapsed = clock.now() - start;
+		assertTrue("Elapsed " + elapsed + "ms, expected " + expected + "ms",
+				elapsed >= expected && elapsed <= expected + 1);
+	}
+
+	public void testRetryDelayCountsDown() {
+		assertEquals(0, scheduler.getRetryDelay());
+		final long delay = scheduler.onFailure();
+		clock.advance(delay / 2);
+		assertEquals(delay - delay / 2, scheduler.getRetryDelay());
+		clock.advance(delay);
+		assertEquals(0, scheduler.getRetryDelay());
+	}
+
+	public void testRetryDelaysAreBounded() {
+		checkRetryDelays(false);
+		checkRetryDelays(true);
+	}
+
+	public void testRetryDelaysAreSpread() {
+		final int numDelays = 1000;
+		long smallest = Long.MAX_VALUE;
+		long largest = 0;
+		for (int i = 0; i < numDelays; i++) {
+			scheduler.onSuccess();
+			final long delay = scheduler.onFailure();
+			smallest = Math.min(smallest, delay);
+			largest = Math.max(largest, delay);
+		}
+		final long first = Constants.RETRY_FIRST_DELAY * 1000L;
+		assertTrue(smallest >= first && largest <= 2 * first);
+		// Phones that failed together must not all retry together.
+		assertTrue(largest - smallest > first / 2);
+	}
+
+	public void testSuccessResetsDelay() {
+		scheduler.onFailure();
+		scheduler.onFailure();
+		scheduler.onSuccess();
+		assertEquals(0, scheduler.getRetryDelay());
+		final long delay = scheduler.onFailure();
+		final long first = Constants.RETRY_FIRST_DELAY * 1000L;
+		assertTrue(delay >= first && delay <= 2 * first);
+	}
+}